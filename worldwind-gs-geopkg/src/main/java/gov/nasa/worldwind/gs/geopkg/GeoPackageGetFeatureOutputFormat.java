@@ -13,9 +13,12 @@ import com.google.common.collect.Sets;
 
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.SQLiteTuning;
+import org.geotools.geopkg.geom.SpatialOrder;
 
 import static gov.nasa.worldwind.gs.geopkg.GeoPkg.*;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -50,6 +53,13 @@ public class GeoPackageGetFeatureOutputFormat extends WFSGetFeatureOutputFormat
     
     public final static String PROPERTY_INDEXED = "geopackage.wfs.indexed";
 
+    /**
+     * System property selecting the space-filling curve ("hilbert" or
+     * "zorder") the exported features are clustered along; unset keeps the
+     * source order.
+     */
+    public final static String PROPERTY_ORDER = "geopackage.wfs.order";
+
     public GeoPackageGetFeatureOutputFormat(GeoServer gs) {
         super(gs, Sets.union(Sets.newHashSet(MIME_TYPE), Sets.newHashSet(NAMES)));
     }
@@ -91,7 +101,9 @@ public class GeoPackageGetFeatureOutputFormat extends WFSGetFeatureOutputFormat
     protected void write(FeatureCollectionResponse featureCollection, OutputStream output,
             Operation getFeature) throws IOException, ServiceException {
 
-        GeoPackage geopkg = new GeoPackage();
+        GeoPackage geopkg = new GeoPackage(File.createTempFile("geopkg", ".db"),
+                SQLiteTuning.profile(SQLiteTuning.BULK_EXPORT));
+        SpatialOrder order = SpatialOrder.lookup(System.getProperty(PROPERTY_ORDER));
         
         for (FeatureCollection collection: featureCollection.getFeatures()) {
             
@@ -109,7 +121,7 @@ public class GeoPackageGetFeatureOutputFormat extends WFSGetFeatureOutputFormat
                 e.setDescription(abstractOrDescription(meta));
             }
 
-            geopkg.add(e, features);
+            geopkg.add(e, features, order);
             
             if ("true".equals(System.getProperty(PROPERTY_INDEXED))) {
                 geopkg.createSpatialIndex(e);
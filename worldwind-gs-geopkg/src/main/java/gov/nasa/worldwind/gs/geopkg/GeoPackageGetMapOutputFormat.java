@@ -9,9 +9,11 @@ import com.google.common.collect.Sets;
 import com.vividsolutions.jts.geom.Envelope;
 
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.SQLiteTuning;
 import org.geotools.geopkg.Tile;
 import org.geotools.geopkg.TileEntry;
 import org.geotools.geopkg.TileMatrix;
+import gov.nasa.worldwind.gs.wms.map.AlphaScanner;
 import gov.nasa.worldwind.gs.wms.map.MapResponseOutputStreamAdaptor;
 
 import static java.lang.String.format;
@@ -40,7 +42,6 @@ import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.WebMap;
 import org.geoserver.wms.WebMapService;
 import org.geoserver.wms.map.JPEGMapResponse;
-import org.geoserver.wms.map.JpegPngMapResponse;
 import org.geoserver.wms.map.PNGMapResponse;
 import org.geoserver.wms.map.RawMap;
 import org.geoserver.wms.map.RenderedImageMap;
@@ -91,7 +92,8 @@ public class GeoPackageGetMapOutputFormat extends AbstractTilesGetMapOutputForma
         }
 
         public GeopackageWrapper() throws IOException {
-            this(new GeoPackage(), new TileEntry());
+            this(new GeoPackage(File.createTempFile("geopkg", ".db"),
+                    SQLiteTuning.profile(SQLiteTuning.BULK_EXPORT)), new TileEntry());
             geopkg.init();
         }
 
@@ -382,8 +384,13 @@ public class GeoPackageGetMapOutputFormat extends AbstractTilesGetMapOutputForma
             RenderedImageMapResponse response;
             switch (map.getMimeType()) {
                 case JPEG_PNG_MIME_TYPE:
-                    JpegPngMapResponse mapResponse = new JpegPngMapResponse(wms, new JPEGMapResponse(wms), new PNGMapResponse(wms));
-                    response = new MapResponseOutputStreamAdaptor(JPEG_PNG_MIME_TYPE, wms, mapResponse);
+                    // choose per tile, stopping at the first translucent pixel
+                    RenderedImageMap imageMap = (RenderedImageMap) map;
+                    if (AlphaScanner.isOpaque(imageMap.getImage(), imageMap.getMapContext())) {
+                        response = new MapResponseOutputStreamAdaptor(JPEG_MIME_TYPE, wms, new JPEGMapResponse(wms));
+                    } else {
+                        response = new MapResponseOutputStreamAdaptor(PNG_MIME_TYPE, wms, new PNGMapResponse(wms));
+                    }
                     break;
                 case JPEG_MIME_TYPE:
                     response = new MapResponseOutputStreamAdaptor(JPEG_MIME_TYPE, wms, new JPEGMapResponse(wms));
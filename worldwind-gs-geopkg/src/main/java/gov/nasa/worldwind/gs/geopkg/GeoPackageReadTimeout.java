@@ -0,0 +1,70 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.wms.CachedGridReaderLayer;
+import org.geoserver.wms.GetMapCallbackAdapter;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.geopkg.mosaic.GeoPackageFormat;
+import org.geotools.map.GridReaderLayer;
+import org.geotools.map.Layer;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+
+/**
+ * Stops the GeoPackage coverage reads of a GetMap request once the WMS
+ * maximum rendering time has elapsed.
+ * <p>
+ * GeoServer fails a GetMap request that exceeds its maximum rendering time,
+ * but the coverage readers would keep fetching and decoding the remaining
+ * tiles of the dead request. The GeoPackage layers of GetMap requests are
+ * instead read with a {@link GeoPackageFormat#READ_TIMEOUT} equal to the
+ * maximum rendering time. Reads of other services, WCS and WPS, are not
+ * limited, unless by the {@value GeoPackageFormat#PROPERTY_READ_TIMEOUT}
+ * system property.
+ * </p>
+ */
+public class GeoPackageReadTimeout extends GetMapCallbackAdapter {
+
+    final WMS wms;
+
+    public GeoPackageReadTimeout(WMS wms) {
+        this.wms = wms;
+    }
+
+    @Override
+    public Layer beforeLayer(WMSMapContent mapContent, Layer layer) {
+        long timeout = TimeUnit.SECONDS.toMillis(Math.max(wms.getMaxRenderingTime(), 0));
+        if (timeout == 0 || !(layer instanceof GridReaderLayer)) {
+            return layer;
+        }
+        GridReaderLayer gridLayer = (GridReaderLayer) layer;
+        GridCoverage2DReader reader = gridLayer.getReader();
+        if (!(reader.getFormat() instanceof GeoPackageFormat)) {
+            return layer;
+        }
+        GeneralParameterValue[] params = gridLayer.getParams();
+        params = params == null ? new GeneralParameterValue[1]
+                : Arrays.copyOf(params, params.length + 1);
+        ParameterValue<Long> readTimeout = GeoPackageFormat.READ_TIMEOUT.createValue();
+        readTimeout.setValue(timeout);
+        params[params.length - 1] = readTimeout;
+
+        GridReaderLayer limited = layer instanceof CachedGridReaderLayer
+                ? new CachedGridReaderLayer(reader, gridLayer.getStyle(), params)
+                : new GridReaderLayer(reader, gridLayer.getStyle(), params);
+        limited.setTitle(layer.getTitle());
+        limited.setVisible(layer.isVisible());
+        limited.setSelected(layer.isSelected());
+        limited.getUserData().putAll(layer.getUserData());
+        return limited;
+    }
+}
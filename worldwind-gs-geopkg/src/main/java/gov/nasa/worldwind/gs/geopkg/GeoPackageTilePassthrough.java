@@ -0,0 +1,202 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetMapCallback;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.map.RawMap;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.mosaic.GeoPackageReader;
+import org.geotools.referencing.CRS;
+import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
+import org.opengis.referencing.FactoryException;
+
+/**
+ * WMS service interceptor returning stored GeoPackage tiles as is.
+ * <p>
+ * A GetMap request for a single GeoPackage coverage with the default raster
+ * style, in the CRS of the tiles, whose area and size match exactly one
+ * stored tile and whose format is the format the tile is stored in, and
+ * without any filter, dimension, format option, environment variable,
+ * interpolation or palette that could change the image, would have the tile
+ * decoded, drawn, and encoded again into the very same image. Such requests,
+ * typical of WorldWind clients and of GeoWebCache seeding with 1x1 meta
+ * tiles, are instead answered with the bytes of the tile. All other requests,
+ * and aligned requests for tiles that are not stored, are rendered as usual.
+ * </p>
+ * <p>
+ * A stored tile is not rendered, so the {@link GetMapCallback}s never see
+ * it. The passthrough therefore only applies while the registered callbacks
+ * are {@link GeoPackageReadTimeout}s, whose timeout a single tile read does
+ * not need; any other callback, which may check, alter or record the map,
+ * has all requests rendered.
+ * </p>
+ * Set the {@value #PROPERTY_ENABLED} system property to false to disable the
+ * passthrough.
+ */
+public class GeoPackageTilePassthrough implements MethodInterceptor {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.geopkg");
+
+    public static final String PROPERTY_ENABLED = "geopackage.passthrough";
+
+    boolean enabled = Boolean.parseBoolean(System.getProperty(PROPERTY_ENABLED, "true"));
+
+    /**
+     * The GetMap callbacks, looked up in the application context when null.
+     */
+    List<GetMapCallback> callbacks;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (enabled && "getMap".equals(invocation.getMethod().getName())
+                && invocation.getArguments().length == 1
+                && invocation.getArguments()[0] instanceof GetMapRequest) {
+            try {
+                RawMap map = passthrough((GetMapRequest) invocation.getArguments()[0]);
+                if (map != null) {
+                    return map;
+                }
+            } catch (IOException | FactoryException | IllegalArgumentException e) {
+                LOGGER.log(Level.FINE, "Tile passthrough failed, rendering the map", e);
+            }
+        }
+        return invocation.proceed();
+    }
+
+    /**
+     * Returns the stored tile matching the request, or null if the request has
+     * to be rendered.
+     */
+    RawMap passthrough(GetMapRequest request) throws IOException, FactoryException {
+        if (request.getLayers().size() != 1 || !isPlain(request) || !isUncalled(getCallbacks())) {
+            return null;
+        }
+        MapLayerInfo layer = request.getLayers().get(0);
+        if (layer.getType() != MapLayerInfo.TYPE_RASTER || !isDefaultRasterStyle(request, layer)) {
+            return null;
+        }
+        CoverageInfo coverage = layer.getCoverage();
+        GridCoverage2DReader reader = (GridCoverage2DReader) coverage.getCatalog().getResourcePool()
+                .getGridCoverageReader(coverage.getStore(), null);
+        if (!(reader instanceof GeoPackageReader)) {
+            return null;
+        }
+        GeoPackageReader gpkg = (GeoPackageReader) reader;
+        String name = coverage.getNativeCoverageName() != null
+                ? coverage.getNativeCoverageName() : coverage.getNativeName();
+        TileEntry tileset = gpkg.getTileset(name);
+        if (tileset == null || tileset.getGriddedCoverage() != null) {
+            // the tiles of gridded coverages hold values, not images
+            return null;
+        }
+
+        Integer srid = CRS.lookupEpsgCode(request.getCrs(), false);
+        if (srid == null || !srid.equals(tileset.getSrid())) {
+            return null;
+        }
+        Envelope bbox = request.getBbox();
+        if (CRS.getAxisOrder(request.getCrs()) == CRS.AxisOrder.NORTH_EAST) {
+            bbox = new Envelope(bbox.getMinY(), bbox.getMaxY(), bbox.getMinX(), bbox.getMaxX());
+        }
+        int[] index = gpkg.findAlignedTile(name, bbox, request.getWidth(), request.getHeight());
+        if (index == null) {
+            return null;
+        }
+        Tile tile = gpkg.readRawTile(name, index[0], index[1], index[2]);
+        if (tile == null || !request.getFormat().equals(tile.getMimeType())) {
+            return null;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Returning tile %d/%d/%d of %s as is", index[0], index[1],
+                    index[2], name));
+        }
+        return new RawMap(null, tile.getData(), tile.getMimeType());
+    }
+
+    List<GetMapCallback> getCallbacks() {
+        return callbacks != null ? callbacks : GeoServerExtensions.extensions(GetMapCallback.class);
+    }
+
+    /**
+     * Whether none of the callbacks has to see the map.
+     */
+    static boolean isUncalled(List<GetMapCallback> callbacks) {
+        for (GetMapCallback callback : callbacks) {
+            if (!(callback instanceof GeoPackageReadTimeout)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the request has nothing that would alter the stored image.
+     */
+    static boolean isPlain(GetMapRequest request) {
+        String format = request.getFormat();
+        if ("image/png".equals(format)) {
+            // stored pngs may be transparent, an opaque map needs the background
+            if (!request.isTransparent()) {
+                return false;
+            }
+        } else if (!"image/jpeg".equals(format)) {
+            return false;
+        }
+        return isEmpty(request.getFilter()) && isEmpty(request.getCQLFilter())
+                && isEmpty(request.getFeatureId()) && isEmpty(request.getElevation())
+                && isEmpty(request.getTime()) && request.getSld() == null
+                && request.getSldBody() == null && request.getAngle() == 0
+                && isEmpty(request.getFormatOptions()) && isEmpty(request.getEnv())
+                && isEmpty(request.getInterpolations()) && request.getPalette() == null;
+    }
+
+    static boolean isDefaultRasterStyle(GetMapRequest request, MapLayerInfo layer)
+            throws IOException {
+        List<Style> styles = request.getStyles();
+        Style style = styles == null || styles.isEmpty() ? null : styles.get(0);
+        if (style != null && !style.equals(layer.getDefaultStyle())) {
+            return false;
+        }
+        LayerInfo info = layer.getLayerInfo();
+        StyleInfo defaultStyle = info != null ? info.getDefaultStyle() : null;
+        return defaultStyle != null && StyleInfo.DEFAULT_RASTER.equals(defaultStyle.getName());
+    }
+
+    static boolean isEmpty(List<?> list) {
+        return list == null || list.isEmpty();
+    }
+
+    static boolean isEmpty(Map<?, ?> map) {
+        return map == null || map.isEmpty();
+    }
+}
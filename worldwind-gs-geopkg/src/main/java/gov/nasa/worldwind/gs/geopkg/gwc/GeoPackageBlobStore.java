@@ -0,0 +1,750 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg.gwc;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import gov.nasa.worldwind.gs.geopkg.GeoPkg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileMatrix;
+import org.geotools.geopkg.TileReader;
+import org.geotools.geopkg.mosaic.GeoPackageReader;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.Grid;
+import org.geowebcache.grid.GridSet;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.SRS;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.io.Resource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.BlobStoreListenerList;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * GeoWebCache blob store serving tiles straight from GeoPackage tile tables.
+ * <p>
+ * Pyramids built offline are otherwise rendered and cached a second time by
+ * GeoWebCache on first access. This store instead looks up the GeoPackage
+ * named after the layer in its directory (the full layer name, or the name
+ * without the workspace prefix), uses the tile table named after the layer or
+ * the only tile table of the file, and maps each gridset level onto the tile
+ * matrix with the same CRS, tile size and resolution whose origin lines up
+ * with the gridset. Tiles of levels that do not line up, and of parameterized
+ * requests, are reported missing and rendered by GeoWebCache as usual, and
+ * so are the tiles of gridded coverage tile tables, which hold values rather
+ * than images.
+ * </p>
+ * <p>
+ * A read only store opens the files read only, sharing their connections
+ * with the GeoPackage readers, and discards the tiles GeoWebCache renders. A
+ * writable store writes them to the tile matrices of existing pyramids in
+ * batches, one transaction per batch. Truncating a layer leaves the pyramids
+ * alone, unless the store is writable and explicitly allowed to delete tiles,
+ * in which case the tiles are deleted but the file is kept.
+ * </p>
+ * The layer metadata GeoWebCache keeps is stored in a properties file next
+ * to the GeoPackage of the layer.
+ */
+public class GeoPackageBlobStore implements BlobStore {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.geopkg");
+
+    static final String JPEG_PNG_MIME_TYPE = "image/vnd.jpeg-png";
+
+    /**
+     * Seconds between two writes of the pending tiles.
+     */
+    static final int FLUSH_INTERVAL = 1;
+
+    /**
+     * Rows of tiles deleted at a time when deleting a tile range.
+     */
+    static final int DELETE_ROWS = 64;
+
+    /**
+     * A gridset level mapped onto a tile matrix, tile x/y of the gridset
+     * becoming column <code>col0 + x</code>, row <code>row0 - y</code>.
+     */
+    static class MatrixLevel {
+        final TileMatrix matrix;
+
+        final long col0;
+
+        final long row0;
+
+        MatrixLevel(TileMatrix matrix, long col0, long row0) {
+            this.matrix = matrix;
+            this.col0 = col0;
+            this.row0 = row0;
+        }
+
+        /**
+         * Returns the tile at the gridset tile index, without its data, or
+         * null if the index falls outside of the matrix.
+         */
+        Tile tile(long[] xyz) {
+            long col = col0 + xyz[0];
+            long row = row0 - xyz[1];
+            if (col < 0 || row < 0 || col >= matrix.getMatrixWidth()
+                    || row >= matrix.getMatrixHeight()) {
+                return null;
+            }
+            return new Tile(matrix.getZoomLevel(), (int) col, (int) row, null);
+        }
+    }
+
+    /**
+     * An open GeoPackage and its pending writes.
+     */
+    static class Pyramid {
+        final File file;
+
+        final GeoPackage geopkg;
+
+        final TileEntry entry;
+
+        final Map<String, MatrixLevel[]> levels = new ConcurrentHashMap<>();
+
+        final Map<String, Tile> pending = new LinkedHashMap<>();
+
+        final Object flushLock = new Object();
+
+        Pyramid(File file, GeoPackage geopkg, TileEntry entry) {
+            this.file = file;
+            this.geopkg = geopkg;
+            this.entry = entry;
+        }
+    }
+
+    final File directory;
+
+    final TileLayerDispatcher layers;
+
+    final boolean readOnly;
+
+    final boolean immutable;
+
+    final boolean deletable;
+
+    final int batchSize;
+
+    final BlobStoreListenerList listeners = new BlobStoreListenerList();
+
+    final Map<String, Pyramid> pyramids = new HashMap<>();
+
+    /**
+     * the metadata of the layers, loaded on demand from their properties files
+     */
+    final Map<String, Properties> metadata = new HashMap<>();
+
+    ScheduledExecutorService flusher;
+
+    public GeoPackageBlobStore(File directory, TileLayerDispatcher layers, boolean readOnly,
+            boolean immutable, boolean deletable, int batchSize) {
+        this.directory = directory;
+        this.layers = layers;
+        this.readOnly = readOnly;
+        this.immutable = immutable;
+        this.deletable = deletable;
+        this.batchSize = batchSize;
+        if (!readOnly) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gpkg-blobstore-flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flushAll();
+                }
+            }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Whether truncating layers deletes tiles of the GeoPackages.
+     */
+    public boolean isDeletable() {
+        return !readOnly && deletable;
+    }
+
+    @Override
+    public boolean get(TileObject obj) throws StorageException {
+        if (obj.getParametersId() != null) {
+            return false;
+        }
+        Pyramid pyramid = pyramid(obj.getLayerName());
+        if (pyramid == null) {
+            return false;
+        }
+        Tile tile = lookup(pyramid, obj);
+        if (tile == null) {
+            return false;
+        }
+        Tile stored;
+        synchronized (pyramid.pending) {
+            stored = pyramid.pending.get(key(tile));
+        }
+        if (stored == null) {
+            try (TileReader it = pyramid.geopkg.reader(pyramid.entry, tile.getZoom(),
+                    tile.getZoom(), tile.getColumn(), tile.getColumn(), tile.getRow(),
+                    tile.getRow())) {
+                stored = it.hasNext() ? it.next() : null;
+            } catch (IOException e) {
+                throw new StorageException("Error reading tile from " + pyramid.file, e);
+            }
+        }
+        if (stored == null || !isFormat(obj.getBlobFormat(), stored.getMimeType())) {
+            return false;
+        }
+        obj.setBlob(new ByteArrayResource(stored.getData()));
+        obj.setCreated(pyramid.file.lastModified());
+        return true;
+    }
+
+    @Override
+    public void put(TileObject obj) throws StorageException {
+        if (readOnly || obj.getParametersId() != null) {
+            return;
+        }
+        Pyramid pyramid = pyramid(obj.getLayerName());
+        if (pyramid == null) {
+            return;
+        }
+        Tile tile = lookup(pyramid, obj);
+        if (tile == null) {
+            return;
+        }
+        try {
+            tile.setData(toBytes(obj.getBlob()));
+        } catch (IOException e) {
+            throw new StorageException("Error reading tile " + obj, e);
+        }
+        int size;
+        synchronized (pyramid.pending) {
+            pyramid.pending.put(key(tile), tile);
+            size = pyramid.pending.size();
+        }
+        if (size >= batchSize) {
+            try {
+                flush(pyramid);
+            } catch (IOException e) {
+                throw new StorageException("Error writing tiles to " + pyramid.file, e);
+            }
+        }
+        listeners.sendTileStored(obj);
+    }
+
+    @Override
+    public boolean delete(TileObject obj) throws StorageException {
+        if (!isDeletable() || obj.getParametersId() != null) {
+            return false;
+        }
+        Pyramid pyramid = pyramid(obj.getLayerName());
+        if (pyramid == null) {
+            return false;
+        }
+        Tile tile = lookup(pyramid, obj);
+        if (tile == null) {
+            return false;
+        }
+        synchronized (pyramid.pending) {
+            pyramid.pending.remove(key(tile));
+        }
+        try {
+            int deleted = pyramid.geopkg.delete(pyramid.entry, tile.getZoom(), tile.getZoom(),
+                    tile.getColumn(), tile.getColumn(), tile.getRow(), tile.getRow());
+            if (deleted == 0) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error deleting tile from " + pyramid.file, e);
+        }
+        listeners.sendTileDeleted(obj);
+        return true;
+    }
+
+    @Override
+    public boolean delete(TileRange range) throws StorageException {
+        if (!isDeletable() || range.getParametersId() != null) {
+            return false;
+        }
+        Pyramid pyramid = pyramid(range.getLayerName());
+        if (pyramid == null) {
+            return false;
+        }
+        MatrixLevel[] levels = levels(pyramid, range.getLayerName(), range.getGridSetId());
+        try {
+            flush(pyramid);
+            for (int z = range.getZoomStart(); z <= range.getZoomStop() && z < levels.length; z++) {
+                long[] bounds = range.rangeBounds(z);
+                if (levels[z] == null || bounds == null) {
+                    continue;
+                }
+                MatrixLevel level = levels[z];
+                int zoom = level.matrix.getZoomLevel();
+                int minCol = (int) (level.col0 + bounds[0]);
+                int maxCol = (int) (level.col0 + bounds[2]);
+                int minRow = (int) (level.row0 - bounds[3]);
+                int maxRow = (int) (level.row0 - bounds[1]);
+
+                // a batch of rows at a time, reporting the sizes of the
+                // stored tiles deleted without reading their data
+                for (int row = minRow; row <= maxRow; row += DELETE_ROWS) {
+                    int lastRow = Math.min(maxRow, row + DELETE_ROWS - 1);
+                    List<long[]> sizes = pyramid.geopkg.sizes(pyramid.entry, zoom, zoom, minCol,
+                            maxCol, row, lastRow);
+                    if (sizes.isEmpty()) {
+                        continue;
+                    }
+                    pyramid.geopkg.delete(pyramid.entry, zoom, zoom, minCol, maxCol, row, lastRow);
+                    for (long[] size : sizes) {
+                        listeners.sendTileDeleted(range.getLayerName(), range.getGridSetId(),
+                                range.getMimeType().getFormat(), null, size[1] - level.col0,
+                                level.row0 - size[2], z, size[3]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error deleting tiles from " + pyramid.file, e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(String layerName) throws StorageException {
+        if (!isDeletable()) {
+            return false;
+        }
+        Pyramid pyramid = pyramid(layerName);
+        if (pyramid == null) {
+            return false;
+        }
+        synchronized (pyramid.flushLock) {
+            synchronized (pyramid.pending) {
+                pyramid.pending.clear();
+            }
+            try {
+                pyramid.geopkg.delete(pyramid.entry, null, null, null, null, null, null);
+            } catch (IOException e) {
+                throw new StorageException("Error deleting tiles from " + pyramid.file, e);
+            }
+        }
+        listeners.sendLayerDeleted(layerName);
+        return true;
+    }
+
+    @Override
+    public boolean deleteByGridsetId(String layerName, String gridSetId)
+            throws StorageException {
+        if (!isDeletable()) {
+            return false;
+        }
+        Pyramid pyramid = pyramid(layerName);
+        if (pyramid == null) {
+            return false;
+        }
+        try {
+            flush(pyramid);
+            for (MatrixLevel level : levels(pyramid, layerName, gridSetId)) {
+                if (level != null) {
+                    int zoom = level.matrix.getZoomLevel();
+                    pyramid.geopkg.delete(pyramid.entry, zoom, zoom, null, null, null, null);
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException("Error deleting tiles from " + pyramid.file, e);
+        }
+        listeners.sendGridSubsetDeleted(layerName, gridSetId);
+        return true;
+    }
+
+    @Override
+    public boolean deleteByParametersId(String layerName, String parametersId)
+            throws StorageException {
+        // parameterized tiles are never stored
+        return false;
+    }
+
+    @Override
+    public boolean rename(String oldLayerName, String newLayerName) throws StorageException {
+        if (readOnly) {
+            return false;
+        }
+        File file = file(oldLayerName);
+        if (file == null || file(newLayerName) != null) {
+            return false;
+        }
+        synchronized (this) {
+            close(pyramids.remove(oldLayerName));
+        }
+        File renamed = new File(directory, toFileName(newLayerName));
+        if (!file.renameTo(renamed)) {
+            throw new StorageException("Could not rename " + file + " to " + renamed);
+        }
+        synchronized (metadata) {
+            metadata.remove(oldLayerName);
+            File properties = metadataFile(oldLayerName);
+            if (properties.isFile() && !properties.renameTo(metadataFile(newLayerName))) {
+                LOGGER.warning("Could not rename " + properties + ", the metadata of layer "
+                        + oldLayerName + " is lost");
+            }
+        }
+        listeners.sendLayerRenamed(oldLayerName, newLayerName);
+        return true;
+    }
+
+    @Override
+    public boolean layerExists(String layerName) {
+        return file(layerName) != null;
+    }
+
+    @Override
+    public String getLayerMetadata(String layerName, String key) {
+        synchronized (metadata) {
+            return metadata(layerName).getProperty(key);
+        }
+    }
+
+    @Override
+    public void putLayerMetadata(String layerName, String key, String value) {
+        synchronized (metadata) {
+            Properties properties = metadata(layerName);
+            if (value == null) {
+                properties.remove(key);
+            } else {
+                properties.setProperty(key, value);
+            }
+            File file = metadataFile(layerName);
+            try (OutputStream out = new FileOutputStream(file)) {
+                properties.store(out, "GeoWebCache metadata of layer " + layerName);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error writing layer metadata to " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the metadata of a layer, read from its properties file the
+     * first time.
+     */
+    Properties metadata(String layerName) {
+        Properties properties = metadata.get(layerName);
+        if (properties == null) {
+            properties = new Properties();
+            File file = metadataFile(layerName);
+            if (file.isFile()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    properties.load(in);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error reading layer metadata from " + file, e);
+                }
+            }
+            metadata.put(layerName, properties);
+        }
+        return properties;
+    }
+
+    File metadataFile(String layerName) {
+        return new File(directory, toBaseName(layerName) + ".properties");
+    }
+
+    @Override
+    public Map<String, Optional<Map<String, String>>> getParametersMapping(String layerName) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Deletes nothing: the GeoPackages are the source of the pyramids rather
+     * than a cache owned by GeoWebCache. Only the tiles waiting to be
+     * written are dropped.
+     */
+    @Override
+    public void clear() throws StorageException {
+        synchronized (this) {
+            for (Pyramid pyramid : pyramids.values()) {
+                synchronized (pyramid.pending) {
+                    pyramid.pending.clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flushAll();
+        synchronized (this) {
+            for (Pyramid pyramid : pyramids.values()) {
+                close(pyramid);
+            }
+            pyramids.clear();
+        }
+    }
+
+    @Override
+    public void addListener(BlobStoreListener listener) {
+        listeners.addListener(listener);
+    }
+
+    @Override
+    public boolean removeListener(BlobStoreListener listener) {
+        return listeners.removeListener(listener);
+    }
+
+    /**
+     * Returns the open GeoPackage of a layer, or null if the layer has no
+     * GeoPackage or no usable tile table.
+     */
+    synchronized Pyramid pyramid(String layerName) throws StorageException {
+        Pyramid pyramid = pyramids.get(layerName);
+        if (pyramid != null) {
+            return pyramid;
+        }
+        File file = file(layerName);
+        if (file == null) {
+            return null;
+        }
+        GeoPackage geopkg = null;
+        try {
+            geopkg = readOnly ? new GeoPackage(file, null, immutable) : new GeoPackage(file);
+            TileEntry entry = geopkg.tile(localName(layerName));
+            if (entry == null) {
+                List<TileEntry> tiles = geopkg.tiles();
+                entry = tiles.size() == 1 ? tiles.get(0) : null;
+            }
+            if (entry == null) {
+                LOGGER.warning("No tile table for layer " + layerName + " in " + file);
+                geopkg.close();
+                return null;
+            }
+            if (entry.getGriddedCoverage() != null) {
+                // the tiles of gridded coverages hold values, not images
+                LOGGER.fine("Not serving the gridded coverage tiles of layer " + layerName + " in " + file);
+                geopkg.close();
+                return null;
+            }
+            pyramid = new Pyramid(file, geopkg, entry);
+            pyramids.put(layerName, pyramid);
+            return pyramid;
+        } catch (IOException e) {
+            if (geopkg != null) {
+                geopkg.close();
+            }
+            throw new StorageException("Error opening " + file, e);
+        }
+    }
+
+    /**
+     * Returns the GeoPackage of a layer, or null if there is none.
+     */
+    File file(String layerName) {
+        File file = new File(directory, toFileName(layerName));
+        if (file.isFile()) {
+            return file;
+        }
+        file = new File(directory, toFileName(localName(layerName)));
+        return file.isFile() ? file : null;
+    }
+
+    static String toFileName(String layerName) {
+        return toBaseName(layerName) + "." + GeoPkg.EXTENSION;
+    }
+
+    static String toBaseName(String layerName) {
+        return layerName.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    static String localName(String layerName) {
+        return layerName.substring(layerName.indexOf(':') + 1);
+    }
+
+    static String key(Tile tile) {
+        return tile.getZoom() + "/" + tile.getColumn() + "/" + tile.getRow();
+    }
+
+    /**
+     * Returns the position of a tile object in the pyramid, or null if it
+     * is not stored there.
+     */
+    Tile lookup(Pyramid pyramid, TileObject obj) throws StorageException {
+        long[] xyz = obj.getXYZ();
+        MatrixLevel[] levels = levels(pyramid, obj.getLayerName(), obj.getGridSetId());
+        int z = (int) xyz[2];
+        if (z < 0 || z >= levels.length || levels[z] == null) {
+            return null;
+        }
+        return levels[z].tile(xyz);
+    }
+
+    MatrixLevel[] levels(Pyramid pyramid, String layerName, String gridSetId)
+            throws StorageException {
+        MatrixLevel[] levels = pyramid.levels.get(gridSetId);
+        if (levels == null) {
+            try {
+                TileLayer layer = layers.getTileLayer(layerName);
+                GridSubset subset = layer.getGridSubset(gridSetId);
+                levels = subset == null ? new MatrixLevel[0]
+                        : mapLevels(subset.getGridSet(), pyramid.entry);
+            } catch (GeoWebCacheException e) {
+                throw new StorageException("Unknown layer " + layerName, e);
+            }
+            pyramid.levels.put(gridSetId, levels);
+        }
+        return levels;
+    }
+
+    /**
+     * Maps the levels of a gridset onto the tile matrices lining up with
+     * them, the levels without such a matrix are left null. The SRS of the
+     * gridset may be an alias of the SRS of the pyramid, e.g., EPSG:900913
+     * for EPSG:3857.
+     */
+    static MatrixLevel[] mapLevels(GridSet gridSet, TileEntry entry) {
+        MatrixLevel[] levels = new MatrixLevel[gridSet.getNumLevels()];
+        if (entry.getSrid() == null || !SRS.getSRS(entry.getSrid()).equals(gridSet.getSrs())) {
+            return levels;
+        }
+        Envelope origin = entry.getTileMatrixSetBounds();
+        int tileWidth = gridSet.getTileWidth();
+        int tileHeight = gridSet.getTileHeight();
+        double tolerance = GeoPackageReader.ALIGNMENT_TOLERANCE;
+        for (int z = 0; z < levels.length; z++) {
+            Grid grid = gridSet.getGrid(z);
+            double res = grid.getResolution();
+            for (TileMatrix matrix : entry.getTileMatricies()) {
+                if (matrix.getTileWidth() != tileWidth || matrix.getTileHeight() != tileHeight
+                        || Math.abs(matrix.getXPixelSize() - res) * tileWidth > tolerance * res
+                        || Math.abs(matrix.getYPixelSize() - res) * tileHeight > tolerance * res) {
+                    continue;
+                }
+                BoundingBox bounds = gridSet.boundsFromIndex(new long[]{0, 0, z});
+                double col = (bounds.getMinX() - origin.getMinX()) / (tileWidth * matrix.getXPixelSize());
+                double row = (origin.getMaxY() - bounds.getMaxY()) / (tileHeight * matrix.getYPixelSize());
+                if (Math.abs(col - Math.round(col)) * tileWidth <= tolerance
+                        && Math.abs(row - Math.round(row)) * tileHeight <= tolerance) {
+                    levels[z] = new MatrixLevel(matrix, Math.round(col), Math.round(row));
+                }
+                break;
+            }
+        }
+        return levels;
+    }
+
+    static boolean isFormat(String requested, String stored) {
+        if (stored == null) {
+            return false;
+        }
+        if (JPEG_PNG_MIME_TYPE.equals(requested)) {
+            return "image/png".equals(stored) || "image/jpeg".equals(stored);
+        }
+        return stored.equals(requested);
+    }
+
+    static byte[] toBytes(Resource blob) throws IOException {
+        if (blob instanceof ByteArrayResource) {
+            return ((ByteArrayResource) blob).getContents();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(blob.getSize(), 0));
+        blob.transferTo(Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the pending tiles of a pyramid in a single transaction. They
+     * stay visible to readers until written.
+     */
+    void flush(Pyramid pyramid) throws IOException {
+        synchronized (pyramid.flushLock) {
+            List<Tile> tiles;
+            synchronized (pyramid.pending) {
+                if (pyramid.pending.isEmpty()) {
+                    return;
+                }
+                tiles = new ArrayList<>(pyramid.pending.values());
+            }
+            pyramid.geopkg.addOrReplace(pyramid.entry, tiles);
+            synchronized (pyramid.pending) {
+                for (Tile tile : tiles) {
+                    pyramid.pending.remove(key(tile), tile);
+                }
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Wrote " + tiles.size() + " tiles to " + pyramid.file);
+            }
+        }
+    }
+
+    void flushAll() {
+        List<Pyramid> open;
+        synchronized (this) {
+            open = new ArrayList<>(pyramids.values());
+        }
+        for (Pyramid pyramid : open) {
+            try {
+                flush(pyramid);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error writing tiles to " + pyramid.file, e);
+            }
+        }
+    }
+
+    void close(Pyramid pyramid) {
+        if (pyramid == null) {
+            return;
+        }
+        try {
+            flush(pyramid);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing tiles to " + pyramid.file, e);
+        }
+        pyramid.geopkg.close();
+    }
+}
@@ -0,0 +1,24 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg.gwc;
+
+import com.thoughtworks.xstream.XStream;
+
+import org.geowebcache.config.XMLConfigurationProvider;
+
+/**
+ * Lets geowebcache.xml declare {@link GeoPackageBlobStoreInfo} blob stores
+ * as <code>&lt;GeoPackageBlobStore&gt;</code> elements.
+ */
+public class GeoPackageBlobStoreConfigProvider implements XMLConfigurationProvider {
+
+    @Override
+    public XStream getConfiguredXStream(XStream xs) {
+        xs.alias("GeoPackageBlobStore", GeoPackageBlobStoreInfo.class);
+        xs.allowTypes(new Class[]{GeoPackageBlobStoreInfo.class});
+        return xs;
+    }
+}
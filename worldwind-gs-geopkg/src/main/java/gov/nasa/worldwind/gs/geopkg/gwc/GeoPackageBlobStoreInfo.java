@@ -0,0 +1,153 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg.gwc;
+
+import java.io.File;
+import java.util.Objects;
+
+import org.geowebcache.config.BlobStoreInfo;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.locks.LockProvider;
+import org.geowebcache.storage.BlobStore;
+import org.geowebcache.storage.StorageException;
+
+/**
+ * Configuration of a {@link GeoPackageBlobStore}, declared in
+ * geowebcache.xml as:
+ * <pre>
+ * &lt;GeoPackageBlobStore&gt;
+ *   &lt;id&gt;pyramids&lt;/id&gt;
+ *   &lt;enabled&gt;true&lt;/enabled&gt;
+ *   &lt;directory&gt;/data/pyramids&lt;/directory&gt;
+ *   &lt;readOnly&gt;true&lt;/readOnly&gt;
+ * &lt;/GeoPackageBlobStore&gt;
+ * </pre>
+ */
+public class GeoPackageBlobStoreInfo extends BlobStoreInfo {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The default number of tiles written back in a single transaction.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private String directory;
+
+    private Boolean readOnly;
+
+    private Boolean immutable;
+
+    private Boolean deletable;
+
+    private Integer batchSize;
+
+    /**
+     * The directory holding one GeoPackage per layer, named after the layer.
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Whether tiles seeded by GeoWebCache are discarded instead of written to
+     * the GeoPackages, true by default.
+     */
+    public boolean isReadOnly() {
+        return readOnly == null || readOnly;
+    }
+
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Whether the GeoPackages never change while open, so that they can be
+     * read without file locking. Only applies to read only stores.
+     */
+    public boolean isImmutable() {
+        return immutable != null && immutable;
+    }
+
+    public void setImmutable(boolean immutable) {
+        this.immutable = immutable;
+    }
+
+    /**
+     * Whether truncating a layer in GeoWebCache deletes the tiles of its
+     * GeoPackage, false by default. Only applies to writable stores.
+     */
+    public boolean isDeletable() {
+        return deletable != null && deletable;
+    }
+
+    public void setDeletable(boolean deletable) {
+        this.deletable = deletable;
+    }
+
+    /**
+     * The number of seeded tiles written in a single transaction.
+     */
+    public int getBatchSize() {
+        return batchSize == null || batchSize <= 0 ? DEFAULT_BATCH_SIZE : batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public String getLocation() {
+        return directory;
+    }
+
+    @Override
+    public BlobStore createInstance(TileLayerDispatcher layers, LockProvider lockProvider)
+            throws StorageException {
+        if (directory == null) {
+            throw new StorageException("GeoPackage blob store " + getId() + " has no directory");
+        }
+        File dir = new File(directory);
+        if (!dir.isDirectory()) {
+            throw new StorageException("GeoPackage blob store directory " + dir
+                    + " does not exist");
+        }
+        return new GeoPackageBlobStore(dir, layers, isReadOnly(), isImmutable(), isDeletable(),
+                getBatchSize());
+    }
+
+    @Override
+    public String toString() {
+        return "GeoPackageBlobStore[id=" + getId() + ", directory=" + directory
+                + ", readOnly=" + isReadOnly() + ", deletable=" + isDeletable() + "]";
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getId(), isEnabled(), isDefault(), directory, isReadOnly(),
+                isImmutable(), isDeletable(), getBatchSize());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        GeoPackageBlobStoreInfo other = (GeoPackageBlobStoreInfo) obj;
+        return Objects.equals(getId(), other.getId()) && isEnabled() == other.isEnabled()
+                && isDefault() == other.isDefault()
+                && Objects.equals(directory, other.directory)
+                && isReadOnly() == other.isReadOnly() && isImmutable() == other.isImmutable()
+                && isDeletable() == other.isDeletable() && getBatchSize() == other.getBatchSize();
+    }
+}
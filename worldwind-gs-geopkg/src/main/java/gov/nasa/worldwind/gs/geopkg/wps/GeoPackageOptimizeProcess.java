@@ -0,0 +1,166 @@
+package gov.nasa.worldwind.gs.geopkg.wps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageStoreInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.data.DataUtilities;
+import org.geotools.geopkg.GeoPackageRegistry;
+import org.geotools.geopkg.mosaic.GeoPackageOptimizer;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.process.gs.GSProcess;
+
+/**
+ * GeoPackageOptimizeProcess runs the {@link GeoPackageOptimizer} on a
+ * GeoPackage written by the {@link GeoPackageProcess}, identified by the
+ * execution id and output name of its result link. The optimization rewrites
+ * the file in place, so only the outputs of WPS executions can be optimized,
+ * and not while a catalog store references the file or a store, reader or
+ * writer has it open, nor while another execution optimizes it.
+ * GeoPackageOptimizeProcess is registered as a Spring bean.
+ */
+@DescribeProcess(title = "GeoPackageOptimize", description = "Recompresses, reorders, vacuums and analyzes the tile pyramids of a GeoPackage")
+public class GeoPackageOptimizeProcess implements GSProcess {
+
+    /**
+     * The execution ids and output names, without path separators.
+     */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    /**
+     * The canonical files being optimized.
+     */
+    static final Set<File> OPTIMIZING = ConcurrentHashMap.newKeySet();
+
+    private final Catalog catalog;
+
+    private final WPSResourceManager resources;
+
+    public GeoPackageOptimizeProcess(GeoServer geoServer, WPSResourceManager resources) {
+        this.catalog = geoServer.getCatalog();
+        this.resources = resources;
+    }
+
+    /**
+     * Executes a request to optimize a GeoPackage via a WPS request.
+     *
+     * @param executionId The execution id of the GeoPackage process
+     * @param name The output name of the GeoPackage, e.g., "world.gpkg"
+     * @param lossless Whether PNG tiles are kept in PNG, false by default
+     * @return The sizes and tile read times before and after the optimization
+     * @throws IOException
+     */
+    @DescribeResult(name = "report", description = "Sizes and tile read times before and after the optimization")
+    public String execute(
+            @DescribeParameter(name = "executionId", description = "execution id of the GeoPackage process that wrote the GeoPackage") String executionId,
+            @DescribeParameter(name = "name", description = "output name of the GeoPackage to optimize") String name,
+            @DescribeParameter(name = "lossless", description = "keep PNG tiles in PNG rather than encoding opaque tiles as JPEG", min = 0) Boolean lossless)
+            throws IOException {
+        File file = getOutputFile(executionId, name).getCanonicalFile();
+        if (!OPTIMIZING.add(file)) {
+            throw new ServiceException("The GeoPackage " + name + " is already being optimized");
+        }
+        try {
+            if (isReferenced(file)) {
+                throw new ServiceException("The GeoPackage " + name + " is used by a store and cannot be optimized");
+            }
+            GeoPackageRegistry registry = GeoPackageRegistry.getInstance();
+            if (registry.isInUse(file)) {
+                throw new ServiceException("The GeoPackage " + name + " is open and cannot be optimized");
+            }
+            registry.evictIdle(file);
+            GeoPackageOptimizer optimizer = new GeoPackageOptimizer(file);
+            optimizer.setLossless(lossless != null && lossless);
+            return optimizer.optimize().toString();
+        } finally {
+            OPTIMIZING.remove(file);
+        }
+    }
+
+    /**
+     * Returns the output file of a WPS execution.
+     *
+     * @throws ServiceException if the execution has no such output
+     */
+    File getOutputFile(String executionId, String name) {
+        if (executionId == null || !NAME.matcher(executionId).matches() || name == null
+                || !NAME.matcher(name).matches() || name.contains("..")) {
+            throw new ServiceException("Invalid GeoPackage output: " + executionId + "/" + name,
+                    ServiceException.INVALID_PARAMETER_VALUE, "name");
+        }
+        Resource resource = resources.getOutputResource(executionId, name);
+        if (resource == null || resource.getType() != Resource.Type.RESOURCE) {
+            throw new ServiceException("No such GeoPackage output: " + executionId + "/" + name,
+                    ServiceException.INVALID_PARAMETER_VALUE, "name");
+        }
+        return resource.file();
+    }
+
+    /**
+     * Returns true if a store of the catalog references a file.
+     */
+    boolean isReferenced(File file) throws IOException {
+        File canonical = file.getCanonicalFile();
+        for (StoreInfo store : catalog.getStores(StoreInfo.class)) {
+            if (store instanceof CoverageStoreInfo) {
+                if (isFile(((CoverageStoreInfo) store).getURL(), canonical)) {
+                    return true;
+                }
+            } else if (store instanceof DataStoreInfo) {
+                Map<String, Serializable> params = store.getConnectionParameters();
+                if (params != null) {
+                    for (Serializable value : params.values()) {
+                        if (isFile(value, canonical)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if a store parameter, a File, file URL or path, is a file.
+     */
+    private boolean isFile(Object value, File canonical) throws IOException {
+        File file = null;
+        if (value instanceof File) {
+            file = (File) value;
+        } else if (value instanceof URL) {
+            file = DataUtilities.urlToFile((URL) value);
+        } else if (value instanceof String) {
+            String path = ((String) value).trim();
+            if (path.startsWith("file:")) {
+                // relative to the data directory, or an absolute file URL
+                file = catalog.getResourceLoader().url(path);
+                if (file == null) {
+                    try {
+                        file = DataUtilities.urlToFile(new URL(path));
+                    } catch (MalformedURLException e) {
+                        return false;
+                    }
+                }
+            } else if (!path.isEmpty()) {
+                file = new File(path);
+            }
+        }
+        return file != null && canonical.equals(file.getCanonicalFile());
+    }
+}
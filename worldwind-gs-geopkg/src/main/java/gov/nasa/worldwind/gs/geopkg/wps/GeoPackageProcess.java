@@ -5,6 +5,7 @@ import com.vividsolutions.jts.geom.Envelope;
 import org.geotools.geopkg.Entry;
 import org.geotools.geopkg.FeatureEntry;
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.SQLiteTuning;
 import org.geotools.geopkg.TileEntry;
 import org.geotools.geopkg.wps.GeoPackageProcessRequest;
 import org.geotools.geopkg.wps.GeoPackageProcessRequest.FeaturesLayer;
@@ -19,6 +20,10 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -148,10 +153,41 @@ public class GeoPackageProcess implements GSProcess {
             file = resources.getOutputResource(null, outputName).file();
         }
 
-        GeoPackage gpkg = new GeoPackage(file);
-        // Initialize the GeoPackage file in order to avoid exceptions when accessing the geoPackage file
-        gpkg.init();
+        // written unsynced to a temporary file, synced and moved over the
+        // output once complete, so a crash never leaves a partial GeoPackage
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", file.getParentFile());
+        boolean written = false;
+        try {
+            GeoPackage gpkg = new GeoPackage(temp, SQLiteTuning.profile(SQLiteTuning.BULK_EXPORT));
+            try {
+                // Initialize the GeoPackage file in order to avoid exceptions when accessing the geoPackage file
+                gpkg.init();
+                addLayers(gpkg, contents);
+            } finally {
+                gpkg.close();
+            }
+            moveInPlace(temp, file);
+            written = true;
+        } finally {
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        // Add to storage only if it is a temporary file
+        if (path != null && !remove) {
+            return path;
+        } else {
+            // Return a link to WPS GetExecutionResult request, e.g.,
+            // http://host:port/geoserver/ows?service=WPS&version=1.0.0&request=GetExecutionResult&executionId=<xxx>&outputId=<outputName>&mimetype=application/x-gpkg
+            return new URL(resources.getOutputResourceUrl(outputName, "application/x-gpkg"));
+        }
+    }
 
+    /**
+     * Adds the layers of a request to a GeoPackage.
+     */
+    private void addLayers(GeoPackage gpkg, GeoPackageProcessRequest contents) throws IOException {
         for (int i = 0; i < contents.getLayerCount(); i++) {
             Layer layer = contents.getLayer(i);
 
@@ -233,7 +269,7 @@ public class GeoPackageProcess implements GSProcess {
 
                     e.setBounds(bounds);
 
-                    gpkg.add(e, (SimpleFeatureCollection) collection);
+                    gpkg.add(e, (SimpleFeatureCollection) collection, features.getOrder());
 
                     if (features.isIndexed()) {
                         gpkg.createSpatialIndex(e);
@@ -393,17 +429,18 @@ public class GeoPackageProcess implements GSProcess {
                 }
             }
         }
+    }
 
-        gpkg.close();
-
-        // Add to storage only if it is a temporary file
-        if (path != null && !remove) {
-            return path;
-        } else {
-            // Return a link to WPS GetExecutionResult request, e.g.,
-            // http://host:port/geoserver/ows?service=WPS&version=1.0.0&request=GetExecutionResult&executionId=<xxx>&outputId=<outputName>&mimetype=application/x-gpkg
-            return new URL(resources.getOutputResourceUrl(outputName, "application/x-gpkg"));
+    /**
+     * Syncs a complete file to disk and atomically replaces another file with
+     * it.
+     */
+    static void moveInPlace(File temp, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
         }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
     }
 
     private void addLayerMetadata(Entry e, Layer layer) {
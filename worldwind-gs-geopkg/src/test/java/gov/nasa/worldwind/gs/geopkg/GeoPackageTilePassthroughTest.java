@@ -0,0 +1,168 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.media.jai.Interpolation;
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.data.test.SystemTestData;
+import org.geoserver.wms.GetMapCallback;
+import org.geoserver.wms.GetMapCallbackAdapter;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.WMSTestSupport;
+import org.geoserver.wms.map.RawMap;
+import org.geotools.data.DataUtilities;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileReader;
+import org.geotools.referencing.CRS;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Tests the GeoPackage tile passthrough and its fallback to rendering.
+ */
+public class GeoPackageTilePassthroughTest extends WMSTestSupport {
+
+    final static QName LAKES = new QName("http://gov.nasa.worldwind/gpkg", "World_Lakes", "gpkg");
+
+    /**
+     * tile 2/4/0 of world_lakes.gpkg, 256x256 pixels of 0.17578125 degrees
+     */
+    final static Envelope TILE = new Envelope(180, 225, -45, 0);
+
+    @Override
+    protected void onSetUp(SystemTestData testData) throws Exception {
+        super.onSetUp(testData);
+
+        Catalog catalog = getCatalog();
+        testData.addWorkspace(LAKES.getPrefix(), LAKES.getNamespaceURI(), catalog);
+        testData.addRasterLayer(LAKES, "world_lakes.gpkg", null, null, getClass(), catalog);
+    }
+
+    GetMapRequest createRequest() throws Exception {
+        LayerInfo layer = getCatalog().getLayerByName(getLayerId(LAKES));
+        GetMapRequest request = new GetMapRequest();
+        request.setLayers(Collections.singletonList(new MapLayerInfo(layer)));
+        request.setStyles(Collections.singletonList(layer.getDefaultStyle().getStyle()));
+        request.setCrs(CRS.decode("EPSG:4326", true));
+        request.setBbox(new Envelope(TILE));
+        request.setWidth(256);
+        request.setHeight(256);
+        request.setFormat("image/png");
+        request.setTransparent(true);
+        return request;
+    }
+
+    @Test
+    public void testPassthrough() throws Exception {
+        RawMap map = new GeoPackageTilePassthrough().passthrough(createRequest());
+        assertNotNull(map);
+        assertEquals("image/png", map.getMimeType());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.writeTo(bytes);
+        File file = DataUtilities.urlToFile(getClass().getResource("world_lakes.gpkg"));
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            TileEntry tileset = geopkg.tile("World_Lakes");
+            try (TileReader r = geopkg.reader(tileset, 2, 2, 4, 4, 0, 0)) {
+                assertTrue(r.hasNext());
+                Tile tile = r.next();
+                assertArrayEquals(tile.getData(), bytes.toByteArray());
+            }
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        GeoPackageTilePassthrough passthrough = new GeoPackageTilePassthrough();
+
+        // not aligned on a tile
+        GetMapRequest request = createRequest();
+        request.setBbox(new Envelope(181, 226, -45, 0));
+        assertNull(passthrough.passthrough(request));
+
+        // not the stored size
+        request = createRequest();
+        request.setWidth(512);
+        request.setHeight(512);
+        assertNull(passthrough.passthrough(request));
+
+        // not the stored format
+        request = createRequest();
+        request.setFormat("image/jpeg");
+        assertNull(passthrough.passthrough(request));
+
+        // an opaque png needs the background color
+        request = createRequest();
+        request.setTransparent(false);
+        assertNull(passthrough.passthrough(request));
+
+        // not the native CRS
+        request = createRequest();
+        request.setCrs(CRS.decode("EPSG:3857", true));
+        assertNull(passthrough.passthrough(request));
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        GeoPackageTilePassthrough passthrough = new GeoPackageTilePassthrough();
+        passthrough.callbacks = Collections.<GetMapCallback>singletonList(
+                new GeoPackageReadTimeout(getWMS()));
+        assertNotNull(passthrough.passthrough(createRequest()));
+
+        // a callback that may check or alter the map has it rendered
+        passthrough.callbacks = Arrays.<GetMapCallback>asList(new GeoPackageReadTimeout(getWMS()),
+                new GetMapCallbackAdapter());
+        assertNull(passthrough.passthrough(createRequest()));
+    }
+
+    @Test
+    public void testIsPlain() throws Exception {
+        assertTrue(GeoPackageTilePassthrough.isPlain(createRequest()));
+
+        GetMapRequest request = createRequest();
+        request.getFormatOptions().put("dpi", "180");
+        assertFalse(GeoPackageTilePassthrough.isPlain(request));
+
+        request = createRequest();
+        request.setEnv(Collections.singletonMap("color", "ff0000"));
+        assertFalse(GeoPackageTilePassthrough.isPlain(request));
+
+        request = createRequest();
+        request.setInterpolations(Collections.singletonList(
+                Interpolation.getInstance(Interpolation.INTERP_BICUBIC)));
+        assertFalse(GeoPackageTilePassthrough.isPlain(request));
+
+        request = createRequest();
+        request.setPalette(new IndexColorModel(1, 2, new byte[2], new byte[2], new byte[2]));
+        assertFalse(GeoPackageTilePassthrough.isPlain(request));
+
+        request = createRequest();
+        request.setAngle(45);
+        assertFalse(GeoPackageTilePassthrough.isPlain(request));
+
+        request = createRequest();
+        request.setFormat("image/gif");
+        assertFalse(GeoPackageTilePassthrough.isPlain(request));
+    }
+}
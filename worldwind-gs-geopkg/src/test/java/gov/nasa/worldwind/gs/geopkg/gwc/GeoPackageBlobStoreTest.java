@@ -0,0 +1,322 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg.gwc;
+
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileMatrix;
+import org.geotools.geopkg.TileReader;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geowebcache.grid.BoundingBox;
+import org.geowebcache.grid.GridSet;
+import org.geowebcache.grid.GridSetFactory;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.grid.SRS;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.layer.TileLayerDispatcher;
+import org.geowebcache.mime.ImageMime;
+import org.geowebcache.storage.BlobStoreListener;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Tests the GeoPackage blob store against a two level EPSG:4326 pyramid.
+ */
+public class GeoPackageBlobStoreTest {
+
+    static final String LAYER = "gpkg:lakes";
+
+    static final String GRIDSET = "EPSG:4326";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder(new File("target"));
+
+    TileLayerDispatcher layers;
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        // the pyramid of level 0 (2x1 tiles) and 1 (4x2 tiles) of the gridset
+        file = new File(tmp.getRoot(), "lakes.gpkg");
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            geopkg.init();
+            TileEntry entry = new TileEntry();
+            entry.setTableName("lakes");
+            entry.setBounds(new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84));
+            entry.getTileMatricies().add(new TileMatrix(0, 2, 1, 256, 256, 0.703125, 0.703125));
+            entry.getTileMatricies().add(new TileMatrix(1, 4, 2, 256, 256, 0.3515625, 0.3515625));
+            geopkg.create(entry);
+            List<Tile> tiles = new ArrayList<>();
+            for (int col = 0; col < 2; col++) {
+                tiles.add(new Tile(0, col, 0, png(col)));
+            }
+            for (int row = 0; row < 2; row++) {
+                for (int col = 0; col < 4; col++) {
+                    tiles.add(new Tile(1, col, row, png(10 + row * 4 + col)));
+                }
+            }
+            geopkg.addOrReplace(entry, tiles);
+        } finally {
+            geopkg.close();
+        }
+
+        GridSet gridSet = GridSetFactory.createGridSet(GRIDSET, SRS.getEPSG4326(),
+                BoundingBox.WORLD4326, false, 2, null, GridSetFactory.DEFAULT_PIXEL_SIZE_METER,
+                256, 256, false);
+        TileLayer layer = createNiceMock(TileLayer.class);
+        expect(layer.getGridSubset(GRIDSET))
+                .andReturn(GridSubsetFactory.createGridSubSet(gridSet)).anyTimes();
+        replay(layer);
+        layers = createNiceMock(TileLayerDispatcher.class);
+        expect(layers.getTileLayer(LAYER)).andReturn(layer).anyTimes();
+        replay(layers);
+    }
+
+    static byte[] png(int gray) throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+        image.getRaster().setSample(0, 0, 0, gray);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "png", out));
+        return out.toByteArray();
+    }
+
+    byte[] stored(int zoom, int col, int row) throws IOException {
+        GeoPackage geopkg = new GeoPackage(file);
+        try (TileReader r = geopkg.reader(geopkg.tile("lakes"), zoom, zoom, col, col, row, row)) {
+            return r.hasNext() ? r.next().getData() : null;
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    static TileObject query(long x, long y, int z) {
+        return TileObject.createQueryTileObject(LAYER, new long[]{x, y, z}, GRIDSET, "image/png",
+                null);
+    }
+
+    static TileObject complete(long x, long y, int z, byte[] data) {
+        return TileObject.createCompleteTileObject(LAYER, new long[]{x, y, z}, GRIDSET,
+                "image/png", null, new ByteArrayResource(data));
+    }
+
+    static TileRange range(int z, long maxX, long maxY) {
+        long[][] bounds = new long[z + 1][];
+        bounds[z] = new long[]{0, 0, maxX, maxY, z};
+        return new TileRange(LAYER, GRIDSET, z, z, bounds, ImageMime.png, null);
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        GeoPackageBlobStore store = new GeoPackageBlobStore(tmp.getRoot(), layers, true, false,
+                false, 10);
+        try {
+            assertTrue(store.layerExists(LAYER));
+            assertFalse(store.layerExists("gpkg:rivers"));
+
+            // gridset tile y counts from the bottom, GeoPackage rows from the top
+            TileObject obj = query(2, 0, 1);
+            assertTrue(store.get(obj));
+            assertArrayEquals(stored(1, 2, 1),
+                    ((ByteArrayResource) obj.getBlob()).getContents());
+
+            obj = query(1, 0, 0);
+            assertTrue(store.get(obj));
+            assertArrayEquals(stored(0, 1, 0),
+                    ((ByteArrayResource) obj.getBlob()).getContents());
+
+            // outside of the pyramid
+            assertFalse(store.get(query(0, 0, 2)));
+            assertFalse(store.get(query(4, 0, 1)));
+            // not stored in that format
+            assertFalse(store.get(TileObject.createQueryTileObject(LAYER, new long[]{0, 0, 0},
+                    GRIDSET, "image/jpeg", null)));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        byte[] before = stored(1, 0, 1);
+        GeoPackageBlobStore store = new GeoPackageBlobStore(tmp.getRoot(), layers, true, false,
+                true, 1);
+        try {
+            assertFalse(store.isDeletable());
+            store.put(complete(0, 0, 1, png(255)));
+            assertFalse(store.delete(query(0, 0, 1)));
+            assertFalse(store.delete(range(1, 3, 1)));
+            assertFalse(store.deleteByGridsetId(LAYER, GRIDSET));
+            assertFalse(store.delete(LAYER));
+            store.clear();
+        } finally {
+            store.destroy();
+        }
+        assertArrayEquals(before, stored(1, 0, 1));
+        assertNotNull(stored(0, 0, 0));
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        byte[] data = png(255);
+        GeoPackageBlobStore store = new GeoPackageBlobStore(tmp.getRoot(), layers, false, false,
+                false, 10);
+        try {
+            store.put(complete(3, 1, 1, data));
+            // pending tiles are served before they are written
+            TileObject obj = query(3, 1, 1);
+            assertTrue(store.get(obj));
+            assertArrayEquals(data, ((ByteArrayResource) obj.getBlob()).getContents());
+
+            // truncating leaves the pyramid alone unless deletes are allowed
+            assertFalse(store.isDeletable());
+            assertFalse(store.delete(query(0, 0, 1)));
+            assertFalse(store.delete(range(1, 3, 1)));
+            assertFalse(store.delete(LAYER));
+        } finally {
+            store.destroy();
+        }
+        assertArrayEquals(data, stored(1, 3, 0));
+        assertNotNull(stored(1, 0, 1));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        BlobStoreListener listener = createMock(BlobStoreListener.class);
+        listener.tileDeleted(eq(LAYER), eq(GRIDSET), eq("image/png"), (String) isNull(),
+                anyLong(), anyLong(), eq(1), gt(0L));
+        expectLastCall().times(3);
+        // reported with the size of the stored tile
+        listener.tileDeleted(LAYER, GRIDSET, "image/png", null, 2, 0, 1, png(16).length);
+        listener.tileDeleted(LAYER, GRIDSET, "image/png", null, 0, 0, 0, 0);
+        listener.layerDeleted(LAYER);
+        replay(listener);
+
+        GeoPackageBlobStore store = new GeoPackageBlobStore(tmp.getRoot(), layers, false, false,
+                true, 10);
+        try {
+            store.addListener(listener);
+            assertTrue(store.isDeletable());
+
+            // the lower half of level 1
+            assertTrue(store.delete(range(1, 3, 0)));
+            assertFalse(store.get(query(0, 0, 1)));
+            assertNull(stored(1, 0, 1));
+            assertNotNull(stored(1, 0, 0));
+
+            assertTrue(store.delete(query(0, 0, 0)));
+            assertNull(stored(0, 0, 0));
+            assertFalse(store.delete(query(0, 0, 0)));
+
+            assertTrue(store.delete(LAYER));
+            assertNull(stored(1, 0, 0));
+            assertTrue(store.layerExists(LAYER));
+        } finally {
+            store.destroy();
+        }
+        verify(listener);
+    }
+
+    @Test
+    public void testMapLevelsSrsAlias() throws Exception {
+        // levels 0 and 1 of a web mercator pyramid
+        double extent = 20037508.342789244;
+        TileEntry entry = new TileEntry();
+        entry.setSrid(3857);
+        entry.setTileMatrixSetBounds(new Envelope(-extent, extent, -extent, extent));
+        entry.getTileMatricies().add(new TileMatrix(0, 1, 1, 256, 256, 156543.03392804097, 156543.03392804097));
+        entry.getTileMatricies().add(new TileMatrix(1, 2, 2, 256, 256, 78271.51696402048, 78271.51696402048));
+
+        for (SRS srs : new SRS[]{SRS.getEPSG3857(), SRS.getEPSG900913()}) {
+            GridSet gridSet = GridSetFactory.createGridSet(srs.toString(), srs,
+                    BoundingBox.WORLD3857, false, 2, null, GridSetFactory.DEFAULT_PIXEL_SIZE_METER,
+                    256, 256, false);
+            GeoPackageBlobStore.MatrixLevel[] levels = GeoPackageBlobStore.mapLevels(gridSet, entry);
+            assertEquals(srs.toString(), 1, levels[1].matrix.getZoomLevel());
+            assertEquals(0, levels[1].col0);
+            assertEquals(1, levels[1].row0);
+        }
+
+        GridSet gridSet = GridSetFactory.createGridSet(GRIDSET, SRS.getEPSG4326(),
+                BoundingBox.WORLD4326, false, 2, null, GridSetFactory.DEFAULT_PIXEL_SIZE_METER,
+                256, 256, false);
+        assertNull(GeoPackageBlobStore.mapLevels(gridSet, entry)[0]);
+    }
+
+    @Test
+    public void testGriddedCoverage() throws Exception {
+        GeoPackage geopkg = new GeoPackage(file);
+        try (Connection cx = geopkg.getDataSource().getConnection();
+                Statement st = cx.createStatement()) {
+            st.execute("UPDATE gpkg_contents SET data_type = '2d-gridded-coverage'"
+                    + " WHERE table_name = 'lakes'");
+            st.execute("CREATE TABLE gpkg_2d_gridded_coverage_ancillary ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, tile_matrix_set_name TEXT NOT NULL UNIQUE,"
+                    + " datatype TEXT NOT NULL DEFAULT 'integer', scale REAL NOT NULL DEFAULT 1.0,"
+                    + " \"offset\" REAL NOT NULL DEFAULT 0.0, precision REAL DEFAULT 1.0,"
+                    + " data_null REAL)");
+            st.execute("INSERT INTO gpkg_2d_gridded_coverage_ancillary (tile_matrix_set_name)"
+                    + " VALUES ('lakes')");
+        } finally {
+            geopkg.close();
+        }
+
+        GeoPackageBlobStore store = new GeoPackageBlobStore(tmp.getRoot(), layers, true, false,
+                false, 10);
+        try {
+            // values, not images, left to GeoWebCache to render
+            assertFalse(store.get(query(0, 0, 0)));
+            assertFalse(store.get(query(2, 0, 1)));
+        } finally {
+            store.destroy();
+        }
+    }
+
+    @Test
+    public void testMetadata() throws Exception {
+        GeoPackageBlobStore store = new GeoPackageBlobStore(tmp.getRoot(), layers, true, false,
+                false, 10);
+        try {
+            assertNull(store.getLayerMetadata(LAYER, "foo"));
+            store.putLayerMetadata(LAYER, "foo", "bar");
+            assertEquals("bar", store.getLayerMetadata(LAYER, "foo"));
+        } finally {
+            store.destroy();
+        }
+
+        // kept across restarts
+        store = new GeoPackageBlobStore(tmp.getRoot(), layers, true, false, false, 10);
+        try {
+            assertEquals("bar", store.getLayerMetadata(LAYER, "foo"));
+        } finally {
+            store.destroy();
+        }
+    }
+}
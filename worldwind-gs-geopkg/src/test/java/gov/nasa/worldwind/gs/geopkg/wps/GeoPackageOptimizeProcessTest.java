@@ -0,0 +1,136 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg.wps;
+
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.platform.resource.Files;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.geopkg.GeoPackage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the GeoPackage optimize process only rewrites unused WPS outputs.
+ */
+public class GeoPackageOptimizeProcessTest {
+
+    static final String EXECUTION = "0b5c6bd4-1f0e-4c3a-9a57-43e3f4c3a4b1";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder(new File("target"));
+
+    File file;
+
+    List<StoreInfo> stores = new ArrayList<>();
+
+    GeoPackageOptimizeProcess process;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(tmp.newFolder("out"), "world.gpkg");
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            geopkg.init();
+        } finally {
+            geopkg.close();
+        }
+
+        Catalog catalog = createNiceMock(Catalog.class);
+        expect(catalog.getStores(StoreInfo.class)).andReturn(stores).anyTimes();
+        replay(catalog);
+        GeoServer geoServer = createNiceMock(GeoServer.class);
+        expect(geoServer.getCatalog()).andReturn(catalog).anyTimes();
+        replay(geoServer);
+        WPSResourceManager resources = createNiceMock(WPSResourceManager.class);
+        expect(resources.getOutputResource(EXECUTION, "world.gpkg"))
+                .andReturn(Files.asResource(file)).anyTimes();
+        expect(resources.getOutputResource(EXECUTION, "rivers.gpkg"))
+                .andReturn(Files.asResource(new File(file.getParentFile(), "rivers.gpkg"))).anyTimes();
+        replay(resources);
+        process = new GeoPackageOptimizeProcess(geoServer, resources);
+    }
+
+    @Test
+    public void testOptimize() throws Exception {
+        assertNotNull(process.execute(EXECUTION, "world.gpkg", true));
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    public void testOutputsOnly() throws Exception {
+        for (String name : new String[]{"../world.gpkg", "/etc/passwd", "..", null}) {
+            try {
+                process.execute(EXECUTION, name, null);
+                fail("Optimized " + name);
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.INVALID_PARAMETER_VALUE, e.getCode());
+            }
+        }
+        try {
+            process.execute("../" + EXECUTION, "world.gpkg", null);
+            fail("Optimized a file outside of the execution outputs");
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.INVALID_PARAMETER_VALUE, e.getCode());
+        }
+        try {
+            process.execute(EXECUTION, "rivers.gpkg", null);
+            fail("Optimized a missing output");
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.INVALID_PARAMETER_VALUE, e.getCode());
+        }
+    }
+
+    @Test
+    public void testOptimizedOnce() throws Exception {
+        File canonical = file.getCanonicalFile();
+        GeoPackageOptimizeProcess.OPTIMIZING.add(canonical);
+        try {
+            process.execute(EXECUTION, "world.gpkg", null);
+            fail("Optimized a GeoPackage another execution is optimizing");
+        } catch (ServiceException e) {
+            assertTrue(e.getMessage().contains("already being optimized"));
+        } finally {
+            GeoPackageOptimizeProcess.OPTIMIZING.remove(canonical);
+        }
+        // and once the other execution is done
+        assertNotNull(process.execute(EXECUTION, "world.gpkg", null));
+        assertFalse(GeoPackageOptimizeProcess.OPTIMIZING.contains(canonical));
+    }
+
+    @Test
+    public void testReferencedByStore() throws Exception {
+        assertFalse(process.isReferenced(file));
+
+        DataStoreInfo store = createNiceMock(DataStoreInfo.class);
+        expect(store.getConnectionParameters()).andReturn(
+                Collections.<String, Serializable>singletonMap("database", file.getAbsolutePath()))
+                .anyTimes();
+        replay(store);
+        stores.add(store);
+        assertTrue(process.isReferenced(file));
+        try {
+            process.execute(EXECUTION, "world.gpkg", null);
+            fail("Optimized a GeoPackage used by a store");
+        } catch (ServiceException e) {
+            assertTrue(e.getMessage().contains("store"));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.geopkg.wps;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.SQLiteTuning;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the GeoPackage process only replaces its output with complete files.
+ */
+public class GeoPackageProcessTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder(new File("target"));
+
+    @Test
+    public void testMoveInPlace() throws Exception {
+        File dir = tmp.newFolder("out");
+        File file = new File(dir, "world.gpkg");
+        assertTrue(file.createNewFile());
+
+        File temp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        GeoPackage geopkg = new GeoPackage(temp, SQLiteTuning.profile(SQLiteTuning.BULK_EXPORT));
+        try {
+            geopkg.init();
+        } finally {
+            geopkg.close();
+        }
+        long length = temp.length();
+        assertTrue(length > 0);
+
+        GeoPackageProcess.moveInPlace(temp, file);
+        assertFalse(temp.exists());
+        assertEquals(length, file.length());
+        assertEquals(1, dir.list().length);
+
+        geopkg = new GeoPackage(file);
+        try {
+            assertTrue(geopkg.features().isEmpty());
+        } finally {
+            geopkg.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.geoserver.platform.ServiceException;
+
+/**
+ * Lets concurrent requests for the same map share a single rendering.
+ * <p>
+ * The first request for a key leads a flight and renders the map; the
+ * requests for the same key arriving while the flight is in progress join it
+ * and wait for the encoded map of the leader. A failure of the leader is
+ * thrown to all the requests of its flight. The leader may also land without
+ * a map, e.g., when its map cannot be encoded, and the waiting requests then
+ * render their own maps.
+ * </p>
+ */
+public class MapRequestCoalescer {
+
+    /**
+     * A rendering shared by concurrent requests.
+     */
+    public static final class Flight {
+
+        private final Thread leader = Thread.currentThread();
+
+        private final CompletableFuture<MapResponseCache.Entry> future = new CompletableFuture<>();
+
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        /**
+         * Returns true if the current thread renders the map of the flight.
+         */
+        public boolean isLeader() {
+            return leader == Thread.currentThread();
+        }
+
+        /**
+         * Returns the number of requests waiting for the map of the flight.
+         */
+        public int getWaiters() {
+            return waiters.get();
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong led = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Joins the flight of a key, starting it if no flight of the key is in
+     * progress, in which case the current thread is the leader of the flight.
+     *
+     * @param key The normalized request
+     * @return The flight
+     */
+    public Flight join(String key) {
+        Flight flight = flights.compute(key, (k, current) -> {
+            if (current == null) {
+                return new Flight();
+            }
+            // counted while the flight cannot be landed
+            current.waiters.incrementAndGet();
+            return current;
+        });
+        if (flight.isLeader()) {
+            led.incrementAndGet();
+        } else {
+            coalesced.incrementAndGet();
+        }
+        return flight;
+    }
+
+    /**
+     * Closes a flight to new requests. The requests for its key arriving from
+     * now on start a new flight.
+     *
+     * @param key The key of the flight
+     * @param flight The flight, led by the current thread
+     * @return The number of requests waiting for the map of the flight, which
+     * can no longer grow
+     */
+    public int land(String key, Flight flight) {
+        flights.remove(key, flight);
+        return flight.waiters.get();
+    }
+
+    /**
+     * Lands a flight and hands its map to the requests waiting for it.
+     *
+     * @param key The key of the flight
+     * @param flight The flight, led by the current thread
+     * @param entry The encoded map, or null to let the waiting requests render
+     * their own maps
+     */
+    public void complete(String key, Flight flight, MapResponseCache.Entry entry) {
+        land(key, flight);
+        flight.future.complete(entry);
+    }
+
+    /**
+     * Lands a flight and throws the failure of its leader to the requests
+     * waiting for it.
+     *
+     * @param key The key of the flight
+     * @param flight The flight, led by the current thread
+     * @param failure The failure of the leader
+     */
+    public void fail(String key, Flight flight, Throwable failure) {
+        land(key, flight);
+        if (flight.future.completeExceptionally(failure)) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for the map of a flight joined by the current thread.
+     *
+     * @param flight The flight
+     * @param timeout The maximum time to wait, in milliseconds, 0 to wait as
+     * long as the leader renders
+     * @return The encoded map, or null if the request must render its own map
+     * @throws ServiceException If the map is not rendered in time, or the wait
+     * is interrupted
+     * @throws Throwable The failure of the leader
+     */
+    public MapResponseCache.Entry await(Flight flight, long timeout) throws Throwable {
+        try {
+            return timeout > 0 ? flight.future.get(timeout, TimeUnit.MILLISECONDS) : flight.future.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        } catch (TimeoutException ex) {
+            timeouts.incrementAndGet();
+            throw new ServiceException("This request used more time than allowed and has been forcefully stopped. "
+                    + "Max rendering time is " + (timeout / 1000.0) + "s");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceException("Interrupted while waiting for the same map requested concurrently", ex);
+        }
+    }
+
+    /**
+     * Returns the number of flights in progress.
+     */
+    public int getFlightCount() {
+        return flights.size();
+    }
+
+    /**
+     * Returns the number of requests that rendered their maps.
+     */
+    public long getLeaders() {
+        return led.get();
+    }
+
+    /**
+     * Returns the number of requests that waited for the map of another
+     * request.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the ratio of requests that waited for the map of another
+     * request.
+     */
+    public double getCoalescingRate() {
+        long coalesced = this.coalesced.get();
+        long total = coalesced + led.get();
+        return total == 0 ? 0 : (double) coalesced / total;
+    }
+
+    /**
+     * Returns the number of flights whose leader failed.
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Returns the number of requests that timed out waiting for the map of
+     * another request.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d renderings, %d requests coalesced, coalescing rate %.1f%%, "
+                + "%d failed, %d timed out, %d in progress",
+                getLeaders(), getCoalesced(), getCoalescingRate() * 100, getFailures(), getTimeouts(),
+                getFlightCount());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geotools.styling.Style;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * The normalized form of a GetMap request, identifying the requests that
+ * produce the same map, and the catalog objects the map is rendered from.
+ * <p>
+ * The key holds the GetMap parameters of the request, sorted by name, with
+ * the layers and styles replaced by the layers actually rendered and their
+ * styles, the bounding box rounded to a hundredth of a pixel, and the format
+ * options sorted. Other parameters, like the cache busters clients append to
+ * their requests, do not change the map and are left out, except for custom
+ * DIM_ dimensions. Requests with an SLD or an SLD body have no key.
+ * </p>
+ * <p>
+ * The layers a user may see, and how, depend on the security rules, so the
+ * key of an authenticated request also holds the user name and sorted roles,
+ * and requests of different users never share a map.
+ * </p>
+ */
+public final class MapRequestKey {
+
+    private static final String STYLE_TAG = "style:";
+
+    private static final String DIMENSION_PREFIX = "DIM_";
+
+    /**
+     * The WMS and GeoServer vendor parameters of GetMap requests.
+     */
+    private static final Set<String> PARAMETERS = new HashSet<>(Arrays.asList("VERSION", "LAYERS",
+            "STYLES", "SRS", "CRS", "BBOX", "WIDTH", "HEIGHT", "FORMAT", "TRANSPARENT", "BGCOLOR",
+            "EXCEPTIONS", "TIME", "ELEVATION", "SLD_VERSION", "STYLEFORMAT", "STYLEVERSION",
+            "SCALEMETHOD", "CQL_FILTER", "FILTER", "FEATUREID", "FEATUREVERSION", "SORTBY",
+            "MAXFEATURES", "STARTINDEX", "ENV", "VIEWPARAMS", "FORMAT_OPTIONS", "INTERPOLATIONS",
+            "PALETTE", "TILED", "TILESORIGIN", "BUFFER", "ANGLE", "CLIP", "REMOTE_OWS_TYPE",
+            "REMOTE_OWS_URL", "KMATTR", "KMSCORE", "KMPLACEMARK", "SUPEROVERLAY", "LEGEND"));
+
+    private final String key;
+
+    private final Set<String> tags;
+
+    private final boolean vectors;
+
+    private MapRequestKey(String key, Set<String> tags, boolean vectors) {
+        this.key = key;
+        this.tags = tags;
+        this.vectors = vectors;
+    }
+
+    /**
+     * Creates the key of a GetMap request of the current user.
+     *
+     * @param request The request
+     * @return The key, or null if the map cannot be identified by the request
+     */
+    public static MapRequestKey create(GetMapRequest request) {
+        return create(request, SecurityContextHolder.getContext().getAuthentication());
+    }
+
+    /**
+     * Creates the key of a GetMap request of a user.
+     *
+     * @param request The request
+     * @param user The authentication of the user, null if anonymous
+     * @return The key, or null if the map cannot be identified by the request
+     */
+    public static MapRequestKey create(GetMapRequest request, Authentication user) {
+        if (request.getSld() != null || request.getSldBody() != null || request.getLayers() == null
+                || request.getLayers().isEmpty() || request.getBbox() == null) {
+            return null;
+        }
+        TreeMap<String, String> params = new TreeMap<>();
+        Map<String, String> raw = request.getRawKvp();
+        if (raw != null) {
+            for (Map.Entry<String, String> param : raw.entrySet()) {
+                String name = param.getKey().toUpperCase(Locale.ENGLISH);
+                if ((PARAMETERS.contains(name) || name.startsWith(DIMENSION_PREFIX))
+                        && param.getValue() != null) {
+                    params.put(name, param.getValue().trim());
+                }
+            }
+        }
+
+        Set<String> tags = new HashSet<>();
+        boolean vectors = false;
+        List<String> layers = new ArrayList<>();
+        List<String> styles = new ArrayList<>();
+        List<Style> requestStyles = request.getStyles();
+        for (int i = 0; i < request.getLayers().size(); i++) {
+            MapLayerInfo layer = request.getLayers().get(i);
+            vectors |= layer.getType() != MapLayerInfo.TYPE_RASTER;
+            layers.add(layer.getName());
+            Style style = requestStyles != null && i < requestStyles.size() ? requestStyles.get(i) : null;
+            LayerInfo info = layer.getLayerInfo();
+            if (style == null && info != null && info.getDefaultStyle() != null) {
+                styles.add(info.getDefaultStyle().getName());
+            } else {
+                styles.add(style != null && style.getName() != null ? style.getName() : "");
+            }
+            tags.add(STYLE_TAG + styles.get(i));
+            if (info != null) {
+                tags.add(tag(info));
+                if (info.getResource() != null) {
+                    tags.add(tag(info.getResource()));
+                    if (info.getResource().getStore() != null) {
+                        tags.add(tag(info.getResource().getStore()));
+                    }
+                }
+            }
+        }
+        params.put("LAYERS", String.join(",", layers));
+        params.put("STYLES", String.join(",", styles));
+        params.put("BBOX", round(request.getBbox(), request.getWidth(), request.getHeight()));
+        params.put("WIDTH", Integer.toString(request.getWidth()));
+        params.put("HEIGHT", Integer.toString(request.getHeight()));
+        params.put("TRANSPARENT", Boolean.toString(request.isTransparent()));
+        if (request.getFormat() != null) {
+            params.put("FORMAT", request.getFormat().toLowerCase(Locale.ENGLISH));
+        }
+        for (String crs : new String[]{"SRS", "CRS"}) {
+            if (params.containsKey(crs)) {
+                params.put(crs, params.get(crs).toUpperCase(Locale.ENGLISH));
+            }
+        }
+        params.remove("FORMAT_OPTIONS");
+        if (request.getFormatOptions() != null && !request.getFormatOptions().isEmpty()) {
+            TreeMap<String, String> options = new TreeMap<>();
+            for (Map.Entry<String, Object> option : request.getFormatOptions().entrySet()) {
+                options.put(option.getKey().toLowerCase(Locale.ENGLISH), String.valueOf(option.getValue()));
+            }
+            params.put("FORMAT_OPTIONS", options.toString());
+        }
+        params.remove("USER");
+        if (user != null && user.isAuthenticated() && !(user instanceof AnonymousAuthenticationToken)) {
+            TreeSet<String> roles = new TreeSet<>();
+            for (GrantedAuthority authority : user.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+            params.put("USER", user.getName() + roles);
+        }
+        return new MapRequestKey(params.toString(), tags, vectors);
+    }
+
+    /**
+     * Returns the tag of the maps rendered from a catalog object, or null if
+     * maps are not tagged with such objects.
+     *
+     * @param info A layer, resource, store or style
+     * @return The tag
+     */
+    public static String tag(CatalogInfo info) {
+        if (info instanceof LayerInfo) {
+            return "layer:" + info.getId();
+        } else if (info instanceof ResourceInfo) {
+            return "resource:" + info.getId();
+        } else if (info instanceof StoreInfo) {
+            return "store:" + info.getId();
+        } else if (info instanceof StyleInfo) {
+            // requests name their styles, so maps are tagged by style name
+            return STYLE_TAG + ((StyleInfo) info).getName();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the bounding box with its coordinates rounded to a hundredth of
+     * the pixel size.
+     */
+    static String round(Envelope bbox, int width, int height) {
+        double dx = width > 0 ? bbox.getWidth() / width : 0;
+        double dy = height > 0 ? bbox.getHeight() / height : 0;
+        return round(bbox.getMinX(), dx) + "," + round(bbox.getMinY(), dy) + ","
+                + round(bbox.getMaxX(), dx) + "," + round(bbox.getMaxY(), dy);
+    }
+
+    static String round(double value, double pixelSize) {
+        if (!(pixelSize > 0) || Double.isInfinite(pixelSize) || Double.isInfinite(value) || Double.isNaN(value)) {
+            return Double.toString(value);
+        }
+        int scale = (int) Math.ceil(-Math.log10(pixelSize / 100));
+        return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the tags of the catalog objects the map is rendered from.
+     */
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * Returns true if the map has vector or cascaded layers, whose data can
+     * change without the catalog knowing.
+     */
+    public boolean hasVectors() {
+        return vectors;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MapRequestKey && key.equals(((MapRequestKey) obj).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A two tier cache of encoded map responses.
+ * <p>
+ * Responses are kept in memory, in least recently used order, up to a size
+ * in bytes. Responses evicted from memory are spilled to files in a
+ * directory, again up to a size in bytes, and moved back to memory when hit.
+ * The disk tier is an overflow of the memory tier and is emptied when the
+ * cache is created, so it never serves responses of a previous run. Each
+ * response is tagged with the catalog objects it was rendered from, and can
+ * be invalidated by tag. Responses older than the time to live, if any, are
+ * discarded.
+ * </p>
+ * <p>
+ * Files are written and read outside of the cache lock, while their entries
+ * are in neither tier. Invalidations and clears bump a generation, and an
+ * entry moving between the tiers is dropped if the generation changed
+ * meanwhile, so an invalidated response is never put back.
+ * </p>
+ */
+public class MapResponseCache {
+
+    static final Logger LOGGER = Logging.getLogger(MapResponseCache.class);
+
+    private static final String SUFFIX = ".map";
+
+    /**
+     * A cached response.
+     */
+    public static class Entry {
+
+        private final String key;
+
+        private final String mimeType;
+
+        private final String[][] headers;
+
+        private final Set<String> tags;
+
+        private final int size;
+
+        private final long created;
+
+        private final long renderNanos;
+
+        private final byte[] data;
+
+        private final File file;
+
+        /**
+         * Constructs a response entry.
+         *
+         * @param key The normalized request
+         * @param data The encoded map
+         * @param mimeType The mime type of the encoded map
+         * @param headers The HTTP response headers, or null
+         * @param tags The catalog objects the map was rendered from
+         * @param renderNanos The time taken to render and encode the map
+         */
+        public Entry(String key, byte[] data, String mimeType, String[][] headers, Set<String> tags,
+                long renderNanos) {
+            this.key = key;
+            this.data = data;
+            this.mimeType = mimeType;
+            this.headers = headers;
+            this.tags = tags == null ? Collections.<String>emptySet() : tags;
+            this.size = data.length;
+            this.created = System.currentTimeMillis();
+            this.renderNanos = renderNanos;
+            this.file = null;
+        }
+
+        /**
+         * Constructs a copy of an entry, held in memory or on disk.
+         */
+        private Entry(Entry entry, byte[] data, File file) {
+            this.key = entry.key;
+            this.data = data;
+            this.mimeType = entry.mimeType;
+            this.headers = entry.headers;
+            this.tags = entry.tags;
+            this.size = entry.size;
+            this.created = entry.created;
+            this.renderNanos = entry.renderNanos;
+            this.file = file;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the encoded map.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String[][] getHeaders() {
+            return headers;
+        }
+
+        public Set<String> getTags() {
+            return tags;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getRenderNanos() {
+            return renderNanos;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long maxMemory;
+
+    private final long maxDisk;
+
+    private final File directory;
+
+    private volatile long timeToLive;
+
+    private long memorySize;
+
+    private long diskSize;
+
+    /**
+     * Bumped by every invalidation and clear, guarded by the cache lock.
+     */
+    private long generation;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+
+    private final AtomicLong diskHits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    private final AtomicLong nanosSaved = new AtomicLong();
+
+    private final AtomicLong hitNanos = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxMemory The maximum size of the responses in memory, in bytes
+     * @param maxDisk The maximum size of the responses on disk, in bytes, 0
+     * for no disk tier
+     * @param directory The directory of the disk tier, or null for no disk
+     * tier
+     * @param timeToLive The time responses are kept, in milliseconds, 0 to
+     * keep them until they are evicted or invalidated
+     */
+    public MapResponseCache(long maxMemory, long maxDisk, File directory, long timeToLive) {
+        this.maxMemory = maxMemory;
+        this.directory = maxDisk > 0 ? directory : null;
+        this.maxDisk = this.directory != null ? maxDisk : 0;
+        this.timeToLive = timeToLive;
+        if (this.directory != null) {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                LOGGER.warning("Cannot create the map cache directory " + directory);
+            }
+            deleteFiles();
+        }
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns the cached response of a request, or null if the response is
+     * not cached.
+     *
+     * @param key The normalized request
+     * @return The response, holding the encoded map, or null
+     */
+    public Entry get(String key) {
+        long start = System.nanoTime();
+        Entry entry;
+        boolean fromDisk = false;
+        long generation;
+        synchronized (this) {
+            generation = this.generation;
+            entry = memory.get(key);
+            if (entry == null) {
+                entry = disk.remove(key);
+                if (entry != null) {
+                    diskSize -= entry.size;
+                    fromDisk = true;
+                }
+            }
+            if (entry != null && isExpired(entry)) {
+                if (!fromDisk) {
+                    memory.remove(key);
+                    memorySize -= entry.size;
+                } else {
+                    delete(entry);
+                }
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (fromDisk) {
+            try {
+                byte[] data = read(entry.file);
+                delete(entry);
+                entry = new Entry(entry, data, null);
+                List<Entry> spilled;
+                synchronized (this) {
+                    if (generation != this.generation) {
+                        // invalidated while read
+                        spilled = null;
+                    } else if (memory.containsKey(key)) {
+                        // cached again while read
+                        spilled = Collections.emptyList();
+                    } else {
+                        spilled = add(entry);
+                    }
+                }
+                if (spilled == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                spill(spilled, generation);
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Cannot read the cached map " + entry.file, ex);
+                misses.incrementAndGet();
+                return null;
+            }
+            diskHits.incrementAndGet();
+        } else {
+            memoryHits.incrementAndGet();
+        }
+        bytesSaved.addAndGet(entry.size);
+        nanosSaved.addAndGet(entry.renderNanos);
+        hitNanos.addAndGet(System.nanoTime() - start);
+        return entry;
+    }
+
+    /**
+     * Caches a response, evicting or spilling to disk the least recently
+     * used responses as needed.
+     *
+     * @param entry The response
+     */
+    public void put(Entry entry) {
+        if (entry.size > maxMemory) {
+            return;
+        }
+        List<Entry> spilled;
+        long generation;
+        synchronized (this) {
+            Entry old = memory.remove(entry.key);
+            if (old != null) {
+                memorySize -= old.size;
+            }
+            old = disk.remove(entry.key);
+            if (old != null) {
+                diskSize -= old.size;
+                delete(old);
+            }
+            spilled = add(entry);
+            generation = this.generation;
+        }
+        spill(spilled, generation);
+    }
+
+    /**
+     * Adds an entry to the memory tier, returning the entries evicted from
+     * memory.
+     */
+    private List<Entry> add(Entry entry) {
+        memory.put(entry.key, entry);
+        memorySize += entry.size;
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> it = memory.values().iterator();
+        while (memorySize > maxMemory && it.hasNext()) {
+            Entry eldest = it.next();
+            if (eldest == entry) {
+                continue;
+            }
+            it.remove();
+            memorySize -= eldest.size;
+            evicted.add(eldest);
+        }
+        return evicted;
+    }
+
+    /**
+     * Writes the entries evicted from memory to the disk tier, outside of the
+     * cache lock, dropping those invalidated since the generation they were
+     * evicted in.
+     */
+    private void spill(List<Entry> evicted, long generation) {
+        if (directory == null) {
+            return;
+        }
+        for (Entry entry : evicted) {
+            if (entry.size > maxDisk || isExpired(entry)) {
+                continue;
+            }
+            File file = new File(directory, hash(entry.key) + SUFFIX);
+            try {
+                write(file, entry.data);
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, "Cannot write the cached map " + file, ex);
+                continue;
+            }
+            List<Entry> deleted = new ArrayList<>();
+            boolean stale;
+            synchronized (this) {
+                // the request may have been invalidated or cached again in
+                // the meantime
+                stale = generation != this.generation || memory.containsKey(entry.key)
+                        || disk.containsKey(entry.key);
+                if (!stale) {
+                    disk.put(entry.key, new Entry(entry, null, file));
+                    diskSize += entry.size;
+                    Iterator<Entry> it = disk.values().iterator();
+                    while (diskSize > maxDisk && it.hasNext()) {
+                        Entry eldest = it.next();
+                        it.remove();
+                        diskSize -= eldest.size;
+                        deleted.add(eldest);
+                    }
+                }
+            }
+            if (stale) {
+                file.delete();
+            }
+            for (Entry old : deleted) {
+                delete(old);
+            }
+        }
+    }
+
+    /**
+     * Writes a spilled response to its file.
+     */
+    void write(File file, byte[] data) throws IOException {
+        Files.write(file.toPath(), data);
+    }
+
+    /**
+     * Reads a spilled response back from its file.
+     */
+    byte[] read(File file) throws IOException {
+        return Files.readAllBytes(file.toPath());
+    }
+
+    /**
+     * Removes the responses rendered from a catalog object.
+     *
+     * @param tag The tag of the catalog object
+     * @return The number of responses removed
+     */
+    public int invalidate(String tag) {
+        List<Entry> deleted = new ArrayList<>();
+        int count = 0;
+        synchronized (this) {
+            generation++;
+            for (Iterator<Entry> it = memory.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.tags.contains(tag)) {
+                    it.remove();
+                    memorySize -= entry.size;
+                    count++;
+                }
+            }
+            for (Iterator<Entry> it = disk.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.tags.contains(tag)) {
+                    it.remove();
+                    diskSize -= entry.size;
+                    deleted.add(entry);
+                    count++;
+                }
+            }
+        }
+        for (Entry entry : deleted) {
+            delete(entry);
+        }
+        invalidations.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Removes all the responses.
+     */
+    public void clear() {
+        int count;
+        synchronized (this) {
+            generation++;
+            count = memory.size() + disk.size();
+            memory.clear();
+            disk.clear();
+            memorySize = 0;
+            diskSize = 0;
+        }
+        invalidations.addAndGet(count);
+        if (directory != null) {
+            deleteFiles();
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        long ttl = timeToLive;
+        return ttl > 0 && System.currentTimeMillis() - entry.created > ttl;
+    }
+
+    private static void delete(Entry entry) {
+        if (entry.file != null && !entry.file.delete() && entry.file.exists()) {
+            LOGGER.fine("Cannot delete the cached map " + entry.file);
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public synchronized int getMemoryCount() {
+        return memory.size();
+    }
+
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    public synchronized int getDiskCount() {
+        return disk.size();
+    }
+
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ratio of the lookups answered from the cache.
+     */
+    public double getHitRate() {
+        long hits = memoryHits.get() + diskHits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of encoded bytes served from the cache.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Returns the rendering and encoding time spared by the hits, in
+     * milliseconds.
+     */
+    public long getTimeSaved() {
+        return nanosSaved.get() / 1000000;
+    }
+
+    /**
+     * Returns the average time taken by a hit, in milliseconds.
+     */
+    public double getAverageHitTime() {
+        long hits = memoryHits.get() + diskHits.get();
+        return hits == 0 ? 0 : hitNanos.get() / 1e6 / hits;
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d maps in memory (%d KB), %d on disk (%d KB), hit rate %.1f%%, "
+                + "%d KB and %d ms saved, %.2f ms per hit, %d invalidated",
+                getMemoryCount(), getMemorySize() / 1024, getDiskCount(), getDiskSize() / 1024,
+                getHitRate() * 100, getBytesSaved() / 1024, getTimeSaved(), getAverageHitTime(),
+                getInvalidations());
+    }
+}
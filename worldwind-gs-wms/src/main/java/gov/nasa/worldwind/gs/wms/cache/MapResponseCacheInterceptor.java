@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import gov.nasa.worldwind.gs.wms.map.MapResponseOutputStreamAdaptor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.GeoServerInitializer;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WMSInfo;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.AbstractMapResponse;
+import org.geoserver.wms.map.RawMap;
+import org.geoserver.wms.map.RenderedImageMap;
+import org.geotools.util.logging.Logging;
+
+/**
+ * WMS service interceptor answering repeated GetMap requests with the maps
+ * encoded for them before, and concurrent GetMap requests for the same map
+ * with a single rendering.
+ * <p>
+ * Concurrent requests with the same {@link MapRequestKey} are coalesced by a
+ * {@link MapRequestCoalescer}: the first one renders the map while the others
+ * wait, up to the maximum rendering time of the WMS, and share its encoded
+ * bytes, or its failure. A map nobody waited for is returned as rendered.
+ * Coalescing is enabled by the {@value #PROPERTY_COALESCE} system property.
+ * Keys include the authenticated user and roles, so requests are only
+ * coalesced, and maps only shared, among requests of the same user.
+ * </p>
+ * <p>
+ * The maps of requests with the same {@link MapRequestKey} are rendered once,
+ * encoded with the map response of their format, and kept in a
+ * {@link MapResponseCache}. The cached maps of a layer are invalidated when
+ * the layer, its resource, its store or its style are modified or removed
+ * from the catalog, and all the maps are when layer groups, workspaces,
+ * namespaces or the WMS settings change. A map whose rendering overlapped an
+ * invalidation is returned but not cached, as it may have been rendered from
+ * the data or settings before the change. Maps of more than
+ * {@value #PROPERTY_MAX_PIXELS} pixels are neither cached nor coalesced, and
+ * are still encoded as they are written out.
+ * </p>
+ * <p>
+ * Vector data can change without the catalog knowing, e.g., through WFS-T,
+ * so only maps of coverages are cached unless {@value #PROPERTY_VECTORS} is
+ * true, and maps expire after {@value #PROPERTY_TIME_TO_LIVE} seconds, 300 by
+ * default. The cache is enabled by the {@value #PROPERTY_ENABLED} system
+ * property. It keeps up to {@value #PROPERTY_MEMORY_SIZE} MB of maps in
+ * memory, 64 by default, and up to {@value #PROPERTY_DISK_SIZE} MB, 256 by
+ * default, in the {@value #PROPERTY_DIRECTORY} directory, by default the
+ * "wms-cache" directory of the data directory.
+ * </p>
+ */
+public class MapResponseCacheInterceptor extends ConfigurationListenerAdapter
+        implements MethodInterceptor, CatalogListener, GeoServerInitializer {
+
+    static Logger LOGGER = Logging.getLogger(MapResponseCacheInterceptor.class);
+
+    public static final String PROPERTY_ENABLED = "wms.cache";
+
+    public static final String PROPERTY_MEMORY_SIZE = "wms.cache.memorySize";
+
+    public static final String PROPERTY_DISK_SIZE = "wms.cache.diskSize";
+
+    public static final String PROPERTY_DIRECTORY = "wms.cache.directory";
+
+    public static final String PROPERTY_TIME_TO_LIVE = "wms.cache.timeToLive";
+
+    public static final String PROPERTY_VECTORS = "wms.cache.vectors";
+
+    public static final String PROPERTY_MAX_PIXELS = "wms.cache.maxPixels";
+
+    public static final String PROPERTY_COALESCE = "wms.coalesce";
+
+    boolean enabled = Boolean.getBoolean(PROPERTY_ENABLED);
+
+    boolean coalesce = Boolean.parseBoolean(System.getProperty(PROPERTY_COALESCE, "false"));
+
+    boolean vectors = Boolean.getBoolean(PROPERTY_VECTORS);
+
+    long maxPixels = Long.getLong(PROPERTY_MAX_PIXELS, MapResponseOutputStreamAdaptor.DEFAULT_STREAMING_THRESHOLD);
+
+    GeoServerResourceLoader resourceLoader;
+
+    volatile MapResponseCache cache;
+
+    volatile MapRequestCoalescer coalescer;
+
+    GeoServer geoServer;
+
+    /**
+     * Incremented on every invalidation, so maps rendered across one are not
+     * cached.
+     */
+    final AtomicLong generation = new AtomicLong();
+
+    public void setResourceLoader(GeoServerResourceLoader resourceLoader) {
+        this.resourceLoader = resourceLoader;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isVectors() {
+        return vectors;
+    }
+
+    public void setVectors(boolean vectors) {
+        this.vectors = vectors;
+    }
+
+    /**
+     * Returns the cache, or null if the cache is not enabled.
+     */
+    public MapResponseCache getCache() {
+        return cache;
+    }
+
+    public void setCache(MapResponseCache cache) {
+        this.cache = cache;
+    }
+
+    public boolean isCoalesce() {
+        return coalesce;
+    }
+
+    public void setCoalesce(boolean coalesce) {
+        this.coalesce = coalesce;
+    }
+
+    /**
+     * Returns the coalescer, or null if coalescing is not enabled.
+     */
+    public MapRequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public void setCoalescer(MapRequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    @Override
+    public void initialize(GeoServer geoServer) throws Exception {
+        this.geoServer = geoServer;
+        if (coalesce && coalescer == null) {
+            coalescer = new MapRequestCoalescer();
+        }
+        if (!enabled) {
+            return;
+        }
+        if (cache == null) {
+            String path = System.getProperty(PROPERTY_DIRECTORY);
+            File directory = path != null ? new File(path)
+                    : resourceLoader != null ? new File(resourceLoader.getBaseDirectory(), "wms-cache") : null;
+            cache = new MapResponseCache(
+                    Long.getLong(PROPERTY_MEMORY_SIZE, 64) * 1024 * 1024,
+                    Long.getLong(PROPERTY_DISK_SIZE, 256) * 1024 * 1024,
+                    directory,
+                    TimeUnit.SECONDS.toMillis(Long.getLong(PROPERTY_TIME_TO_LIVE, 300)));
+            LOGGER.info("GetMap response cache enabled, spilling to " + directory);
+        }
+        geoServer.getCatalog().addListener(this);
+        geoServer.addListener(this);
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        MapResponseCache cache = enabled ? this.cache : null;
+        MapRequestCoalescer coalescer = coalesce ? this.coalescer : null;
+        if ((cache == null && coalescer == null) || !"getMap".equals(invocation.getMethod().getName())
+                || invocation.getArguments().length != 1
+                || !(invocation.getArguments()[0] instanceof GetMapRequest)) {
+            return invocation.proceed();
+        }
+        GetMapRequest request = (GetMapRequest) invocation.getArguments()[0];
+        if ((long) request.getWidth() * request.getHeight() > maxPixels) {
+            return invocation.proceed();
+        }
+        MapRequestKey key = MapRequestKey.create(request);
+        if (key == null) {
+            return invocation.proceed();
+        }
+        if (cache != null && key.hasVectors() && !vectors) {
+            cache = null;
+            if (coalescer == null) {
+                return invocation.proceed();
+            }
+        }
+        MapResponseCache.Entry entry;
+        if (cache != null) {
+            entry = cache.get(key.getKey());
+            if (entry != null) {
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer("Returning the cached map of " + key);
+                }
+                return toMap(entry);
+            }
+        }
+        long generation = this.generation.get();
+        if (coalescer == null) {
+            long start = System.nanoTime();
+            Object result = invocation.proceed();
+            entry = encode(key, result, start);
+            if (entry == null) {
+                return result;
+            }
+            put(cache, entry, generation);
+            return toMap(entry);
+        }
+
+        MapRequestCoalescer.Flight flight = coalescer.join(key.getKey());
+        if (!flight.isLeader()) {
+            entry = coalescer.await(flight, getMaxRenderingTime());
+            if (entry == null) {
+                // the leader had no map to share
+                return invocation.proceed();
+            }
+            if (LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.finer("Returning the map rendered concurrently for " + key);
+            }
+            return toMap(entry);
+        }
+        entry = null;
+        try {
+            long start = System.nanoTime();
+            Object result = invocation.proceed();
+            if (cache == null && coalescer.land(key.getKey(), flight) == 0) {
+                // nobody to share the map with, let it be written as usual
+                return result;
+            }
+            entry = encode(key, result, start);
+            if (entry == null) {
+                return result;
+            }
+            if (cache != null) {
+                put(cache, entry, generation);
+            }
+            return toMap(entry);
+        } catch (Throwable t) {
+            coalescer.fail(key.getKey(), flight, t);
+            throw t;
+        } finally {
+            if (!flight.isDone()) {
+                coalescer.complete(key.getKey(), flight, entry);
+            }
+        }
+    }
+
+    /**
+     * Caches a map unless the cache was invalidated since the generation its
+     * rendering started in.
+     */
+    void put(MapResponseCache cache, MapResponseCache.Entry entry, long generation) {
+        synchronized (this.generation) {
+            if (this.generation.get() == generation) {
+                cache.put(entry);
+                return;
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Not caching the map of " + entry.getKey() + ", invalidated while rendering");
+        }
+    }
+
+    /**
+     * Returns the maximum rendering time of the WMS, in milliseconds, or 0 if
+     * unlimited.
+     */
+    long getMaxRenderingTime() {
+        WMSInfo wms = geoServer != null ? geoServer.getService(WMSInfo.class) : null;
+        return wms != null ? TimeUnit.SECONDS.toMillis(Math.max(wms.getMaxRenderingTime(), 0)) : 0;
+    }
+
+    /**
+     * Encodes a map, returning null if the map is not a raw or rendered
+     * image map.
+     */
+    static MapResponseCache.Entry encode(MapRequestKey key, Object result, long start) throws IOException {
+        if (!(result instanceof WebMap)) {
+            return null;
+        }
+        WebMap map = (WebMap) result;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String mimeType;
+        if (map instanceof RawMap) {
+            ((RawMap) map).writeTo(bytes);
+            mimeType = map.getMimeType();
+        } else if (map instanceof RenderedImageMap) {
+            AbstractMapResponse response = findResponse(map);
+            if (response == null) {
+                return null;
+            }
+            try {
+                response.write(map, bytes, null);
+                // the actual format of jpeg-png maps
+                mimeType = response.getMimeType(map, null);
+            } finally {
+                map.dispose();
+            }
+        } else {
+            return null;
+        }
+        return new MapResponseCache.Entry(key.getKey(), bytes.toByteArray(), mimeType,
+                map.getResponseHeaders(), key.getTags(), System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the map response of a map, the one with the most specific
+     * binding among those writing its format, as the OWS dispatcher picks it.
+     */
+    static AbstractMapResponse findResponse(WebMap map) {
+        AbstractMapResponse found = null;
+        for (AbstractMapResponse response : GeoServerExtensions.extensions(AbstractMapResponse.class)) {
+            if (response.getBinding().isAssignableFrom(map.getClass())
+                    && response.getOutputFormats().contains(map.getMimeType())
+                    && (found == null || found.getBinding().isAssignableFrom(response.getBinding()))) {
+                found = response;
+            }
+        }
+        return found;
+    }
+
+    static RawMap toMap(MapResponseCache.Entry entry) {
+        RawMap map = new RawMap(null, entry.getData(), entry.getMimeType());
+        String[][] headers = entry.getHeaders();
+        if (headers != null) {
+            for (String[] header : headers) {
+                map.setResponseHeader(header[0], header[1]);
+            }
+        }
+        return map;
+    }
+
+    void invalidate(CatalogInfo info) {
+        MapResponseCache cache = this.cache;
+        if (info instanceof LayerGroupInfo || info instanceof WorkspaceInfo || info instanceof NamespaceInfo) {
+            clear();
+            return;
+        }
+        String tag = MapRequestKey.tag(info);
+        if (tag == null) {
+            return;
+        }
+        int count = 0;
+        synchronized (generation) {
+            generation.incrementAndGet();
+            if (cache != null) {
+                count = cache.invalidate(tag);
+            }
+        }
+        if (count > 0 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Invalidated " + count + " cached maps of " + tag);
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // maps of new objects are not cached yet
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the modification to be applied
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handlePostGlobalChange(GeoServerInfo global) {
+        clear();
+    }
+
+    @Override
+    public void handlePostServiceChange(ServiceInfo service) {
+        if (service instanceof WMSInfo) {
+            clear();
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    void clear() {
+        MapResponseCache cache = this.cache;
+        synchronized (generation) {
+            generation.incrementAndGet();
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+    }
+}
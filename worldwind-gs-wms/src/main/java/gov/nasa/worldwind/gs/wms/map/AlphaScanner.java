@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import javax.media.jai.operator.BandSelectDescriptor;
+import org.geoserver.wms.WMSMapContent;
+
+/**
+ * Finds out whether an image has transparent or translucent pixels, to choose
+ * between JPEG and PNG for the "image/vnd.jpeg-png" format.
+ * <p>
+ * The alpha samples are read straight from the {@code byte[]} and
+ * {@code int[]} banks of the image tiles, one tile at a time, and the scan
+ * stops at the first pixel that is not opaque. Palette images are scanned
+ * for the indices of their non opaque entries only. Nothing is scanned when
+ * the color model has no alpha, or when the map was composited over an
+ * opaque background, i.e., was not requested as transparent.
+ * </p>
+ */
+public final class AlphaScanner {
+
+    private AlphaScanner() {
+    }
+
+    /**
+     * Returns true if all the pixels of the image of a map are opaque.
+     *
+     * @param image The rendered map
+     * @param mapContent The map content of the image, or null if unknown
+     * @return True if the image has no transparent or translucent pixel
+     */
+    public static boolean isOpaque(RenderedImage image, WMSMapContent mapContent) {
+        if (mapContent != null && !mapContent.isTransparent()) {
+            // rendered over an opaque background color
+            return true;
+        }
+        return isOpaque(image);
+    }
+
+    /**
+     * Returns true if all the pixels of the image are opaque.
+     *
+     * @param image The image to scan
+     * @return True if the image has no transparent or translucent pixel
+     */
+    public static boolean isOpaque(RenderedImage image) {
+        ColorModel cm = image.getColorModel();
+        if (cm == null) {
+            return false;
+        }
+        if (cm.getTransparency() == Transparency.OPAQUE || !cm.hasAlpha()) {
+            return true;
+        }
+        boolean[] translucent = null;
+        if (cm instanceof IndexColorModel) {
+            IndexColorModel icm = (IndexColorModel) cm;
+            translucent = new boolean[1 << Math.min(16, image.getSampleModel().getSampleSize(0))];
+            boolean any = false;
+            for (int i = 0; i < icm.getMapSize(); i++) {
+                if (icm.getAlpha(i) != 255) {
+                    translucent[i] = true;
+                    any = true;
+                }
+            }
+            if (!any) {
+                return true;
+            }
+        }
+
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        int alphaBand = image.getSampleModel().getNumBands() - 1;
+        for (int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+            for (int tx = image.getMinTileX(); tx < image.getMinTileX() + image.getNumXTiles(); tx++) {
+                Raster tile = image.getTile(tx, ty);
+                Rectangle area = tile.getBounds().intersection(bounds);
+                if (area.isEmpty()) {
+                    continue;
+                }
+                boolean opaque = translucent != null
+                        ? isOpaque(tile, area, translucent)
+                        : isOpaque(tile, area, alphaBand, cm);
+                if (!opaque) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans the palette indices of a tile for translucent entries.
+     */
+    private static boolean isOpaque(Raster tile, Rectangle area, boolean[] translucent) {
+        SampleModel sm = tile.getSampleModel();
+        DataBuffer db = tile.getDataBuffer();
+        if (sm instanceof ComponentSampleModel && db instanceof DataBufferByte) {
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            byte[] data = ((DataBufferByte) db).getData(csm.getBankIndices()[0]);
+            int stride = csm.getScanlineStride();
+            int pixelStride = csm.getPixelStride();
+            int base = db.getOffsets()[csm.getBankIndices()[0]] + csm.getBandOffsets()[0];
+            for (int y = area.y; y < area.y + area.height; y++) {
+                int i = base + (y - tile.getSampleModelTranslateY()) * stride
+                        + (area.x - tile.getSampleModelTranslateX()) * pixelStride;
+                for (int x = 0; x < area.width; x++, i += pixelStride) {
+                    if (translucent[data[i] & 0xff]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        int[] samples = new int[area.width];
+        for (int y = area.y; y < area.y + area.height; y++) {
+            tile.getSamples(area.x, y, area.width, 1, 0, samples);
+            for (int sample : samples) {
+                if (sample >= translucent.length || translucent[sample]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans the alpha samples of a tile.
+     */
+    private static boolean isOpaque(Raster tile, Rectangle area, int alphaBand, ColorModel cm) {
+        SampleModel sm = tile.getSampleModel();
+        DataBuffer db = tile.getDataBuffer();
+        int translateX = tile.getSampleModelTranslateX();
+        int translateY = tile.getSampleModelTranslateY();
+        if (sm instanceof ComponentSampleModel && db instanceof DataBufferByte) {
+            // interleaved or banded bytes, e.g., TYPE_4BYTE_ABGR
+            ComponentSampleModel csm = (ComponentSampleModel) sm;
+            int bank = csm.getBankIndices()[alphaBand];
+            byte[] data = ((DataBufferByte) db).getData(bank);
+            int stride = csm.getScanlineStride();
+            int pixelStride = csm.getPixelStride();
+            int base = db.getOffsets()[bank] + csm.getBandOffsets()[alphaBand];
+            for (int y = area.y; y < area.y + area.height; y++) {
+                int i = base + (y - translateY) * stride + (area.x - translateX) * pixelStride;
+                for (int x = 0; x < area.width; x++, i += pixelStride) {
+                    if (data[i] != (byte) 0xff) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        if (sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt) {
+            // packed ints, e.g., TYPE_INT_ARGB
+            SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+            int mask = sppsm.getBitMasks()[alphaBand];
+            int[] data = ((DataBufferInt) db).getData();
+            int stride = sppsm.getScanlineStride();
+            int base = db.getOffset();
+            for (int y = area.y; y < area.y + area.height; y++) {
+                int i = base + (y - translateY) * stride + (area.x - translateX);
+                for (int x = 0; x < area.width; x++, i++) {
+                    if ((data[i] & mask) != mask) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        // any other layout, one row of alpha samples at a time
+        int opaque = (1 << cm.getComponentSize(cm.getNumComponents() - 1)) - 1;
+        boolean floating = sm.getDataType() == DataBuffer.TYPE_FLOAT || sm.getDataType() == DataBuffer.TYPE_DOUBLE;
+        float[] samples = new float[area.width];
+        for (int y = area.y; y < area.y + area.height; y++) {
+            tile.getSamples(area.x, y, area.width, 1, alphaBand, samples);
+            for (float sample : samples) {
+                if (floating ? sample < 1f : sample < opaque) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the color bands of an image with interleaved or banded
+     * components and alpha, so that its encoders see an opaque image without
+     * scanning it again, or the image itself.
+     *
+     * @param image An image whose pixels are all opaque
+     * @return The image without its alpha band
+     */
+    public static RenderedImage dropAlpha(RenderedImage image) {
+        ColorModel cm = image.getColorModel();
+        if (!(cm instanceof ComponentColorModel) || !cm.hasAlpha()
+                || !(image.getSampleModel() instanceof ComponentSampleModel)) {
+            return image;
+        }
+        int[] bands = new int[cm.getNumColorComponents()];
+        for (int i = 0; i < bands.length; i++) {
+            bands[i] = i;
+        }
+        return BandSelectDescriptor.create(image, bands, null);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Rectangle;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes the samples of the first band of an image as a headerless BIL
+ * (band interleaved by line) grid of 16-bit signed integers or 32-bit floats,
+ * the elevation formats requested by WorldWind clients.
+ * <p>
+ * The image is read one row of tiles at a time, and the samples are copied
+ * straight from the {@code DataBuffer} banks of the tiles, never through a
+ * color model. Samples equal to the no-data value of the image, and NaN, are
+ * written as the no-data value of the output. When no sample has to be
+ * converted or substituted, e.g., 16-bit elevations without no-data, whole
+ * rows of samples are copied in bulk in the requested byte order.
+ * </p>
+ */
+final class BilEncoder {
+
+    private final boolean floats;
+
+    private final ByteOrder order;
+
+    private final double sourceNoData;
+
+    private final double noData;
+
+    /**
+     * Constructs an encoder.
+     *
+     * @param floats True to write 32-bit floats, false for 16-bit integers
+     * @param order The byte order of the samples
+     * @param sourceNoData The no-data value of the images, or NaN if none
+     * @param noData The value written for no-data samples
+     */
+    BilEncoder(boolean floats, ByteOrder order, double sourceNoData, double noData) {
+        this.floats = floats;
+        this.order = order;
+        this.sourceNoData = sourceNoData;
+        this.noData = noData;
+    }
+
+    /**
+     * Writes the first band of an image.
+     *
+     * @param image The image
+     * @param out The output stream, left open
+     * @throws IOException
+     */
+    void encode(RenderedImage image, OutputStream out) throws IOException {
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        ByteBuffer row = ByteBuffer.allocate(bounds.width * (floats ? 4 : 2)).order(order);
+        Raster[] tiles = new Raster[image.getNumXTiles()];
+        for (int ty = image.getMinTileY(); ty < image.getMinTileY() + image.getNumYTiles(); ty++) {
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = image.getTile(image.getMinTileX() + i, ty);
+            }
+            Rectangle rows = tiles[0].getBounds().intersection(bounds);
+            for (int y = rows.y; y < rows.y + rows.height; y++) {
+                row.clear();
+                for (Raster tile : tiles) {
+                    Rectangle area = tile.getBounds().intersection(bounds);
+                    if (!area.isEmpty()) {
+                        putRow(tile, area.x, y, area.width, row);
+                    }
+                }
+                out.write(row.array(), 0, row.position());
+            }
+        }
+    }
+
+    /**
+     * Puts the samples of a row of a tile.
+     */
+    private void putRow(Raster tile, int x, int y, int width, ByteBuffer row) {
+        DataBuffer db = tile.getDataBuffer();
+        if (!(tile.getSampleModel() instanceof ComponentSampleModel)) {
+            double[] samples = tile.getSamples(x, y, width, 1, 0, (double[]) null);
+            for (double sample : samples) {
+                put(sample, row);
+            }
+            return;
+        }
+        ComponentSampleModel csm = (ComponentSampleModel) tile.getSampleModel();
+        int bank = csm.getBankIndices()[0];
+        int stride = csm.getPixelStride();
+        int offset = db.getOffsets()[bank] + csm.getOffset(
+                x - tile.getSampleModelTranslateX(), y - tile.getSampleModelTranslateY(), 0);
+        int end = offset + width * stride;
+        switch (db.getDataType()) {
+            case DataBuffer.TYPE_SHORT: {
+                short[] data = ((DataBufferShort) db).getData(bank);
+                if (!floats && stride == 1 && !substitutes(Short.MIN_VALUE, Short.MAX_VALUE)) {
+                    row.asShortBuffer().put(data, offset, width);
+                    row.position(row.position() + width * 2);
+                } else {
+                    for (int i = offset; i < end; i += stride) {
+                        put(data[i], row);
+                    }
+                }
+                break;
+            }
+            case DataBuffer.TYPE_FLOAT: {
+                float[] data = ((DataBufferFloat) db).getData(bank);
+                if (floats && stride == 1 && Double.isNaN(sourceNoData) && Double.isNaN(noData)) {
+                    row.asFloatBuffer().put(data, offset, width);
+                    row.position(row.position() + width * 4);
+                } else {
+                    for (int i = offset; i < end; i += stride) {
+                        put(data[i], row);
+                    }
+                }
+                break;
+            }
+            case DataBuffer.TYPE_USHORT: {
+                short[] data = ((DataBufferUShort) db).getData(bank);
+                for (int i = offset; i < end; i += stride) {
+                    put(data[i] & 0xffff, row);
+                }
+                break;
+            }
+            case DataBuffer.TYPE_BYTE: {
+                byte[] data = ((DataBufferByte) db).getData(bank);
+                for (int i = offset; i < end; i += stride) {
+                    put(data[i] & 0xff, row);
+                }
+                break;
+            }
+            case DataBuffer.TYPE_INT: {
+                int[] data = ((DataBufferInt) db).getData(bank);
+                for (int i = offset; i < end; i += stride) {
+                    put(data[i], row);
+                }
+                break;
+            }
+            case DataBuffer.TYPE_DOUBLE: {
+                double[] data = ((DataBufferDouble) db).getData(bank);
+                for (int i = offset; i < end; i += stride) {
+                    put(data[i], row);
+                }
+                break;
+            }
+            default: {
+                double[] samples = tile.getSamples(x, y, width, 1, 0, (double[]) null);
+                for (double sample : samples) {
+                    put(sample, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if some integer samples in a range are written as another
+     * value than their own.
+     */
+    private boolean substitutes(int min, int max) {
+        return !Double.isNaN(sourceNoData) && sourceNoData >= min && sourceNoData <= max
+                && sourceNoData == Math.rint(sourceNoData) && sourceNoData != noData;
+    }
+
+    private void put(double sample, ByteBuffer row) {
+        if (Double.isNaN(sample) || sample == sourceNoData) {
+            sample = noData;
+        }
+        if (floats) {
+            row.putFloat((float) sample);
+        } else if (Double.isNaN(sample)) {
+            row.putShort((short) 0);
+        } else {
+            row.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample))));
+        }
+    }
+}
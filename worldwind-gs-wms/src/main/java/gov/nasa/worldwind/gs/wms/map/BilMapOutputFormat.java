@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.media.jai.Interpolation;
+import javax.media.jai.operator.ConstantDescriptor;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.data.util.CoverageUtils;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapOutputFormat;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.geoserver.wms.MapProducerCapabilities;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RenderedImageMap;
+import org.geotools.coverage.GridSampleDimension;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.GridCoverage2DReader;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.factory.GeoTools;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.parameter.GeneralParameterValue;
+
+/**
+ * Produces BIL elevation maps, the "application/bil16" and "application/bil32"
+ * formats requested by WorldWind elevation models.
+ * <p>
+ * A BIL map is the grid of samples of a single coverage layer, not a
+ * rendering: the coverage is read for the requested area, with the read
+ * parameters of the layer and the TIME, ELEVATION, custom dimensions and
+ * filters of the request, as the WMS reads the coverages it renders,
+ * resampled to the requested grid with nearest neighbor interpolation, and
+ * its samples are written as they are by the {@link BilMapResponse}, without
+ * styles, color models or image conversions. The samples are written in little endian byte
+ * order, the WorldWind default, unless the {@value #PROPERTY_BYTE_ORDER}
+ * system property or the "byteOrder" format option is "big". Missing
+ * elevations, i.e., the no-data samples of the coverage and the area outside
+ * of it, are written as {@value #DEFAULT_NO_DATA} unless the
+ * {@value #PROPERTY_NO_DATA} system property or the "noData" format option
+ * sets another value.
+ * </p>
+ */
+public class BilMapOutputFormat implements GetMapOutputFormat {
+
+    public static final String BIL16_MIME_TYPE = "application/bil16";
+
+    public static final String BIL32_MIME_TYPE = "application/bil32";
+
+    /** An alias of 16-bit BIL */
+    public static final String BIL_MIME_TYPE = "application/bil";
+
+    public static final String PROPERTY_BYTE_ORDER = "wms.bil.byteOrder";
+
+    public static final String PROPERTY_NO_DATA = "wms.bil.noData";
+
+    public static final double DEFAULT_NO_DATA = -9999;
+
+    public static final String FORMAT_OPTION_BYTE_ORDER = "byteOrder";
+
+    public static final String FORMAT_OPTION_NO_DATA = "noData";
+
+    private static final MapProducerCapabilities CAPABILITIES
+            = new MapProducerCapabilities(true, false, false, false, null);
+
+    /**
+     * A BIL map, knowing the no-data value of its samples.
+     */
+    public static class BilMap extends RenderedImageMap {
+
+        private final double noData;
+
+        public BilMap(WMSMapContent mapContent, RenderedImage image, String mimeType, double noData) {
+            super(mapContent, image, mimeType);
+            this.noData = noData;
+        }
+
+        /**
+         * Returns the no-data value of the samples of the image, or NaN if
+         * none.
+         */
+        public double getNoData() {
+            return noData;
+        }
+    }
+
+    private final String mimeType;
+
+    private final Set<String> outputFormats;
+
+    private final WMS wms;
+
+    /**
+     * Constructs a BIL output format.
+     *
+     * @param mimeType {@link #BIL16_MIME_TYPE} or {@link #BIL32_MIME_TYPE}
+     * @param wms The WMS, building the read parameters of the coverages
+     */
+    public BilMapOutputFormat(String mimeType, WMS wms) {
+        this.mimeType = mimeType;
+        this.wms = wms;
+        this.outputFormats = Collections.unmodifiableSet(BIL16_MIME_TYPE.equals(mimeType)
+                ? new HashSet<>(Arrays.asList(BIL16_MIME_TYPE, BIL_MIME_TYPE))
+                : Collections.singleton(mimeType));
+    }
+
+    @Override
+    public WebMap produceMap(WMSMapContent mapContent) throws ServiceException, IOException {
+        GetMapRequest request = mapContent.getRequest();
+        List<MapLayerInfo> layers = request.getLayers();
+        if (layers.size() != 1 || layers.get(0).getType() != MapLayerInfo.TYPE_RASTER) {
+            throw new ServiceException("The " + mimeType + " format requires a single coverage layer",
+                    ServiceException.INVALID_PARAMETER_VALUE, "layers");
+        }
+        int width = mapContent.getMapWidth();
+        int height = mapContent.getMapHeight();
+        ReferencedEnvelope area = mapContent.getRenderingArea();
+        GridGeometry2D target = new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), area);
+        double noData = getNoData(request);
+
+        GridCoverage2D coverage;
+        try {
+            MapLayerInfo layer = layers.get(0);
+            CoverageInfo info = layer.getCoverage();
+            GridCoverage2DReader reader = (GridCoverage2DReader) info.getGridCoverageReader(null,
+                    GeoTools.getDefaultHints());
+            ReferencedEnvelope nativeArea = area;
+            if (!CRS.equalsIgnoreMetadata(area.getCoordinateReferenceSystem(), reader.getCoordinateReferenceSystem())) {
+                nativeArea = area.transform(reader.getCoordinateReferenceSystem(), true);
+            }
+            // the layer read parameters, dimensions and filters, as GetMap has them
+            Filter filter = request.getFilter() != null && !request.getFilter().isEmpty()
+                    ? (Filter) request.getFilter().get(0) : null;
+            SortBy[] sortBy = request.getSortByArrays() != null && !request.getSortByArrays().isEmpty()
+                    ? request.getSortByArrays().get(0) : null;
+            GeneralParameterValue[] params = wms.getWMSReadParameters(request, layer, filter, sortBy,
+                    request.getTime(), request.getElevation(), reader, false);
+            params = CoverageUtils.mergeParameter(
+                    new ArrayList<>(reader.getFormat().getReadParameters().getDescriptor().descriptors()),
+                    params, new GridGeometry2D(new GridEnvelope2D(0, 0, width, height), nativeArea),
+                    AbstractGridFormat.READ_GRIDGEOMETRY2D.getName().getCode());
+            coverage = reader.read(params);
+        } catch (IOException | ServiceException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new ServiceException("Cannot read the elevations of " + layers.get(0).getName(), ex);
+        }
+        if (coverage == null) {
+            // nothing in the requested area
+            RenderedImage empty = ConstantDescriptor.create((float) width, (float) height,
+                    new Float[]{(float) noData}, null);
+            return new BilMap(mapContent, empty, mimeType, noData);
+        }
+
+        // the area outside of the coverage is filled with no-data
+        double sourceNoData = getNoData(coverage);
+        double imageNoData = Double.isNaN(sourceNoData) ? noData : sourceNoData;
+        GridCoverage2D resampled = (GridCoverage2D) Operations.DEFAULT.resample(coverage,
+                area.getCoordinateReferenceSystem(), target,
+                Interpolation.getInstance(Interpolation.INTERP_NEAREST), new double[]{imageNoData});
+        return new BilMap(mapContent, resampled.getRenderedImage(), mimeType, imageNoData);
+    }
+
+    /**
+     * Returns the first no-data value of the first band of a coverage, or NaN
+     * if none.
+     */
+    static double getNoData(GridCoverage2D coverage) {
+        GridSampleDimension band = coverage.getSampleDimension(0);
+        double[] noData = band != null ? band.getNoDataValues() : null;
+        return noData != null && noData.length > 0 ? noData[0] : Double.NaN;
+    }
+
+    /**
+     * Returns the value written for missing elevations.
+     */
+    static double getNoData(GetMapRequest request) {
+        String value = getFormatOption(request, FORMAT_OPTION_NO_DATA);
+        if (value == null) {
+            value = System.getProperty(PROPERTY_NO_DATA);
+        }
+        if (value == null) {
+            return DEFAULT_NO_DATA;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new ServiceException("Invalid no-data value: " + value,
+                    ServiceException.INVALID_PARAMETER_VALUE, "format_options");
+        }
+    }
+
+    /**
+     * Returns the byte order of the samples.
+     */
+    static ByteOrder getByteOrder(GetMapRequest request) {
+        String value = request != null ? getFormatOption(request, FORMAT_OPTION_BYTE_ORDER) : null;
+        if (value == null) {
+            value = System.getProperty(PROPERTY_BYTE_ORDER);
+        }
+        // "big", "BigEndian", "BIG_ENDIAN"
+        return value != null && value.trim().toLowerCase().startsWith("big")
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    private static String getFormatOption(GetMapRequest request, String name) {
+        Map<String, Object> options = request.getFormatOptions();
+        if (options != null) {
+            for (Map.Entry<String, Object> option : options.entrySet()) {
+                if (name.equalsIgnoreCase(option.getKey()) && option.getValue() != null) {
+                    return option.getValue().toString();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<String> getOutputFormatNames() {
+        return outputFormats;
+    }
+
+    @Override
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    @Override
+    public MapProducerCapabilities getCapabilities(String format) {
+        return CAPABILITIES;
+    }
+}
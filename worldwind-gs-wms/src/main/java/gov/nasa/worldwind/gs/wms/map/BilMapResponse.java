@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapProducerCapabilities;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.RenderedImageMap;
+import org.geoserver.wms.map.RenderedImageMapResponse;
+
+/**
+ * Writes the BIL maps produced by the {@link BilMapOutputFormat} with a
+ * {@link BilEncoder}, as 16-bit integers for "application/bil16" and 32-bit
+ * floats for "application/bil32".
+ */
+public class BilMapResponse extends RenderedImageMapResponse {
+
+    private static final MapProducerCapabilities CAPABILITIES
+            = new MapProducerCapabilities(true, false, false, false, null);
+
+    private final boolean floats;
+
+    /**
+     * Constructs a BIL map response.
+     *
+     * @param mimeType {@link BilMapOutputFormat#BIL16_MIME_TYPE} or
+     * {@link BilMapOutputFormat#BIL32_MIME_TYPE}
+     * @param wms The WMS service configuration
+     */
+    public BilMapResponse(String mimeType, WMS wms) {
+        super(BilMapOutputFormat.BIL16_MIME_TYPE.equals(mimeType)
+                ? new String[]{BilMapOutputFormat.BIL16_MIME_TYPE, BilMapOutputFormat.BIL_MIME_TYPE}
+                : new String[]{mimeType}, wms);
+        this.floats = BilMapOutputFormat.BIL32_MIME_TYPE.equals(mimeType);
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException, ServiceException {
+        RenderedImageMap map = (RenderedImageMap) value;
+        try {
+            double noData = map instanceof BilMapOutputFormat.BilMap
+                    ? ((BilMapOutputFormat.BilMap) map).getNoData() : Double.NaN;
+            encode(map.getImage(), output, map.getMapContext(), noData);
+            output.flush();
+        } finally {
+            map.dispose();
+        }
+    }
+
+    @Override
+    public void formatImageOutputStream(RenderedImage image, OutputStream outStream, WMSMapContent mapContent)
+            throws ServiceException, IOException {
+        encode(image, outStream, mapContent, Double.NaN);
+    }
+
+    private void encode(RenderedImage image, OutputStream outStream, WMSMapContent mapContent, double sourceNoData)
+            throws IOException {
+        GetMapRequest request = mapContent != null ? mapContent.getRequest() : null;
+        double noData = request != null ? BilMapOutputFormat.getNoData(request) : BilMapOutputFormat.DEFAULT_NO_DATA;
+        new BilEncoder(floats, BilMapOutputFormat.getByteOrder(request), sourceNoData, noData)
+                .encode(image, outStream);
+    }
+
+    @Override
+    public MapProducerCapabilities getCapabilities(String outputFormat) {
+        return CAPABILITIES;
+    }
+}
@@ -6,9 +6,7 @@
  */
 package gov.nasa.worldwind.gs.wms.map;
 
-import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
-import java.awt.image.WritableRaster;
 import javax.media.jai.RenderedOp;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
@@ -69,15 +67,34 @@ public class CustomRenderedImageMapOutputFormat extends RenderedImageMapOutputFo
         // "image" content returned in a HttpServletResponse.
         //
         if (image instanceof RenderedOp && (image.getTileGridXOffset() != 0 || image.getTileGridYOffset() != 0)) {
-            // The following code to create the finalImage was copied from the
-            // GeoTools ImageWorker.writeJPEG() method.
-            final BufferedImage finalImage = new BufferedImage(
-                    image.getColorModel(),
-                    ((WritableRaster) image.getData()).createWritableTranslatedChild(0, 0),
-                    image.getColorModel().isAlphaPremultiplied(), null);
-            return super.buildMap(mapContent, finalImage);
-        } else {
-            return super.buildMap(mapContent, image);
+            // Move the image to 0,0 without copying its raster, so that it
+            // is still encoded tile by tile
+            image = TranslatedRenderedImage.atOrigin(image);
         }
+        //
+        // The JPEG-PNG response computes the extrema of all the bands of
+        // images with alpha to find out if they are opaque. Scan the alpha
+        // samples instead, stopping at the first translucent pixel, and hand
+        // opaque images over without their alpha band so they go to JPEG.
+        //
+        if (MapResponseOutputStreamAdaptor.JPEG_PNG_MIME_TYPE.equals(getMimeType())
+                && image.getColorModel() != null && image.getColorModel().hasAlpha()
+                && AlphaScanner.isOpaque(image, mapContent)) {
+            image = AlphaScanner.dropAlpha(image);
+        }
+        //
+        // PNG, JPEG and JPEG-PNG maps are written by the StreamingMapResponse,
+        // which encodes large images strip by strip.
+        //
+        if (isStreamed(getMimeType())) {
+            return new StreamingImageMap(mapContent, image, getMimeType());
+        }
+        return super.buildMap(mapContent, image);
+    }
+
+    static boolean isStreamed(String mimeType) {
+        return MapResponseOutputStreamAdaptor.PNG_MIME_TYPE.equals(mimeType)
+                || MapResponseOutputStreamAdaptor.JPEG_MIME_TYPE.equals(mimeType)
+                || MapResponseOutputStreamAdaptor.JPEG_PNG_MIME_TYPE.equals(mimeType);
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads the rows of a RenderedImage as 8 bit samples, one horizontal strip at
+ * a time.
+ * <p>
+ * Only the strip holding the requested row is kept in memory. Strips end at
+ * the tile boundaries of tiled images, so each row of JAI tiles is computed
+ * once, and are otherwise limited to {@link #DEFAULT_STRIP_ROWS} rows.
+ * Samples are copied as is from 8 bit gray, RGB and palette images, and
+ * converted to sRGB colors otherwise.
+ * </p>
+ */
+final class ImageStrips {
+
+    /** The rows of a strip of an untiled image */
+    static final int DEFAULT_STRIP_ROWS = 64;
+
+    /** The maximum size of a strip, in bytes */
+    static final int MAX_STRIP_BYTES = 8 * 1024 * 1024;
+
+    private final RenderedImage image;
+
+    private final ColorModel colorModel;
+
+    private final int width;
+
+    private final int height;
+
+    private final int bands;
+
+    private final boolean indexed;
+
+    private final boolean direct;
+
+    private final int stripRows;
+
+    private final int[] pixels;
+
+    private Raster strip;
+
+    private BufferedImage stripImage;
+
+    private int stripY;
+
+    private int stripHeight;
+
+    /**
+     * Constructs the strips of an image.
+     *
+     * @param image The image to read
+     * @param palette True to read the indices of palette images rather than
+     * their colors
+     * @param alpha True to read the alpha samples of translucent images
+     */
+    ImageStrips(RenderedImage image, boolean palette, boolean alpha) {
+        this.image = image;
+        this.colorModel = image.getColorModel();
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        SampleModel sampleModel = image.getSampleModel();
+        int numBands = sampleModel.getNumBands();
+        if (palette && colorModel instanceof IndexColorModel && numBands == 1
+                && sampleModel.getSampleSize(0) <= 8) {
+            this.indexed = true;
+            this.direct = true;
+            this.bands = 1;
+        } else if (isByteComponents(colorModel, sampleModel)) {
+            this.indexed = false;
+            this.direct = true;
+            this.bands = alpha || !colorModel.hasAlpha() ? numBands : numBands - 1;
+        } else {
+            this.indexed = false;
+            this.direct = false;
+            this.bands = alpha && colorModel.hasAlpha() ? 4 : 3;
+        }
+        this.pixels = new int[direct ? width * numBands : width];
+
+        int sampleBytes = Math.max(1, DataBuffer.getDataTypeSize(sampleModel.getDataType()) / 8);
+        long rowBytes = Math.max(1L, (long) width * numBands * sampleBytes);
+        int rows = image.getNumYTiles() > 1 ? image.getTileHeight() : DEFAULT_STRIP_ROWS;
+        this.stripRows = (int) Math.max(1, Math.min(rows, MAX_STRIP_BYTES / rowBytes));
+    }
+
+    private static boolean isByteComponents(ColorModel cm, SampleModel sm) {
+        if (!(cm instanceof ComponentColorModel) || cm.getTransferType() != DataBuffer.TYPE_BYTE
+                || cm.isAlphaPremultiplied() || sm.getNumBands() != cm.getNumComponents()) {
+            return false;
+        }
+        for (int i = 0; i < sm.getNumBands(); i++) {
+            if (sm.getSampleSize(i) != 8) {
+                return false;
+            }
+        }
+        ColorSpace cs = cm.getColorSpace();
+        return (cs.isCS_sRGB() && cm.getNumColorComponents() == 3)
+                || (cs.getType() == ColorSpace.TYPE_GRAY && cm.getNumColorComponents() == 1);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of samples per pixel: 1 for gray or palette indices,
+     * 2 for gray and alpha, 3 for RGB and 4 for RGBA.
+     */
+    int getBands() {
+        return bands;
+    }
+
+    /**
+     * Returns true if the samples are the indices of the palette of the
+     * image's IndexColorModel.
+     */
+    boolean isIndexed() {
+        return indexed;
+    }
+
+    int getStripRows() {
+        return stripRows;
+    }
+
+    /**
+     * Copies the samples of a row into the given array, reading the strip
+     * holding the row if needed.
+     *
+     * @param y The row, relative to the top of the image
+     * @param row The array receiving width * bands samples
+     */
+    void getRow(int y, byte[] row) {
+        if (strip == null || y < stripY || y >= stripY + stripHeight) {
+            readStrip(y);
+        }
+        if (direct) {
+            int numBands = strip.getNumBands();
+            strip.getPixels(0, y, width, 1, pixels);
+            if (numBands == bands) {
+                for (int i = 0, n = width * bands; i < n; i++) {
+                    row[i] = (byte) pixels[i];
+                }
+            } else {
+                for (int x = 0, i = 0, j = 0; x < width; x++, j += numBands) {
+                    for (int b = 0; b < bands; b++) {
+                        row[i++] = (byte) pixels[j + b];
+                    }
+                }
+            }
+        } else {
+            stripImage.getRGB(0, y - stripY, width, 1, pixels, 0, width);
+            for (int x = 0, i = 0; x < width; x++) {
+                int argb = pixels[x];
+                row[i++] = (byte) (argb >> 16);
+                row[i++] = (byte) (argb >> 8);
+                row[i++] = (byte) argb;
+                if (bands == 4) {
+                    row[i++] = (byte) (argb >>> 24);
+                }
+            }
+        }
+    }
+
+    private void readStrip(int y) {
+        // release the previous strip before computing the next one
+        strip = null;
+        stripImage = null;
+
+        int rows = Math.min(stripRows, height - y);
+        if (image.getNumYTiles() > 1) {
+            // end the strip at a tile boundary, so tiles are computed once
+            int tileHeight = image.getTileHeight();
+            int tileOffset = image.getTileGridYOffset();
+            int tileY = Math.floorDiv(image.getMinY() + y - tileOffset, tileHeight);
+            int tileEnd = (tileY + 1) * tileHeight + tileOffset - image.getMinY();
+            rows = Math.min(rows, tileEnd - y);
+        }
+        Raster data = image.getData(new Rectangle(image.getMinX(), image.getMinY() + y, width, rows));
+        strip = data.createTranslatedChild(0, y);
+        if (!direct) {
+            WritableRaster raster;
+            if (data instanceof WritableRaster) {
+                raster = ((WritableRaster) data).createWritableTranslatedChild(0, 0);
+            } else {
+                raster = data.createCompatibleWritableRaster(width, rows);
+                raster.setRect(-data.getMinX(), -data.getMinY(), data);
+            }
+            stripImage = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+        }
+        stripY = y;
+        stripHeight = rows;
+    }
+}
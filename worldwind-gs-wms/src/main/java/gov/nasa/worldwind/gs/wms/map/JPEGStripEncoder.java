@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Encodes a RenderedImage as a JPEG image, strip by strip.
+ * <p>
+ * The JDK JPEG writer reads the raster of the image it encodes one scanline
+ * at a time, but needs the whole raster up front. It is given a raster whose
+ * data buffer reads the rows with {@link ImageStrips} as the writer asks for
+ * them, and writes the compressed data straight to the output stream, so the
+ * memory used is bound by the size of a strip rather than the size of the
+ * image. Alpha is dropped, as JPEG does not support transparency.
+ * </p>
+ */
+public class JPEGStripEncoder {
+
+    private static final String JDK_WRITER_SPI = "com.sun.imageio.plugins.jpeg.JPEGImageWriterSpi";
+
+    private final float quality;
+
+    /**
+     * Constructs an encoder.
+     *
+     * @param quality The compression quality, from 0 to 1
+     */
+    public JPEGStripEncoder(float quality) {
+        this.quality = Math.max(0f, Math.min(1f, quality));
+    }
+
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Encodes the image to the output stream. The stream is not closed.
+     *
+     * @param image The image to encode
+     * @param out The output stream
+     * @throws IOException
+     */
+    public void encode(RenderedImage image, OutputStream out) throws IOException {
+        ImageStrips strips = new ImageStrips(image, false, false);
+        int width = strips.getWidth();
+        int height = strips.getHeight();
+        int bands = strips.getBands();
+        if ((long) width * height * bands > Integer.MAX_VALUE) {
+            throw new IOException("The image is too large to be encoded as JPEG: " + width + "x" + height);
+        }
+        ColorSpace cs = ColorSpace.getInstance(bands == 1 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+        ColorModel cm = new ComponentColorModel(cs, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        int[] offsets = new int[bands];
+        for (int i = 0; i < bands; i++) {
+            offsets[i] = i;
+        }
+        SampleModel sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, bands, width * bands, offsets);
+        WritableRaster raster = Raster.createWritableRaster(sm, new StripDataBuffer(strips), null);
+        BufferedImage view = new BufferedImage(cm, raster, false, null);
+
+        ImageWriter writer = getWriter();
+        StreamOutput output = new StreamOutput(out);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(view, null, null), param);
+            output.flush();
+        } finally {
+            writer.dispose();
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the JDK JPEG writer, which pulls the image scanline by
+     * scanline, or the first JPEG writer available.
+     */
+    private static ImageWriter getWriter() throws IOException {
+        ImageWriter first = null;
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        while (writers.hasNext()) {
+            ImageWriter writer = writers.next();
+            if (writer.getOriginatingProvider() != null
+                    && JDK_WRITER_SPI.equals(writer.getOriginatingProvider().getClass().getName())) {
+                if (first != null) {
+                    first.dispose();
+                }
+                return writer;
+            }
+            if (first == null) {
+                first = writer;
+            } else {
+                writer.dispose();
+            }
+        }
+        if (first == null) {
+            throw new IOException("No JPEG image writer is available");
+        }
+        return first;
+    }
+
+    /**
+     * A read-only byte data buffer of an interleaved image that reads its
+     * rows from the image strips when they are first accessed.
+     */
+    private static class StripDataBuffer extends DataBuffer {
+
+        private final ImageStrips strips;
+
+        private final int rowLength;
+
+        private final byte[] row;
+
+        private int rowY = -1;
+
+        StripDataBuffer(ImageStrips strips) {
+            super(DataBuffer.TYPE_BYTE, strips.getWidth() * strips.getHeight() * strips.getBands());
+            this.strips = strips;
+            this.rowLength = strips.getWidth() * strips.getBands();
+            this.row = new byte[rowLength];
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int y = i / rowLength;
+            if (y != rowY) {
+                strips.getRow(y, row);
+                rowY = y;
+            }
+            return row[i - y * rowLength] & 0xff;
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException("The image strips are read-only");
+        }
+    }
+
+    /**
+     * A forward-only image output stream writing straight to an output
+     * stream, without caching the encoded image.
+     */
+    private static class StreamOutput extends ImageOutputStreamImpl {
+
+        private final OutputStream out;
+
+        StreamOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            flushBits();
+            out.write(b);
+            streamPos++;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            flushBits();
+            out.write(b, offset, length);
+            streamPos += length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("The stream is write-only");
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            throw new IOException("The stream is write-only");
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos != streamPos) {
+                throw new IOException("The stream is forward-only");
+            }
+            super.seek(pos);
+        }
+    }
+}
@@ -18,16 +18,16 @@
  */
 package gov.nasa.worldwind.gs.wms.map;
 
-import java.awt.image.BufferedImage;
 import java.awt.image.RenderedImage;
-import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
 import javax.media.jai.RenderedOp;
+import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.MapProducerCapabilities;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapResponse;
 
 /**
@@ -35,13 +35,56 @@ import org.geoserver.wms.map.RenderedImageMapResponse;
  * rendered image generated by a delegate RenderedImageMapResponse so that it is
  * compatible with ImageIO.read operations used in subsequent GetMap request
  * processing.
+ * <p>
+ * Large PNG, JPEG and JPEG-PNG images, at least
+ * {@value #DEFAULT_STREAMING_THRESHOLD} pixels by default, are not handed to
+ * the delegate, which materializes the whole image before encoding it.
+ * They are encoded strip by strip with the {@link PNGStripEncoder} and
+ * {@link JPEGStripEncoder} instead, which pull only the rows of JAI tiles
+ * they are encoding and write them to the output stream as they go. The
+ * threshold can be changed with the {@value #PROPERTY_STREAMING_THRESHOLD}
+ * system property; a negative value turns strip encoding off.
+ * </p>
+ * <p>
+ * PNG images are deflated by {@value #PROPERTY_PNG_THREADS} threads in
+ * parallel, up to 4 by default, at the level of the WMS PNG compression
+ * setting unless {@value #PROPERTY_PNG_LEVEL} sets a deflate level.
+ * </p>
+ * <p>
+ * GetMap responses go through the adaptor when a {@link StreamingMapResponse}
+ * wraps it, see applicationContext.xml.
+ * </p>
  *
  * @author Bruce Schubert
  */
 public class MapResponseOutputStreamAdaptor extends RenderedImageMapResponse {
 
+    public static final String PNG_MIME_TYPE = "image/png";
+
+    public static final String JPEG_MIME_TYPE = "image/jpeg";
+
+    public static final String JPEG_PNG_MIME_TYPE = "image/vnd.jpeg-png";
+
+    public static final String PROPERTY_STREAMING_THRESHOLD = "wms.streamingThreshold";
+
+    /** The default number of pixels from which images are encoded strip by strip */
+    public static final long DEFAULT_STREAMING_THRESHOLD = 2048L * 2048L;
+
+    public static final String PROPERTY_PNG_THREADS = "wms.pngThreads";
+
+    public static final String PROPERTY_PNG_LEVEL = "wms.pngLevel";
+
     protected final RenderedImageMapResponse delegate;
 
+    private final String format;
+
+    private long streamingThreshold = Long.getLong(PROPERTY_STREAMING_THRESHOLD, DEFAULT_STREAMING_THRESHOLD);
+
+    private int pngThreads = Integer.getInteger(PROPERTY_PNG_THREADS,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private int pngLevel = Integer.getInteger(PROPERTY_PNG_LEVEL, -1);
+
     /**
      * Constructs a map response that adapts the output of the delegate
      * RenderedImageMapResponse object.
@@ -53,13 +96,58 @@ public class MapResponseOutputStreamAdaptor extends RenderedImageMapResponse {
     public MapResponseOutputStreamAdaptor(String mimeType, WMS wms, RenderedImageMapResponse delegate) {
         super(mimeType, wms);
         this.delegate = delegate;
+        this.format = mimeType;
+    }
+
+    public long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * Sets the number of pixels from which images are encoded strip by strip.
+     *
+     * @param streamingThreshold The number of pixels, 0 to encode all images
+     * strip by strip, or a negative value to never do so
+     */
+    public void setStreamingThreshold(long streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+    }
+
+    public int getPngThreads() {
+        return pngThreads;
+    }
+
+    /**
+     * Sets the number of threads deflating PNG images encoded strip by strip.
+     *
+     * @param pngThreads The number of threads, 1 to deflate in the calling
+     * thread
+     */
+    public void setPngThreads(int pngThreads) {
+        this.pngThreads = pngThreads;
+    }
+
+    public int getPngLevel() {
+        return pngLevel;
+    }
+
+    /**
+     * Sets the deflate level of PNG images encoded strip by strip.
+     *
+     * @param pngLevel The level, from 0 to 9, or a negative value to use the
+     * WMS PNG compression setting
+     */
+    public void setPngLevel(int pngLevel) {
+        this.pngLevel = pngLevel;
     }
 
     /**
      * Ensures the image is compatible with downstream image read operations
-     * before generating the output stream. Specifically, it converts JAI
-     * {@code TranslateIntOpImage} type images to a BufferedImage before calling
-     * the delegate {@code formatImageOutputStream}.
+     * before generating the output stream. Specifically, it moves JAI
+     * {@code TranslateIntOpImage} type images to 0,0 with a
+     * {@link TranslatedRenderedImage} view before calling the delegate
+     * {@code formatImageOutputStream}, or before encoding large images strip
+     * by strip.
      *
      * @param image The image to be transformed
      * @param outStream The output stream of the transformed image
@@ -69,20 +157,80 @@ public class MapResponseOutputStreamAdaptor extends RenderedImageMapResponse {
      */
     @Override
     public void formatImageOutputStream(RenderedImage image, OutputStream outStream, WMSMapContent mapContent) throws ServiceException, IOException {
-        // Convert TranslateIntOpImage types to BufferedImages
+        // Move TranslateIntOpImage types to 0,0, without copying their raster
         if (image instanceof RenderedOp && (image.getTileGridXOffset() != 0 || image.getTileGridYOffset() != 0)) {
-            // The following code to create the finalImage was copied from the
-            // GeoTools ImageWorker.writeJPEG() method.
-            final BufferedImage finalImage = new BufferedImage(
-                    image.getColorModel(),
-                    ((WritableRaster) image.getData()).createWritableTranslatedChild(0, 0),
-                    image.getColorModel().isAlphaPremultiplied(), null);
-            this.delegate.formatImageOutputStream(finalImage, outStream, mapContent);
+            image = TranslatedRenderedImage.atOrigin(image);
+        }
+        if (isStreamed(image)) {
+            encodeStrips(image, outStream, mapContent);
+        } else if (JPEG_PNG_MIME_TYPE.equals(format) && image.getColorModel() != null
+                && image.getColorModel().hasAlpha() && AlphaScanner.isOpaque(image, mapContent)) {
+            // spare the delegate its own full scan of the alpha band
+            this.delegate.formatImageOutputStream(AlphaScanner.dropAlpha(image), outStream, mapContent);
         } else {
             this.delegate.formatImageOutputStream(image, outStream, mapContent);
         }
     }
 
+    /**
+     * Returns true if the image is to be encoded strip by strip rather than
+     * by the delegate.
+     *
+     * @param image The image to be encoded
+     * @return True for PNG, JPEG and JPEG-PNG images of at least the
+     * streaming threshold
+     */
+    protected boolean isStreamed(RenderedImage image) {
+        if (streamingThreshold < 0 || image.getColorModel() == null
+                || (long) image.getWidth() * image.getHeight() < streamingThreshold) {
+            return false;
+        }
+        return PNG_MIME_TYPE.equals(format) || JPEG_MIME_TYPE.equals(format) || JPEG_PNG_MIME_TYPE.equals(format);
+    }
+
+    /**
+     * Encodes the image strip by strip, using the WMS PNG and JPEG
+     * compression settings. JPEG-PNG images are encoded as PNG when they
+     * have transparent or translucent pixels, and as JPEG otherwise.
+     *
+     * @param image The image to be encoded
+     * @param outStream The output stream of the encoded image
+     * @param mapContent The map content of the image, or null if unknown
+     * @throws IOException
+     */
+    protected void encodeStrips(RenderedImage image, OutputStream outStream, WMSMapContent mapContent) throws IOException {
+        boolean png = PNG_MIME_TYPE.equals(format)
+                || (JPEG_PNG_MIME_TYPE.equals(format) && !AlphaScanner.isOpaque(image, mapContent));
+        if (png) {
+            int level = pngLevel;
+            if (level < 0) {
+                // same mapping of the WMS PNG compression as the PNG map response
+                int compression = wms != null ? wms.getPngCompression() : 25;
+                level = Math.round(9 * compression / 100f);
+            }
+            new PNGStripEncoder(level, pngThreads).encode(image, outStream);
+        } else {
+            int compression = wms != null ? wms.getJpegCompression() : 25;
+            new JPEGStripEncoder((100 - compression) / 100f).encode(image, outStream);
+        }
+    }
+
+    /**
+     * Returns the actual format of JPEG-PNG maps, PNG if the image has
+     * transparent or translucent pixels and JPEG otherwise, as
+     * {@link #encodeStrips} encodes them.
+     */
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        if (JPEG_PNG_MIME_TYPE.equals(format) && value instanceof RenderedImageMap) {
+            RenderedImageMap map = (RenderedImageMap) value;
+            RenderedImage image = map.getImage();
+            boolean alpha = image.getColorModel() != null && image.getColorModel().hasAlpha();
+            return alpha && !AlphaScanner.isOpaque(image, map.getMapContext()) ? PNG_MIME_TYPE : JPEG_MIME_TYPE;
+        }
+        return super.getMimeType(value, operation);
+    }
+
     @Override
     public MapProducerCapabilities getCapabilities(String outputFormat) {
         return this.delegate.getCapabilities(outputFormat);
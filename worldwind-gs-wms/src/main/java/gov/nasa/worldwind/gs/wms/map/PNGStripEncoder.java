@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes a RenderedImage as a PNG image, strip by strip.
+ * <p>
+ * The rows are read with {@link ImageStrips}, filtered, compressed and
+ * written to the output stream in IDAT chunks as they are produced, so the
+ * memory used is bound by the size of a strip rather than the size of the
+ * image. Palette images are written with their palette, all other images as
+ * 8 bit gray or RGB, with or without alpha.
+ * </p>
+ * <p>
+ * With more than one thread, the rows are grouped in bands of about
+ * {@value #BAND_BYTES} bytes that are filtered and deflated in parallel, each
+ * band as an independent run of deflate blocks ended with a sync flush, the
+ * way pigz does. The bands are written in order after a single zlib header,
+ * followed by the Adler-32 checksum of all the filtered rows combined from the
+ * checksums of the bands, which makes one valid zlib stream. At most two bands
+ * per thread are held in memory. The bands of all the encoders share one
+ * thread per processor, and are deflated in the calling thread when those
+ * are busy.
+ * </p>
+ */
+public class PNGStripEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    /** The maximum size of the IDAT chunks */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    static final int FILTER_NONE = 0;
+    static final int FILTER_SUB = 1;
+    static final int FILTER_UP = 2;
+    static final int FILTER_AVERAGE = 3;
+    static final int FILTER_PAETH = 4;
+
+    /** The approximate size of the bands deflated in parallel, in bytes */
+    static final int BAND_BYTES = 1024 * 1024;
+
+    /**
+     * The threads deflating bands, one per processor shared by all the
+     * encoders. A band submitted while they are all busy is deflated in the
+     * calling thread instead of waiting in a queue.
+     */
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+        EXECUTOR = new ThreadPoolExecutor(processors, processors, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "png-encoder-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new ThreadPoolExecutor.AbortPolicy());
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final int level;
+
+    private final int threads;
+
+    /**
+     * Constructs a single threaded encoder.
+     *
+     * @param level The deflate compression level, from 0 to 9
+     */
+    public PNGStripEncoder(int level) {
+        this(level, 1);
+    }
+
+    /**
+     * Constructs an encoder.
+     *
+     * @param level The deflate compression level, from 0 to 9
+     * @param threads The number of bands deflated in parallel, 1 to deflate
+     * the image in the calling thread
+     */
+    public PNGStripEncoder(int level, int threads) {
+        this.level = Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Encodes the image to the output stream. The stream is not closed.
+     *
+     * @param image The image to encode
+     * @param out The output stream
+     * @throws IOException
+     */
+    public void encode(RenderedImage image, OutputStream out) throws IOException {
+        ImageStrips strips = new ImageStrips(image, true, true);
+        out.write(SIGNATURE);
+        writeHeader(strips, out);
+        if (strips.isIndexed()) {
+            writePalette((IndexColorModel) image.getColorModel(), out);
+        }
+
+        ChunkOutputStream idat = new ChunkOutputStream(out, "IDAT");
+        int bandRows = Math.max(1, BAND_BYTES / (strips.getWidth() * strips.getBands() + 1));
+        if (threads > 1 && strips.getHeight() > bandRows) {
+            writeBands(strips, bandRows, idat);
+        } else {
+            writeRows(strips, idat);
+        }
+        idat.flush();
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+        out.flush();
+    }
+
+    /**
+     * Filters and deflates the rows in the calling thread.
+     */
+    private void writeRows(ImageStrips strips, OutputStream idat) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            DeflaterOutputStream zip = new DeflaterOutputStream(idat, deflater, CHUNK_SIZE);
+            int bands = strips.getBands();
+            int length = strips.getWidth() * bands;
+            byte[] row = new byte[length];
+            byte[] previous = null;
+            byte[] filtered = new byte[length + 1];
+            for (int y = 0; y < strips.getHeight(); y++) {
+                strips.getRow(y, row);
+                filterRow(row, previous, filtered, bands, !strips.isIndexed());
+                zip.write(filtered);
+                // swap the buffers, keeping the unfiltered row
+                byte[] swap = previous == null ? new byte[length] : previous;
+                previous = row;
+                row = swap;
+            }
+            zip.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads the rows in bands in the calling thread, and filters and
+     * deflates the bands in parallel, writing them in order.
+     */
+    private void writeBands(ImageStrips strips, int bandRows, OutputStream idat) throws IOException {
+        int length = strips.getWidth() * strips.getBands();
+        int height = strips.getHeight();
+        Deque<Future<Band>> pending = new ArrayDeque<>();
+        // zlib header: deflate with a 32K window, no preset dictionary
+        idat.write(0x78);
+        idat.write(level < 2 ? 0x01 : level < 6 ? 0x5e : level == 6 ? 0x9c : 0xda);
+        long adler = 1;
+        try {
+            byte[] previous = null;
+            for (int y = 0; y < height; y += bandRows) {
+                int rows = Math.min(bandRows, height - y);
+                byte[] data = new byte[rows * length];
+                byte[] row = new byte[length];
+                for (int i = 0; i < rows; i++) {
+                    strips.getRow(y + i, row);
+                    System.arraycopy(row, 0, data, i * length, length);
+                }
+                pending.add(submit(new Band(data, previous, rows, length, strips.getBands(),
+                        !strips.isIndexed(), y + rows == height)));
+                previous = row;
+                while (pending.size() >= threads * 2 || (y + rows == height && !pending.isEmpty())) {
+                    Band band = pending.remove().get();
+                    band.compressed.writeTo(idat);
+                    adler = combineAdler32(adler, band.adler, band.filteredLength);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("PNG encoding interrupted");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("PNG encoding failed", ex.getCause());
+        } finally {
+            for (Future<Band> future : pending) {
+                future.cancel(true);
+            }
+        }
+        byte[] checksum = new byte[4];
+        putInt(checksum, 0, (int) adler);
+        idat.write(checksum);
+    }
+
+    /**
+     * Deflates a band on the shared threads, or right away in the calling
+     * thread when they are all busy.
+     */
+    private static Future<Band> submit(Band band) {
+        try {
+            return EXECUTOR.submit(band);
+        } catch (RejectedExecutionException ex) {
+            FutureTask<Band> task = new FutureTask<>(band);
+            task.run();
+            return task;
+        }
+    }
+
+    /**
+     * A band of rows filtered and deflated as independent deflate blocks,
+     * ended with a sync flush, or with the final block for the last band.
+     */
+    private class Band implements Callable<Band> {
+
+        private final byte[] data;
+
+        private final byte[] previous;
+
+        private final int rows;
+
+        private final int length;
+
+        private final int bpp;
+
+        private final boolean adaptive;
+
+        private final boolean last;
+
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        private long adler;
+
+        private long filteredLength;
+
+        Band(byte[] data, byte[] previous, int rows, int length, int bpp, boolean adaptive, boolean last) {
+            this.data = data;
+            this.previous = previous;
+            this.rows = rows;
+            this.length = length;
+            this.bpp = bpp;
+            this.adaptive = adaptive;
+            this.last = last;
+        }
+
+        @Override
+        public Band call() {
+            byte[] filtered = new byte[rows * (length + 1)];
+            byte[] row = new byte[length];
+            byte[] prior = previous;
+            byte[] line = new byte[length + 1];
+            for (int i = 0; i < rows; i++) {
+                System.arraycopy(data, i * length, row, 0, length);
+                filterRow(row, prior, line, bpp, adaptive);
+                System.arraycopy(line, 0, filtered, i * (length + 1), length + 1);
+                prior = prior == null || prior == previous ? new byte[length] : prior;
+                System.arraycopy(row, 0, prior, 0, length);
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered, 0, filtered.length);
+            adler = checksum.getValue();
+            filteredLength = filtered.length;
+
+            Deflater deflater = new Deflater(level, true);
+            try {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                deflater.setInput(filtered);
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        compressed.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    int n;
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        compressed.write(buffer, 0, n);
+                    } while (n == buffer.length);
+                }
+            } finally {
+                deflater.end();
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive byte sequences, as
+     * zlib's adler32_combine does.
+     *
+     * @param adler1 The checksum of the first sequence
+     * @param adler2 The checksum of the second sequence
+     * @param length2 The length of the second sequence
+     * @return The checksum of the concatenated sequences
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= (base << 1)) {
+            sum2 -= (base << 1);
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void writeHeader(ImageStrips strips, OutputStream out) throws IOException {
+        int colorType;
+        if (strips.isIndexed()) {
+            colorType = 3;
+        } else {
+            switch (strips.getBands()) {
+                case 1:
+                    colorType = 0;
+                    break;
+                case 2:
+                    colorType = 4;
+                    break;
+                case 3:
+                    colorType = 2;
+                    break;
+                default:
+                    colorType = 6;
+            }
+        }
+        byte[] header = new byte[13];
+        putInt(header, 0, strips.getWidth());
+        putInt(header, 4, strips.getHeight());
+        header[8] = 8; // bit depth
+        header[9] = (byte) colorType;
+        // compression, filter and interlace methods are all 0
+        writeChunk(out, "IHDR", header, 0, header.length);
+    }
+
+    private static void writePalette(IndexColorModel cm, OutputStream out) throws IOException {
+        int size = cm.getMapSize();
+        byte[] palette = new byte[size * 3];
+        for (int i = 0; i < size; i++) {
+            palette[i * 3] = (byte) cm.getRed(i);
+            palette[i * 3 + 1] = (byte) cm.getGreen(i);
+            palette[i * 3 + 2] = (byte) cm.getBlue(i);
+        }
+        writeChunk(out, "PLTE", palette, 0, palette.length);
+
+        if (cm.hasAlpha()) {
+            byte[] alphas = new byte[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                alphas[i] = (byte) cm.getAlpha(i);
+                if (cm.getAlpha(i) != 255) {
+                    count = i + 1;
+                }
+            }
+            // trailing opaque entries may be omitted
+            if (count > 0) {
+                writeChunk(out, "tRNS", alphas, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Filters a row. When adaptive, the filter with the smallest sum of
+     * absolute differences is chosen, the heuristic recommended by the PNG
+     * specification; otherwise the row is not filtered, as recommended for
+     * palette images.
+     *
+     * @param row The unfiltered row
+     * @param previous The unfiltered previous row, or null for the first row
+     * @param filtered The filter type followed by the filtered row
+     * @param bpp The number of bytes per pixel
+     * @param adaptive True to choose a filter, false to use none
+     */
+    static void filterRow(byte[] row, byte[] previous, byte[] filtered, int bpp, boolean adaptive) {
+        int length = row.length;
+        if (!adaptive) {
+            filtered[0] = FILTER_NONE;
+            System.arraycopy(row, 0, filtered, 1, length);
+            return;
+        }
+        int best = FILTER_NONE;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+            if (previous == null && (type == FILTER_UP || type == FILTER_PAETH)) {
+                // same as sub and none without a previous row
+                continue;
+            }
+            long sum = 0;
+            for (int i = 0; i < length && sum < bestSum; i++) {
+                sum += Math.abs((byte) filter(type, row, previous, i, bpp));
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        filtered[0] = (byte) best;
+        for (int i = 0; i < length; i++) {
+            filtered[i + 1] = (byte) filter(best, row, previous, i, bpp);
+        }
+    }
+
+    private static int filter(int type, byte[] row, byte[] previous, int i, int bpp) {
+        int x = row[i] & 0xff;
+        int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+        int b = previous != null ? previous[i] & 0xff : 0;
+        switch (type) {
+            case FILTER_SUB:
+                return x - a;
+            case FILTER_UP:
+                return x - b;
+            case FILTER_AVERAGE:
+                return x - ((a + b) >> 1);
+            case FILTER_PAETH:
+                int c = i >= bpp && previous != null ? previous[i - bpp] & 0xff : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a);
+                int pb = Math.abs(p - b);
+                int pc = Math.abs(p - c);
+                return x - (pa <= pb && pa <= pc ? a : pb <= pc ? b : c);
+            default:
+                return x;
+        }
+    }
+
+    static void writeChunk(OutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        out.write(word);
+        out.write(name);
+        out.write(data, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data, offset, length);
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Writes the bytes written to it as chunks of a given type, up to
+     * {@link #CHUNK_SIZE} bytes each. The underlying stream is not closed.
+     */
+    static class ChunkOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final String type;
+
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+
+        private int count;
+
+        ChunkOutputStream(OutputStream out, String type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flush();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flush();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(b, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Writes the pending bytes as a chunk.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                writeChunk(out, type, buffer, 0, count);
+                count = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
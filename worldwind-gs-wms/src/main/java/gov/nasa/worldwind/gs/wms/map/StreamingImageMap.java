@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.image.RenderedImage;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.RenderedImageMap;
+
+/**
+ * A PNG, JPEG or JPEG-PNG map produced by the
+ * {@link CustomRenderedImageMapOutputFormat}. Its own binding lets the OWS
+ * dispatcher pick the {@link StreamingMapResponse} over the GeoServer map
+ * responses bound to all rendered image maps.
+ */
+public class StreamingImageMap extends RenderedImageMap {
+
+    public StreamingImageMap(WMSMapContent mapContent, RenderedImage image, String mimeType) {
+        super(mapContent, image, mimeType);
+    }
+}
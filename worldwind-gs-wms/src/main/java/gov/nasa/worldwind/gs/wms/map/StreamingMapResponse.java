@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.MapProducerCapabilities;
+import org.geoserver.wms.map.AbstractMapResponse;
+
+/**
+ * Writes the {@link StreamingImageMap}s of a format with a
+ * {@link MapResponseOutputStreamAdaptor}, so that large GetMap responses are
+ * encoded strip by strip. The adaptor itself is bound to all rendered image
+ * maps, like the GeoServer response it delegates to, which the dispatcher
+ * would not tell apart; this response is bound to the more specific
+ * StreamingImageMap class instead.
+ */
+public class StreamingMapResponse extends AbstractMapResponse {
+
+    private final MapResponseOutputStreamAdaptor adaptor;
+
+    /**
+     * Constructs a map response writing maps with an adaptor.
+     *
+     * @param adaptor The adaptor of the GeoServer response of the format
+     */
+    public StreamingMapResponse(MapResponseOutputStreamAdaptor adaptor) {
+        super(StreamingImageMap.class, adaptor.getOutputFormats());
+        this.adaptor = adaptor;
+    }
+
+    public MapResponseOutputStreamAdaptor getAdaptor() {
+        return adaptor;
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return adaptor.getMimeType(value, operation);
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException, ServiceException {
+        adaptor.write(value, output, operation);
+    }
+
+    /**
+     * Returns the capabilities of the GeoServer response of the format.
+     */
+    public MapProducerCapabilities getCapabilities(String outputFormat) {
+        return adaptor.getCapabilities(outputFormat);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 NASA World Wind.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Vector;
+
+/**
+ * A view of a RenderedImage moved to the origin, i.e., starting at 0,0.
+ * <p>
+ * ImageIO writers have problems with images that do not start at 0,0, such
+ * as the TranslateIntOpImage produced by the "fast path for pure coverage
+ * rendering". Copying such an image into a BufferedImage computes and copies
+ * the whole raster at once. This view instead moves the image and its tile
+ * grid together: each tile is the tile of the source image, translated
+ * without copying its data, so encoders still pull the image tile by tile.
+ * </p>
+ */
+public class TranslatedRenderedImage implements RenderedImage {
+
+    private final RenderedImage source;
+
+    private final int dx;
+
+    private final int dy;
+
+    /**
+     * Returns the image moved to the origin, or the image itself if it
+     * already starts at 0,0.
+     *
+     * @param image The image to move
+     * @return An image starting at 0,0
+     */
+    public static RenderedImage atOrigin(RenderedImage image) {
+        if (image.getMinX() == 0 && image.getMinY() == 0) {
+            return image;
+        }
+        if (image instanceof TranslatedRenderedImage) {
+            image = ((TranslatedRenderedImage) image).source;
+        }
+        return new TranslatedRenderedImage(image, -image.getMinX(), -image.getMinY());
+    }
+
+    /**
+     * Constructs a view of the source image translated by the given offsets.
+     *
+     * @param source The source image
+     * @param dx The horizontal offset
+     * @param dy The vertical offset
+     */
+    public TranslatedRenderedImage(RenderedImage source, int dx, int dy) {
+        this.source = source;
+        this.dx = dx;
+        this.dy = dy;
+    }
+
+    public RenderedImage getSource() {
+        return source;
+    }
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        Vector<RenderedImage> sources = new Vector<>(1);
+        sources.add(source);
+        return sources;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return source.getProperty(name);
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return source.getPropertyNames();
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return source.getColorModel();
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return source.getSampleModel();
+    }
+
+    @Override
+    public int getWidth() {
+        return source.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return source.getHeight();
+    }
+
+    @Override
+    public int getMinX() {
+        return source.getMinX() + dx;
+    }
+
+    @Override
+    public int getMinY() {
+        return source.getMinY() + dy;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return source.getNumXTiles();
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return source.getNumYTiles();
+    }
+
+    @Override
+    public int getMinTileX() {
+        return source.getMinTileX();
+    }
+
+    @Override
+    public int getMinTileY() {
+        return source.getMinTileY();
+    }
+
+    @Override
+    public int getTileWidth() {
+        return source.getTileWidth();
+    }
+
+    @Override
+    public int getTileHeight() {
+        return source.getTileHeight();
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return source.getTileGridXOffset() + dx;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return source.getTileGridYOffset() + dy;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        return translate(source.getTile(tileX, tileY));
+    }
+
+    @Override
+    public Raster getData() {
+        return translate(source.getData());
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        return translate(source.getData(new Rectangle(rect.x - dx, rect.y - dy, rect.width, rect.height)));
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+        if (raster == null) {
+            SampleModel sm = source.getSampleModel().createCompatibleSampleModel(getWidth(), getHeight());
+            raster = Raster.createWritableRaster(sm, new Point(getMinX(), getMinY()));
+        }
+        source.copyData(raster.createWritableTranslatedChild(raster.getMinX() - dx, raster.getMinY() - dy));
+        return raster;
+    }
+
+    private Raster translate(Raster raster) {
+        if (raster instanceof WritableRaster) {
+            // keep rasters writable, as callers of getData() may expect
+            return ((WritableRaster) raster).createWritableTranslatedChild(
+                    raster.getMinX() + dx, raster.getMinY() + dy);
+        }
+        return raster.createTranslatedChild(raster.getMinX() + dx, raster.getMinY() + dy);
+    }
+}
@@ -5,7 +5,9 @@
  */
 package gov.nasa.worldwind.gs.wms.map;
 
+import gov.nasa.worldwind.gs.wms.cache.MapResponseCacheInterceptor;
 import java.util.Optional;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ModuleStatus;
 import org.geotools.factory.GeoTools;
 import org.geotools.util.Version;
@@ -82,6 +84,14 @@ public class WmsModuleStatus implements ModuleStatus {
         msg.append("A custom Web Map Service module for GeoServer that provides\n"
                 + "specialized handling of JPEG image formats.");
 
+        MapResponseCacheInterceptor interceptor = GeoServerExtensions.bean(MapResponseCacheInterceptor.class);
+        if (interceptor != null && interceptor.getCache() != null) {
+            msg.append("\nGetMap response cache: ").append(interceptor.getCache());
+        }
+        if (interceptor != null && interceptor.getCoalescer() != null) {
+            msg.append("\nGetMap request coalescing: ").append(interceptor.getCoalescer());
+        }
+
         return Optional.ofNullable(msg.toString());
     }
 
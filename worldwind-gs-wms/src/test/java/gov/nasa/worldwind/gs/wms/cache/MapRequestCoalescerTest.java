@@ -0,0 +1,141 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.geoserver.platform.ServiceException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MapRequestCoalescerTest {
+
+    private static MapResponseCache.Entry entry(String key) {
+        return new MapResponseCache.Entry(key, new byte[10], "image/png", null,
+                Collections.<String>emptySet(), 0);
+    }
+
+    /**
+     * Starts requests joining the flight of a key, and waits until they all
+     * joined.
+     */
+    private static List<Future<MapResponseCache.Entry>> join(final MapRequestCoalescer coalescer,
+            final String key, int count, ExecutorService executor, MapRequestCoalescer.Flight flight,
+            final long timeout) throws Exception {
+        List<Future<MapResponseCache.Entry>> results = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            results.add(executor.submit(() -> {
+                MapRequestCoalescer.Flight joined = coalescer.join(key);
+                assertFalse(joined.isLeader());
+                try {
+                    return coalescer.await(joined, timeout);
+                } catch (Exception | Error ex) {
+                    throw ex;
+                } catch (Throwable t) {
+                    throw new AssertionError(t);
+                }
+            }));
+        }
+        long end = System.currentTimeMillis() + 5000;
+        while (flight.getWaiters() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, flight.getWaiters());
+        return results;
+    }
+
+    @Test
+    public void testShare() throws Exception {
+        MapRequestCoalescer coalescer = new MapRequestCoalescer();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MapRequestCoalescer.Flight flight = coalescer.join("a");
+            assertTrue(flight.isLeader());
+            List<Future<MapResponseCache.Entry>> results = join(coalescer, "a", 3, executor, flight, 0);
+
+            // other keys fly on their own
+            MapRequestCoalescer.Flight other = coalescer.join("b");
+            assertTrue(other.isLeader());
+            assertEquals(2, coalescer.getFlightCount());
+            assertEquals(0, coalescer.land("b", other));
+
+            MapResponseCache.Entry entry = entry("a");
+            coalescer.complete("a", flight, entry);
+            for (Future<MapResponseCache.Entry> result : results) {
+                assertSame(entry, result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(0, coalescer.getFlightCount());
+            assertEquals(2, coalescer.getLeaders());
+            assertEquals(3, coalescer.getCoalesced());
+            assertEquals(0.6, coalescer.getCoalescingRate(), 1e-9);
+
+            // a landed flight is not joined any more
+            assertTrue(coalescer.join("a").isLeader());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        MapRequestCoalescer coalescer = new MapRequestCoalescer();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MapRequestCoalescer.Flight flight = coalescer.join("a");
+            List<Future<MapResponseCache.Entry>> results = join(coalescer, "a", 2, executor, flight, 0);
+            IOException failure = new IOException("Cannot read the tiles");
+            coalescer.fail("a", flight, failure);
+            for (Future<MapResponseCache.Entry> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail("The failure of the leader should be thrown");
+                } catch (ExecutionException ex) {
+                    assertSame(failure, ex.getCause());
+                }
+            }
+            assertEquals(1, coalescer.getFailures());
+
+            // no map to share, the waiting requests render their own
+            flight = coalescer.join("b");
+            results = join(coalescer, "b", 1, executor, flight, 0);
+            coalescer.complete("b", flight, null);
+            assertNull(results.get(0).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        MapRequestCoalescer coalescer = new MapRequestCoalescer();
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            MapRequestCoalescer.Flight flight = coalescer.join("a");
+            List<Future<MapResponseCache.Entry>> results = join(coalescer, "a", 1, executor, flight, 50);
+            try {
+                results.get(0).get(5, TimeUnit.SECONDS);
+                fail("The waiting request should time out");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof ServiceException);
+            }
+            assertEquals(1, coalescer.getTimeouts());
+
+            // the leader is not affected
+            assertEquals(1, coalescer.land("a", flight));
+            coalescer.complete("a", flight, entry("a"));
+            assertEquals(0, coalescer.getFlightCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
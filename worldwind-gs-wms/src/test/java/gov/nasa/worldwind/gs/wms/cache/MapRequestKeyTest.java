@@ -0,0 +1,119 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
+import org.junit.Test;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class MapRequestKeyTest {
+
+    static GetMapRequest request(String... kvp) {
+        StyleInfo style = createNiceMock(StyleInfo.class);
+        expect(style.getName()).andReturn("raster").anyTimes();
+        replay(style);
+        LayerInfo info = createNiceMock(LayerInfo.class);
+        expect(info.getId()).andReturn("layer-1").anyTimes();
+        expect(info.getDefaultStyle()).andReturn(style).anyTimes();
+        replay(info);
+        MapLayerInfo layer = createNiceMock(MapLayerInfo.class);
+        expect(layer.getName()).andReturn("gpkg:lakes").anyTimes();
+        expect(layer.getType()).andReturn(MapLayerInfo.TYPE_RASTER).anyTimes();
+        expect(layer.getLayerInfo()).andReturn(info).anyTimes();
+        replay(layer);
+
+        GetMapRequest request = new GetMapRequest();
+        request.setLayers(Collections.singletonList(layer));
+        request.setBbox(new Envelope(-180, 180, -90, 90));
+        request.setWidth(512);
+        request.setHeight(256);
+        request.setFormat("image/png");
+        Map<String, String> raw = new HashMap<>();
+        raw.put("SERVICE", "WMS");
+        raw.put("REQUEST", "GetMap");
+        raw.put("LAYERS", "lakes");
+        raw.put("SRS", "epsg:4326");
+        for (int i = 0; i < kvp.length; i += 2) {
+            raw.put(kvp[i], kvp[i + 1]);
+        }
+        request.setRawKvp(raw);
+        return request;
+    }
+
+    static Authentication user(String name, String... roles) {
+        List<GrantedAuthority> authorities = new ArrayList<>();
+        for (String role : roles) {
+            authorities.add(new SimpleGrantedAuthority(role));
+        }
+        return new UsernamePasswordAuthenticationToken(name, null, authorities);
+    }
+
+    @Test
+    public void testCreate() {
+        MapRequestKey key = MapRequestKey.create(request(), null);
+        assertEquals("{BBOX=-180,-90,180,90, FORMAT=image/png, HEIGHT=256, LAYERS=gpkg:lakes, "
+                + "SRS=EPSG:4326, STYLES=raster, TRANSPARENT=false, WIDTH=512}", key.getKey());
+        assertTrue(key.getTags().containsAll(Arrays.asList("layer:layer-1", "style:raster")));
+        assertFalse(key.hasVectors());
+
+        // the same map for the same pixels
+        GetMapRequest request = request();
+        request.setBbox(new Envelope(-180.0001, 180, -90, 90));
+        assertEquals(key, MapRequestKey.create(request, null));
+
+        request = request();
+        request.setSldBody("<StyledLayerDescriptor/>");
+        assertNull(MapRequestKey.create(request, null));
+    }
+
+    @Test
+    public void testParameters() {
+        MapRequestKey key = MapRequestKey.create(request("TIME", "2017-01-01"), null);
+
+        // cache busters and unknown parameters do not change the map
+        assertEquals(key, MapRequestKey.create(request("TIME", "2017-01-01", "_", "1508400000"), null));
+        assertEquals(key, MapRequestKey.create(request("TIME", "2017-01-01", "foo", "bar"), null));
+
+        assertNotEquals(key, MapRequestKey.create(request("TIME", "2017-01-02"), null));
+        assertNotEquals(key, MapRequestKey.create(request("TIME", "2017-01-01", "CQL_FILTER", "a=1"), null));
+        assertNotEquals(key, MapRequestKey.create(request("TIME", "2017-01-01", "dim_depth", "10"), null));
+    }
+
+    @Test
+    public void testUser() {
+        MapRequestKey anonymous = MapRequestKey.create(request(), null);
+        assertEquals(anonymous, MapRequestKey.create(request(), new AnonymousAuthenticationToken("key",
+                "anonymousUser", Collections.singletonList(new SimpleGrantedAuthority("ROLE_ANONYMOUS")))));
+        // a USER parameter cannot pose as a user
+        assertEquals(anonymous, MapRequestKey.create(request("USER", "admin[ROLE_ADMINISTRATOR]"), null));
+
+        MapRequestKey admin = MapRequestKey.create(request(), user("admin", "ROLE_ADMINISTRATOR"));
+        assertNotEquals(anonymous, admin);
+        assertTrue(admin.getKey().contains("USER=admin[ROLE_ADMINISTRATOR]"));
+        assertNotEquals(admin, MapRequestKey.create(request(), user("admin", "ROLE_AUTHENTICATED")));
+        assertNotEquals(admin, MapRequestKey.create(request(), user("bob", "ROLE_ADMINISTRATOR")));
+
+        // roles are sorted
+        assertEquals(MapRequestKey.create(request(), user("bob", "A", "B")),
+                MapRequestKey.create(request(), user("bob", "B", "A")));
+    }
+}
@@ -0,0 +1,151 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import org.aopalliance.intercept.MethodInvocation;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.WebMap;
+import org.geoserver.wms.map.RawMap;
+import org.junit.Before;
+import org.junit.Test;
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class MapResponseCacheInterceptorTest {
+
+    interface MapService {
+
+        WebMap getMap(GetMapRequest request);
+    }
+
+    /**
+     * A GetMap invocation counting its renderings, and running an action
+     * while rendering.
+     */
+    static class GetMap implements MethodInvocation {
+
+        final GetMapRequest request;
+
+        Runnable during;
+
+        int renderings;
+
+        GetMap(GetMapRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public Method getMethod() {
+            try {
+                return MapService.class.getMethod("getMap", GetMapRequest.class);
+            } catch (NoSuchMethodException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public Object[] getArguments() {
+            return new Object[]{request};
+        }
+
+        @Override
+        public Object proceed() throws Throwable {
+            renderings++;
+            if (during != null) {
+                during.run();
+            }
+            return new RawMap(null, new byte[]{(byte) renderings}, "image/png");
+        }
+
+        @Override
+        public Object getThis() {
+            return null;
+        }
+
+        @Override
+        public AccessibleObject getStaticPart() {
+            return getMethod();
+        }
+    }
+
+    MapResponseCacheInterceptor interceptor;
+
+    @Before
+    public void setUp() {
+        interceptor = new MapResponseCacheInterceptor();
+        interceptor.setEnabled(true);
+        interceptor.setCoalesce(false);
+        interceptor.setCache(new MapResponseCache(1024 * 1024, 0, null, 0));
+    }
+
+    static byte[] bytes(Object map) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((RawMap) map).writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCoalesceOptIn() {
+        if (System.getProperty(MapResponseCacheInterceptor.PROPERTY_COALESCE) == null) {
+            assertFalse(new MapResponseCacheInterceptor().isCoalesce());
+        }
+    }
+
+    @Test
+    public void testCached() throws Throwable {
+        GetMap getMap = new GetMap(MapRequestKeyTest.request());
+        assertArrayEquals(new byte[]{1}, bytes(interceptor.invoke(getMap)));
+        assertArrayEquals(new byte[]{1}, bytes(interceptor.invoke(getMap)));
+        assertEquals(1, getMap.renderings);
+
+        // a cache buster is still the same map
+        GetMap busted = new GetMap(MapRequestKeyTest.request("_", "1508400000"));
+        assertArrayEquals(new byte[]{1}, bytes(interceptor.invoke(busted)));
+        assertEquals(0, busted.renderings);
+
+        interceptor.clear();
+        assertArrayEquals(new byte[]{2}, bytes(interceptor.invoke(getMap)));
+        assertEquals(2, getMap.renderings);
+    }
+
+    @Test
+    public void testInvalidatedWhileRendering() throws Throwable {
+        LayerInfo layer = createNiceMock(LayerInfo.class);
+        expect(layer.getId()).andReturn("layer-1").anyTimes();
+        replay(layer);
+
+        GetMap getMap = new GetMap(MapRequestKeyTest.request());
+        getMap.during = () -> interceptor.invalidate(layer);
+        // the map rendered across the invalidation is returned, not cached
+        assertArrayEquals(new byte[]{1}, bytes(interceptor.invoke(getMap)));
+        assertEquals(0, interceptor.getCache().getMemoryCount());
+
+        getMap.during = null;
+        assertArrayEquals(new byte[]{2}, bytes(interceptor.invoke(getMap)));
+        assertEquals(1, interceptor.getCache().getMemoryCount());
+        assertArrayEquals(new byte[]{2}, bytes(interceptor.invoke(getMap)));
+        assertEquals(2, getMap.renderings);
+    }
+
+    @Test
+    public void testCoalescedInvalidatedWhileRendering() throws Throwable {
+        interceptor.setCoalesce(true);
+        interceptor.setCoalescer(new MapRequestCoalescer());
+
+        GetMap getMap = new GetMap(MapRequestKeyTest.request());
+        getMap.during = () -> interceptor.clear();
+        assertArrayEquals(new byte[]{1}, bytes(interceptor.invoke(getMap)));
+        assertEquals(0, interceptor.getCache().getMemoryCount());
+
+        getMap.during = null;
+        interceptor.invoke(getMap);
+        assertEquals(1, interceptor.getCache().getMemoryCount());
+    }
+}
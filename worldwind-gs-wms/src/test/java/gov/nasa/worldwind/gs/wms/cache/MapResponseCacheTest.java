@@ -0,0 +1,180 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.cache;
+
+import com.vividsolutions.jts.geom.Envelope;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MapResponseCacheTest {
+
+    File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("wms-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static MapResponseCache.Entry entry(String key, int size, String... tags) {
+        return new MapResponseCache.Entry(key, new byte[size], "image/png", null,
+                new HashSet<>(Arrays.asList(tags)), 5000000);
+    }
+
+    @Test
+    public void testMemoryAndDisk() {
+        MapResponseCache cache = new MapResponseCache(200, 250, directory, 0);
+        cache.put(entry("a", 100, "layer:1"));
+        cache.put(entry("b", 100, "layer:2"));
+        assertNotNull(cache.get("a"));
+
+        // b is the least recently used, and spills to disk
+        cache.put(entry("c", 100, "layer:1"));
+        assertEquals(2, cache.getMemoryCount());
+        assertEquals(1, cache.getDiskCount());
+        assertEquals(1, directory.listFiles().length);
+
+        // read back from disk, spilling a in turn
+        MapResponseCache.Entry b = cache.get("b");
+        assertNotNull(b);
+        assertEquals(100, b.getData().length);
+        assertEquals(1, cache.getDiskHits());
+        assertEquals(1, cache.getDiskCount());
+
+        // the disk tier is bound too
+        cache.put(entry("d", 100));
+        cache.put(entry("e", 100));
+        assertEquals(2, cache.getDiskCount());
+        assertEquals(200, cache.getDiskSize());
+        assertEquals(2, directory.listFiles().length);
+
+        assertNull(cache.get("x"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+        assertEquals(200, cache.getBytesSaved());
+        assertEquals(10, cache.getTimeSaved());
+
+        cache.clear();
+        assertEquals(0, cache.getMemoryCount() + cache.getDiskCount());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void testInvalidate() {
+        MapResponseCache cache = new MapResponseCache(200, 1000, directory, 0);
+        cache.put(entry("a", 100, "layer:1", "store:1"));
+        cache.put(entry("b", 100, "layer:2", "store:1"));
+        cache.put(entry("c", 100, "layer:3", "store:2"));
+        assertEquals(1, cache.getDiskCount());
+
+        assertEquals(1, cache.invalidate("layer:2"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.invalidate("store:1"));
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(0, cache.getDiskCount());
+        assertEquals(0, directory.listFiles().length);
+        assertEquals(2, cache.getInvalidations());
+    }
+
+    @Test
+    public void testTimeToLive() throws Exception {
+        MapResponseCache cache = new MapResponseCache(1000, 0, null, 1);
+        cache.put(entry("a", 100));
+        Thread.sleep(10);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getMemorySize());
+
+        cache.setTimeToLive(0);
+        cache.put(entry("a", 100));
+        // larger than the whole cache
+        cache.put(entry("b", 2000));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testInvalidateWhileSpilling() throws Exception {
+        MapResponseCache cache = new MapResponseCache(100, 1000, directory, 0) {
+            @Override
+            void write(File file, byte[] data) throws IOException {
+                super.write(file, data);
+                invalidate("layer:1");
+            }
+        };
+        cache.put(entry("a", 100, "layer:1"));
+        // a is evicted, and invalidated while written to disk
+        cache.put(entry("b", 100, "layer:2"));
+        assertEquals(0, cache.getDiskCount());
+        assertEquals(0, directory.listFiles().length);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+
+        // cleared while written
+        MapResponseCache cleared = new MapResponseCache(100, 1000, directory, 0) {
+            @Override
+            void write(File file, byte[] data) throws IOException {
+                super.write(file, data);
+                clear();
+            }
+        };
+        cleared.put(entry("a", 100));
+        cleared.put(entry("b", 100));
+        assertEquals(0, cleared.getDiskCount());
+        assertNull(cleared.get("a"));
+    }
+
+    @Test
+    public void testInvalidateWhileReading() throws Exception {
+        MapResponseCache cache = new MapResponseCache(100, 1000, directory, 0) {
+            @Override
+            byte[] read(File file) throws IOException {
+                byte[] data = super.read(file);
+                invalidate("layer:1");
+                return data;
+            }
+        };
+        cache.put(entry("a", 100, "layer:1"));
+        cache.put(entry("b", 100, "layer:2"));
+        assertEquals(1, cache.getDiskCount());
+        // a is invalidated while read back, and not put back in memory
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getMemoryCount());
+        assertNotNull(cache.get("b"));
+        assertEquals(0, cache.getDiskCount());
+    }
+
+    @Test
+    public void testRoundBbox() {
+        // 1 degree per 256 pixels, rounded to a hundredth of a pixel
+        Envelope bbox = new Envelope(-90.0000001, -89, 40.12345678, 41.12345678);
+        assertEquals("-90,40.12346,-89,41.12346", MapRequestKey.round(bbox, 256, 256));
+        Envelope shifted = new Envelope(-90.0000002, -89.0000001, 40.123458, 41.123458);
+        assertEquals(MapRequestKey.round(bbox, 256, 256), MapRequestKey.round(shifted, 256, 256));
+        assertFalse(MapRequestKey.round(bbox, 256, 256).equals(MapRequestKey.round(bbox, 4096, 4096)));
+
+        // a kilometer per pixel, rounded to ten meters
+        assertEquals("1234570", MapRequestKey.round(1234567.89, 1000));
+    }
+}
@@ -0,0 +1,116 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AlphaScannerTest {
+
+    private static BufferedImage createImage(int type) {
+        BufferedImage image = new BufferedImage(40, 30, type);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0xff000000 | (x << 16) | (y << 8));
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testPackedInts() {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_ARGB);
+        assertTrue(AlphaScanner.isOpaque(image));
+        image.setRGB(39, 29, 0x80ffffff);
+        assertFalse(AlphaScanner.isOpaque(image));
+        // a view away from the origin reads the same samples
+        assertFalse(AlphaScanner.isOpaque(new TranslatedRenderedImage(image, 5, 7)));
+        assertFalse(AlphaScanner.isOpaque(image.getSubimage(20, 10, 20, 20)));
+        assertTrue(AlphaScanner.isOpaque(image.getSubimage(0, 0, 39, 29)));
+    }
+
+    @Test
+    public void testInterleavedBytes() {
+        BufferedImage image = createImage(BufferedImage.TYPE_4BYTE_ABGR);
+        assertTrue(AlphaScanner.isOpaque(image));
+        image.setRGB(0, 15, 0x00000000);
+        assertFalse(AlphaScanner.isOpaque(image));
+        assertTrue(AlphaScanner.isOpaque(image.getSubimage(1, 0, 39, 30)));
+    }
+
+    @Test
+    public void testNoAlpha() {
+        assertTrue(AlphaScanner.isOpaque(createImage(BufferedImage.TYPE_3BYTE_BGR)));
+        assertTrue(AlphaScanner.isOpaque(createImage(BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    @Test
+    public void testPalette() {
+        byte[] r = {0, (byte) 255, 0};
+        byte[] g = {0, 0, (byte) 255};
+        byte[] b = {0, 0, 0};
+        byte[] a = {(byte) 255, (byte) 255, 0};
+        BufferedImage image = new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(8, 3, r, g, b, a));
+        assertTrue(AlphaScanner.isOpaque(image));
+        image.getRaster().setSample(10, 10, 0, 2);
+        assertFalse(AlphaScanner.isOpaque(image));
+
+        // 2 bit packed indices
+        image = new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_BINARY, new IndexColorModel(2, 3, r, g, b, a));
+        image.getRaster().setSample(3, 3, 0, 1);
+        assertTrue(AlphaScanner.isOpaque(image));
+        image.getRaster().setSample(19, 19, 0, 2);
+        assertFalse(AlphaScanner.isOpaque(image));
+    }
+
+    @Test
+    public void testShorts() {
+        ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+        WritableRaster raster = cm.createCompatibleWritableRaster(10, 10);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                raster.setSample(x, y, 1, 65535);
+            }
+        }
+        RenderedImage image = new BufferedImage(cm, raster, false, null);
+        assertTrue(AlphaScanner.isOpaque(image));
+        raster.setSample(5, 5, 1, 65534);
+        assertFalse(AlphaScanner.isOpaque(image));
+    }
+
+    @Test
+    public void testMapContent() {
+        BufferedImage image = createImage(BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 0);
+        assertFalse(AlphaScanner.isOpaque(image, null));
+    }
+
+    @Test
+    public void testDropAlpha() {
+        BufferedImage image = createImage(BufferedImage.TYPE_4BYTE_ABGR);
+        RenderedImage opaque = AlphaScanner.dropAlpha(image);
+        assertEquals(3, opaque.getSampleModel().getNumBands());
+        assertFalse(opaque.getColorModel().hasAlpha());
+        Raster data = opaque.getData();
+        assertEquals(39, data.getSample(39, 29, 0));
+        assertEquals(29, data.getSample(39, 29, 1));
+
+        // packed images are left alone
+        BufferedImage packed = createImage(BufferedImage.TYPE_INT_ARGB);
+        assertSame(packed, AlphaScanner.dropAlpha(packed));
+    }
+}
@@ -0,0 +1,233 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Vector;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BilEncoderTest {
+
+    /**
+     * A tiled single band image, with tiles that do not align with the image
+     * bounds.
+     */
+    private static class TiledImage implements RenderedImage {
+
+        final WritableRaster raster;
+
+        final int tileSize;
+
+        TiledImage(int dataType, int width, int height, int tileSize) {
+            SampleModel sm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+                    Transparency.OPAQUE, dataType).createCompatibleSampleModel(width, height);
+            this.raster = Raster.createWritableRaster(sm, new Point(0, 0));
+            this.tileSize = tileSize;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return null;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return null;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return raster.getSampleModel().createCompatibleSampleModel(tileSize, tileSize);
+        }
+
+        @Override
+        public int getWidth() {
+            return raster.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return raster.getHeight();
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return (getWidth() + tileSize - 1) / tileSize;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (getHeight() + tileSize - 1) / tileSize;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return tileSize;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return tileSize;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            // full size tiles, overhanging the image like JAI tiles
+            WritableRaster tile = Raster.createWritableRaster(getSampleModel(),
+                    new Point(tileX * tileSize, tileY * tileSize));
+            Rectangle area = tile.getBounds().intersection(raster.getBounds());
+            tile.setRect(raster.createChild(area.x, area.y, area.width, area.height, area.x, area.y, null));
+            return tile;
+        }
+
+        @Override
+        public Raster getData() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static ByteBuffer encode(RenderedImage image, boolean floats, ByteOrder order,
+            double sourceNoData, double noData) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new BilEncoder(floats, order, sourceNoData, noData).encode(image, bytes);
+        assertEquals(image.getWidth() * image.getHeight() * (floats ? 4 : 2), bytes.size());
+        return ByteBuffer.wrap(bytes.toByteArray()).order(order);
+    }
+
+    @Test
+    public void testShorts() throws Exception {
+        TiledImage image = new TiledImage(DataBuffer.TYPE_SHORT, 50, 30, 16);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 50; x++) {
+                image.raster.setSample(x, y, 0, x * 100 - y * 50);
+            }
+        }
+        image.raster.setSample(7, 3, 0, -32767);
+
+        // copied as they are, in bulk
+        ByteBuffer bil = encode(image, false, ByteOrder.LITTLE_ENDIAN, Double.NaN, -9999);
+        assertEquals(4900 - 1450, bil.getShort((29 * 50 + 49) * 2));
+        assertEquals(-32767, bil.getShort((3 * 50 + 7) * 2));
+
+        // no-data substituted, big endian
+        bil = encode(image, false, ByteOrder.BIG_ENDIAN, -32767, -9999);
+        assertEquals(-9999, bil.getShort((3 * 50 + 7) * 2));
+        assertEquals(1300 - 150, bil.getShort((3 * 50 + 13) * 2));
+
+        // as floats
+        bil = encode(image, true, ByteOrder.LITTLE_ENDIAN, -32767, -9999);
+        assertEquals(-9999f, bil.getFloat((3 * 50 + 7) * 4), 0);
+        assertEquals(1150f, bil.getFloat((3 * 50 + 13) * 4), 0);
+    }
+
+    @Test
+    public void testFloats() throws Exception {
+        TiledImage image = new TiledImage(DataBuffer.TYPE_FLOAT, 40, 20, 32);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 40; x++) {
+                image.raster.setSample(x, y, 0, x + y / 4f);
+            }
+        }
+        image.raster.setSample(39, 19, 0, Float.NaN);
+        image.raster.setSample(0, 0, 0, 50000f);
+
+        ByteBuffer bil = encode(image, true, ByteOrder.BIG_ENDIAN, Double.NaN, Double.NaN);
+        assertEquals(12.25f, bil.getFloat((1 * 40 + 12) * 4), 0);
+        assertTrue(Float.isNaN(bil.getFloat((19 * 40 + 39) * 4)));
+
+        bil = encode(image, true, ByteOrder.LITTLE_ENDIAN, Double.NaN, -9999);
+        assertEquals(-9999f, bil.getFloat((19 * 40 + 39) * 4), 0);
+
+        // rounded and clamped to 16 bits
+        bil = encode(image, false, ByteOrder.LITTLE_ENDIAN, Double.NaN, -9999);
+        assertEquals(12, bil.getShort((1 * 40 + 12) * 2));
+        assertEquals(13, bil.getShort((2 * 40 + 12) * 2));
+        assertEquals(Short.MAX_VALUE, bil.getShort(0));
+        assertEquals(-9999, bil.getShort((19 * 40 + 39) * 2));
+    }
+
+    @Test
+    public void testOtherTypes() throws Exception {
+        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_USHORT_GRAY);
+        image.getRaster().setSample(3, 4, 0, 60000);
+        image.getRaster().setSample(4, 4, 0, 1200);
+        ByteBuffer bil = encode(image, true, ByteOrder.LITTLE_ENDIAN, 0, -9999);
+        assertEquals(60000f, bil.getFloat((4 * 10 + 3) * 4), 0);
+        assertEquals(1200f, bil.getFloat((4 * 10 + 4) * 4), 0);
+        assertEquals(-9999f, bil.getFloat(0), 0);
+
+        // not a component sample model
+        image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        image.getRaster().setSample(3, 4, 0, 200);
+        bil = encode(image, false, ByteOrder.BIG_ENDIAN, Double.NaN, -9999);
+        assertEquals(200, bil.getShort((4 * 10 + 3) * 2));
+    }
+}
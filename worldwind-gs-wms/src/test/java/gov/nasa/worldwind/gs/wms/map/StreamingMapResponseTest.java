@@ -0,0 +1,156 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.imageio.ImageIO;
+import org.geoserver.wms.WMS;
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.RenderedImageMap;
+import org.geoserver.wms.map.RenderedImageMapResponse;
+import org.junit.Before;
+import org.junit.Test;
+import static org.easymock.classextension.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class StreamingMapResponseTest {
+
+    /**
+     * Counts the images encoded strip by strip.
+     */
+    static class CountingAdaptor extends MapResponseOutputStreamAdaptor {
+
+        int strips;
+
+        CountingAdaptor(String mimeType, WMS wms, RenderedImageMapResponse delegate) {
+            super(mimeType, wms, delegate);
+        }
+
+        @Override
+        protected void encodeStrips(RenderedImage image, OutputStream outStream, WMSMapContent mapContent) throws IOException {
+            strips++;
+            super.encodeStrips(image, outStream, mapContent);
+        }
+    }
+
+    WMS wms;
+
+    RenderedImageMapResponse delegate;
+
+    @Before
+    public void setUp() {
+        wms = createNiceMock(WMS.class);
+        expect(wms.getPngCompression()).andReturn(25).anyTimes();
+        expect(wms.getJpegCompression()).andReturn(25).anyTimes();
+        replay(wms);
+        delegate = createMock(RenderedImageMapResponse.class);
+    }
+
+    static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = x < width / 4 ? 0x80 : 0xff;
+                image.setRGB(x, y, (alpha << 24) | ((x & 0xff) << 16) | ((y & 0xff) << 8));
+            }
+        }
+        return image;
+    }
+
+    static byte[] write(StreamingMapResponse response, RenderedImageMap map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        response.write(map, bytes, null);
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testStreamedMaps() throws Exception {
+        CustomRenderedImageMapOutputFormat png = new CustomRenderedImageMapOutputFormat("image/png", wms);
+        BufferedImage image = createImage(10, 10, BufferedImage.TYPE_INT_RGB);
+        assertTrue(png.buildMap(null, image) instanceof StreamingImageMap);
+        CustomRenderedImageMapOutputFormat gif = new CustomRenderedImageMapOutputFormat("image/gif", wms);
+        assertFalse(gif.buildMap(null, image) instanceof StreamingImageMap);
+
+        // picked over the responses bound to all rendered image maps
+        StreamingMapResponse response = new StreamingMapResponse(new CountingAdaptor("image/png", wms, delegate));
+        assertEquals(StreamingImageMap.class, response.getBinding());
+        assertTrue(response.getOutputFormats().contains("image/png"));
+    }
+
+    @Test
+    public void testLargeMapStreamed() throws Exception {
+        replay(delegate);
+        CountingAdaptor adaptor = new CountingAdaptor("image/jpeg", wms, delegate);
+        adaptor.setStreamingThreshold(100 * 100);
+        StreamingMapResponse response = new StreamingMapResponse(adaptor);
+
+        BufferedImage image = createImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] bytes = write(response, new StreamingImageMap(null, image, "image/jpeg"));
+        assertEquals(1, adaptor.strips);
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(bytes));
+        assertEquals(300, read.getWidth());
+        assertEquals(200, read.getHeight());
+        // the delegate is not called
+        verify(delegate);
+    }
+
+    @Test
+    public void testLargePNGDeflatedInParallel() throws Exception {
+        replay(delegate);
+        CountingAdaptor adaptor = new CountingAdaptor("image/png", wms, delegate);
+        adaptor.setStreamingThreshold(100 * 100);
+        adaptor.setPngThreads(3);
+        StreamingMapResponse response = new StreamingMapResponse(adaptor);
+
+        BufferedImage image = createImage(1024, 700, BufferedImage.TYPE_INT_ARGB);
+        byte[] bytes = write(response, new StreamingImageMap(null, image, "image/png"));
+        assertEquals(1, adaptor.strips);
+        verify(delegate);
+
+        // the same pixels as deflated by a single thread
+        adaptor.setPngThreads(1);
+        byte[] serial = write(response, new StreamingImageMap(null, image, "image/png"));
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(bytes));
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(serial));
+        assertTrue(read.getColorModel().hasAlpha());
+        for (int y = 0; y < image.getHeight(); y += 7) {
+            for (int x = 0; x < image.getWidth(); x += 5) {
+                assertEquals(image.getRGB(x, y), read.getRGB(x, y));
+                assertEquals(expected.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testSmallMapDelegated() throws Exception {
+        BufferedImage image = createImage(50, 50, BufferedImage.TYPE_3BYTE_BGR);
+        delegate.formatImageOutputStream(same(image), isA(OutputStream.class), (WMSMapContent) isNull());
+        replay(delegate);
+        CountingAdaptor adaptor = new CountingAdaptor("image/jpeg", wms, delegate);
+        adaptor.setStreamingThreshold(100 * 100);
+
+        write(new StreamingMapResponse(adaptor), new StreamingImageMap(null, image, "image/jpeg"));
+        assertEquals(0, adaptor.strips);
+        verify(delegate);
+    }
+
+    @Test
+    public void testJpegPngMimeType() throws Exception {
+        StreamingMapResponse response = new StreamingMapResponse(
+                new CountingAdaptor("image/vnd.jpeg-png", wms, delegate));
+        BufferedImage translucent = createImage(40, 20, BufferedImage.TYPE_INT_ARGB);
+        assertEquals("image/png", response.getMimeType(
+                new StreamingImageMap(null, translucent, "image/vnd.jpeg-png"), null));
+        BufferedImage opaque = createImage(40, 20, BufferedImage.TYPE_3BYTE_BGR);
+        assertEquals("image/jpeg", response.getMimeType(
+                new StreamingImageMap(null, opaque, "image/vnd.jpeg-png"), null));
+    }
+}
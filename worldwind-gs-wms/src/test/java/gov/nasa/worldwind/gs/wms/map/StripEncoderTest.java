@@ -0,0 +1,222 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StripEncoderTest {
+
+    private static BufferedImage createImage(int type) {
+        BufferedImage image = new BufferedImage(150, 100, type);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int alpha = x < 20 ? 0 : x < 40 ? 0x80 : 0xff;
+                image.setRGB(x, y, (alpha << 24) | (x << 16) | ((y * 2) << 8) | ((x + y) & 0xff));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Records the regions read from the image.
+     */
+    private static class RecordingImage extends TranslatedRenderedImage {
+
+        final List<Rectangle> regions = new ArrayList<>();
+
+        RecordingImage(RenderedImage source) {
+            super(source, 0, 0);
+        }
+
+        @Override
+        public Raster getData() {
+            fail("The whole image should not be read");
+            return null;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            regions.add(rect);
+            return super.getData(rect);
+        }
+    }
+
+    private static BufferedImage encodePNG(RenderedImage image) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new PNGStripEncoder(6).encode(image, bytes);
+        return ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void assertSameRGB(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int argb = expected.getRGB(x, y);
+                if ((argb >>> 24) == 0) {
+                    assertEquals(0, actual.getRGB(x, y) >>> 24);
+                } else {
+                    assertEquals("pixel " + x + "," + y, argb, actual.getRGB(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPNGConverted() throws Exception {
+        BufferedImage source = createImage(BufferedImage.TYPE_INT_ARGB);
+        RecordingImage image = new RecordingImage(source);
+        BufferedImage read = encodePNG(image);
+        assertTrue(read.getColorModel().hasAlpha());
+        assertSameRGB(source, read);
+
+        // read strip by strip
+        assertEquals(2, image.regions.size());
+        assertEquals(new Rectangle(0, 0, 150, ImageStrips.DEFAULT_STRIP_ROWS), image.regions.get(0));
+    }
+
+    @Test
+    public void testPNGComponents() throws Exception {
+        BufferedImage source = createImage(BufferedImage.TYPE_4BYTE_ABGR);
+        assertSameRGB(source, encodePNG(source));
+
+        source = createImage(BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage read = encodePNG(source);
+        assertFalse(read.getColorModel().hasAlpha());
+        assertSameRGB(source, read);
+
+        source = createImage(BufferedImage.TYPE_BYTE_GRAY);
+        read = encodePNG(source);
+        assertEquals(1, read.getRaster().getNumBands());
+        assertEquals(source.getRaster().getSample(75, 50, 0), read.getRaster().getSample(75, 50, 0));
+    }
+
+    @Test
+    public void testPNGPalette() throws Exception {
+        byte[] r = {0, (byte) 255, 0};
+        byte[] g = {0, 0, (byte) 255};
+        byte[] b = {0, 0, 0};
+        byte[] a = {0, (byte) 255, (byte) 255};
+        BufferedImage source = new BufferedImage(50, 80, BufferedImage.TYPE_BYTE_INDEXED,
+                new IndexColorModel(8, 3, r, g, b, a));
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.getRaster().setSample(x, y, 0, (x + y) % 3);
+            }
+        }
+        BufferedImage read = encodePNG(source);
+        assertTrue(read.getColorModel() instanceof IndexColorModel);
+        assertEquals(2, read.getRaster().getSample(1, 1, 0));
+        assertSameRGB(source, read);
+    }
+
+    @Test
+    public void testPNGParallel() throws Exception {
+        BufferedImage source = new BufferedImage(1024, 700, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(42);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                // noise over a gradient, so the bands do not compress to nothing
+                source.setRGB(x, y, 0xff000000 | (x << 14) | (y << 8) | random.nextInt(16));
+            }
+        }
+        // 3 bands of 256 rows or less
+        assertTrue(PNGStripEncoder.BAND_BYTES / (1024 * 4 + 1) < 700 / 2);
+
+        ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        new PNGStripEncoder(6, 1).encode(source, sequential);
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        new PNGStripEncoder(6, 4).encode(source, parallel);
+
+        // ImageIO verifies the zlib checksum
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(parallel.toByteArray()));
+        assertSameRGB(source, read);
+        assertSameRGB(ImageIO.read(new ByteArrayInputStream(sequential.toByteArray())), read);
+    }
+
+    @Test
+    public void testPNGParallelSaturated() throws Exception {
+        final BufferedImage source = new BufferedImage(1024, 700, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(42);
+        for (int y = 0; y < source.getHeight(); y++) {
+            for (int x = 0; x < source.getWidth(); x++) {
+                source.setRGB(x, y, 0xff000000 | (x << 14) | (y << 8) | random.nextInt(16));
+            }
+        }
+        // more bands at once than encoding threads, the extra ones are deflated by the callers
+        int encoders = Runtime.getRuntime().availableProcessors() * 2;
+        ExecutorService callers = Executors.newFixedThreadPool(encoders);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < encoders; i++) {
+                results.add(callers.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        new PNGStripEncoder(6, 4).encode(source, out);
+                        return out.toByteArray();
+                    }
+                }));
+            }
+            for (Future<byte[]> result : results) {
+                assertSameRGB(source, ImageIO.read(new ByteArrayInputStream(result.get())));
+            }
+        } finally {
+            callers.shutdown();
+        }
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        byte[] data = new byte[100000];
+        new Random(7).nextBytes(data);
+        Adler32 whole = new Adler32();
+        whole.update(data, 0, data.length);
+        Adler32 first = new Adler32();
+        first.update(data, 0, 30000);
+        Adler32 second = new Adler32();
+        second.update(data, 30000, 70000);
+        assertEquals(whole.getValue(), PNGStripEncoder.combineAdler32(first.getValue(), second.getValue(), 70000));
+        assertEquals(first.getValue(), PNGStripEncoder.combineAdler32(1, first.getValue(), 30000));
+    }
+
+    @Test
+    public void testJPEG() throws Exception {
+        BufferedImage source = createImage(BufferedImage.TYPE_INT_ARGB);
+        RecordingImage image = new RecordingImage(source);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JPEGStripEncoder(0.9f).encode(image, bytes);
+        assertEquals(2, image.regions.size());
+
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(150, read.getWidth());
+        assertEquals(100, read.getHeight());
+        assertFalse(read.getColorModel().hasAlpha());
+        // alpha is dropped, the colors are kept
+        int expected = source.getRGB(10, 50);
+        int actual = read.getRGB(10, 50);
+        for (int shift = 0; shift < 24; shift += 8) {
+            assertEquals((expected >> shift) & 0xff, (actual >> shift) & 0xff, 12);
+        }
+    }
+}
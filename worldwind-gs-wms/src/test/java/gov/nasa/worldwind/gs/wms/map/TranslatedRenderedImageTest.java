@@ -0,0 +1,71 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package gov.nasa.worldwind.gs.wms.map;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import javax.imageio.ImageIO;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.operator.TranslateDescriptor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TranslatedRenderedImageTest {
+
+    private static BufferedImage createImage() {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, 0xff000000 | (x << 16) | (y << 8));
+            }
+        }
+        return image;
+    }
+
+    @Test
+    public void testAtOrigin() throws Exception {
+        BufferedImage source = createImage();
+        RenderedOp translated = TranslateDescriptor.create(source, 10f, 20f, null, null);
+        assertEquals(10, translated.getMinX());
+        assertEquals(20, translated.getMinY());
+
+        RenderedImage image = TranslatedRenderedImage.atOrigin(translated);
+        assertEquals(0, image.getMinX());
+        assertEquals(0, image.getMinY());
+        assertEquals(0, image.getTileGridXOffset());
+        assertEquals(0, image.getTileGridYOffset());
+        assertEquals(64, image.getWidth());
+        assertEquals(32, image.getHeight());
+
+        // tiles share the data of the source tiles
+        Raster tile = image.getTile(image.getMinTileX(), image.getMinTileY());
+        assertEquals(0, tile.getMinX());
+        assertSame(translated.getTile(translated.getMinTileX(), translated.getMinTileY()).getDataBuffer(),
+                tile.getDataBuffer());
+
+        Raster region = image.getData(new Rectangle(5, 6, 2, 2));
+        assertEquals(5, region.getMinX());
+        assertEquals(5, region.getSample(5, 6, 0));
+        assertEquals(6, region.getSample(5, 6, 1));
+
+        // the encoded image starts at 0,0
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "png", bytes));
+        BufferedImage read = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(source.getRGB(0, 0), read.getRGB(0, 0));
+        assertEquals(source.getRGB(63, 31), read.getRGB(63, 31));
+    }
+
+    @Test
+    public void testAtOriginUnchanged() {
+        BufferedImage source = createImage();
+        assertSame(source, TranslatedRenderedImage.atOrigin(source));
+    }
+}
@@ -16,14 +16,12 @@
  */
 package org.geotools.geopkg;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
 
 import javax.imageio.spi.ImageInputStreamSpi;
 import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.MemoryCacheImageInputStream;
 
 /**
  * Image input stream provider creating an image input stream directly from a byte array.
@@ -40,7 +38,7 @@ public class ByteArrayImageInputStreamSpi extends ImageInputStreamSpi{
     public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir) 
         throws IOException {
         if (input instanceof byte[]) {
-            return new MemoryCacheImageInputStream(new ByteArrayInputStream((byte[])input));
+            return new ByteArrayImageInputStream((byte[])input);
         }
         return null;
     }
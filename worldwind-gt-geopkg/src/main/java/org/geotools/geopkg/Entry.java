@@ -31,7 +31,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 public class Entry {
 
     public static enum DataType {
-        Feature("features"), Tile("tiles"); 
+        Feature("features"), Tile("tiles"), GriddedCoverage("2d-gridded-coverage");
 
         String value;
         DataType(String value) {
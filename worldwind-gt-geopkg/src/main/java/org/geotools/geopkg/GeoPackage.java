@@ -21,6 +21,7 @@ import static org.geotools.sql.SqlUtil.prepare;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -29,6 +30,7 @@ import java.sql.Statement;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -62,6 +64,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geopkg.geom.GeoPkgGeomReader;
 import org.geotools.geopkg.geom.GeoPkgGeomWriter;
 import org.geotools.geopkg.geom.GeometryFunction;
+import org.geotools.geopkg.geom.SpatialOrder;
 import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.jdbc.JDBCFeatureStore;
 import org.geotools.jdbc.PrimaryKey;
@@ -77,6 +80,8 @@ import org.opengis.filter.identity.Identifier;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.sqlite.Function;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
@@ -113,6 +118,10 @@ public class GeoPackage {
 
     public static final String SPATIAL_INDEX = "gpkg_spatial_index";
 
+    public static final String GRIDDED_COVERAGE_ANCILLARY = "gpkg_2d_gridded_coverage_ancillary";
+
+    public static final String GRIDDED_TILE_ANCILLARY = "gpkg_2d_gridded_tile_ancillary";
+
     public static enum DataType {
         Feature("features"), Raster("rasters"), Tile("tiles"),
         FeatureWithRaster("featuresWithRasters");
@@ -144,6 +153,11 @@ public class GeoPackage {
      */
     volatile JDBCDataStore dataStore;
 
+    /**
+     * whether the database is opened read only
+     */
+    final boolean readOnly;
+
     private boolean initialised = false;
 
     protected GeoPkgGeomWriter.Configuration writerConfig = new GeoPkgGeomWriter.Configuration();
@@ -175,7 +189,50 @@ public class GeoPackage {
      * credentials.
      */
     public GeoPackage(File file, String user, String passwd) throws IOException {
+        this(file, user, passwd, null);
+    }
+
+    /**
+     * Creates a GeoPackage from an existing file, applying the given SQLite
+     * tuning to its connections.
+     *
+     * @param tuning The tuning, may be <code>null</code> to keep the SQLite
+     * defaults.
+     */
+    public GeoPackage(File file, SQLiteTuning tuning) throws IOException {
+        this(file, null, null, tuning);
+    }
+
+    /**
+     * Creates a GeoPackage from an existing file specifying database
+     * credentials and the SQLite tuning of its connections.
+     */
+    public GeoPackage(File file, String user, String passwd, SQLiteTuning tuning) throws IOException {
+        this(file, user, passwd, tuning, false, false);
+    }
+
+    /**
+     * Creates a GeoPackage from an existing file, opened read only.
+     * <p>
+     * Read only connections skip the creation of the GeoPackage tables and do
+     * not share their page cache, so any number of them can read the file
+     * concurrently. An immutable file is furthermore read without any file
+     * locking, which is only safe if nothing modifies the file while it is
+     * open.
+     * </p>
+     *
+     * @param tuning The tuning, may be <code>null</code> to keep the SQLite
+     * defaults.
+     * @param immutable Whether the file never changes while open.
+     */
+    public GeoPackage(File file, SQLiteTuning tuning, boolean immutable) throws IOException {
+        this(file, null, null, tuning, true, immutable);
+    }
+
+    GeoPackage(File file, String user, String passwd, SQLiteTuning tuning, boolean readOnly,
+            boolean immutable) throws IOException {
         this.file = file;
+        this.readOnly = readOnly || immutable;
 
         Map params = new HashMap();
         if (user != null) {
@@ -187,18 +244,25 @@ public class GeoPackage {
 
         params.put(GeoPkgDataStoreFactory.DATABASE.key, file.getPath());
         params.put(GeoPkgDataStoreFactory.DBTYPE.key, GeoPkgDataStoreFactory.DBTYPE.sample);
+        if (tuning != null) {
+            params.put(GeoPkgDataStoreFactory.TUNING.key, tuning);
+        }
+        params.put(GeoPkgDataStoreFactory.READ_ONLY.key, readOnly);
+        params.put(GeoPkgDataStoreFactory.IMMUTABLE.key, immutable);
 
-        this.connPool = new GeoPkgDataStoreFactory(writerConfig).createDataSource(params);
+        this.connPool = new GeoPkgDataStoreFactory(writerConfig).createSharedDataSource(params);
 
     }
 
     GeoPackage(DataSource dataSource) {
         this.connPool = dataSource;
+        this.readOnly = false;
     }
 
     GeoPackage(JDBCDataStore dataStore) {
         this.dataStore = dataStore;
         this.connPool = dataStore.getDataSource();
+        this.readOnly = ((GeoPkgDialect) dataStore.getSQLDialect()).isReadOnly();
     }
 
     /**
@@ -212,6 +276,38 @@ public class GeoPackage {
         return file;
     }
 
+    /**
+     * Returns the version of a SQLite file, changed by every transaction
+     * committed to it by any connection or process.
+     */
+    public static String version(File file) {
+        File wal = new File(file.getPath() + "-wal");
+        // the file change counter, and the salts of the write ahead log
+        return header(file, 24, 4) + (wal.exists() ? "." + header(wal, 16, 8) + "." + wal.length() : "");
+    }
+
+    /**
+     * Returns bytes of the header of a file in hex, or the size and
+     * modification time of a file too short to have a header yet.
+     */
+    static String header(File file, int offset, int length) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < offset + length) {
+                return file.length() + "@" + file.lastModified();
+            }
+            byte[] bytes = new byte[length];
+            raf.seek(offset);
+            raf.readFully(bytes);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (IOException e) {
+            return file.length() + "@" + file.lastModified();
+        }
+    }
+
     /**
      * The database data source.
      */
@@ -219,16 +315,24 @@ public class GeoPackage {
         return connPool;
     }
 
+    /**
+     * Whether the database is opened read only.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /**
      * Initializes the geopackage database.
      * <p>
-     * This method creates all the necessary metadata tables.
+     * This method creates all the necessary metadata tables, unless the
+     * database is read only.
      * </p>
      */
     public void init() throws IOException {
         try {
             try (Connection cx = connPool.getConnection()) {
-                init(cx);
+                init(cx, readOnly);
                 initialised = true;
             }
         } catch (SQLException e) {
@@ -243,7 +347,18 @@ public class GeoPackage {
      * </p>
      */
     static void init(Connection cx) throws SQLException {
+        init(cx, false);
+    }
+
+    /**
+     * Initializes a geopackage connection, only registering the SQL functions
+     * on read only connections.
+     */
+    static void init(Connection cx, boolean readOnly) throws SQLException {
         createFunctions(cx);
+        if (readOnly) {
+            return;
+        }
         // see if we have to create the table structure 
         boolean initialized = false;
         try (Statement st = cx.createStatement(); ResultSet rs = st.executeQuery("PRAGMA application_id")) {
@@ -652,6 +767,29 @@ public class GeoPackage {
      * dataset.
      */
     public void add(FeatureEntry entry, SimpleFeatureCollection collection) throws IOException {
+        add(entry, collection, null);
+    }
+
+    /**
+     * Adds a new feature dataset to the geopackage, optionally clustering the
+     * rows along a space-filling curve.
+     * <p>
+     * When an order is given the features are sorted by the curve index of
+     * their envelope center before they are inserted, so that rows (and the
+     * pages holding them) that are close in the table are close in space.
+     * Large collections are sorted in bounded memory using temporary files.
+     * </p>
+     *
+     * @param entry Contains metadata about the feature entry.
+     * @param collection The simple feature collection to add to the geopackage.
+     * @param order The curve to sort the features along, may be
+     * <code>null</code> to keep the collection order.
+     *
+     * @throws IOException Any errors occurring while adding the new feature
+     * dataset.
+     */
+    public void add(FeatureEntry entry, SimpleFeatureCollection collection, SpatialOrder order)
+            throws IOException {
         FeatureEntry e = new FeatureEntry();
         e.init(entry);
 
@@ -661,10 +799,11 @@ public class GeoPackage {
 
         create(e, collection.getSchema());
 
+        SimpleFeatureIterator it = order != null
+                ? new SpatialSorter(order, e.getBounds()).sort(collection) : collection.features();
         Transaction tx = new DefaultTransaction();
         try {
             SimpleFeatureWriter w = writer(e, true, null, tx);
-            SimpleFeatureIterator it = collection.features();
             try {
                 while (it.hasNext()) {
                     SimpleFeature f = it.next();
@@ -678,13 +817,13 @@ public class GeoPackage {
                 }
             } finally {
                 w.close();
-                it.close();
             }
             tx.commit();
         } catch (Exception ex) {
             tx.rollback();
             throw new IOException(ex);
         } finally {
+            it.close();
             tx.close();
         }
         /*addGeoPackageContentsEntry(e);
@@ -756,6 +895,72 @@ public class GeoPackage {
         return Features.simple(dataStore().getFeatureReader(q, tx));
     }
 
+    /**
+     * Returns a reader that reads the contents of a feature dataset in
+     * parallel.
+     * <p>
+     * The rowid range of the table is split into <tt>partitions</tt> chunks,
+     * each read and decoded on its own thread and connection; when the
+     * geopackage is backed by a file these are private read-only connections.
+     * This is meant for bulk reads of large tables, such as exports, where the
+     * single cursor and geometry decoding of
+     * {@link #reader(FeatureEntry, Filter, Transaction)} is the bottleneck.
+     * Uncommitted changes of other transactions are not visible.
+     * </p>
+     *
+     * @param entry The feature entry.
+     * @param filter Filter determining what subset of dataset to return, may
+     * be <code>null</code> to specify no filter. It is evaluated in memory.
+     * @param partitions The number of partitions read concurrently.
+     * @param ordered Whether the features must be returned in rowid order;
+     * when <code>false</code> they are returned as soon as they are decoded.
+     */
+    public SimpleFeatureReader reader(FeatureEntry entry, Filter filter, int partitions,
+            boolean ordered) throws IOException {
+        SimpleFeatureType schema = dataStore().getSchema(entry.getTableName());
+
+        Long min = null, max = null;
+        String sql = format("SELECT min(rowid), max(rowid) FROM %s", quote(entry.getTableName()));
+        LOGGER.fine(sql);
+        try (Connection cx = connPool.getConnection();
+                PreparedStatement st = cx.prepareStatement(sql);
+                ResultSet rs = st.executeQuery()) {
+            if (rs.next() && rs.getObject(1) != null) {
+                min = rs.getLong(1);
+                max = rs.getLong(2);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        if (min == null) {
+            // empty table
+            return reader(entry, filter, null);
+        }
+
+        PartitionedFeatureReader.ConnectionFactory connections;
+        if (file != null) {
+            final String url = GeoPkgDataStoreFactory.getJDBCUrl(file, true, false);
+            connections = new PartitionedFeatureReader.ConnectionFactory() {
+                @Override
+                public Connection getConnection() throws SQLException {
+                    SQLiteConfig config = new SQLiteConfig();
+                    config.setReadOnly(true);
+                    config.setOpenMode(SQLiteOpenMode.OPEN_URI);
+                    return config.createConnection(url);
+                }
+            };
+        } else {
+            connections = new PartitionedFeatureReader.ConnectionFactory() {
+                @Override
+                public Connection getConnection() throws SQLException {
+                    return connPool.getConnection();
+                }
+            };
+        }
+        return new PartitionedFeatureReader(schema, entry.getTableName(), filter, connections,
+                min, max, partitions, ordered);
+    }
+
     static Integer findSRID(SimpleFeatureType schema) throws Exception {
         CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
         if (crs == null) {
@@ -972,13 +1177,18 @@ public class GeoPackage {
 
     /**
      * Create a spatial index
+     * <p>
+     * The rtree is bulk loaded from the existing rows in a single transaction
+     * and the triggers that maintain it are installed afterwards, so the
+     * initial load does not go through the ST_* SQL functions.
+     * </p>
      *
      * @param e feature entry to create spatial index for
      */
     public void createSpatialIndex(FeatureEntry e) throws IOException {
         Map<String, String> properties = new HashMap<String, String>();
 
-        PrimaryKey pk = ((JDBCFeatureStore) (dataStore.getFeatureSource(e.getTableName()))).getPrimaryKey();
+        PrimaryKey pk = ((JDBCFeatureStore) (dataStore().getFeatureSource(e.getTableName()))).getPrimaryKey();
         if (pk.getColumns().size() != 1) {
             throw new IOException("Spatial index only supported for primary key of single column.");
         }
@@ -987,12 +1197,29 @@ public class GeoPackage {
         properties.put("c", e.getGeometryColumn());
         properties.put("i", pk.getColumns().get(0).getName());
 
+        SpatialIndexBuilder builder = new SpatialIndexBuilder(e.getTableName(),
+                e.getGeometryColumn(), pk.getColumns().get(0).getName(), getSpatialIndexName(e));
+
         Connection cx;
         try {
             cx = connPool.getConnection();
+            boolean autoCommit = cx.getAutoCommit();
             try {
+                cx.setAutoCommit(false);
                 runScript(SPATIAL_INDEX + ".sql", cx, properties);
+                builder.build(cx);
+                runScript(SPATIAL_INDEX + "_triggers.sql", cx, properties);
+                cx.commit();
+            } catch (Throwable t) {
+                // runtime failures of the builder must not leave a partial index either
+                try {
+                    cx.rollback();
+                } catch (SQLException ex) {
+                    t.addSuppressed(ex);
+                }
+                throw t;
             } finally {
+                cx.setAutoCommit(autoCommit);
                 cx.close();
             }
 
@@ -1039,12 +1266,13 @@ public class GeoPackage {
                         "SELECT a.*, c.organization_coordsys_id, c.definition"
                         + " FROM %s a, %s c"
                         + " WHERE a.srs_id = c.srs_id"
-                        + " AND a.data_type = ?", GEOPACKAGE_CONTENTS, SPATIAL_REF_SYS);
+                        + " AND a.data_type IN (?, ?)", GEOPACKAGE_CONTENTS, SPATIAL_REF_SYS);
                 LOGGER.fine(sql);
 
                 PreparedStatement ps = cx.prepareStatement(sql);
                 try {
                     ps.setString(1, DataType.Tile.value());
+                    ps.setString(2, Entry.DataType.GriddedCoverage.value());
 
                     ResultSet rs = ps.executeQuery();
                     try {
@@ -1081,13 +1309,14 @@ public class GeoPackage {
                         + " FROM %s a, %s c"
                         + " WHERE a.srs_id = c.srs_id"
                         + " AND a.table_name = ?"
-                        + " AND a.data_type = ?", GEOPACKAGE_CONTENTS, SPATIAL_REF_SYS);
+                        + " AND a.data_type IN (?, ?)", GEOPACKAGE_CONTENTS, SPATIAL_REF_SYS);
                 LOGGER.fine(sql);
 
                 PreparedStatement ps = cx.prepareStatement(sql);
                 try {
                     ps.setString(1, name);
                     ps.setString(2, DataType.Tile.value());
+                    ps.setString(3, Entry.DataType.GriddedCoverage.value());
 
                     ResultSet rs = ps.executeQuery();
                     try {
@@ -1238,7 +1467,52 @@ public class GeoPackage {
     }
 
     /**
-     * Retrieve tiles within certain zooms and column/row boundaries
+     * Adds tiles to a tile entry in a single transaction, replacing the tiles
+     * already stored at the same positions.
+     *
+     * @param entry the tile entry
+     * @param tiles the tiles to add
+     * @throws IOException
+     */
+    public void addOrReplace(TileEntry entry, Collection<Tile> tiles) throws IOException {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        String sql = format("INSERT OR REPLACE INTO %s (zoom_level, tile_column, tile_row, tile_data)"
+                + " VALUES (?,?,?,?)", quote(entry.getTableName()));
+        try {
+            Connection cx = connPool.getConnection();
+            try {
+                cx.setAutoCommit(false);
+                PreparedStatement ps = cx.prepareStatement(sql);
+                try {
+                    for (Tile tile : tiles) {
+                        ps.setInt(1, tile.getZoom());
+                        ps.setInt(2, tile.getColumn());
+                        ps.setInt(3, tile.getRow());
+                        ps.setBytes(4, tile.getData());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    cx.commit();
+                } catch (SQLException e) {
+                    cx.rollback();
+                    throw e;
+                } finally {
+                    close(ps);
+                    cx.setAutoCommit(true);
+                }
+            } finally {
+                close(cx);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Deletes tiles within certain zooms and column/row boundaries, null
+     * boundaries are left open.
      *
      * @param entry the tile entry
      * @param lowZoom low zoom boundary
@@ -1247,49 +1521,138 @@ public class GeoPackage {
      * @param highCol high column boundary
      * @param lowRow low row boundary
      * @param highRow high row boundary
-     * @return
+     * @return the number of tiles deleted
      * @throws IOException
      */
-    public TileReader reader(TileEntry entry, Integer lowZoom, Integer highZoom,
+    public int delete(TileEntry entry, Integer lowZoom, Integer highZoom,
             Integer lowCol, Integer highCol, Integer lowRow, Integer highRow) throws IOException {
-
+        String sql = format("DELETE FROM %s"
+                + " WHERE zoom_level >= ? AND zoom_level <= ?"
+                + " AND tile_column >= ? AND tile_column <= ?"
+                + " AND tile_row >= ? AND tile_row <= ?", quote(entry.getTableName()));
         try {
-            List<String> q = new ArrayList();
-            if (lowZoom != null) {
-                q.add("zoom_level >= " + lowZoom);
-            }
-            if (highZoom != null) {
-                q.add("zoom_level <= " + highZoom);
-            }
-            if (lowCol != null) {
-                q.add("tile_column >= " + lowCol);
-            }
-            if (highCol != null) {
-                q.add("tile_column <= " + highCol);
-            }
-            if (lowRow != null) {
-                q.add("tile_row >= " + lowRow);
-            }
-            if (highRow != null) {
-                q.add("tile_row <= " + highRow);
-            }
-
-//            StringBuffer sql = new StringBuffer("SELECT * FROM ").append(entry.getTableName());
-            StringBuffer sql = new StringBuffer(format("SELECT * FROM '%s'", entry.getTableName()));
-            if (!q.isEmpty()) {
-                sql.append(" WHERE ");
-                for (String s : q) {
-                    sql.append(s).append(" AND ");
+            Connection cx = connPool.getConnection();
+            try {
+                PreparedStatement ps = prepare(cx, sql)
+                        .set(lowZoom != null ? lowZoom : Integer.MIN_VALUE)
+                        .set(highZoom != null ? highZoom : Integer.MAX_VALUE)
+                        .set(lowCol != null ? lowCol : Integer.MIN_VALUE)
+                        .set(highCol != null ? highCol : Integer.MAX_VALUE)
+                        .set(lowRow != null ? lowRow : Integer.MIN_VALUE)
+                        .set(highRow != null ? highRow : Integer.MAX_VALUE)
+                        .log(Level.FINE).statement();
+                try {
+                    return ps.executeUpdate();
+                } finally {
+                    close(ps);
                 }
-                sql.setLength(sql.length() - 5);
+            } finally {
+                close(cx);
             }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
 
+    /**
+     * Returns the zoom, column, row and data length of the tiles within
+     * certain zooms and column/row boundaries, without reading their data.
+     * Null boundaries are left open.
+     *
+     * @param entry the tile entry
+     * @param lowZoom low zoom boundary
+     * @param highZoom high zoom boundary
+     * @param lowCol low column boundary
+     * @param highCol high column boundary
+     * @param lowRow low row boundary
+     * @param highRow high row boundary
+     * @return the {zoom, column, row, length} of each tile
+     * @throws IOException
+     */
+    public List<long[]> sizes(TileEntry entry, Integer lowZoom, Integer highZoom,
+            Integer lowCol, Integer highCol, Integer lowRow, Integer highRow) throws IOException {
+        String sql = format("SELECT zoom_level, tile_column, tile_row, length(tile_data) FROM %s"
+                + " WHERE zoom_level >= ? AND zoom_level <= ?"
+                + " AND tile_column >= ? AND tile_column <= ?"
+                + " AND tile_row >= ? AND tile_row <= ?", quote(entry.getTableName()));
+        List<long[]> sizes = new ArrayList<>();
+        try {
             Connection cx = connPool.getConnection();
+            try {
+                PreparedStatement ps = prepare(cx, sql)
+                        .set(lowZoom != null ? lowZoom : Integer.MIN_VALUE)
+                        .set(highZoom != null ? highZoom : Integer.MAX_VALUE)
+                        .set(lowCol != null ? lowCol : Integer.MIN_VALUE)
+                        .set(highCol != null ? highCol : Integer.MAX_VALUE)
+                        .set(lowRow != null ? lowRow : Integer.MIN_VALUE)
+                        .set(highRow != null ? highRow : Integer.MAX_VALUE)
+                        .log(Level.FINE).statement();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        sizes.add(new long[]{rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getLong(4)});
+                    }
+                } finally {
+                    close(ps);
+                }
+            } finally {
+                close(cx);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return sizes;
+    }
 
-            Statement st = cx.createStatement();
-            ResultSet rs = st.executeQuery(sql.toString());
+    /**
+     * Retrieve tiles within certain zooms and column/row boundaries
+     *
+     * @param entry the tile entry
+     * @param lowZoom low zoom boundary
+     * @param highZoom high zoom boundary
+     * @param lowCol low column boundary
+     * @param highCol high column boundary
+     * @param lowRow low row boundary
+     * @param highRow high row boundary
+     * @return
+     * @throws IOException
+     */
+    public TileReader reader(TileEntry entry, Integer lowZoom, Integer highZoom,
+            Integer lowCol, Integer highCol, Integer lowRow, Integer highRow) throws IOException {
 
-            return new TileReader(rs, cx);
+        // missing bounds are left open so that every request for a table
+        // shares the same statement
+        String table = quote(entry.getTableName());
+        GriddedCoverage gridded = entry.getGriddedCoverage();
+        String sql;
+        if (gridded != null && gridded.tileAncillary) {
+            // with the scale and offset of each tile, see TileReader
+            sql = format("SELECT t.*, a.scale AS tile_scale, a.\"offset\" AS tile_offset"
+                    + " FROM %s t LEFT JOIN %s a ON a.tpudt_name = %s AND a.tpudt_id = t.id"
+                    + " WHERE t.zoom_level >= ? AND t.zoom_level <= ?"
+                    + " AND t.tile_column >= ? AND t.tile_column <= ?"
+                    + " AND t.tile_row >= ? AND t.tile_row <= ?", table, GRIDDED_TILE_ANCILLARY, table);
+        } else {
+            sql = format("SELECT * FROM %s"
+                    + " WHERE zoom_level >= ? AND zoom_level <= ?"
+                    + " AND tile_column >= ? AND tile_column <= ?"
+                    + " AND tile_row >= ? AND tile_row <= ?", table);
+        }
+        try {
+            Connection cx = connPool.getConnection();
+            try {
+                PreparedStatement ps = prepare(cx, sql)
+                        .set(lowZoom != null ? lowZoom : Integer.MIN_VALUE)
+                        .set(highZoom != null ? highZoom : Integer.MAX_VALUE)
+                        .set(lowCol != null ? lowCol : Integer.MIN_VALUE)
+                        .set(highCol != null ? highCol : Integer.MAX_VALUE)
+                        .set(lowRow != null ? lowRow : Integer.MIN_VALUE)
+                        .set(highRow != null ? highRow : Integer.MAX_VALUE)
+                        .log(Level.FINE).statement();
+                return new TileReader(ps.executeQuery(), cx);
+            } catch (SQLException e) {
+                close(cx);
+                throw e;
+            }
 
         } catch (SQLException e) {
             throw new IOException(e);
@@ -1297,6 +1660,14 @@ public class GeoPackage {
 
     }
 
+    /**
+     * Quotes a table name for use in SQL, the name cannot be bound as a
+     * statement parameter.
+     */
+    static String quote(String tableName) {
+        return "'" + tableName.replace("'", "''") + "'";
+    }
+
     protected String getSpatialIndexName(FeatureEntry entry) {
         return "rtree_" + entry.getTableName() + "_" + entry.getGeometryColumn();
     }
@@ -1346,38 +1717,22 @@ public class GeoPackage {
      * @param maxY Optional maximum y boundary.
      */
     public Set<Identifier> searchSpatialIndex(FeatureEntry entry, Double minX, Double minY, Double maxX, Double maxY) throws IOException {
-        List<String> q = new ArrayList();
-
-        if (minX != null) {
-            q.add("minx >= " + minX);
-        }
-        if (minY != null) {
-            q.add("miny >= " + minY);
-        }
-        if (maxX != null) {
-            q.add("maxx <= " + maxX);
-        }
-        if (maxY != null) {
-            q.add("maxy <= " + maxY);
-        }
-
-        StringBuffer sql = new StringBuffer(format("SELECT id FROM '%s'", getSpatialIndexName(entry)));
-        if (!q.isEmpty()) {
-            sql.append(" WHERE ");
-            for (String s : q) {
-                sql.append(s).append(" AND ");
-            }
-            sql.setLength(sql.length() - 5);
-        }
-
+        String sql = format("SELECT id FROM %s"
+                + " WHERE minx >= ? AND miny >= ? AND maxx <= ? AND maxy <= ?",
+                quote(getSpatialIndexName(entry)));
         try {
 
             Connection cx = connPool.getConnection();
 
             try {
-                Statement st = cx.createStatement();
+                PreparedStatement st = prepare(cx, sql)
+                        .set(minX != null ? minX : -Double.MAX_VALUE)
+                        .set(minY != null ? minY : -Double.MAX_VALUE)
+                        .set(maxX != null ? maxX : Double.MAX_VALUE)
+                        .set(maxY != null ? maxY : Double.MAX_VALUE)
+                        .log(Level.FINE).statement();
                 try {
-                    ResultSet rs = st.executeQuery(sql.toString());
+                    ResultSet rs = st.executeQuery();
 
                     try {
                         HashSet<Identifier> ids = new HashSet<Identifier>();
@@ -1418,16 +1773,14 @@ public class GeoPackage {
             int tileBounds = -1;
 
             // The pyramid user data table has a unique key on zoom_level, tile_column and tile_row
-            StringBuffer sql = new StringBuffer("SELECT " + (isMax ? "MAX" : "MIN") + "( " + (isRow ? "tile_row" : "tile_column") + ") FROM ");
-            sql.append(format("'%s'", entry.getTableName()));
-            sql.append(" WHERE zoom_level == ");
-            sql.append(zoom);
+            String sql = format("SELECT %s(%s) FROM %s WHERE zoom_level = ?", isMax ? "MAX" : "MIN",
+                    isRow ? "tile_row" : "tile_column", quote(entry.getTableName()));
 
             Connection cx = connPool.getConnection();
             try {
-                Statement st = cx.createStatement();
+                PreparedStatement st = prepare(cx, sql).set(zoom).log(Level.FINE).statement();
                 try {
-                    ResultSet rs = st.executeQuery(sql.toString());
+                    ResultSet rs = st.executeQuery();
                     try {
                         rs.next();
                         tileBounds = rs.getInt(1);
@@ -1463,14 +1816,13 @@ public class GeoPackage {
             int[] bounds = {};
             String tableName = rs.getString("table_name");
             // The pyramid user data table has a unique key on zoom_level, tile_column and tile_row
-            StringBuilder sql = new StringBuilder("SELECT MIN(tile_column) as min_column, MIN(tile_row) as min_row, MAX(tile_column) as max_column, MAX(tile_row) as max_row FROM ");
-            sql.append(format("'%s'", tableName));
-            sql.append(" WHERE zoom_level == ");
-            sql.append(zoom);
+            String sql = format("SELECT MIN(tile_column) as min_column, MIN(tile_row) as min_row,"
+                    + " MAX(tile_column) as max_column, MAX(tile_row) as max_row FROM %s"
+                    + " WHERE zoom_level = ?", quote(tableName));
 
-            Statement st = cx.createStatement();
+            PreparedStatement st = prepare(cx, sql).set(zoom).log(Level.FINE).statement();
             try {
-                ResultSet rsz = st.executeQuery(sql.toString());
+                ResultSet rsz = st.executeQuery();
                 try {
                     rsz.next();
                     int minCol = rsz.getInt("min_column");
@@ -1507,12 +1859,12 @@ public class GeoPackage {
             String tableName = rs.getString("table_name");
             int zoomLimit = -1;
 
-            StringBuilder sql = new StringBuilder("SELECT " + (isMax ? "MAX" : "MIN") + "(zoom_level) FROM ");
-            sql.append(format("'%s'", tableName));
+            String sql = format("SELECT %s(zoom_level) FROM %s", isMax ? "MAX" : "MIN",
+                    quote(tableName));
 
-            Statement st = cx.createStatement();
+            PreparedStatement st = prepare(cx, sql).log(Level.FINE).statement();
             try {
-                ResultSet rsZoom = st.executeQuery(sql.toString());
+                ResultSet rsZoom = st.executeQuery();
                 try {
                     rsZoom.next();
                     zoomLimit = rsZoom.getInt(1);
@@ -1546,6 +1898,9 @@ public class GeoPackage {
     static TileEntry createTileEntry(ResultSet rs, Connection cx) throws SQLException, IOException {
         TileEntry e = new TileEntry();
         initEntry(e, rs);
+        if (Entry.DataType.GriddedCoverage.value().equals(rs.getString("data_type"))) {
+            e.setGriddedCoverage(createGriddedCoverage(e.getTableName(), cx));
+        }
 
         // Set TileEntry members not set by initEntry
         e.setMinZoomLevel(getMinZoom(rs, cx));
@@ -1593,6 +1948,86 @@ public class GeoPackage {
         return e;
     }
 
+    /**
+     * Reads the ancillary data of a tile pyramid of the 2D gridded coverage
+     * extension.
+     *
+     * @param tableName the tile pyramid user data table
+     * @param cx Connection to the GeoPackage
+     * @return the gridded coverage, with the defaults of the extension for
+     * missing values
+     * @throws SQLException
+     */
+    static GriddedCoverage createGriddedCoverage(String tableName, Connection cx) throws SQLException {
+        GriddedCoverage gc = new GriddedCoverage();
+        try (PreparedStatement ps = cx.prepareStatement(format(
+                "SELECT * FROM %s WHERE tile_matrix_set_name = ?", GRIDDED_COVERAGE_ANCILLARY))) {
+            ps.setString(1, tableName);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    gc.setDatatype(rs.getString("datatype"));
+                    Double scale = getDouble(rs, "scale");
+                    Double offset = getDouble(rs, "offset");
+                    gc.setScale(scale != null ? scale : 1);
+                    gc.setOffset(offset != null ? offset : 0);
+                    gc.setPrecision(getDouble(rs, "precision"));
+                    gc.setDataNull(getDouble(rs, "data_null"));
+                    // columns of the final version of the extension only
+                    String encoding = getString(rs, "grid_cell_encoding");
+                    if (encoding != null) {
+                        gc.setGridCellEncoding(encoding);
+                    }
+                    gc.setUom(getString(rs, "uom"));
+                    String field = getString(rs, "field_name");
+                    if (field != null) {
+                        gc.setFieldName(field);
+                    }
+                    String quantity = getString(rs, "quantity_definition");
+                    if (quantity != null) {
+                        gc.setQuantityDefinition(quantity);
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "Cannot read the gridded coverage ancillary data of " + tableName, ex);
+        }
+        // tiles with values that are no longer whole numbers
+        try (PreparedStatement ps = cx.prepareStatement(format(
+                "SELECT 1 FROM %s WHERE tpudt_name = ?"
+                + " AND (scale <> 1 OR \"offset\" <> ROUND(\"offset\")) LIMIT 1", GRIDDED_TILE_ANCILLARY))) {
+            ps.setString(1, tableName);
+            try (ResultSet rs = ps.executeQuery()) {
+                gc.setTilesScaled(rs.next());
+            }
+            gc.tileAncillary = true;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.FINE, "No gridded tile ancillary data for " + tableName, ex);
+        }
+        return gc;
+    }
+
+    /**
+     * Returns the value of an optional column, <code>null</code> if the
+     * column is missing or null.
+     */
+    private static String getString(ResultSet rs, String column) {
+        try {
+            return rs.getString(rs.findColumn(column));
+        } catch (SQLException ex) {
+            return null;
+        }
+    }
+
+    private static Double getDouble(ResultSet rs, String column) {
+        try {
+            int index = rs.findColumn(column);
+            double value = rs.getDouble(index);
+            return rs.wasNull() ? null : value;
+        } catch (SQLException ex) {
+            return null;
+        }
+    }
+
     /**
      * Returns the EPSG code (an Integer) for the give CRS.
      *
@@ -1717,6 +2152,7 @@ public class GeoPackage {
     JDBCDataStore createDataStore() throws IOException {
         Map<String, Object> params = new HashMap<>();
         params.put(GeoPkgDataStoreFactory.DATASOURCE.key, connPool);
+        params.put(GeoPkgDataStoreFactory.READ_ONLY.key, readOnly);
         return new GeoPkgDataStoreFactory(writerConfig).createDataStore(params);
     }
 }
@@ -0,0 +1,320 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.geotools.data.jdbc.datasource.DBCPDataSource;
+
+/**
+ * Shares one connection pool per GeoPackage file across the whole JVM.
+ * <p>
+ * The same file is typically opened by a vector datastore, a coverage
+ * reader, the image readers of a mosaic and any number of short lived
+ * {@link GeoPackage} instances, each of which used to create its own pool,
+ * with its own file descriptors and page caches. Pools are instead looked up
+ * here by canonical path and open mode and reference counted: every
+ * {@link #acquire} hands out a data source whose <code>close()</code> drops
+ * one reference. A writable pool is closed as soon as its last reference is,
+ * so the file is complete and unlocked once its users are done with it. A
+ * read only pool is kept for {@value #PROPERTY_IDLE_TIMEOUT} seconds (60 by
+ * default) so that readers opening the file over and over reuse its
+ * connections.
+ * </p>
+ * <p>
+ * The pool of a file is created with the settings of whoever opens it
+ * first, and its size is capped at {@value #PROPERTY_MAX_CONNECTIONS}
+ * connections when that property is set. Later openers asking for other
+ * settings share the pool as is, a warning naming both settings is logged
+ * the first time each of them does.
+ * </p>
+ */
+public class GeoPackageRegistry {
+
+    static final Logger LOGGER = GeoPackage.LOGGER;
+
+    /**
+     * System property capping the number of connections open on each file.
+     */
+    public static final String PROPERTY_MAX_CONNECTIONS = "geopackage.registry.maxConnections";
+
+    /**
+     * System property setting how many seconds an unused read only pool is
+     * kept open.
+     */
+    public static final String PROPERTY_IDLE_TIMEOUT = "geopackage.registry.idleTimeout";
+
+    static final GeoPackageRegistry INSTANCE = new GeoPackageRegistry(
+            Integer.getInteger(PROPERTY_MAX_CONNECTIONS, 0),
+            Integer.getInteger(PROPERTY_IDLE_TIMEOUT, 60));
+
+    /**
+     * Returns the registry shared by the JVM.
+     */
+    public static GeoPackageRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Creates the pool of a file the first time it is acquired.
+     */
+    interface PoolFactory {
+        BasicDataSource create() throws IOException;
+    }
+
+    static class Pool {
+        final String key;
+
+        final BasicDataSource dataSource;
+
+        final boolean retain;
+
+        /**
+         * The settings the pool was created with, null if unknown.
+         */
+        final Object settings;
+
+        /**
+         * The other settings asked for by later openers, already warned about.
+         */
+        final Set<Object> ignoredSettings = new HashSet<>();
+
+        int references;
+
+        ScheduledFuture<?> eviction;
+
+        Pool(String key, BasicDataSource dataSource, boolean retain, Object settings) {
+            this.key = key;
+            this.dataSource = dataSource;
+            this.retain = retain;
+            this.settings = settings;
+        }
+    }
+
+    /**
+     * A reference to a shared pool, closing it releases the reference.
+     */
+    static class SharedDataSource extends DBCPDataSource {
+
+        final GeoPackageRegistry registry;
+
+        final Pool pool;
+
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        SharedDataSource(GeoPackageRegistry registry, Pool pool) {
+            super(pool.dataSource);
+            this.registry = registry;
+            this.pool = pool;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed.compareAndSet(false, true)) {
+                registry.release(pool);
+            }
+        }
+    }
+
+    final int maxConnections;
+
+    final long idleTimeout;
+
+    final Map<String, Pool> pools = new HashMap<>();
+
+    ScheduledExecutorService evictor;
+
+    /**
+     * @param maxConnections the maximum number of connections per file, 0 to
+     * keep the pool settings
+     * @param idleTimeout the number of seconds an unused read only pool is
+     * kept open, 0 to close it right away
+     */
+    GeoPackageRegistry(int maxConnections, long idleTimeout) {
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Returns a reference to the pool of a file, creating the pool if needed.
+     *
+     * @param file the database file
+     * @param mode the open mode, files opened in different modes get
+     * different pools
+     * @param readOnly whether the pool is kept open while unused
+     * @param factory creates the pool
+     */
+    SharedDataSource acquire(File file, String mode, boolean readOnly, PoolFactory factory)
+            throws IOException {
+        return acquire(file, mode, readOnly, null, factory);
+    }
+
+    /**
+     * Returns a reference to the pool of a file, creating the pool if needed.
+     *
+     * @param file the database file
+     * @param mode the open mode, files opened in different modes get
+     * different pools
+     * @param readOnly whether the pool is kept open while unused
+     * @param settings the settings the factory creates the pool with, compared
+     * with those of the existing pool, null to skip the comparison
+     * @param factory creates the pool
+     */
+    synchronized SharedDataSource acquire(File file, String mode, boolean readOnly,
+            Object settings, PoolFactory factory) throws IOException {
+        String key = file.getCanonicalPath() + "?" + mode;
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            BasicDataSource dataSource = factory.create();
+            if (maxConnections > 0
+                    && (dataSource.getMaxActive() <= 0 || dataSource.getMaxActive() > maxConnections)) {
+                dataSource.setMaxActive(maxConnections);
+                dataSource.setMaxIdle(Math.min(dataSource.getMaxIdle(), maxConnections));
+            }
+            pool = new Pool(key, dataSource, readOnly, settings);
+            pools.put(key, pool);
+            LOGGER.fine("Opened connection pool for " + key);
+        } else if (settings != null && pool.settings != null && !settings.equals(pool.settings)
+                && pool.ignoredSettings.add(settings)) {
+            LOGGER.warning("The connection pool for " + key + " is shared with the settings "
+                    + pool.settings + " it was opened with, ignoring " + settings);
+        }
+        if (pool.eviction != null) {
+            pool.eviction.cancel(false);
+            pool.eviction = null;
+        }
+        pool.references++;
+        return new SharedDataSource(this, pool);
+    }
+
+    synchronized void release(final Pool pool) {
+        if (--pool.references > 0) {
+            return;
+        }
+        if (pool.retain && idleTimeout > 0) {
+            pool.eviction = evictor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    evict(pool);
+                }
+            }, idleTimeout, TimeUnit.SECONDS);
+        } else {
+            close(pool);
+        }
+    }
+
+    synchronized void evict(Pool pool) {
+        if (pool.references == 0 && pools.get(pool.key) == pool) {
+            close(pool);
+        }
+    }
+
+    void close(Pool pool) {
+        pools.remove(pool.key);
+        try {
+            pool.dataSource.close();
+            LOGGER.fine("Closed connection pool for " + pool.key);
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Error closing connection pool for " + pool.key, e);
+        }
+    }
+
+    ScheduledExecutorService evictor() {
+        if (evictor == null) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gpkg-registry-evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return evictor;
+    }
+
+    /**
+     * Returns the number of pools currently open.
+     */
+    public synchronized int size() {
+        return pools.size();
+    }
+
+    /**
+     * Returns true if a pool of a file is referenced, i.e., the file is open
+     * by a data store, a coverage reader or a writer.
+     *
+     * @param file the database file
+     */
+    public synchronized boolean isInUse(File file) throws IOException {
+        String prefix = file.getCanonicalPath() + "?";
+        for (Pool pool : pools.values()) {
+            if (pool.key.startsWith(prefix) && pool.references > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes the pools of a file no one holds a reference to anymore, e.g.,
+     * before the file is rewritten.
+     *
+     * @param file the database file
+     */
+    public synchronized void evictIdle(File file) throws IOException {
+        String prefix = file.getCanonicalPath() + "?";
+        for (Pool pool : pools.values().toArray(new Pool[0])) {
+            if (pool.key.startsWith(prefix) && pool.references == 0) {
+                if (pool.eviction != null) {
+                    pool.eviction.cancel(false);
+                }
+                close(pool);
+            }
+        }
+    }
+
+    /**
+     * Closes the pools no one holds a reference to anymore, without waiting
+     * for them to time out.
+     */
+    public synchronized void evictIdle() {
+        for (Pool pool : pools.values().toArray(new Pool[0])) {
+            if (pool.references == 0) {
+                if (pool.eviction != null) {
+                    pool.eviction.cancel(false);
+                }
+                close(pool);
+            }
+        }
+    }
+}
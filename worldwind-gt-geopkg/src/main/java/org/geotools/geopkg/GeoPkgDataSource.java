@@ -0,0 +1,48 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.apache.commons.dbcp.BasicDataSource;
+
+/**
+ * The connection pool of a GeoPackage, queueing writes on a
+ * {@link WriteQueue} when the database is writable.
+ */
+class GeoPkgDataSource extends BasicDataSource {
+
+    /**
+     * the write queue, <code>null</code> if writes are not queued
+     */
+    WriteQueue writeQueue;
+
+    public WriteQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    public void setWriteQueue(WriteQueue writeQueue) {
+        this.writeQueue = writeQueue;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Connection cx = super.getConnection();
+        return writeQueue != null ? writeQueue.wrap(cx) : cx;
+    }
+}
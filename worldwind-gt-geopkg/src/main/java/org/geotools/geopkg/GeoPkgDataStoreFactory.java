@@ -18,14 +18,20 @@ package org.geotools.geopkg;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
 import org.apache.commons.dbcp.BasicDataSource;
+import org.geotools.data.jdbc.datasource.ManageableDataSource;
 import org.geotools.geopkg.geom.GeoPkgGeomWriter;
 import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.jdbc.JDBCDataStoreFactory;
 import org.geotools.jdbc.SQLDialect;
 import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteOpenMode;
 
 /**
  * The GeoPackage DataStore Factory.
@@ -46,6 +52,61 @@ public class GeoPkgDataStoreFactory extends JDBCDataStoreFactory {
     /** parameter for database instance */
     public static final Param DATABASE = new Param("database", File.class, "Database", true );
 
+    /** SQLite tuning profile */
+    public static final Param TUNING = new Param("tuning", String.class,
+            "SQLite tuning profile, one of " + SQLiteTuning.PROFILES, false, SQLiteTuning.SAFE_DEFAULT,
+            Collections.singletonMap(Param.OPTIONS, SQLiteTuning.PROFILES));
+
+    /** journal mode, overrides the tuning profile */
+    public static final Param JOURNAL_MODE = new Param("journal_mode", String.class,
+            "SQLite journal mode (DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF)", false);
+
+    /** synchronous mode, overrides the tuning profile */
+    public static final Param SYNCHRONOUS = new Param("synchronous", String.class,
+            "SQLite synchronous mode (OFF, NORMAL, FULL)", false);
+
+    /** page cache size, overrides the tuning profile */
+    public static final Param CACHE_SIZE = new Param("cache_size", Integer.class,
+            "SQLite page cache size, in pages if positive or KB if negative", false);
+
+    /** memory map size, overrides the tuning profile */
+    public static final Param MMAP_SIZE = new Param("mmap_size", Long.class,
+            "Maximum number of bytes of the database file to memory map", false);
+
+    /** temp store, overrides the tuning profile */
+    public static final Param TEMP_STORE = new Param("temp_store", String.class,
+            "SQLite temporary storage (DEFAULT, FILE, MEMORY)", false);
+
+    /** page size, overrides the tuning profile */
+    public static final Param PAGE_SIZE = new Param("page_size", Integer.class,
+            "SQLite page size in bytes, only effective on new databases", false);
+
+    /** read only flag */
+    public static final Param READ_ONLY = new Param("read_only", Boolean.class,
+            "Open the database read only, without creating the GeoPackage tables", false,
+            Boolean.FALSE);
+
+    /** immutable flag */
+    public static final Param IMMUTABLE = new Param("immutable", Boolean.class,
+            "Open the database read only and skip all file locking, only safe if the file "
+            + "is never modified while open", false, Boolean.FALSE);
+
+    /** write queue capacity */
+    public static final Param WRITE_QUEUE = new Param("write_queue", Integer.class,
+            "Maximum number of transactions waiting to write, 0 to let them compete for the "
+            + "database lock", false, WriteQueue.DEFAULT_CAPACITY);
+
+    /** write queue timeout */
+    public static final Param WRITE_TIMEOUT = new Param("write_timeout", Integer.class,
+            "Seconds a transaction waits in the write queue before failing", false,
+            WriteQueue.DEFAULT_TIMEOUT);
+
+    /**
+     * prepared statements cached per connection when
+     * {@link #MAX_OPEN_PREPARED_STATEMENTS} is not set
+     */
+    static final int DEFAULT_MAX_PREPARED_STATEMENTS = 50;
+
     /**
      * base location to store database files
      */
@@ -97,6 +158,14 @@ public class GeoPkgDataStoreFactory extends JDBCDataStoreFactory {
 
     @Override
     protected String getJDBCUrl(Map params) throws IOException {
+        return getJDBCUrl(getDatabaseFile(params), isReadOnly(params),
+                Boolean.TRUE.equals(IMMUTABLE.lookUp(params)));
+    }
+
+    /**
+     * Returns the database file, resolved against the base directory.
+     */
+    File getDatabaseFile(Map params) throws IOException {
         File db = (File) DATABASE.lookUp(params);
         if (db.getPath().startsWith("file:")) {
             db = new File(db.getPath().substring(5));
@@ -107,7 +176,30 @@ public class GeoPkgDataStoreFactory extends JDBCDataStoreFactory {
                 db = new File(baseDirectory, db.getPath());
             }
         }
-        return "jdbc:sqlite:" + db;
+        return db;
+    }
+
+    /**
+     * Returns the url of a database file. Read only databases are opened
+     * through a <code>file:</code> uri with <code>mode=ro</code> and,
+     * optionally, <code>immutable=1</code>, which tells SQLite the file cannot
+     * change and so needs neither locks nor change detection.
+     */
+    static String getJDBCUrl(File db, boolean readOnly, boolean immutable) {
+        if (!readOnly && !immutable) {
+            return "jdbc:sqlite:" + db;
+        }
+        String url = "jdbc:sqlite:" + db.getAbsoluteFile().toURI() + "?mode=ro";
+        return immutable ? url + "&immutable=1" : url;
+    }
+
+    /**
+     * Whether the parameters ask for a read only database, either explicitly
+     * or by declaring it immutable.
+     */
+    static boolean isReadOnly(Map params) throws IOException {
+        return Boolean.TRUE.equals(READ_ONLY.lookUp(params))
+                || Boolean.TRUE.equals(IMMUTABLE.lookUp(params));
     }
 
     @Override
@@ -125,12 +217,35 @@ public class GeoPkgDataStoreFactory extends JDBCDataStoreFactory {
         parameters.put(USER.key, USER);
         //replace dbtype
         parameters.put(DBTYPE.key, DBTYPE);
+
+        parameters.put(TUNING.key, TUNING);
+        parameters.put(JOURNAL_MODE.key, JOURNAL_MODE);
+        parameters.put(SYNCHRONOUS.key, SYNCHRONOUS);
+        parameters.put(CACHE_SIZE.key, CACHE_SIZE);
+        parameters.put(MMAP_SIZE.key, MMAP_SIZE);
+        parameters.put(TEMP_STORE.key, TEMP_STORE);
+        parameters.put(PAGE_SIZE.key, PAGE_SIZE);
+        parameters.put(READ_ONLY.key, READ_ONLY);
+        parameters.put(IMMUTABLE.key, IMMUTABLE);
+        parameters.put(WRITE_QUEUE.key, WRITE_QUEUE);
+        parameters.put(WRITE_TIMEOUT.key, WRITE_TIMEOUT);
     }
 
+    /**
+     * Creates the connection pool of a database.
+     * <p>
+     * Unless the database is read only, writes are serialized on a fair,
+     * bounded {@link WriteQueue} rather than left to fail on the SQLite
+     * database lock, and the pool is sized for one reader per processor on
+     * top of the writer and the transactions waiting in the queue. Reads only
+     * proceed alongside a write with a WAL journal, see
+     * {@link SQLiteTuning#READ_MOSTLY_SERVER}.
+     * </p>
+     */
     @Override
     public BasicDataSource createDataSource(Map params) throws IOException {
         //create a datasource
-        BasicDataSource dataSource = new BasicDataSource();
+        GeoPkgDataSource dataSource = new GeoPkgDataSource();
 
         // driver
         dataSource.setDriverClassName(getDriverClassName());
@@ -143,22 +258,154 @@ public class GeoPkgDataStoreFactory extends JDBCDataStoreFactory {
 
         //dataSource.setTestOnBorrow(true);
         //dataSource.setValidationQuery(getValidationQuery());
-        addConnectionProperties(dataSource);
+        boolean readOnly = isReadOnly(params);
+        SQLiteTuning tuning = lookUpTuning(params);
+        // a shared cache locks tables against readers while they are written
+        boolean sharedCache = !readOnly && !"WAL".equals(tuning.getJournalMode());
+        addConnectionProperties(dataSource, readOnly, sharedCache);
+
+        Integer queued = (Integer) WRITE_QUEUE.lookUp(params);
+        if (queued == null) {
+            queued = WriteQueue.DEFAULT_CAPACITY;
+        }
+        if (!readOnly && queued > 0) {
+            Integer timeout = (Integer) WRITE_TIMEOUT.lookUp(params);
+            dataSource.setWriteQueue(new WriteQueue(queued,
+                    timeout != null ? timeout : WriteQueue.DEFAULT_TIMEOUT));
+
+            // queued writers hold on to their connection, keep enough for the readers
+            int readers = Runtime.getRuntime().availableProcessors();
+            dataSource.setMaxActive(readers + 1 + queued);
+            dataSource.setMaxIdle(readers + 1);
+        }
+
+        // SQLite spends a good part of short queries parsing and planning
+        Integer maxPreparedStatements = (Integer) MAX_OPEN_PREPARED_STATEMENTS.lookUp(params);
+        if (maxPreparedStatements == null) {
+            maxPreparedStatements = DEFAULT_MAX_PREPARED_STATEMENTS;
+        }
+        if (maxPreparedStatements >= 0) {
+            dataSource.setPoolPreparedStatements(true);
+            // 0 means unbounded for the parameter, but no statements at all for dbcp
+            dataSource.setMaxOpenPreparedStatements(
+                    maxPreparedStatements == 0 ? -1 : maxPreparedStatements);
+        }
+
+        List<String> pragmas = tuning.getPragmas(readOnly);
+        if (!pragmas.isEmpty()) {
+            dataSource.setConnectionInitSqls(pragmas);
+        }
         
         dataSource.setAccessToUnderlyingConnectionAllowed(true);
         
         return dataSource;
     }
 
+    /**
+     * Returns a reference to the connection pool of the database shared
+     * through the {@link GeoPackageRegistry}, closing the returned data source
+     * releases the reference.
+     */
+    @Override
+    protected DataSource createDataSource(Map params, SQLDialect dialect) throws IOException {
+        return createSharedDataSource(params);
+    }
+
+    ManageableDataSource createSharedDataSource(final Map params) throws IOException {
+        boolean readOnly = isReadOnly(params);
+        String mode = Boolean.TRUE.equals(IMMUTABLE.lookUp(params)) ? "immutable"
+                : readOnly ? "ro" : "rw";
+        return GeoPackageRegistry.getInstance().acquire(getDatabaseFile(params), mode, readOnly,
+                getPoolSettings(params), new GeoPackageRegistry.PoolFactory() {
+                    @Override
+                    public BasicDataSource create() throws IOException {
+                        return createDataSource(params);
+                    }
+                });
+    }
+
+    /**
+     * Returns the parameters {@link #createDataSource(Map)} configures a pool
+     * with, so that openers of a shared pool with other settings are noticed.
+     */
+    String getPoolSettings(Map params) throws IOException {
+        boolean readOnly = isReadOnly(params);
+        return lookUpTuning(params).getPragmas(readOnly)
+                + (readOnly ? "" : ", " + WRITE_QUEUE.key + "=" + WRITE_QUEUE.lookUp(params)
+                        + ", " + WRITE_TIMEOUT.key + "=" + WRITE_TIMEOUT.lookUp(params))
+                + ", " + MAX_OPEN_PREPARED_STATEMENTS.key + "=" + MAX_OPEN_PREPARED_STATEMENTS.lookUp(params);
+    }
+
     @Override
     protected JDBCDataStore createDataStoreInternal(JDBCDataStore dataStore, Map params) throws IOException {
         dataStore.setDatabaseSchema(null);
+        ((GeoPkgDialect) dataStore.getSQLDialect()).setReadOnly(isReadOnly(params));
         return dataStore;
     }
 
+    /**
+     * Builds the tuning from the {@link #TUNING} profile, or from a
+     * {@link SQLiteTuning} instance passed under the same key, and the
+     * individual overrides.
+     */
+    static SQLiteTuning lookUpTuning(Map params) throws IOException {
+        Object profile = params.get(TUNING.key);
+        SQLiteTuning tuning;
+        try {
+            if (profile instanceof SQLiteTuning) {
+                tuning = new SQLiteTuning((SQLiteTuning) profile);
+            } else {
+                tuning = SQLiteTuning.profile((String) TUNING.lookUp(params));
+            }
+
+            String journalMode = (String) JOURNAL_MODE.lookUp(params);
+            if (journalMode != null) {
+                tuning.setJournalMode(journalMode);
+            }
+            String synchronous = (String) SYNCHRONOUS.lookUp(params);
+            if (synchronous != null) {
+                tuning.setSynchronous(synchronous);
+            }
+            Integer cacheSize = (Integer) CACHE_SIZE.lookUp(params);
+            if (cacheSize != null) {
+                tuning.setCacheSize(cacheSize);
+            }
+            Long mmapSize = (Long) MMAP_SIZE.lookUp(params);
+            if (mmapSize != null) {
+                tuning.setMmapSize(mmapSize);
+            }
+            String tempStore = (String) TEMP_STORE.lookUp(params);
+            if (tempStore != null) {
+                tuning.setTempStore(tempStore);
+            }
+            Integer pageSize = (Integer) PAGE_SIZE.lookUp(params);
+            if (pageSize != null) {
+                tuning.setPageSize(pageSize);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+        return tuning;
+    }
+
     static void addConnectionProperties(BasicDataSource dataSource) {
+        addConnectionProperties(dataSource, false, true);
+    }
+
+    /**
+     * Read only connections open the uri built by {@link #getJDBCUrl}.
+     * Connections that do not share their cache do not contend for the shared
+     * cache table locks, which lets readers proceed concurrently and, with a
+     * WAL journal, alongside the writer.
+     */
+    static void addConnectionProperties(BasicDataSource dataSource, boolean readOnly,
+            boolean sharedCache) {
         SQLiteConfig config = new SQLiteConfig();
-        config.setSharedCache(true);
+        if (readOnly) {
+            config.setReadOnly(true);
+            config.setOpenMode(SQLiteOpenMode.OPEN_URI);
+        }
+        config.setSharedCache(sharedCache);
         config.enableLoadExtension(true);
         //config.enableSpatiaLite(true);
         
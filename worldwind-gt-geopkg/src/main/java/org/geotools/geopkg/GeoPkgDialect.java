@@ -16,13 +16,11 @@
  */
 package org.geotools.geopkg;
 
-import static java.lang.String.format;
-import static org.geotools.geopkg.GeoPackage.GEOMETRY_COLUMNS;
-import static org.geotools.geopkg.GeoPackage.GEOPACKAGE_CONTENTS;
 import static org.geotools.geopkg.GeoPackage.SPATIAL_REF_SYS;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -35,7 +33,7 @@ import java.util.Map;
 import java.util.logging.Level;
 
 import org.geotools.geometry.jts.Geometries;
-import org.geotools.geopkg.Entry.DataType;
+import org.geotools.geopkg.GeoPkgMetadataCache.GeometryInfo;
 import org.geotools.geopkg.geom.GeoPkgGeomReader;
 import org.geotools.geopkg.geom.GeoPkgGeomWriter;
 import org.geotools.jdbc.JDBCDataStore;
@@ -65,39 +63,43 @@ public class GeoPkgDialect extends PreparedStatementSQLDialect {
     
 
     protected GeoPkgGeomWriter.Configuration geomWriterConfig;
+
+    final KeysetPaging keysetPaging;
+
+    final GeoPkgMetadataCache metadata = new GeoPkgMetadataCache();
+
+    /**
+     * whether the connections are read only, in which case they are not
+     * checked for the GeoPackage tables
+     */
+    boolean readOnly;
     
     public GeoPkgDialect(JDBCDataStore dataStore, GeoPkgGeomWriter.Configuration writerConfig) {
         super(dataStore);
         this.geomWriterConfig = writerConfig;
+        this.keysetPaging = new KeysetPaging(dataStore);
     }
 
     public GeoPkgDialect(JDBCDataStore dataStore) {
-        super(dataStore);
-        geomWriterConfig = new GeoPkgGeomWriter.Configuration();
+        this(dataStore, new GeoPkgGeomWriter.Configuration());
     }
 
     @Override
     public void initializeConnection(Connection cx) throws SQLException {
-        GeoPackage.init(cx);
+        GeoPackage.init(cx, readOnly);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
     }
 
     @Override
     public boolean includeTable(String schemaName, String tableName, Connection cx) throws SQLException {
-        Statement st = cx.createStatement();
-        
-        try {
-            ResultSet rs = st.executeQuery(String.format("SELECT * FROM gpkg_contents WHERE" +
-                " table_name = '%s' AND data_type = '%s'", tableName, DataType.Feature.value()));
-            try {
-                return rs.next();
-            }
-            finally {
-                rs.close();
-            }
-        }
-        finally {
-            dataStore.closeSafe(st);
-        }
+        return metadata.isFeatureTable(tableName, cx);
     }
 
     @Override
@@ -214,38 +216,8 @@ public class GeoPkgDialect extends PreparedStatementSQLDialect {
         String tbl = columns.getString("TABLE_NAME");
         String col = columns.getString("COLUMN_NAME");
 
-        String sql = format(
-            "SELECT b.geometry_type_name" +
-             " FROM %s a, %s b" +
-            " WHERE a.table_name = b.table_name" +
-              " AND b.table_name = ?" +
-              " AND b.column_name = ?", GEOPACKAGE_CONTENTS, GEOMETRY_COLUMNS);
-
-        if (LOGGER.isLoggable(Level.FINE)) {
-            LOGGER.fine(String.format("%s; 1=%s, 2=%s", sql, tbl, col));
-        }
-
-        PreparedStatement ps = cx.prepareStatement(sql);
-        try {
-            ps.setString(1, tbl);
-            ps.setString(2, col);
-
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                String t = rs.getString(1);
-                Geometries g = Geometries.getForName(t);
-                if (g != null) {
-                    return g.getBinding();
-                }
-            }
-
-            rs.close();
-        }
-        finally {
-            dataStore.closeSafe(ps);
-        }
-
-        return null;
+        Geometries g = metadata.getGeometryType(tbl, col, cx);
+        return g != null ? g.getBinding() : null;
     }
 
     @Override
@@ -300,12 +272,47 @@ public class GeoPkgDialect extends PreparedStatementSQLDialect {
             }
         } catch (IOException e) {
             throw new SQLException(e);
+        } finally {
+            metadata.invalidate();
         }
     }
 
+    /**
+     * Records the integer primary key of the table for {@link KeysetPaging},
+     * with the connection building the feature type.
+     */
+    @Override
+    public void postCreateFeatureType(SimpleFeatureType featureType, DatabaseMetaData md,
+            String schemaName, Connection cx) throws SQLException {
+        super.postCreateFeatureType(featureType, md, schemaName, cx);
+        keysetPaging.primaryKey(KeysetPaging.quote(featureType.getTypeName()), cx);
+    }
+
+    @Override
+    public void onSelect(PreparedStatement select, Connection cx, SimpleFeatureType featureType)
+            throws SQLException {
+        super.onSelect(select, cx, featureType);
+        keysetPaging.bind(select, cx, featureType.getTypeName());
+    }
+
+    @Override
+    public void onInsert(PreparedStatement insert, Connection cx, SimpleFeatureType featureType)
+            throws SQLException {
+        super.onInsert(insert, cx, featureType);
+        keysetPaging.invalidate(featureType.getTypeName());
+    }
+
+    @Override
+    public void onDelete(PreparedStatement delete, Connection cx, SimpleFeatureType featureType)
+            throws SQLException {
+        super.onDelete(delete, cx, featureType);
+        keysetPaging.invalidate(featureType.getTypeName());
+    }
+
     @Override
     public void postDropTable(String schemaName, SimpleFeatureType featureType, Connection cx) throws SQLException {
         super.postDropTable(schemaName, featureType, cx);
+        keysetPaging.forget(featureType.getTypeName());
         FeatureEntry fe = (FeatureEntry) featureType.getUserData().get(FeatureEntry.class);
         if (fe == null) {
             fe = new FeatureEntry();
@@ -319,33 +326,38 @@ public class GeoPkgDialect extends PreparedStatementSQLDialect {
             geopkg.deleteGeometryColumnsEntry(fe);
         } catch (IOException e) {
             throw new SQLException(e);
+        } finally {
+            metadata.invalidate();
         }
     }
 
     public Integer getGeometrySRID(String schemaName, String tableName, String columnName, Connection cx) throws SQLException {
-        try {
-            FeatureEntry fe = geopkg().feature(tableName);
-            return fe != null ? fe.getSrid() : null;
-        } catch (IOException e) {
-            throw new SQLException(e);
-        }
+        GeometryInfo info = metadata.getGeometryInfo(tableName, cx);
+        return info != null ? info.srid : null;
     }
     
     @Override
     public int getGeometryDimension(String schemaName, String tableName, String columnName, Connection cx) throws SQLException {
-        try {
-            FeatureEntry fe = geopkg().feature(tableName);
-            if (fe != null) {
-                return 2 + (fe.isZ() ? 1 : 0) + (fe.isM() ? 1 : 0);
-            } else { //fallback - shouldn't happen
-                return super.getGeometryDimension(schemaName, tableName, columnName, cx);
-            }
-        } catch (IOException e) {
-            throw new SQLException(e);
-        }        
+        GeometryInfo info = metadata.getGeometryInfo(tableName, cx);
+        if (info != null) {
+            return 2 + (info.z ? 1 : 0) + (info.m ? 1 : 0);
+        } else { //fallback - shouldn't happen
+            return super.getGeometryDimension(schemaName, tableName, columnName, cx);
+        }
     }
 
     public CoordinateReferenceSystem createCRS(int srid, Connection cx) throws SQLException {
+        CoordinateReferenceSystem crs = metadata.crsCache.get(srid);
+        if (crs == null) {
+            crs = decodeCRS(srid, cx);
+            if (crs != null) {
+                metadata.crsCache.put(srid, crs);
+            }
+        }
+        return crs;
+    }
+
+    CoordinateReferenceSystem decodeCRS(int srid, Connection cx) throws SQLException {
         try {
             return CRS.decode("EPSG:" + srid, true);
         }
@@ -414,8 +426,16 @@ public class GeoPkgDialect extends PreparedStatementSQLDialect {
        
         return true;
     }
+    /**
+     * Deep pages sorted on the primary key are turned into keyset pages, see
+     * {@link KeysetPaging}; everything else uses LIMIT/OFFSET.
+     */
     @Override
     public void applyLimitOffset(StringBuffer sql, int limit, int offset) {
+        keysetPaging.clear();
+        if (offset > 0 && keysetPaging.apply(sql, limit, offset)) {
+            return;
+        }
         if(limit > 0 && limit < Integer.MAX_VALUE) {
             sql.append(" LIMIT " + limit);
             if(offset > 0) {
@@ -429,6 +449,8 @@ public class GeoPkgDialect extends PreparedStatementSQLDialect {
     }
     @Override
     public PreparedFilterToSQL createPreparedFilterToSQL() {
+        // a new select, a page rewritten for a statement never bound is stale
+        keysetPaging.clear();
         GeoPkgFilterToSQL fts = new GeoPkgFilterToSQL(this);
         return fts;
     }
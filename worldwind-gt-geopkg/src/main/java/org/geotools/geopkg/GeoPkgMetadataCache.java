@@ -0,0 +1,198 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import static java.lang.String.format;
+import static org.geotools.geopkg.GeoPackage.GEOMETRY_COLUMNS;
+import static org.geotools.geopkg.GeoPackage.GEOPACKAGE_CONTENTS;
+import static org.geotools.geopkg.GeoPackage.SPATIAL_REF_SYS;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.geotools.geometry.jts.Geometries;
+import org.geotools.geopkg.Entry.DataType;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Caches the GeoPackage metadata the dialect consults while the datastore
+ * builds its feature types.
+ * <p>
+ * Listing the type names and building the feature types asks for the
+ * inclusion of every table, the binding of every column and the srid and
+ * dimension of every geometry column, each of which used to run its own
+ * query. The gpkg_contents and gpkg_geometry_columns tables are instead
+ * read into a snapshot with three queries the first time anything is asked,
+ * and the snapshot is dropped whenever a table is created or dropped through
+ * the datastore. Decoded coordinate reference systems are kept by srid for
+ * the lifetime of the datastore.
+ * </p>
+ */
+class GeoPkgMetadataCache {
+
+    static final Logger LOGGER = GeoPackage.LOGGER;
+
+    /**
+     * The srid, z and m flags of a feature table's geometry column.
+     */
+    static class GeometryInfo {
+        final int srid;
+
+        final boolean z;
+
+        final boolean m;
+
+        GeometryInfo(int srid, boolean z, boolean m) {
+            this.srid = srid;
+            this.z = z;
+            this.m = m;
+        }
+    }
+
+    static class Snapshot {
+        /**
+         * names of the tables registered as features
+         */
+        final Set<String> featureTables = new HashSet<>();
+
+        /**
+         * geometry type per table and column
+         */
+        final Map<String, Map<String, Geometries>> geometryTypes = new HashMap<>();
+
+        /**
+         * geometry column info per feature table
+         */
+        final Map<String, GeometryInfo> geometries = new HashMap<>();
+    }
+
+    final Map<Integer, CoordinateReferenceSystem> crsCache = new ConcurrentHashMap<>();
+
+    volatile Snapshot snapshot;
+
+    /**
+     * bumped on every invalidation, so a load racing with a schema change is
+     * not published
+     */
+    final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Returns the current snapshot, loading it with the given connection if
+     * there is none.
+     */
+    Snapshot get(Connection cx) throws SQLException {
+        Snapshot s = snapshot;
+        if (s == null) {
+            int gen = generation.get();
+            s = load(cx);
+            synchronized (this) {
+                if (generation.get() == gen) {
+                    snapshot = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Drops the snapshot, the next lookup reloads it.
+     */
+    void invalidate() {
+        synchronized (this) {
+            generation.incrementAndGet();
+            snapshot = null;
+        }
+    }
+
+    boolean isFeatureTable(String tableName, Connection cx) throws SQLException {
+        return get(cx).featureTables.contains(tableName);
+    }
+
+    Geometries getGeometryType(String tableName, String columnName, Connection cx)
+            throws SQLException {
+        Map<String, Geometries> columns = get(cx).geometryTypes.get(tableName);
+        return columns != null ? columns.get(columnName) : null;
+    }
+
+    GeometryInfo getGeometryInfo(String tableName, Connection cx) throws SQLException {
+        return get(cx).geometries.get(tableName);
+    }
+
+    Snapshot load(Connection cx) throws SQLException {
+        Snapshot s = new Snapshot();
+
+        String sql = format("SELECT table_name FROM %s WHERE data_type = ?", GEOPACKAGE_CONTENTS);
+        LOGGER.fine(sql);
+        try (PreparedStatement ps = cx.prepareStatement(sql)) {
+            ps.setString(1, DataType.Feature.value());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    s.featureTables.add(rs.getString(1));
+                }
+            }
+        }
+
+        sql = format("SELECT b.table_name, b.column_name, b.geometry_type_name"
+                + " FROM %s a, %s b WHERE a.table_name = b.table_name",
+                GEOPACKAGE_CONTENTS, GEOMETRY_COLUMNS);
+        LOGGER.fine(sql);
+        try (PreparedStatement ps = cx.prepareStatement(sql);
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                Geometries g = Geometries.getForName(rs.getString(3));
+                if (g != null) {
+                    String table = rs.getString(1);
+                    Map<String, Geometries> columns = s.geometryTypes.get(table);
+                    if (columns == null) {
+                        columns = new HashMap<>();
+                        s.geometryTypes.put(table, columns);
+                    }
+                    columns.put(rs.getString(2), g);
+                }
+            }
+        }
+
+        sql = format("SELECT a.table_name, c.organization_coordsys_id, b.z, b.m"
+                + " FROM %s a, %s b, %s c WHERE a.table_name = b.table_name"
+                + " AND a.srs_id = c.srs_id AND a.data_type = ?",
+                GEOPACKAGE_CONTENTS, GEOMETRY_COLUMNS, SPATIAL_REF_SYS);
+        LOGGER.fine(sql);
+        try (PreparedStatement ps = cx.prepareStatement(sql)) {
+            ps.setString(1, DataType.Feature.value());
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String table = rs.getString(1);
+                    // like GeoPackage.feature(), the first geometry column wins
+                    if (!s.geometries.containsKey(table)) {
+                        s.geometries.put(table,
+                                new GeometryInfo(rs.getInt(2), rs.getBoolean(3), rs.getBoolean(4)));
+                    }
+                }
+            }
+        }
+        return s;
+    }
+}
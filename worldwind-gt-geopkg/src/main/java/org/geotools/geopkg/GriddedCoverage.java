@@ -0,0 +1,332 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The ancillary data of a tile pyramid of the 2D gridded coverage extension,
+ * i.e., of elevations or other values stored as 16-bit PNG or 32-bit float
+ * TIFF tiles. Corresponds to a row of the
+ * "gpkg_2d_gridded_coverage_ancillary" table.
+ * <p>
+ * Tiles are decoded to single band rasters of values, with the tile and
+ * coverage scale and offset applied and the null grid cells replaced by
+ * {@link #getNoData()}. The values are 16-bit integers when the stored
+ * integers map to integer values, i.e., when no tile or coverage scale is
+ * applied and the offset is a whole number, and 32-bit floats otherwise.
+ * </p>
+ */
+public class GriddedCoverage {
+
+    /** The datatype of coverages stored as 16-bit PNG tiles */
+    public static final String INTEGER = "integer";
+
+    /** The datatype of coverages stored as 32-bit float TIFF tiles */
+    public static final String FLOAT = "float";
+
+    /** The grid cell encoding where values are sampled at the cell centers */
+    public static final String GRID_VALUE_IS_CENTER = "grid-value-is-center";
+
+    String datatype = INTEGER;
+    double scale = 1;
+    double offset = 0;
+    Double precision;
+    Double dataNull;
+    String gridCellEncoding = GRID_VALUE_IS_CENTER;
+    String uom;
+    String fieldName = "Height";
+    String quantityDefinition = "Height";
+
+    /**
+     * Whether some tiles have their own scale or an offset that is not a whole
+     * number, see "gpkg_2d_gridded_tile_ancillary".
+     */
+    boolean tilesScaled;
+
+    /**
+     * Whether the "gpkg_2d_gridded_tile_ancillary" table exists.
+     */
+    boolean tileAncillary;
+
+    public String getDatatype() {
+        return datatype;
+    }
+
+    public void setDatatype(String datatype) {
+        this.datatype = datatype;
+    }
+
+    public boolean isFloat() {
+        return FLOAT.equals(datatype);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    public double getOffset() {
+        return offset;
+    }
+
+    public void setOffset(double offset) {
+        this.offset = offset;
+    }
+
+    public Double getPrecision() {
+        return precision;
+    }
+
+    public void setPrecision(Double precision) {
+        this.precision = precision;
+    }
+
+    /**
+     * Returns the stored value of the null grid cells, before any scale and
+     * offset, or null if all the cells have values.
+     */
+    public Double getDataNull() {
+        return dataNull;
+    }
+
+    public void setDataNull(Double dataNull) {
+        this.dataNull = dataNull;
+    }
+
+    public String getGridCellEncoding() {
+        return gridCellEncoding;
+    }
+
+    public void setGridCellEncoding(String gridCellEncoding) {
+        this.gridCellEncoding = gridCellEncoding;
+    }
+
+    public String getUom() {
+        return uom;
+    }
+
+    public void setUom(String uom) {
+        this.uom = uom;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public void setFieldName(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public String getQuantityDefinition() {
+        return quantityDefinition;
+    }
+
+    public void setQuantityDefinition(String quantityDefinition) {
+        this.quantityDefinition = quantityDefinition;
+    }
+
+    public boolean isTilesScaled() {
+        return tilesScaled;
+    }
+
+    public void setTilesScaled(boolean tilesScaled) {
+        this.tilesScaled = tilesScaled;
+    }
+
+    /**
+     * Returns the data type of the decoded rasters. Unscaled integer values
+     * are decoded to shorts when the offset range of the non-null 16-bit
+     * stored values fits in the shorts above the {@link Short#MIN_VALUE}
+     * no-data, and to ints otherwise.
+     *
+     * @return {@link DataBuffer#TYPE_SHORT}, {@link DataBuffer#TYPE_INT} or
+     * {@link DataBuffer#TYPE_FLOAT}
+     */
+    public int getSampleType() {
+        if (isFloat() || tilesScaled || scale != 1 || offset != Math.rint(offset)) {
+            return DataBuffer.TYPE_FLOAT;
+        }
+        double min = offset + (dataNull != null && dataNull == 0 ? 1 : 0);
+        double max = offset + (dataNull != null && dataNull == 65535 ? 65534 : 65535);
+        if (min > Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            return DataBuffer.TYPE_SHORT;
+        }
+        return min > Integer.MIN_VALUE && max <= Integer.MAX_VALUE ? DataBuffer.TYPE_INT : DataBuffer.TYPE_FLOAT;
+    }
+
+    /**
+     * Returns the value of the null grid cells in the decoded rasters, NaN
+     * for floats and {@link Short#MIN_VALUE} or {@link Integer#MIN_VALUE}
+     * for integers.
+     */
+    public double getNoData() {
+        switch (getSampleType()) {
+            case DataBuffer.TYPE_SHORT:
+                return Short.MIN_VALUE;
+            case DataBuffer.TYPE_INT:
+                return Integer.MIN_VALUE;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Returns the value of a stored grid cell.
+     *
+     * @param stored The stored value
+     * @param tileScale The scale of the tile
+     * @param tileOffset The offset of the tile
+     * @return The value, or {@link #getNoData()} for a null cell
+     */
+    public double getValue(double stored, double tileScale, double tileOffset) {
+        if (Double.isNaN(stored) || (dataNull != null && stored == dataNull)) {
+            return getNoData();
+        }
+        return (stored * tileScale + tileOffset) * scale + offset;
+    }
+
+    /**
+     * Creates an image of decoded values, filled with no-data.
+     *
+     * @param width The width of the image
+     * @param height The height of the image
+     * @return A single band image of {@link #getSampleType()} samples
+     */
+    public BufferedImage createImage(int width, int height) {
+        int type = getSampleType();
+        ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY),
+                false, false, Transparency.OPAQUE, type);
+        WritableRaster raster = cm.createCompatibleWritableRaster(width, height);
+        if (type == DataBuffer.TYPE_SHORT) {
+            Arrays.fill(((DataBufferShort) raster.getDataBuffer()).getData(), Short.MIN_VALUE);
+        } else if (type == DataBuffer.TYPE_INT) {
+            Arrays.fill(((DataBufferInt) raster.getDataBuffer()).getData(), Integer.MIN_VALUE);
+        } else {
+            Arrays.fill(((DataBufferFloat) raster.getDataBuffer()).getData(), Float.NaN);
+        }
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    /**
+     * Decodes the data of a tile to an image of values.
+     *
+     * @param data The PNG or TIFF tile data
+     * @param tileScale The scale of the tile, or null if none
+     * @param tileOffset The offset of the tile, or null if none
+     * @return A single band image of {@link #getSampleType()} samples, or null
+     * if the data cannot be decoded
+     * @throws IOException
+     */
+    public BufferedImage decode(byte[] data, Double tileScale, Double tileOffset) throws IOException {
+        Raster stored = read(data);
+        if (stored == null) {
+            return null;
+        }
+        BufferedImage image = createImage(stored.getWidth(), stored.getHeight());
+        copy(stored, image.getRaster(), tileScale != null ? tileScale : 1, tileOffset != null ? tileOffset : 0);
+        return image;
+    }
+
+    /**
+     * Reads the raster of stored values of a tile.
+     */
+    private static Raster read(byte[] data) throws IOException {
+        // read the array in place, ImageIO would copy it into a cache
+        ImageInputStream iis = new ByteArrayImageInputStream(data);
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            GeoPackage.LOGGER.severe("Could not find an ImageReader for a gridded coverage tile.");
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(iis, true);
+            // the raster only, there is no color to convert
+            return reader.canReadRaster() ? reader.readRaster(0, null) : reader.read(0).getRaster();
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Copies the first band of the stored values to a raster of values.
+     */
+    void copy(Raster stored, WritableRaster values, double tileScale, double tileOffset) {
+        int width = Math.min(stored.getWidth(), values.getWidth());
+        int height = Math.min(stored.getHeight(), values.getHeight());
+        DataBuffer buffer = values.getDataBuffer();
+        short[] shortValues = buffer instanceof DataBufferShort ? ((DataBufferShort) buffer).getData() : null;
+        int[] intValues = buffer instanceof DataBufferInt ? ((DataBufferInt) buffer).getData() : null;
+        float[] floatValues = buffer instanceof DataBufferFloat ? ((DataBufferFloat) buffer).getData() : null;
+        int valuesStride = values.getWidth();
+
+        // 16-bit PNG, straight from the bank
+        int[] ushortLayout = null;
+        short[] ushorts = null;
+        if (stored.getDataBuffer() instanceof DataBufferUShort
+                && stored.getSampleModel() instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel) stored.getSampleModel();
+            ushorts = ((DataBufferUShort) stored.getDataBuffer()).getData(csm.getBankIndices()[0]);
+            ushortLayout = new int[]{
+                stored.getDataBuffer().getOffsets()[csm.getBankIndices()[0]]
+                + csm.getOffset(-stored.getSampleModelTranslateX(), -stored.getSampleModelTranslateY(), 0),
+                csm.getScanlineStride(), csm.getPixelStride()};
+        }
+        double[] row = ushorts == null ? new double[width] : null;
+        for (int y = 0; y < height; y++) {
+            if (row != null) {
+                stored.getSamples(stored.getMinX(), stored.getMinY() + y, width, 1, 0, row);
+            }
+            int i = y * valuesStride;
+            for (int x = 0; x < width; x++, i++) {
+                double value = getValue(row != null ? row[x]
+                        : ushorts[ushortLayout[0] + y * ushortLayout[1] + x * ushortLayout[2]] & 0xffff,
+                        tileScale, tileOffset);
+                // the values fit in the sample type, see getSampleType
+                if (shortValues != null) {
+                    shortValues[i] = (short) Math.round(value);
+                } else if (intValues != null) {
+                    intValues[i] = (int) Math.round(value);
+                } else {
+                    floatValues[i] = (float) value;
+                }
+            }
+        }
+    }
+}
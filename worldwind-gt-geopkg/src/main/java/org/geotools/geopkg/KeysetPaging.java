@@ -0,0 +1,383 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.geotools.jdbc.JDBCDataStore;
+
+/**
+ * Rewrites deep LIMIT/OFFSET pages over the primary key into keyset pages.
+ * <p>
+ * SQLite implements OFFSET by stepping over the skipped rows, so paging
+ * through a large table with a growing start index gets slower with every
+ * page. When an unfiltered select of a table is sorted by its integer primary
+ * key only, the page is rewritten as
+ * <code>WHERE pk &gt; COALESCE(?, (SELECT pk ... LIMIT 1 OFFSET n - 1)) ORDER BY pk LIMIT m</code>.
+ * Right before the statement runs, {@link #bind} looks up the key of the last
+ * row before the page on the connection of the statement, so the lookup sees
+ * the pending changes of its transaction and takes no other connection from
+ * the pool. The boundary keys are remembered per query and offset, and the
+ * lookup for a new offset starts from the closest cached one, so reading
+ * consecutive pages costs the same no matter how deep they are. A statement
+ * that is run without being bound, such as the count of a page, falls back on
+ * the subquery.
+ * </p>
+ * <p>
+ * Only selects without a WHERE clause or statement parameters are rewritten,
+ * and only on tables whose integer primary key was recorded with the
+ * connection that built their feature type. Filtered selects, selects sorted
+ * on other columns or in descending order, and joins fall back on
+ * LIMIT/OFFSET. Cached keys of a table are dropped whenever rows are inserted
+ * or deleted through the datastore, and all cached keys are dropped when the
+ * version of the file, its change counter and write ahead log, shows another
+ * connection or process committed to it.
+ * </p>
+ */
+class KeysetPaging {
+
+    static final Logger LOGGER = GeoPackage.LOGGER;
+
+    /**
+     * Offsets below this are cheap enough to leave as they are.
+     */
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    static final int MAX_QUERIES = 64;
+
+    static final int MAX_OFFSETS = 256;
+
+    /**
+     * select ... from "table" order by "column" asc
+     */
+    static final Pattern SELECT = Pattern.compile(
+            "(SELECT .+? FROM (\"(?:[^\"]|\"\")+\")) ORDER BY (\"(?:[^\"]|\"\")+\") ASC\\s*",
+            Pattern.DOTALL);
+
+    final JDBCDataStore dataStore;
+
+    int threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * boundary keys by offset, per query signature, least recently used first
+     */
+    final Map<String, TreeMap<Integer, Long>> cursors =
+            new LinkedHashMap<String, TreeMap<Integer, Long>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TreeMap<Integer, Long>> eldest) {
+                    return size() > MAX_QUERIES;
+                }
+            };
+
+    /**
+     * the version of the file the cached keys were looked up in
+     */
+    String version;
+
+    /**
+     * the database file, "" when it is in memory
+     */
+    String path;
+
+    /**
+     * integer primary key column per table, "" when there is none
+     */
+    final Map<String, String> keys = new HashMap<>();
+
+    /**
+     * The page last rewritten by the thread, until its statement is bound
+     */
+    final ThreadLocal<Page> pending = new ThreadLocal<>();
+
+    /**
+     * A rewritten page waiting for its boundary key.
+     */
+    static class Page {
+        final String signature;
+
+        final String table;
+
+        final String column;
+
+        final int offset;
+
+        Page(String signature, String table, String column, int offset) {
+            this.signature = signature;
+            this.table = table;
+            this.column = column;
+            this.offset = offset;
+        }
+    }
+
+    KeysetPaging(JDBCDataStore dataStore) {
+        this.dataStore = dataStore;
+    }
+
+    /**
+     * Attempts to rewrite a paged select.
+     *
+     * @return true if the limit and offset were applied to the sql, false if
+     * the caller should fall back on LIMIT/OFFSET
+     */
+    boolean apply(StringBuffer sql, int limit, int offset) {
+        if (offset < threshold || sql.indexOf("?") >= 0) {
+            return false;
+        }
+        Matcher m = SELECT.matcher(sql);
+        if (!m.matches() || m.group(1).contains(" WHERE ")) {
+            // only unfiltered selects of a single table
+            return false;
+        }
+        String table = m.group(2);
+        String column = m.group(3);
+        synchronized (this) {
+            if (!column.equals(keys.get(table))) {
+                return false;
+            }
+        }
+
+        StringBuffer rewritten = new StringBuffer(m.group(1));
+        rewritten.append(" WHERE ");
+        rewritten.append(column).append(" > COALESCE(?, (SELECT ").append(column);
+        rewritten.append(" FROM ").append(table);
+        rewritten.append(" ORDER BY ").append(column).append(" ASC");
+        rewritten.append(" LIMIT 1 OFFSET ").append(offset - 1).append("))");
+        rewritten.append(" ORDER BY ").append(column).append(" ASC");
+        if (limit > 0 && limit < Integer.MAX_VALUE) {
+            rewritten.append(" LIMIT ").append(limit);
+        }
+        pending.set(new Page(sql.toString(), table, column, offset));
+        sql.setLength(0);
+        sql.append(rewritten);
+        return true;
+    }
+
+    /**
+     * Forgets the page last rewritten by the thread, if its statement was not
+     * bound.
+     */
+    void clear() {
+        pending.remove();
+    }
+
+    /**
+     * Binds the boundary key of the page last rewritten by the thread to the
+     * select about to run on a table, looking it up on the connection of the
+     * select. Other selects are left alone.
+     */
+    void bind(PreparedStatement select, Connection cx, String tableName) {
+        Page page = pending.get();
+        pending.remove();
+        if (page == null || !page.table.equals(quote(tableName))) {
+            return;
+        }
+        try {
+            if (select.getParameterMetaData().getParameterCount() != 1) {
+                return;
+            }
+            Long key = boundary(page, cx);
+            // past the end, the page is empty
+            select.setLong(1, key != null ? key : Long.MAX_VALUE);
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Keyset lookup failed, falling back on the subquery", e);
+        }
+    }
+
+    /**
+     * Returns the key of the row just before the offset of a page, or null if
+     * the offset is past the end.
+     */
+    Long boundary(Page page, Connection cx) throws SQLException {
+        // read before the lookup, a commit in between only drops the key again
+        String current = version(cx);
+        int from = 0;
+        Long fromKey = null;
+        synchronized (this) {
+            if (current == null || !current.equals(version)) {
+                cursors.clear();
+                version = current;
+            }
+            TreeMap<Integer, Long> offsets = cursors.get(page.signature);
+            if (offsets != null) {
+                Map.Entry<Integer, Long> e = offsets.floorEntry(page.offset);
+                if (e != null) {
+                    if (e.getKey() == page.offset) {
+                        return e.getValue();
+                    }
+                    from = e.getKey();
+                    fromKey = e.getValue();
+                }
+            }
+        }
+
+        String column = page.column;
+        StringBuilder q = new StringBuilder("SELECT ").append(column);
+        q.append(" FROM ").append(page.table);
+        if (fromKey != null) {
+            q.append(" WHERE ").append(column).append(" > ").append(fromKey);
+        }
+        q.append(" ORDER BY ").append(column).append(" ASC");
+        q.append(" LIMIT 1 OFFSET ").append(page.offset - from - 1);
+        LOGGER.fine(q.toString());
+
+        Statement st = cx.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(q.toString());
+            try {
+                if (!rs.next()) {
+                    return null;
+                }
+                long key = rs.getLong(1);
+                if (current != null) {
+                    remember(page.signature, page.offset, key);
+                }
+                return key;
+            } finally {
+                dataStore.closeSafe(rs);
+            }
+        } finally {
+            dataStore.closeSafe(st);
+        }
+    }
+
+    /**
+     * Returns the version of the database file of a connection, or null if
+     * the database is in memory.
+     */
+    String version(Connection cx) throws SQLException {
+        String file;
+        synchronized (this) {
+            file = path;
+        }
+        if (file == null) {
+            file = "";
+            Statement st = cx.createStatement();
+            try {
+                ResultSet rs = st.executeQuery("PRAGMA database_list");
+                try {
+                    while (rs.next()) {
+                        if ("main".equals(rs.getString("name")) && rs.getString("file") != null) {
+                            file = rs.getString("file");
+                        }
+                    }
+                } finally {
+                    dataStore.closeSafe(rs);
+                }
+            } finally {
+                dataStore.closeSafe(st);
+            }
+            synchronized (this) {
+                path = file;
+            }
+        }
+        return file.isEmpty() ? null : GeoPackage.version(new File(file));
+    }
+
+    synchronized void remember(String signature, int offset, long key) {
+        TreeMap<Integer, Long> offsets = cursors.get(signature);
+        if (offsets == null) {
+            offsets = new TreeMap<>();
+            cursors.put(signature, offsets);
+        }
+        offsets.put(offset, key);
+        if (offsets.size() > MAX_OFFSETS) {
+            // keep the deepest boundaries, they are the expensive ones
+            offsets.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Returns the quoted integer primary key column of a (quoted) table, or ""
+     * if it has none.
+     */
+    String primaryKey(String table, Connection cx) throws SQLException {
+        synchronized (this) {
+            String pk = keys.get(table);
+            if (pk != null) {
+                return pk;
+            }
+        }
+        String pk = "";
+        Statement st = cx.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(format("PRAGMA table_info(%s)", table));
+            try {
+                int count = 0;
+                while (rs.next()) {
+                    if (rs.getInt("pk") > 0) {
+                        count++;
+                        if ("INTEGER".equalsIgnoreCase(rs.getString("type"))) {
+                            pk = "\"" + rs.getString("name").replace("\"", "\"\"") + "\"";
+                        }
+                    }
+                }
+                if (count != 1) {
+                    // composite keys are not a rowid alias
+                    pk = "";
+                }
+            } finally {
+                dataStore.closeSafe(rs);
+            }
+        } finally {
+            dataStore.closeSafe(st);
+        }
+        synchronized (this) {
+            keys.put(table, pk);
+        }
+        return pk;
+    }
+
+    /**
+     * Drops the cached boundaries of all queries against a table.
+     */
+    synchronized void invalidate(String tableName) {
+        String from = " FROM " + quote(tableName);
+        for (Iterator<String> it = cursors.keySet().iterator(); it.hasNext();) {
+            if (it.next().contains(from)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops everything known about a dropped table.
+     */
+    synchronized void forget(String tableName) {
+        invalidate(tableName);
+        keys.remove(quote(tableName));
+    }
+
+    static String quote(String tableName) {
+        return "\"" + tableName.replace("\"", "\"\"") + "\"";
+    }
+}
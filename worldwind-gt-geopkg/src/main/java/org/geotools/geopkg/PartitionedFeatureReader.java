@@ -0,0 +1,280 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geopkg.geom.GeoPkgGeomReader;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+
+/**
+ * Reads a feature table in parallel, splitting its rowid range into
+ * partitions that are each read and decoded on their own thread and
+ * connection.
+ * <p>
+ * In unordered mode features are returned as soon as any partition has
+ * decoded them. In ordered mode the partitions are returned one after the
+ * other, which, since each partition covers a contiguous rowid range and is
+ * read in rowid order, yields the whole table in rowid order while the later
+ * partitions are decoded ahead.
+ * </p>
+ * The filter, if any, is evaluated in Java by the partition threads.
+ */
+class PartitionedFeatureReader implements SimpleFeatureReader {
+
+    static final Logger LOGGER = GeoPackage.LOGGER;
+
+    /**
+     * The number of decoded features each partition may queue up.
+     */
+    static final int QUEUE_SIZE = 1024;
+
+    /**
+     * Opens the connections the partitions are read with.
+     */
+    interface ConnectionFactory {
+        Connection getConnection() throws SQLException;
+    }
+
+    /**
+     * Marks the end of a partition in a queue.
+     */
+    static final Object END = new Object();
+
+    final SimpleFeatureType schema;
+
+    final String table;
+
+    final Filter filter;
+
+    final ConnectionFactory connections;
+
+    final boolean ordered;
+
+    final List<BlockingQueue<Object>> queues = new ArrayList<>();
+
+    final ExecutorService executor;
+
+    volatile boolean closed;
+
+    /**
+     * index of the queue currently drained
+     */
+    int current;
+
+    /**
+     * number of partitions that have not finished yet
+     */
+    int running;
+
+    SimpleFeature next;
+
+    /**
+     * @param schema the feature type of the table
+     * @param table the table name
+     * @param filter the filter to apply, may be <code>null</code>
+     * @param connections opens the connections used by the partitions
+     * @param minRowid the smallest rowid in the table
+     * @param maxRowid the largest rowid in the table
+     * @param partitions the number of partitions
+     * @param ordered whether to return the features in rowid order
+     */
+    PartitionedFeatureReader(SimpleFeatureType schema, String table, Filter filter,
+            ConnectionFactory connections, long minRowid, long maxRowid, int partitions,
+            boolean ordered) {
+        this.schema = schema;
+        this.table = table;
+        this.filter = filter != null && filter != Filter.INCLUDE ? filter : null;
+        this.connections = connections;
+        this.ordered = ordered;
+
+        long span = maxRowid - minRowid + 1;
+        partitions = (int) Math.max(1, Math.min(partitions, span));
+        this.running = partitions;
+        this.executor = Executors.newFixedThreadPool(partitions, new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "gpkg-reader-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        BlockingQueue<Object> shared = ordered ? null : new ArrayBlockingQueue<>(QUEUE_SIZE * partitions);
+        long start = minRowid;
+        for (int i = 0; i < partitions; i++) {
+            long end = i == partitions - 1 ? maxRowid + 1 : minRowid + span * (i + 1) / partitions;
+            final BlockingQueue<Object> queue = ordered ? new ArrayBlockingQueue<>(QUEUE_SIZE) : shared;
+            if (ordered || i == 0) {
+                queues.add(queue);
+            }
+            final long from = start, to = end;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read(from, to, queue);
+                }
+            });
+            start = end;
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public SimpleFeatureType getFeatureType() {
+        return schema;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (next != null) {
+            return true;
+        }
+        try {
+            while (running > 0 && !closed) {
+                Object o = queues.get(current).take();
+                if (o == END) {
+                    running--;
+                    if (ordered) {
+                        current++;
+                    }
+                } else if (o instanceof Exception) {
+                    running = 0;
+                    close();
+                    throw new IOException("Error reading " + table, (Exception) o);
+                } else {
+                    next = (SimpleFeature) o;
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        return false;
+    }
+
+    @Override
+    public SimpleFeature next() throws IOException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        SimpleFeature f = next;
+        next = null;
+        return f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        executor.shutdownNow();
+        // unblock producers waiting on full queues
+        for (BlockingQueue<Object> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    /**
+     * Reads and decodes the rows of [from, to) into the queue.
+     */
+    void read(long from, long to, BlockingQueue<Object> queue) {
+        String sql = format("SELECT rowid, * FROM %s WHERE rowid >= ? AND rowid < ? ORDER BY rowid",
+                GeoPackage.quote(table));
+        try {
+            try (Connection cx = connections.getConnection();
+                    PreparedStatement ps = cx.prepareStatement(sql)) {
+                ps.setLong(1, from);
+                ps.setLong(2, to);
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine(format("%s; 1=%d, 2=%d", sql, from, to));
+                }
+                SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next() && !closed) {
+                        SimpleFeature f = decode(rs, builder);
+                        if (filter == null || filter.evaluate(f)) {
+                            put(queue, f);
+                        }
+                    }
+                }
+            }
+            put(queue, END);
+        } catch (Exception e) {
+            if (!closed) {
+                try {
+                    put(queue, e);
+                } catch (InterruptedException e2) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    SimpleFeature decode(ResultSet rs, SimpleFeatureBuilder builder) throws SQLException, IOException {
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            String name = ad.getLocalName();
+            Object value;
+            if (ad instanceof GeometryDescriptor) {
+                byte[] bytes = rs.getBytes(name);
+                value = bytes != null ? new GeoPkgGeomReader(bytes).get() : null;
+            } else {
+                value = rs.getObject(name);
+                if (value != null) {
+                    Object converted = Converters.convert(value, ad.getType().getBinding());
+                    value = converted != null ? converted : value;
+                }
+            }
+            builder.add(value);
+        }
+        return builder.buildFeature(schema.getTypeName() + "." + rs.getLong(1));
+    }
+
+    void put(BlockingQueue<Object> queue, Object o) throws InterruptedException {
+        while (!closed) {
+            if (queue.offer(o, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+
+import org.sqlite.SQLiteConfig.JournalMode;
+import org.sqlite.SQLiteConfig.SynchronousMode;
+import org.sqlite.SQLiteConfig.TempStore;
+
+/**
+ * SQLite pragmas applied to every connection opened on a GeoPackage.
+ * <p>
+ * A tuning starts from one of the named profiles and can override any of the
+ * individual settings; settings left <code>null</code> keep the SQLite
+ * defaults. The profiles are:
+ * </p>
+ * <ul>
+ * <li>{@value #SAFE_DEFAULT}: the SQLite defaults, rollback journal and full
+ * synchronous writes.</li>
+ * <li>{@value #READ_MOSTLY_SERVER}: WAL journal so readers are not blocked by
+ * the occasional writer, a 64 MB page cache and 256 MB of memory mapped
+ * I/O.</li>
+ * <li>{@value #BULK_EXPORT}: in memory journal, no syncing, a 256 MB page
+ * cache and 8 KB pages, for writing throwaway files such as exports.</li>
+ * </ul>
+ */
+public class SQLiteTuning {
+
+    public static final String SAFE_DEFAULT = "safe-default";
+
+    public static final String READ_MOSTLY_SERVER = "read-mostly-server";
+
+    public static final String BULK_EXPORT = "bulk-export";
+
+    public static final List<String> PROFILES = Arrays.asList(SAFE_DEFAULT, READ_MOSTLY_SERVER,
+            BULK_EXPORT);
+
+    /**
+     * System property naming the profile used where no tuning is configured
+     * explicitly, such as by coverage readers.
+     */
+    public static final String PROPERTY_PROFILE = "geopackage.tuning";
+
+    String journalMode;
+
+    String synchronous;
+
+    Integer cacheSize;
+
+    Long mmapSize;
+
+    String tempStore;
+
+    Integer pageSize;
+
+    /**
+     * Creates a tuning that keeps all the SQLite defaults.
+     */
+    public SQLiteTuning() {
+    }
+
+    /**
+     * Creates a copy of another tuning.
+     */
+    public SQLiteTuning(SQLiteTuning other) {
+        this.journalMode = other.journalMode;
+        this.synchronous = other.synchronous;
+        this.cacheSize = other.cacheSize;
+        this.mmapSize = other.mmapSize;
+        this.tempStore = other.tempStore;
+        this.pageSize = other.pageSize;
+    }
+
+    /**
+     * Creates a tuning for a named profile.
+     *
+     * @param name the profile name, <code>null</code> for {@value #SAFE_DEFAULT}
+     * @throws IllegalArgumentException if the profile does not exist
+     */
+    public static SQLiteTuning profile(String name) {
+        SQLiteTuning t = new SQLiteTuning();
+        if (name == null || SAFE_DEFAULT.equalsIgnoreCase(name)) {
+            return t;
+        }
+        if (READ_MOSTLY_SERVER.equalsIgnoreCase(name)) {
+            t.setJournalMode("WAL");
+            t.setSynchronous("NORMAL");
+            t.setCacheSize(-64 * 1024);
+            t.setMmapSize(256L * 1024 * 1024);
+            t.setTempStore("MEMORY");
+        } else if (BULK_EXPORT.equalsIgnoreCase(name)) {
+            t.setJournalMode("MEMORY");
+            t.setSynchronous("OFF");
+            t.setCacheSize(-256 * 1024);
+            t.setTempStore("MEMORY");
+            t.setPageSize(8192);
+        } else {
+            throw new IllegalArgumentException("Unknown tuning profile: " + name
+                    + ", expected one of " + PROFILES);
+        }
+        return t;
+    }
+
+    /**
+     * Returns the tuning for the profile named by the {@value #PROPERTY_PROFILE}
+     * system property, falling back on {@value #SAFE_DEFAULT} if it is unset
+     * or unknown.
+     */
+    public static SQLiteTuning fromSystemProperty() {
+        try {
+            return profile(System.getProperty(PROPERTY_PROFILE));
+        } catch (IllegalArgumentException e) {
+            GeoPackage.LOGGER.log(Level.WARNING, "Ignoring " + PROPERTY_PROFILE, e);
+            return new SQLiteTuning();
+        }
+    }
+
+    public String getJournalMode() {
+        return journalMode;
+    }
+
+    /**
+     * @param journalMode one of DELETE, TRUNCATE, PERSIST, MEMORY, WAL, OFF
+     */
+    public void setJournalMode(String journalMode) {
+        this.journalMode = journalMode == null ? null
+                : JournalMode.valueOf(journalMode.toUpperCase(Locale.ENGLISH)).name();
+    }
+
+    public String getSynchronous() {
+        return synchronous;
+    }
+
+    /**
+     * @param synchronous one of OFF, NORMAL, FULL
+     */
+    public void setSynchronous(String synchronous) {
+        this.synchronous = synchronous == null ? null
+                : SynchronousMode.valueOf(synchronous.toUpperCase(Locale.ENGLISH)).name();
+    }
+
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * @param cacheSize the page cache size, in pages when positive and in KB
+     * when negative
+     */
+    public void setCacheSize(Integer cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public Long getMmapSize() {
+        return mmapSize;
+    }
+
+    /**
+     * @param mmapSize the maximum number of bytes of the file to memory map
+     */
+    public void setMmapSize(Long mmapSize) {
+        this.mmapSize = mmapSize;
+    }
+
+    public String getTempStore() {
+        return tempStore;
+    }
+
+    /**
+     * @param tempStore one of DEFAULT, FILE, MEMORY
+     */
+    public void setTempStore(String tempStore) {
+        this.tempStore = tempStore == null ? null
+                : TempStore.valueOf(tempStore.toUpperCase(Locale.ENGLISH)).name();
+    }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize the page size in bytes, only effective on new databases
+     * or after a VACUUM
+     */
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the pragma statements for the settings, page size first since it
+     * has to be set before the journal mode switches to WAL.
+     */
+    public List<String> getPragmas() {
+        return getPragmas(false);
+    }
+
+    /**
+     * Returns the pragma statements for the settings, leaving out the page
+     * size and journal mode for read only connections since changing them
+     * writes to the database.
+     */
+    public List<String> getPragmas(boolean readOnly) {
+        List<String> pragmas = new ArrayList<>();
+        if (pageSize != null && !readOnly) {
+            pragmas.add("PRAGMA page_size = " + pageSize);
+        }
+        if (journalMode != null && !readOnly) {
+            pragmas.add("PRAGMA journal_mode = " + journalMode);
+        }
+        if (synchronous != null) {
+            pragmas.add("PRAGMA synchronous = " + synchronous);
+        }
+        if (cacheSize != null) {
+            pragmas.add("PRAGMA cache_size = " + cacheSize);
+        }
+        if (mmapSize != null) {
+            pragmas.add("PRAGMA mmap_size = " + mmapSize);
+        }
+        if (tempStore != null) {
+            pragmas.add("PRAGMA temp_store = " + tempStore);
+        }
+        return pragmas;
+    }
+
+    /**
+     * Applies the settings to an open connection.
+     */
+    public void apply(Connection cx) throws SQLException {
+        List<String> pragmas = getPragmas();
+        if (pragmas.isEmpty()) {
+            return;
+        }
+        try (Statement st = cx.createStatement()) {
+            for (String pragma : pragmas) {
+                GeoPackage.LOGGER.fine(pragma);
+                st.execute(pragma);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteTuning" + getPragmas();
+    }
+}
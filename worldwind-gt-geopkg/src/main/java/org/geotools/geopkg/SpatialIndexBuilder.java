@@ -0,0 +1,168 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import static java.lang.String.format;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.geopkg.geom.GeoPkgGeomReader;
+import org.geotools.geopkg.geom.HilbertCurve;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Bulk loads the rtree of a feature table's spatial index.
+ * <p>
+ * The envelopes are read straight from the GeoPackage geometry headers in a
+ * single pass over the table, instead of calling the ST_MinX/ST_MaxX/... SQL
+ * functions four times per row. Rows are loaded in batches; each batch is
+ * sorted along a Hilbert curve before it is inserted so neighbouring entries
+ * end up in the same rtree nodes.
+ * </p>
+ * The caller owns the connection and the transaction.
+ */
+class SpatialIndexBuilder {
+
+    static final Logger LOGGER = GeoPackage.LOGGER;
+
+    /**
+     * The maximum number of envelopes sorted and inserted at once; about 24 MB
+     * of heap when full.
+     */
+    static final int DEFAULT_BATCH_SIZE = 1 << 19;
+
+    final String table;
+
+    final String column;
+
+    final String pk;
+
+    final String index;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+
+    SpatialIndexBuilder(String table, String column, String pk, String index) {
+        this.table = table;
+        this.column = column;
+        this.pk = pk;
+        this.index = index;
+    }
+
+    /**
+     * Fills the (already created and empty) rtree table.
+     *
+     * @param cx the connection, should not be in auto commit mode
+     * @return the number of envelopes inserted
+     */
+    long build(Connection cx) throws SQLException, IOException {
+        // start small and grow up to the batch size
+        int capacity = Math.min(batchSize, 1024);
+        long[] ids = new long[capacity];
+        double[] bounds = new double[capacity * 4];
+        long count = 0;
+
+        String select = format("SELECT \"%s\", \"%s\" FROM '%s'", pk, column, table);
+        String insert = format("INSERT OR REPLACE INTO '%s' VALUES (?,?,?,?,?)", index);
+        LOGGER.fine(select);
+
+        try (Statement st = cx.createStatement();
+                ResultSet rs = st.executeQuery(select);
+                PreparedStatement ps = cx.prepareStatement(insert)) {
+            int n = 0;
+            while (rs.next()) {
+                byte[] blob = rs.getBytes(2);
+                if (blob == null) {
+                    continue;
+                }
+                GeoPkgGeomReader reader = new GeoPkgGeomReader(blob);
+                if (reader.getHeader().getFlags().isEmpty()) {
+                    continue;
+                }
+                Envelope env = reader.getEnvelope();
+                if (env.isNull()) {
+                    continue;
+                }
+                ids[n] = rs.getLong(1);
+                bounds[n * 4] = env.getMinX();
+                bounds[n * 4 + 1] = env.getMaxX();
+                bounds[n * 4 + 2] = env.getMinY();
+                bounds[n * 4 + 3] = env.getMaxY();
+                if (++n == capacity) {
+                    if (capacity < batchSize) {
+                        capacity = Math.min(batchSize, capacity * 2);
+                        ids = Arrays.copyOf(ids, capacity);
+                        bounds = Arrays.copyOf(bounds, capacity * 4);
+                    } else {
+                        count += flush(ps, ids, bounds, n);
+                        n = 0;
+                    }
+                }
+            }
+            count += flush(ps, ids, bounds, n);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(format("Loaded %d entries into %s", count, index));
+        }
+        return count;
+    }
+
+    /**
+     * Sorts the first n buffered envelopes along the Hilbert curve and inserts
+     * them into the rtree.
+     */
+    int flush(PreparedStatement ps, long[] ids, double[] bounds, int n) throws SQLException {
+        if (n == 0) {
+            return 0;
+        }
+        // the extent of this batch, used to scale the curve
+        Envelope extent = new Envelope();
+        for (int i = 0; i < n; i++) {
+            extent.expandToInclude(bounds[i * 4], bounds[i * 4 + 2]);
+            extent.expandToInclude(bounds[i * 4 + 1], bounds[i * 4 + 3]);
+        }
+        // pack the 32 bit curve index and the 31 bit buffer position into one
+        // long so a primitive sort orders the positions by curve index
+        long[] order = new long[n];
+        Envelope env = new Envelope();
+        for (int i = 0; i < n; i++) {
+            env.init(bounds[i * 4], bounds[i * 4 + 1], bounds[i * 4 + 2], bounds[i * 4 + 3]);
+            order[i] = (HilbertCurve.index(env, extent) << 31) | i;
+        }
+        Arrays.sort(order);
+
+        for (int k = 0; k < n; k++) {
+            int i = (int) (order[k] & Integer.MAX_VALUE);
+            ps.setLong(1, ids[i]);
+            ps.setDouble(2, bounds[i * 4]);
+            ps.setDouble(3, bounds[i * 4 + 1]);
+            ps.setDouble(4, bounds[i * 4 + 2]);
+            ps.setDouble(5, bounds[i * 4 + 3]);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        return n;
+    }
+}
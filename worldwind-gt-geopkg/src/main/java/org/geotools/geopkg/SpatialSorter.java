@@ -0,0 +1,321 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geopkg.geom.SpatialOrder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Sorts a feature collection along a space-filling curve, keyed on the center
+ * of each feature's default geometry envelope.
+ * <p>
+ * At most {@link #runSize} features are held in memory. Larger collections are
+ * sorted in runs that are serialized to temporary files and merged back while
+ * the result is iterated. Features without a geometry are returned last; ties
+ * keep their original order.
+ * </p>
+ */
+class SpatialSorter {
+
+    static final Logger LOGGER = GeoPackage.LOGGER;
+
+    /**
+     * The default number of features sorted in memory at once.
+     */
+    static final int DEFAULT_RUN_SIZE = 50000;
+
+    static final Comparator<Item> ITEM_ORDER = new Comparator<Item>() {
+        @Override
+        public int compare(Item o1, Item o2) {
+            return Long.compare(o1.key, o2.key);
+        }
+    };
+
+    final SpatialOrder order;
+
+    final Envelope extent;
+
+    int runSize = DEFAULT_RUN_SIZE;
+
+    /**
+     * @param order the curve to sort along
+     * @param extent the extent of the collection, used to scale the curve
+     */
+    SpatialSorter(SpatialOrder order, Envelope extent) {
+        this.order = order;
+        this.extent = extent != null ? extent : new Envelope();
+    }
+
+    /**
+     * Returns the features of the collection in curve order. The returned
+     * iterator must be closed to release the temporary files.
+     */
+    SimpleFeatureIterator sort(SimpleFeatureCollection collection) throws IOException {
+        SimpleFeatureType schema = collection.getSchema();
+        List<File> runs = new ArrayList<>();
+        List<Item> buffer = new ArrayList<>();
+        try {
+            SimpleFeatureIterator it = collection.features();
+            try {
+                while (it.hasNext()) {
+                    SimpleFeature f = it.next();
+                    buffer.add(new Item(key(f), f));
+                    if (buffer.size() >= runSize) {
+                        runs.add(writeRun(buffer));
+                        buffer.clear();
+                    }
+                }
+            } finally {
+                it.close();
+            }
+            if (runs.isEmpty()) {
+                // everything fit in memory
+                Collections.sort(buffer, ITEM_ORDER);
+                return new BufferIterator(buffer.iterator());
+            }
+            if (!buffer.isEmpty()) {
+                runs.add(writeRun(buffer));
+                buffer.clear();
+            }
+            return new MergeIterator(schema, runs);
+        } catch (IOException | RuntimeException e) {
+            delete(runs);
+            throw e;
+        }
+    }
+
+    long key(SimpleFeature f) {
+        Geometry g = (Geometry) f.getDefaultGeometry();
+        if (g == null || g.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return order.index(g.getEnvelopeInternal(), extent);
+    }
+
+    /**
+     * Sorts the buffered features and writes them to a temporary file.
+     */
+    File writeRun(List<Item> buffer) throws IOException {
+        // stable sort, so equal keys keep the source order
+        Collections.sort(buffer, ITEM_ORDER);
+        File file = File.createTempFile("gpkg_sort", ".run");
+        file.deleteOnExit();
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(buffer.size());
+            for (Item item : buffer) {
+                out.writeLong(item.key);
+                out.writeObject(item.feature.getID());
+                out.writeObject(item.feature.getAttributes().toArray());
+                // do not keep back references to everything written so far
+                out.reset();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Wrote sort run of " + buffer.size() + " features to " + file);
+        }
+        return file;
+    }
+
+    static void delete(List<File> files) {
+        for (File file : files) {
+            if (!file.delete()) {
+                LOGGER.fine("Unable to delete " + file);
+            }
+        }
+    }
+
+    static class Item {
+        final long key;
+
+        final SimpleFeature feature;
+
+        Item(long key, SimpleFeature feature) {
+            this.key = key;
+            this.feature = feature;
+        }
+    }
+
+    /**
+     * Iterates over a collection that was sorted entirely in memory.
+     */
+    static class BufferIterator implements SimpleFeatureIterator {
+        Iterator<Item> delegate;
+
+        BufferIterator(Iterator<Item> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            return delegate.next().feature;
+        }
+
+        @Override
+        public void close() {
+            delegate = Collections.<Item>emptyList().iterator();
+        }
+    }
+
+    /**
+     * Reads back one sorted run.
+     */
+    static class Run {
+        final int index;
+
+        final ObjectInputStream in;
+
+        final SimpleFeatureBuilder builder;
+
+        int remaining;
+
+        long key;
+
+        SimpleFeature current;
+
+        Run(int index, File file, SimpleFeatureType schema) throws IOException {
+            this.index = index;
+            this.in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.builder = new SimpleFeatureBuilder(schema);
+            this.remaining = in.readInt();
+        }
+
+        /**
+         * Reads the next feature of the run, returns false once it is exhausted.
+         */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            key = in.readLong();
+            try {
+                String fid = (String) in.readObject();
+                Object[] values = (Object[]) in.readObject();
+                current = SimpleFeatureBuilder.build(builder.getFeatureType(), values, fid);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Merges the sorted runs, deleting them once closed.
+     */
+    static class MergeIterator implements SimpleFeatureIterator {
+        final List<File> files;
+
+        final List<Run> runs = new ArrayList<>();
+
+        final PriorityQueue<Run> queue;
+
+        MergeIterator(SimpleFeatureType schema, List<File> files) throws IOException {
+            this.files = files;
+            this.queue = new PriorityQueue<>(files.size(), new Comparator<Run>() {
+                @Override
+                public int compare(Run o1, Run o2) {
+                    int c = Long.compare(o1.key, o2.key);
+                    // earlier runs first to keep the sort stable
+                    return c != 0 ? c : Integer.compare(o1.index, o2.index);
+                }
+            });
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    Run run = new Run(i, files.get(i), schema);
+                    runs.add(run);
+                    if (run.advance()) {
+                        queue.add(run);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            Run run = queue.poll();
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature next = run.current;
+            try {
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading sorted features", e);
+            }
+            return next;
+        }
+
+        @Override
+        public void close() {
+            queue.clear();
+            for (Run run : runs) {
+                try {
+                    run.in.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Error closing sort run", e);
+                }
+            }
+            runs.clear();
+            delete(files);
+        }
+    }
+}
@@ -16,8 +16,13 @@
  */
 package org.geotools.geopkg;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import javax.imageio.stream.ImageInputStream;
+
 /**
  * A single tile from a geopackage tiles layer.
  * 
@@ -29,6 +34,7 @@ public class Tile {
 
     Integer zoom, column, row;
     byte[] data;
+    Double scale, offset;
 
     public Tile() {
     }
@@ -73,6 +79,83 @@ public class Tile {
         this.data = data;
     }
 
+    /**
+     * Returns the scale of the values of a gridded coverage tile, from the
+     * "gpkg_2d_gridded_tile_ancillary" table.
+     *
+     * @return the scale, or <code>null</code> if none
+     */
+    public Double getScale() {
+        return scale;
+    }
+
+    public void setScale(Double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * Returns the offset of the values of a gridded coverage tile, from the
+     * "gpkg_2d_gridded_tile_ancillary" table.
+     *
+     * @return the offset, or <code>null</code> if none
+     */
+    public Double getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Double offset) {
+        this.offset = offset;
+    }
+
+    /**
+     * Guesses the image format of the tile data from its signature.
+     *
+     * @return image/png, image/jpeg, image/webp or image/tiff, <code>null</code> if the
+     * format is not recognized
+     */
+    public String getMimeType() {
+        if (data == null || data.length < 12) {
+            return null;
+        }
+        if ((data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return "image/png";
+        }
+        if ((data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8) {
+            return "image/jpeg";
+        }
+        if (data[0] == 'R' && data[1] == 'I' && data[2] == 'F' && data[3] == 'F'
+                && data[8] == 'W' && data[9] == 'E' && data[10] == 'B' && data[11] == 'P') {
+            return "image/webp";
+        }
+        if ((data[0] == 'I' && data[1] == 'I' && data[2] == 42 && data[3] == 0)
+                || (data[0] == 'M' && data[1] == 'M' && data[2] == 0 && data[3] == 42)) {
+            return "image/tiff";
+        }
+        return null;
+    }
+
+    /**
+     * Returns a read only view of the tile data, without copying it.
+     */
+    public ByteBuffer getDataBuffer() {
+        return data != null ? ByteBuffer.wrap(data).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * Returns a stream over the tile data, for writing it out as is.
+     */
+    public InputStream getDataStream() {
+        return data != null ? new ByteArrayInputStream(data) : null;
+    }
+
+    /**
+     * Returns an image input stream over the tile data, for decoding it
+     * without the copy ImageIO makes when wrapping an input stream.
+     */
+    public ImageInputStream getImageInputStream() {
+        return data != null ? new ByteArrayImageInputStream(data) : null;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -43,6 +43,7 @@ public class TileEntry extends Entry {
     int minZoom = -1;
     int maxZoom = -1;
     CoordinateReferenceSystem crs = null;
+    GriddedCoverage griddedCoverage;
 
     public TileEntry() {
         setDataType(DataType.Tile);
@@ -62,6 +63,7 @@ public class TileEntry extends Entry {
         this.tileMatrixSetBounds = e.tileMatrixSetBounds == null ? null : new Envelope(e.tileMatrixSetBounds);
         this.maxZoom = e.maxZoom;
         this.minZoom = e.minZoom;
+        this.griddedCoverage = e.griddedCoverage;
     }
 
     /**
@@ -138,6 +140,21 @@ public class TileEntry extends Entry {
         this.maxZoom = maxZoom;
     }
 
+    /**
+     * Returns the ancillary data of a tile pyramid of the 2D gridded coverage
+     * extension.
+     *
+     * @return the gridded coverage, or null if the tiles are images
+     */
+    public GriddedCoverage getGriddedCoverage() {
+        return griddedCoverage;
+    }
+
+    public void setGriddedCoverage(GriddedCoverage griddedCoverage) {
+        this.griddedCoverage = griddedCoverage;
+        setDataType(griddedCoverage != null ? DataType.GriddedCoverage : DataType.Tile);
+    }
+
     /**
      * Returns the CRS corresponding to this entry's SRID.
      *
@@ -37,6 +37,16 @@ public class TileReader implements Iterator<Tile>, Closeable {
     Connection cx;
     Boolean next;
 
+    /**
+     * column indices, resolved on the first row
+     */
+    int zoomColumn = -1, columnColumn, rowColumn, dataColumn;
+
+    /**
+     * the tile scale and offset columns of gridded coverages, 0 if absent
+     */
+    int scaleColumn, offsetColumn;
+
     public TileReader(ResultSet rs, Connection cx) {
         this.rs = rs;
         this.cx = cx;
@@ -59,10 +69,33 @@ public class TileReader implements Iterator<Tile>, Closeable {
         Tile t = new Tile();
 
         try {
-            t.setZoom(rs.getInt("zoom_level"));
-            t.setColumn(rs.getInt("tile_column"));
-            t.setRow(rs.getInt("tile_row"));
-            t.setData(rs.getBytes("tile_data")); 
+            if (zoomColumn < 0) {
+                zoomColumn = rs.findColumn("zoom_level");
+                columnColumn = rs.findColumn("tile_column");
+                rowColumn = rs.findColumn("tile_row");
+                dataColumn = rs.findColumn("tile_data");
+                for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                    String label = rs.getMetaData().getColumnLabel(i);
+                    if ("tile_scale".equals(label)) {
+                        scaleColumn = i;
+                    } else if ("tile_offset".equals(label)) {
+                        offsetColumn = i;
+                    }
+                }
+            }
+            t.setZoom(rs.getInt(zoomColumn));
+            t.setColumn(rs.getInt(columnColumn));
+            t.setRow(rs.getInt(rowColumn));
+            // the driver copies the blob out of SQLite once, consumers should
+            // stream it with getDataBuffer() or getImageInputStream() rather
+            // than copy it again
+            t.setData(rs.getBytes(dataColumn));
+            if (scaleColumn > 0) {
+                t.setScale(getDouble(scaleColumn));
+            }
+            if (offsetColumn > 0) {
+                t.setOffset(getDouble(offsetColumn));
+            }
         }
         catch(SQLException e) {
             throw new RuntimeException(e);
@@ -72,6 +105,11 @@ public class TileReader implements Iterator<Tile>, Closeable {
         return t;
     }
 
+    private Double getDouble(int column) throws SQLException {
+        double value = rs.getDouble(column);
+        return rs.wasNull() ? null : value;
+    }
+
     @Override
     public void remove() {
         throw new UnsupportedOperationException();
@@ -0,0 +1,541 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbcp.DelegatingCallableStatement;
+import org.apache.commons.dbcp.DelegatingConnection;
+import org.apache.commons.dbcp.DelegatingPreparedStatement;
+import org.apache.commons.dbcp.DelegatingStatement;
+
+/**
+ * Lets a single connection at a time write to a GeoPackage.
+ * <p>
+ * SQLite only allows one writer per database, so concurrent writers
+ * otherwise collide on the database lock and fail with SQLITE_BUSY once the
+ * busy timeout runs out, in no particular order. Connections handed out by
+ * the data source instead wait here, in arrival order, for a single write
+ * permit. In auto commit mode a connection takes the permit for each write
+ * statement only. Inside a transaction it takes the permit at its first
+ * statement, read or write, and holds it until the transaction commits or
+ * rolls back: a transaction that read before writing would otherwise hold a
+ * read lock, or a WAL snapshot, that the writer ahead of it has to wait for,
+ * or that its own write can no longer upgrade. The queue is bounded, a writer
+ * arriving when it is full or waiting longer than the timeout fails right
+ * away. Reads in auto commit mode never queue, and with a WAL journal they
+ * are not blocked by the writer either.
+ * </p>
+ * <p>
+ * The permit stands in for a dedicated writer connection: the JDBC data
+ * store hands each transaction its own connection from the pool, so the
+ * writes are serialized on the connections they were issued on instead of
+ * being funneled through one.
+ * </p>
+ * A thread that already holds the permit through one connection and writes
+ * through another one fails right away, rather than waiting on itself.
+ */
+class WriteQueue {
+
+    static final int DEFAULT_CAPACITY = 16;
+
+    static final int DEFAULT_TIMEOUT = 60;
+
+    final Semaphore permit = new Semaphore(1, true);
+
+    final int capacity;
+
+    final long timeout;
+
+    /**
+     * the thread holding the permit
+     */
+    volatile Thread owner;
+
+    /**
+     * @param capacity the maximum number of writers waiting for the permit
+     * @param timeout how long a writer waits for the permit, in seconds
+     */
+    WriteQueue(int capacity, int timeout) {
+        this.capacity = capacity;
+        this.timeout = TimeUnit.SECONDS.toMillis(timeout);
+    }
+
+    void acquire() throws SQLException {
+        Thread current = Thread.currentThread();
+        if (owner == current) {
+            throw new SQLException("The GeoPackage is already written by another connection "
+                    + "of this thread");
+        }
+        if (permit.getQueueLength() >= capacity) {
+            throw new SQLException("GeoPackage write queue is full, " + capacity
+                    + " writers are already waiting");
+        }
+        try {
+            if (!permit.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting " + timeout
+                        + "ms to write to the GeoPackage");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting to write to the GeoPackage", e);
+        }
+        owner = current;
+    }
+
+    void release() {
+        owner = null;
+        permit.release();
+    }
+
+    /**
+     * Whether a statement may write to the database. Only queries and
+     * pragmas that do not assign a value are known not to.
+     */
+    static boolean isWrite(String sql) {
+        String s = sql.trim();
+        int end = 0;
+        while (end < s.length() && Character.isLetter(s.charAt(end))) {
+            end++;
+        }
+        String keyword = s.substring(0, end).toUpperCase();
+        if ("SELECT".equals(keyword) || "EXPLAIN".equals(keyword) || "VALUES".equals(keyword)) {
+            return false;
+        }
+        if ("PRAGMA".equals(keyword)) {
+            return s.indexOf('=') >= 0;
+        }
+        return true;
+    }
+
+    /**
+     * Wraps a pooled connection so that its write statements queue for the
+     * permit.
+     */
+    Connection wrap(Connection cx) {
+        return new QueuedConnection(cx, this);
+    }
+
+    static class QueuedConnection extends DelegatingConnection {
+
+        final WriteQueue queue;
+
+        /**
+         * whether the connection holds the permit
+         */
+        boolean writing;
+
+        QueuedConnection(Connection cx, WriteQueue queue) {
+            super(cx);
+            this.queue = queue;
+        }
+
+        /**
+         * Called before a statement executes, takes the permit for a write,
+         * or for any statement of a transaction.
+         */
+        boolean beforeExecute(boolean write) throws SQLException {
+            if (!writing && (write || !getAutoCommit())) {
+                queue.acquire();
+                writing = true;
+            }
+            return write;
+        }
+
+        /**
+         * Called after a statement executed, gives the permit back unless a
+         * transaction is open.
+         */
+        void afterExecute(boolean write) {
+            if (write) {
+                boolean autoCommit;
+                try {
+                    autoCommit = getAutoCommit();
+                } catch (SQLException e) {
+                    autoCommit = true;
+                }
+                if (autoCommit) {
+                    release();
+                }
+            }
+        }
+
+        @Override
+        public Statement createStatement() throws SQLException {
+            return new QueuedStatement(this, super.createStatement());
+        }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency)
+                throws SQLException {
+            return new QueuedStatement(this,
+                    super.createStatement(resultSetType, resultSetConcurrency));
+        }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency,
+                int resultSetHoldability) throws SQLException {
+            return new QueuedStatement(this, super.createStatement(resultSetType,
+                    resultSetConcurrency, resultSetHoldability));
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            return new QueuedPreparedStatement(this, super.prepareStatement(sql), sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys)
+                throws SQLException {
+            return new QueuedPreparedStatement(this,
+                    super.prepareStatement(sql, autoGeneratedKeys), sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int[] columnIndexes)
+                throws SQLException {
+            return new QueuedPreparedStatement(this,
+                    super.prepareStatement(sql, columnIndexes), sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames)
+                throws SQLException {
+            return new QueuedPreparedStatement(this,
+                    super.prepareStatement(sql, columnNames), sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType,
+                int resultSetConcurrency) throws SQLException {
+            return new QueuedPreparedStatement(this,
+                    super.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType,
+                int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+            return new QueuedPreparedStatement(this, super.prepareStatement(sql,
+                    resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql) throws SQLException {
+            return new QueuedCallableStatement(this, super.prepareCall(sql), sql);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType,
+                int resultSetConcurrency) throws SQLException {
+            return new QueuedCallableStatement(this,
+                    super.prepareCall(sql, resultSetType, resultSetConcurrency), sql);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType,
+                int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+            return new QueuedCallableStatement(this, super.prepareCall(sql, resultSetType,
+                    resultSetConcurrency, resultSetHoldability), sql);
+        }
+
+        @Override
+        public void setAutoCommit(boolean autoCommit) throws SQLException {
+            try {
+                super.setAutoCommit(autoCommit);
+            } finally {
+                // turning auto commit on commits the open transaction
+                if (autoCommit) {
+                    release();
+                }
+            }
+        }
+
+        @Override
+        public void commit() throws SQLException {
+            try {
+                super.commit();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void rollback() throws SQLException {
+            try {
+                super.rollback();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            try {
+                super.close();
+            } finally {
+                release();
+            }
+        }
+
+        void release() {
+            if (writing) {
+                writing = false;
+                queue.release();
+            }
+        }
+    }
+
+    /**
+     * A statement queueing for the permit when its SQL writes.
+     */
+    static class QueuedStatement extends DelegatingStatement {
+
+        final QueuedConnection cx;
+
+        /**
+         * whether a statement of the current batch writes
+         */
+        boolean batchWrites;
+
+        QueuedStatement(QueuedConnection cx, Statement st) {
+            super(cx, st);
+            this.cx = cx;
+        }
+
+        @Override
+        public ResultSet executeQuery(String sql) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.executeQuery(sql);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public boolean execute(String sql) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.execute(sql);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.execute(sql, autoGeneratedKeys);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.execute(sql, columnIndexes);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public boolean execute(String sql, String[] columnNames) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.execute(sql, columnNames);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public int executeUpdate(String sql) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.executeUpdate(sql);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.executeUpdate(sql, autoGeneratedKeys);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.executeUpdate(sql, columnIndexes);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+            boolean write = cx.beforeExecute(isWrite(sql));
+            try {
+                return super.executeUpdate(sql, columnNames);
+            } finally {
+                cx.afterExecute(write);
+            }
+        }
+
+        @Override
+        public void addBatch(String sql) throws SQLException {
+            super.addBatch(sql);
+            batchWrites |= isWrite(sql);
+        }
+
+        @Override
+        public void clearBatch() throws SQLException {
+            super.clearBatch();
+            batchWrites = false;
+        }
+
+        @Override
+        public int[] executeBatch() throws SQLException {
+            boolean write = cx.beforeExecute(batchWrites);
+            try {
+                return super.executeBatch();
+            } finally {
+                batchWrites = false;
+                cx.afterExecute(write);
+            }
+        }
+    }
+
+    /**
+     * A prepared statement queueing for the permit when its SQL writes.
+     */
+    static class QueuedPreparedStatement extends DelegatingPreparedStatement {
+
+        final QueuedConnection cx;
+
+        final boolean write;
+
+        QueuedPreparedStatement(QueuedConnection cx, PreparedStatement st, String sql) {
+            super(cx, st);
+            this.cx = cx;
+            this.write = isWrite(sql);
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.executeQuery();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.executeUpdate();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.execute();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+
+        @Override
+        public int[] executeBatch() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.executeBatch();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+    }
+
+    /**
+     * A callable statement queueing for the permit when its SQL writes.
+     */
+    static class QueuedCallableStatement extends DelegatingCallableStatement {
+
+        final QueuedConnection cx;
+
+        final boolean write;
+
+        QueuedCallableStatement(QueuedConnection cx, CallableStatement st, String sql) {
+            super(cx, st);
+            this.cx = cx;
+            this.write = isWrite(sql);
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.executeQuery();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.executeUpdate();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            boolean w = cx.beforeExecute(write);
+            try {
+                return super.execute();
+            } finally {
+                cx.afterExecute(w);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.geom;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Computes positions along a Hilbert space-filling curve. Sorting envelopes by
+ * the Hilbert index of their centers places spatially close envelopes next to
+ * each other, which is used to bulk load R-trees and to cluster feature rows.
+ */
+public final class HilbertCurve {
+
+    /**
+     * The number of bits per axis; the grid is 2^ORDER cells wide and the
+     * resulting index fits in 2 * ORDER bits.
+     */
+    public static final int ORDER = 16;
+
+    /**
+     * The number of cells along each axis of the grid.
+     */
+    public static final int SIZE = 1 << ORDER;
+
+    private HilbertCurve() {
+    }
+
+    /**
+     * Returns the position of a grid cell along the curve.
+     *
+     * @param x the cell column, 0 to {@link #SIZE} - 1
+     * @param y the cell row, 0 to {@link #SIZE} - 1
+     * @return the distance along the curve, 0 to 2^(2 * ORDER) - 1
+     */
+    public static long index(int x, int y) {
+        long d = 0;
+        for (int s = SIZE >>> 1; s > 0; s >>>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the sub-curve has the right orientation
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = SIZE - 1 - x;
+                    y = SIZE - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Returns the curve index of the center of an envelope, relative to the
+     * extent of the whole data set.
+     *
+     * @param env the envelope to locate
+     * @param extent the extent of all the envelopes being ordered
+     * @return the distance along the curve
+     */
+    public static long index(Envelope env, Envelope extent) {
+        return index(cell(env.getMinX(), env.getMaxX(), extent.getMinX(), extent.getWidth()),
+                cell(env.getMinY(), env.getMaxY(), extent.getMinY(), extent.getHeight()));
+    }
+
+    /**
+     * Maps the center of an interval onto a grid cell along one axis.
+     */
+    static int cell(double min, double max, double origin, double span) {
+        if (!(span > 0)) {
+            return 0;
+        }
+        double c = ((min + max) / 2 - origin) / span * (SIZE - 1);
+        if (!(c > 0)) {  // also catches NaN
+            return 0;
+        }
+        return c >= SIZE - 1 ? SIZE - 1 : (int) c;
+    }
+}
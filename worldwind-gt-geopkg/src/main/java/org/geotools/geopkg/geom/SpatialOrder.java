@@ -0,0 +1,93 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.geom;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * The space-filling curves features can be clustered along when they are
+ * written to a GeoPackage.
+ */
+public enum SpatialOrder {
+
+    /**
+     * Hilbert curve ordering, the better locality of the two.
+     */
+    HILBERT {
+        @Override
+        public long index(int x, int y) {
+            return HilbertCurve.index(x, y);
+        }
+    },
+    /**
+     * Z-order (Morton) ordering, cheaper to compute.
+     */
+    ZORDER {
+        @Override
+        public long index(int x, int y) {
+            return interleave(x) | (interleave(y) << 1);
+        }
+    };
+
+    /**
+     * Returns the position of a grid cell along the curve.
+     *
+     * @param x the cell column, 0 to {@link HilbertCurve#SIZE} - 1
+     * @param y the cell row, 0 to {@link HilbertCurve#SIZE} - 1
+     */
+    public abstract long index(int x, int y);
+
+    /**
+     * Returns the curve index of the center of an envelope, relative to the
+     * extent of the whole data set.
+     *
+     * @param env the envelope to locate
+     * @param extent the extent of all the envelopes being ordered
+     */
+    public long index(Envelope env, Envelope extent) {
+        return index(HilbertCurve.cell(env.getMinX(), env.getMaxX(), extent.getMinX(), extent.getWidth()),
+                HilbertCurve.cell(env.getMinY(), env.getMaxY(), extent.getMinY(), extent.getHeight()));
+    }
+
+    /**
+     * Looks up an order by name, ignoring case.
+     *
+     * @return the order, or <code>null</code> if the name is null or unknown
+     */
+    public static SpatialOrder lookup(String name) {
+        if (name != null) {
+            for (SpatialOrder order : values()) {
+                if (order.name().equalsIgnoreCase(name.trim())) {
+                    return order;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spreads the low 16 bits of v over the even bits of the result.
+     */
+    static long interleave(int v) {
+        long x = v & 0xFFFFL;
+        x = (x | (x << 8)) & 0x00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0FL;
+        x = (x | (x << 2)) & 0x33333333L;
+        x = (x | (x << 1)) & 0x55555555L;
+        return x;
+    }
+}
@@ -19,6 +19,7 @@ package org.geotools.geopkg.mosaic;
 import it.geosolutions.imageio.stream.input.FileImageInputStreamExtImpl;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.logging.Level;
@@ -28,6 +29,9 @@ import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
 import org.geotools.factory.Hints;
+import org.geotools.geopkg.SQLiteTuning;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.parameter.DefaultParameterDescriptor;
 import org.geotools.parameter.DefaultParameterDescriptorGroup;
 import org.geotools.parameter.ParameterGroup;
 import org.geotools.referencing.factory.gridshift.DataUtilities;
@@ -71,8 +75,85 @@ public class GeoPackageFormat extends AbstractGridFormat {
     public static final Class[] INPUT_TYPES = new Class[]{
         File.class, URL.class, String.class, FileImageInputStreamExtImpl.class
     };
+
+    /**
+     * Hint carrying the {@link SQLiteTuning} applied to the connections of a
+     * {@link GeoPackageReader}. When absent, the profile named by the
+     * {@value SQLiteTuning#PROPERTY_PROFILE} system property is used.
+     */
+    public static final Hints.Key TUNING = new Hints.Key(SQLiteTuning.class);
+
+    /**
+     * Hint telling a {@link GeoPackageReader} whether to open the source file
+     * read only. When absent, the {@value #PROPERTY_READ_ONLY} system property
+     * is used. By default files are opened read-write, since a read only open
+     * of a WAL database fails when its -wal and -shm files cannot be created.
+     */
+    public static final Hints.Key READ_ONLY = new Hints.Key(Boolean.class);
+
+    /**
+     * System property opening the files read by coverage readers read only.
+     */
+    public static final String PROPERTY_READ_ONLY = "geopackage.readOnly";
+
+    /**
+     * Hint telling a {@link GeoPackageReader} whether the source file never
+     * changes while it is open, in which case it is read only and without any
+     * file locking. When absent, the {@value #PROPERTY_IMMUTABLE} system
+     * property is used.
+     */
+    public static final Hints.Key IMMUTABLE = new Hints.Key(Boolean.class);
+
+    /**
+     * System property declaring the files read by coverage readers immutable.
+     */
+    public static final String PROPERTY_IMMUTABLE = "geopackage.immutable";
+
+    /**
+     * Hint telling a {@link GeoPackageReader} whether to read ahead the tiles
+     * around the ones it was asked for, see {@link TilePrefetcher}. When
+     * absent, the {@value #PROPERTY_PREFETCH} system property is used.
+     */
+    public static final Hints.Key PREFETCH = new Hints.Key(Boolean.class);
+
+    /**
+     * System property turning on the tile read ahead of coverage readers.
+     */
+    public static final String PROPERTY_PREFETCH = "geopackage.prefetch";
+
+    /**
+     * System property setting how many seconds any coverage read may take
+     * before it stops, unset or 0 for no limit.
+     */
+    public static final String PROPERTY_READ_TIMEOUT = "geopackage.readTimeout";
+
+    /**
+     * Read parameter setting how many milliseconds a single read may take
+     * before it stops, 0 for no limit. When absent, the
+     * {@value #PROPERTY_READ_TIMEOUT} system property applies.
+     */
+    public static final DefaultParameterDescriptor<Long> READ_TIMEOUT
+            = new DefaultParameterDescriptor<>("ReadTimeout", Long.class, null, null);
     
     
+    /**
+     * Write parameter giving the tile matrix set a {@link GeoPackageWriter}
+     * writes a coverage into. When absent, a pyramid at the resolution of the
+     * coverage is created.
+     */
+    public static final DefaultParameterDescriptor<TileEntry> TILE_ENTRY
+            = new DefaultParameterDescriptor<>("TileEntry", TileEntry.class, null, null);
+
+    /**
+     * Write parameter giving the MIME type of the tiles written by a
+     * {@link GeoPackageWriter}: "image/png", "image/jpeg", or the default
+     * "image/vnd.jpeg-png" for JPEG where the tiles are opaque and PNG
+     * elsewhere.
+     */
+    public static final DefaultParameterDescriptor<String> TILE_FORMAT
+            = new DefaultParameterDescriptor<>("TileFormat", String.class,
+                    new String[]{TileImages.PNG, TileImages.JPEG, TileImages.JPEG_PNG}, TileImages.JPEG_PNG);
+
     private final static Logger LOGGER = Logging.getLogger(GeoPackageFormat.class.getPackage().getName());
 
     /**
@@ -112,10 +193,13 @@ public class GeoPackageFormat extends AbstractGridFormat {
     }
 
     /**
-     * Not implemented.
+     * Gets a GeoPackageWriter object tiling coverages into the destination.
      *
-     * @return nothing
-     * @throws UnsupportedOperationException
+     * @param destination A File, filename String or file:// URL, the file is
+     * created if it does not exist
+     * @return a new GeoPackageWriter object
+     * @throws IllegalArgumentException if the destination is not a file
+     * @throws UncheckedIOException if the file cannot be opened
      */
     @Override
     public GridCoverageWriter getWriter(Object destination) {
@@ -123,14 +207,23 @@ public class GeoPackageFormat extends AbstractGridFormat {
     }
 
     /**
-     * Not implemented.
+     * Gets a GeoPackageWriter object tiling coverages into the destination.
      *
-     * @return nothing
-     * @throws UnsupportedOperationException
+     * @param destination A File, filename String or file:// URL, the file is
+     * created if it does not exist
+     * @param hints may carry the {@link #TUNING} of the connections
+     * @return a new GeoPackageWriter object
+     * @throws IllegalArgumentException if the destination is not a file
+     * @throws UncheckedIOException if the file cannot be opened, as
+     * {@link AbstractGridFormat#getWriter} cannot throw an IOException
      */
     @Override
     public GridCoverageWriter getWriter(Object destination, Hints hints) {
-        throw new UnsupportedOperationException("Unsupported method: Geopackage format is read-only.");
+        try {
+            return new GeoPackageWriter(destination, hints);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the GeoPackage " + destination, e);
+        }
     }
 
     /**
@@ -191,8 +284,13 @@ public class GeoPackageFormat extends AbstractGridFormat {
                             MERGE_BEHAVIOR,
                             FOOTPRINT_BEHAVIOR */}));
 
-        // reading parameters
-        writeParameters = null;
+        // writing parameters
+        writeParameters = new ParameterGroup(
+                new DefaultParameterDescriptorGroup(
+                        mInfo,
+                        new GeneralParameterDescriptor[]{
+                            TILE_ENTRY,
+                            TILE_FORMAT}));
     }
 
     /**
@@ -10,6 +10,7 @@ import java.awt.image.ColorModel;
 import java.awt.image.SampleModel;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -96,11 +97,6 @@ public class GeoPackageImageReader extends ImageReader {
             super.setInput(input, seekForwardOnly, ignoreMetadata);
         }
     }
-//    /**
-//     * A progress monitor, set to a dummy one, in the case it is not set by the
-//     * user.
-//     */
-//    private ProgressListener monitor = new DummyProgressListener();
 
     /**
      * Opens the GeoPackage raster file and obtains the coverage names used for
@@ -237,9 +233,6 @@ public class GeoPackageImageReader extends ImageReader {
         return true;
     }
 
-//    public void setMonitor(ProgressListener monitor) {
-//        this.monitor = monitor;
-//    }
     /**
      * @param imageIndex
      * @return
@@ -272,14 +265,29 @@ public class GeoPackageImageReader extends ImageReader {
         // account any source region and subsampling offset settings in the supplied ImageReadParam.
         Rectangle srcRegion = getSourceRegion(param, srcWidth, srcHeight);
 
-        // Read GeoPackage tiles for the defined pixel region into an image 
-        BufferedImage srcImage = gpkgReader.readTiles(zoomLevel, srcRegion, null);
+        // Read GeoPackage tiles for the defined pixel region into an image,
+        // a concurrent abort() stops the read between two tiles
+        clearAbortRequest();
+        processImageStarted(imageIndex);
+        BufferedImage srcImage;
+        try {
+            srcImage = gpkgReader.readTiles(zoomLevel, srcRegion, null);
+        } catch (InterruptedIOException e) {
+            if (!abortRequested()) {
+                throw e;
+            }
+            srcImage = null;
+        }
 
         // Get the BufferedImage to which decoded pixel data should be written. 
         // The image is determined by inspecting the supplied ImageReadParam if it is
         // non-null; if its getDestination method returns a non-null value, that image is
         // simply returned. 
         BufferedImage destImage = getDestination(param, getImageTypes(imageIndex), srcWidth, srcHeight);
+        if (srcImage == null) {
+            processReadAborted();
+            return destImage;
+        }
 
         // Copy the source image into the destination, scaling/coverting as reqd.
         Graphics2D g2 = destImage.createGraphics();
@@ -306,6 +314,7 @@ public class GeoPackageImageReader extends ImageReader {
         } finally {
             g2.dispose();
         }
+        processImageComplete();
 
         return destImage;
     }
@@ -354,23 +363,31 @@ public class GeoPackageImageReader extends ImageReader {
         maxZoomLevel = -1;
     }
 
-//    /**
-//     * Request to abort any current read operation.
-//     */
-//    @Override
-//    public synchronized void abort() {
-//        // super.abort();
-//        if (gpkgReader != null) {
-//            gpkgReader.abort();
-//            gpkgReader = null;
-//        }
-//    }
-//    /**
-//     * Checks if a request to abort the current read operation has been made.
-//     */
-//    protected synchronized boolean abortRequested() {
-//        return gpkgReader.isAborting();
-//    }
+    /**
+     * Requests the read in progress to stop before its next tile. The read
+     * then returns the destination image as is.
+     */
+    @Override
+    public synchronized void abort() {
+        super.abort();
+        if (gpkgReader != null) {
+            gpkgReader.abort();
+        }
+    }
+
+    /**
+     * Releases the GeoPackage reader, stopping its reads in progress. JAI
+     * disposes the reader of an ImageRead operation along with its image,
+     * so a discarded image stops being read.
+     */
+    @Override
+    public void dispose() {
+        if (gpkgReader != null) {
+            gpkgReader.dispose();
+        }
+        super.dispose();
+    }
+
     @Override
     public IIOMetadata getStreamMetadata() throws IOException {
         return null;
@@ -0,0 +1,708 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.SQLiteTuning;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileReader;
+import org.geotools.util.logging.Logging;
+
+/**
+ * Offline optimizer of the tile pyramids of a GeoPackage.
+ * <p>
+ * The optimizer runs four passes over the file:
+ * </p>
+ * <ol>
+ * <li>PNG tiles are re-encoded by parallel workers, as JPEG when they are
+ * opaque or as PNG without the alpha band otherwise, and replaced when the new
+ * encoding is smaller. JPEG tiles are left alone since re-encoding them only
+ * loses quality; {@link #setLossless(boolean) lossless} optimization keeps PNG
+ * tiles in PNG. Gridded coverage tiles hold values rather than colors and are
+ * not recompressed.</li>
+ * <li>The rows of each tile table are renumbered in (zoom level, tile row,
+ * tile column) order, so the tiles of a map view, which are read row by row,
+ * are stored next to each other once the file is rebuilt. The tile ancillary
+ * rows of gridded coverages are renumbered along.</li>
+ * <li>The page size is set to hold a typical tile in a single page, see
+ * {@link #getPageSize(double)}, and the file is rebuilt with VACUUM, dropping
+ * the free pages and rewriting the tables in row order.</li>
+ * <li>ANALYZE gathers the statistics the query planner uses to pick the tile
+ * indexes.</li>
+ * </ol>
+ * <p>
+ * The file is rewritten in place under a synced rollback journal, so that a
+ * crash leaves either the original or the optimized file, and is left in the
+ * rollback journal mode, servers set their own mode when they open it. VACUUM needs exclusive access to the file and the
+ * passes rewrite most of it: nothing else may have the file open while it is
+ * optimized, in particular not a GeoServer store reading it as immutable.
+ * </p>
+ * <p>
+ * The size of the file and the mean time to read a random sample of tiles
+ * through {@link GeoPackage#reader} are measured before and after and
+ * returned in a {@link Report}. The read times include the operating system
+ * cache, so they compare the layouts of the file rather than disk latencies.
+ * </p>
+ * <p>
+ * The optimizer can be run from the command line, see {@link #main(String[])}.
+ * </p>
+ */
+public class GeoPackageOptimizer {
+
+    static final Logger LOGGER = Logging.getLogger("org.geotools.geopkg");
+
+    /**
+     * System property setting the number of workers re-encoding tiles,
+     * defaults to the number of processors.
+     */
+    public static final String PROPERTY_THREADS = "geopackage.optimizer.threads";
+
+    /**
+     * The number of tiles read and re-encoded at once.
+     */
+    static final int BATCH_SIZE = 256;
+
+    static final int MIN_PAGE_SIZE = 4096;
+
+    static final int MAX_PAGE_SIZE = 65536;
+
+    private final File file;
+
+    private boolean lossless;
+
+    private Integer pageSize;
+
+    private int sampleSize = 1000;
+
+    private int threads;
+
+    /**
+     * Creates an optimizer of a GeoPackage file.
+     *
+     * @param file the GeoPackage
+     */
+    public GeoPackageOptimizer(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("The GeoPackage file is null");
+        }
+        this.file = file;
+        this.threads = Math.max(1, Integer.getInteger(PROPERTY_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    /**
+     * @param lossless whether PNG tiles are kept in PNG rather than encoded as
+     * JPEG when they are opaque
+     */
+    public void setLossless(boolean lossless) {
+        this.lossless = lossless;
+    }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize the page size of the optimized file, a power of two
+     * between 512 and 65536, or null to derive it from the tile sizes
+     */
+    public void setPageSize(Integer pageSize) {
+        if (pageSize != null && (pageSize < 512 || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1)) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        this.pageSize = pageSize;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize the number of tiles read to measure the read latency,
+     * 0 to skip the measures
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(0, sampleSize);
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Optimizes the GeoPackage.
+     *
+     * @return the sizes and read times before and after
+     * @throws IOException
+     */
+    public Report optimize() throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("No such GeoPackage: " + file);
+        }
+        Report report = new Report();
+        report.sizeBefore = file.length();
+
+        List<Sample> samples = sample();
+        report.samples = samples.size();
+        report.readMillisBefore = measure(samples);
+
+        long start = System.nanoTime();
+        SQLiteTuning tuning = SQLiteTuning.profile(SQLiteTuning.BULK_EXPORT);
+        // a rollback journal on disk, synced along with the file it restores:
+        // the file is rewritten in place, a crash must not leave it corrupt
+        tuning.setJournalMode("DELETE");
+        tuning.setSynchronous("FULL");
+        tuning.setPageSize(null);
+        GeoPackage geopkg = new GeoPackage(file, tuning);
+        try {
+            long tileBytes = 0;
+            long tileCount = 0;
+            for (TileEntry tileset : geopkg.tiles()) {
+                if (tileset.getGriddedCoverage() == null) {
+                    recompress(geopkg, tileset, report);
+                }
+                reorder(geopkg, tileset);
+                long[] sizes = getTileSizes(geopkg, tileset);
+                tileBytes += sizes[0];
+                tileCount += sizes[1];
+            }
+            report.pageSizeBefore = getPageSize(geopkg);
+            report.pageSizeAfter = pageSize != null ? pageSize
+                    : getPageSize(tileCount > 0 ? (double) tileBytes / tileCount : 0);
+            vacuum(geopkg, report.pageSizeAfter);
+        } finally {
+            geopkg.close();
+        }
+        report.seconds = (System.nanoTime() - start) / 1e9;
+
+        report.sizeAfter = file.length();
+        report.readMillisAfter = measure(samples);
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Optimized " + file + ": " + report);
+        }
+        return report;
+    }
+
+    /**
+     * Re-encodes the PNG tiles of a tileset, a batch being encoded while the
+     * previous one is updated.
+     */
+    private void recompress(GeoPackage geopkg, TileEntry tileset, Report report) throws IOException {
+        String format = lossless ? TileImages.PNG : TileImages.JPEG_PNG;
+        String table = quote(tileset.getTableName());
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try (Connection cx = geopkg.getDataSource().getConnection();
+                PreparedStatement select = cx.prepareStatement("SELECT id, tile_data FROM " + table
+                        + " WHERE id > ? ORDER BY id LIMIT " + BATCH_SIZE);
+                PreparedStatement update = cx.prepareStatement("UPDATE " + table
+                        + " SET tile_data = ? WHERE id = ?")) {
+            List<Future<byte[]>> previous = null;
+            long[] previousIds = null;
+            long lastId = Long.MIN_VALUE;
+            while (true) {
+                List<Future<byte[]>> futures = new ArrayList<>(BATCH_SIZE);
+                long[] ids = new long[BATCH_SIZE];
+                select.setLong(1, lastId);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        ids[futures.size()] = lastId = rs.getLong(1);
+                        futures.add(workers.submit(new Recompress(rs.getBytes(2), format)));
+                    }
+                }
+                if (previous != null) {
+                    update(cx, update, previousIds, previous, report);
+                }
+                if (futures.isEmpty()) {
+                    break;
+                }
+                previous = futures;
+                previousIds = ids;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while recompressing " + tileset.getTableName());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Updates the tiles whose encoding shrank in a single transaction.
+     */
+    private static void update(Connection cx, PreparedStatement update, long[] ids,
+            List<Future<byte[]>> futures, Report report)
+            throws SQLException, InterruptedException, ExecutionException {
+        cx.setAutoCommit(false);
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                byte[] data = futures.get(i).get();
+                report.tiles++;
+                if (data != null) {
+                    update.setBytes(1, data);
+                    update.setLong(2, ids[i]);
+                    update.addBatch();
+                    report.tilesRecompressed++;
+                }
+            }
+            update.executeBatch();
+            cx.commit();
+        } catch (SQLException | InterruptedException | ExecutionException e) {
+            cx.rollback();
+            throw e;
+        } finally {
+            cx.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Re-encodes a tile, returning null when the new encoding is not smaller.
+     */
+    static class Recompress implements Callable<byte[]> {
+
+        final byte[] data;
+
+        final String format;
+
+        Recompress(byte[] data, String format) {
+            this.data = data;
+            this.format = format;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            Tile tile = new Tile(null, null, null, data);
+            if (!TileImages.PNG.equals(tile.getMimeType())) {
+                return null;
+            }
+            BufferedImage image = GeoPackageReader.createImageFromBytes(data);
+            if (image == null) {
+                return null;
+            }
+            byte[] encoded = TileImages.encode(TileImages.toABGR(image), format);
+            return encoded.length < data.length ? encoded : null;
+        }
+    }
+
+    /**
+     * Renumbers the rows of a tile table in (zoom level, tile row, tile
+     * column) order. The rows are stored in the order of their ids, which
+     * VACUUM then lays out contiguously. The tile ancillary rows of a gridded
+     * coverage, which reference the tiles by id, are renumbered in the same
+     * transaction.
+     */
+    private static void reorder(GeoPackage geopkg, TileEntry tileset) throws IOException {
+        String table = quote(tileset.getTableName());
+        try (Connection cx = geopkg.getDataSource().getConnection();
+                Statement st = cx.createStatement()) {
+            cx.setAutoCommit(false);
+            try {
+                st.execute("CREATE TEMP TABLE tile_order (new_id INTEGER PRIMARY KEY, old_id INTEGER UNIQUE)");
+                st.execute("INSERT INTO tile_order (old_id) SELECT id FROM " + table
+                        + " ORDER BY zoom_level, tile_row, tile_column");
+                // negative ids first, the new ids collide with the old ones
+                st.execute("UPDATE " + table + " SET id = -(SELECT new_id FROM tile_order"
+                        + " WHERE old_id = " + table + ".id)");
+                st.execute("UPDATE " + table + " SET id = -id");
+                if (tileset.getGriddedCoverage() != null && hasTable(cx, GeoPackage.GRIDDED_TILE_ANCILLARY)) {
+                    // the same trick, tpudt_id being unique for the table
+                    String ancillary = GeoPackage.GRIDDED_TILE_ANCILLARY;
+                    try (PreparedStatement ps = cx.prepareStatement("UPDATE " + ancillary
+                            + " SET tpudt_id = -(SELECT new_id FROM tile_order WHERE old_id = " + ancillary
+                            + ".tpudt_id) WHERE tpudt_name = ? AND tpudt_id IN (SELECT old_id FROM tile_order)")) {
+                        ps.setString(1, tileset.getTableName());
+                        ps.executeUpdate();
+                    }
+                    try (PreparedStatement ps = cx.prepareStatement("UPDATE " + ancillary
+                            + " SET tpudt_id = -tpudt_id WHERE tpudt_name = ? AND tpudt_id < 0")) {
+                        ps.setString(1, tileset.getTableName());
+                        ps.executeUpdate();
+                    }
+                }
+                st.execute("DROP TABLE tile_order");
+                cx.commit();
+            } catch (SQLException e) {
+                cx.rollback();
+                throw e;
+            } finally {
+                cx.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not reorder " + tileset.getTableName(), e);
+        }
+    }
+
+    private static boolean hasTable(Connection cx, String name) throws SQLException {
+        try (PreparedStatement ps = cx.prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            ps.setString(1, name);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Returns the total size and the number of the tiles of a tileset.
+     */
+    private static long[] getTileSizes(GeoPackage geopkg, TileEntry tileset) throws IOException {
+        try (Connection cx = geopkg.getDataSource().getConnection();
+                Statement st = cx.createStatement();
+                ResultSet rs = st.executeQuery("SELECT TOTAL(LENGTH(tile_data)), COUNT(*) FROM "
+                        + quote(tileset.getTableName()))) {
+            return rs.next() ? new long[]{(long) rs.getDouble(1), rs.getLong(2)} : new long[2];
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int getPageSize(GeoPackage geopkg) throws IOException {
+        try (Connection cx = geopkg.getDataSource().getConnection();
+                Statement st = cx.createStatement();
+                ResultSet rs = st.executeQuery("PRAGMA page_size")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns the page size holding a tile of the mean tile size in a single
+     * page, i.e., the smallest power of two above it between 4096, the SQLite
+     * default, and 65536, the largest page size. Larger tiles are split on
+     * chains of overflow pages, each one a random read.
+     *
+     * @param meanTileSize the mean size of the tiles in bytes
+     * @return the page size in bytes
+     */
+    static int getPageSize(double meanTileSize) {
+        int size = MIN_PAGE_SIZE;
+        // a page also holds the page and cell headers
+        while (size < MAX_PAGE_SIZE && size - 64 < meanTileSize) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /**
+     * Sets the page size, rebuilds the file and gathers the statistics.
+     */
+    private static void vacuum(GeoPackage geopkg, int pageSize) throws IOException {
+        try (Connection cx = geopkg.getDataSource().getConnection();
+                Statement st = cx.createStatement()) {
+            // the page size cannot change in WAL mode
+            st.execute("PRAGMA journal_mode = DELETE");
+            st.execute("PRAGMA page_size = " + pageSize);
+            st.execute("VACUUM");
+            st.execute("ANALYZE");
+        } catch (SQLException e) {
+            throw new IOException("Could not vacuum " + geopkg.getFile(), e);
+        }
+    }
+
+    /**
+     * Picks random tiles of all the tilesets, in proportion to their number
+     * of tiles.
+     */
+    private List<Sample> sample() throws IOException {
+        List<Sample> samples = new ArrayList<>();
+        if (sampleSize == 0) {
+            return samples;
+        }
+        GeoPackage geopkg = new GeoPackage(file, null, true);
+        try (Connection cx = geopkg.getDataSource().getConnection()) {
+            List<TileEntry> tilesets = geopkg.tiles();
+            Map<String, Long> counts = new HashMap<>();
+            long total = 0;
+            for (TileEntry tileset : tilesets) {
+                long count = getTileSizes(geopkg, tileset)[1];
+                counts.put(tileset.getTableName(), count);
+                total += count;
+            }
+            for (TileEntry tileset : tilesets) {
+                long count = counts.get(tileset.getTableName());
+                long limit = total == 0 ? 0 : Math.max(1, count * sampleSize / total);
+                try (Statement st = cx.createStatement();
+                        ResultSet rs = st.executeQuery("SELECT zoom_level, tile_column, tile_row FROM "
+                                + quote(tileset.getTableName()) + " ORDER BY RANDOM() LIMIT " + limit)) {
+                    while (rs.next()) {
+                        samples.add(new Sample(tileset.getTableName(), rs.getInt(1), rs.getInt(2), rs.getInt(3)));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            geopkg.close();
+        }
+        return samples;
+    }
+
+    /**
+     * Returns the mean time in milliseconds to read the sample tiles from a
+     * newly opened file, or NaN if there are no samples.
+     */
+    private double measure(List<Sample> samples) throws IOException {
+        if (samples.isEmpty()) {
+            return Double.NaN;
+        }
+        GeoPackage geopkg = new GeoPackage(file, null, true);
+        try {
+            Map<String, TileEntry> tilesets = new HashMap<>();
+            for (TileEntry tileset : geopkg.tiles()) {
+                tilesets.put(tileset.getTableName(), tileset);
+            }
+            long nanos = 0;
+            for (Sample s : samples) {
+                long start = System.nanoTime();
+                try (TileReader reader = geopkg.reader(tilesets.get(s.table), s.zoom, s.zoom,
+                        s.column, s.column, s.row, s.row)) {
+                    if (!reader.hasNext() || reader.next().getData() == null) {
+                        throw new IOException("Missing tile " + s.zoom + "/" + s.column + "/" + s.row
+                                + " of " + s.table);
+                    }
+                }
+                nanos += System.nanoTime() - start;
+            }
+            return nanos / 1e6 / samples.size();
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    /**
+     * Quotes a table name as an identifier, the name also qualifies columns in
+     * correlated subqueries.
+     */
+    private static String quote(String tableName) {
+        return "\"" + tableName.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * A tile read to measure the read latency.
+     */
+    private static class Sample {
+
+        final String table;
+
+        final int zoom;
+
+        final int column;
+
+        final int row;
+
+        Sample(String table, int zoom, int column, int row) {
+            this.table = table;
+            this.zoom = zoom;
+            this.column = column;
+            this.row = row;
+        }
+    }
+
+    /**
+     * The outcome of an optimization.
+     */
+    public static class Report {
+
+        long sizeBefore;
+
+        long sizeAfter;
+
+        int pageSizeBefore;
+
+        int pageSizeAfter;
+
+        long tiles;
+
+        long tilesRecompressed;
+
+        int samples;
+
+        double readMillisBefore;
+
+        double readMillisAfter;
+
+        double seconds;
+
+        /**
+         * Returns the size of the file in bytes before the optimization.
+         */
+        public long getSizeBefore() {
+            return sizeBefore;
+        }
+
+        /**
+         * Returns the size of the file in bytes after the optimization.
+         */
+        public long getSizeAfter() {
+            return sizeAfter;
+        }
+
+        public int getPageSizeBefore() {
+            return pageSizeBefore;
+        }
+
+        public int getPageSizeAfter() {
+            return pageSizeAfter;
+        }
+
+        /**
+         * Returns the number of image tiles checked for recompression.
+         */
+        public long getTiles() {
+            return tiles;
+        }
+
+        /**
+         * Returns the number of tiles replaced by a smaller encoding.
+         */
+        public long getTilesRecompressed() {
+            return tilesRecompressed;
+        }
+
+        /**
+         * Returns the number of tiles read to measure the read times.
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        /**
+         * Returns the mean time in milliseconds to read a tile before the
+         * optimization, NaN if no tile was read.
+         */
+        public double getReadMillisBefore() {
+            return readMillisBefore;
+        }
+
+        /**
+         * Returns the mean time in milliseconds to read a tile after the
+         * optimization, NaN if no tile was read.
+         */
+        public double getReadMillisAfter() {
+            return readMillisAfter;
+        }
+
+        /**
+         * Returns the duration of the optimization in seconds, measures
+         * excluded.
+         */
+        public double getSeconds() {
+            return seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("size %d -> %d bytes (%+.1f%%), page size %d -> %d bytes, "
+                    + "%d of %d tiles recompressed, mean tile read %.3f -> %.3f ms over %d tiles, "
+                    + "optimized in %.1fs",
+                    sizeBefore, sizeAfter, sizeBefore == 0 ? 0 : 100.0 * (sizeAfter - sizeBefore) / sizeBefore,
+                    pageSizeBefore, pageSizeAfter, tilesRecompressed, tiles,
+                    readMillisBefore, readMillisAfter, samples, seconds);
+        }
+    }
+
+    /**
+     * Optimizes GeoPackage files from the command line:
+     * <pre>
+     * GeoPackageOptimizer [-lossless] [-threads n] [-pageSize bytes] [-samples n] file.gpkg...
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        List<File> files = new ArrayList<>();
+        boolean lossless = false;
+        Integer threads = null;
+        Integer pageSize = null;
+        Integer samples = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("-lossless".equals(args[i])) {
+                    lossless = true;
+                } else if ("-threads".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.valueOf(args[++i]);
+                } else if ("-pageSize".equals(args[i]) && i + 1 < args.length) {
+                    pageSize = Integer.valueOf(args[++i]);
+                } else if ("-samples".equals(args[i]) && i + 1 < args.length) {
+                    samples = Integer.valueOf(args[++i]);
+                } else if (args[i].startsWith("-")) {
+                    files.clear();
+                    break;
+                } else {
+                    files.add(new File(args[i]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            files.clear();
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: GeoPackageOptimizer [-lossless] [-threads n] [-pageSize bytes]"
+                    + " [-samples n] file.gpkg...");
+            System.exit(1);
+        }
+        for (File f : files) {
+            GeoPackageOptimizer optimizer = new GeoPackageOptimizer(f);
+            optimizer.setLossless(lossless);
+            if (threads != null) {
+                optimizer.setThreads(threads);
+            }
+            if (pageSize != null) {
+                optimizer.setPageSize(pageSize);
+            }
+            if (samples != null) {
+                optimizer.setSampleSize(samples);
+            }
+            System.out.println(f + ": " + optimizer.optimize());
+        }
+    }
+}
@@ -23,13 +23,15 @@ import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,7 +40,10 @@ import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
 
+import org.geotools.geopkg.ByteArrayImageInputStream;
 import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.GriddedCoverage;
+import org.geotools.geopkg.SQLiteTuning;
 import org.geotools.geopkg.Tile;
 import org.geotools.geopkg.TileEntry;
 import org.geotools.geopkg.TileMatrix;
@@ -74,6 +79,8 @@ import static org.geotools.referencing.CRS.AxisOrder.EAST_NORTH;
 import org.geotools.referencing.operation.builder.GridToEnvelopeMapper;
 import org.geotools.referencing.operation.matrix.XAffineTransform;
 import org.geotools.resources.coverage.CoverageUtilities;
+import org.geotools.resources.i18n.Vocabulary;
+import org.geotools.resources.i18n.VocabularyKeys;
 import org.geotools.util.Utilities;
 import org.geotools.util.logging.Logging;
 import org.opengis.coverage.ColorInterpretation;
@@ -89,6 +96,8 @@ import org.opengis.referencing.datum.PixelInCell;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.operation.TransformException;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 /**
  * GeoPackage reader for OGC GeoPackage Tile Encoding.
  *
@@ -107,8 +116,51 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
     //protected GridCoverageFactory coverageFactory;
     protected File sourceFile;
 
+    /**
+     * The SQLite tuning applied to the connections opened on the source file.
+     */
+    protected SQLiteTuning tuning;
+
+    /**
+     * Whether the source file is opened read only, see
+     * {@link GeoPackageFormat#READ_ONLY}.
+     */
+    protected boolean readOnly;
+
+    /**
+     * Whether the source file is opened read only without file locking, see
+     * {@link GeoPackageFormat#IMMUTABLE}.
+     */
+    protected boolean immutable;
+
     protected Map<String, TileEntry> tiles = new HashMap<>();
 
+    /**
+     * Reads ahead the tiles around the ones read, <code>null</code> unless
+     * enabled, see {@link GeoPackageFormat#PREFETCH}.
+     */
+    TilePrefetcher prefetcher;
+
+    /**
+     * The number of times the reads in progress were aborted, a read stops
+     * at its next tile once the count changes.
+     */
+    final AtomicLong aborts = new AtomicLong();
+
+    /**
+     * How long a read may take before it stops, in milliseconds, 0 for no
+     * limit, unless the read sets {@link GeoPackageFormat#READ_TIMEOUT}. See
+     * {@link GeoPackageFormat#PROPERTY_READ_TIMEOUT}.
+     */
+    static final long READ_TIMEOUT = TimeUnit.SECONDS.toMillis(
+            Long.getLong(GeoPackageFormat.PROPERTY_READ_TIMEOUT, 0));
+
+    /**
+     * How far, in pixels, a requested area may be off a stored tile for
+     * {@link #findAlignedTile} to still consider it aligned.
+     */
+    public static final double ALIGNMENT_TOLERANCE = 0.01;
+
     /**
      * Constructs a GeoPackageReader from a source.
      *
@@ -119,9 +171,24 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
     public GeoPackageReader(Object source, Hints hints) throws IOException {
         coverageFactory = CoverageFactoryFinder.getGridCoverageFactory(this.hints);
         sourceFile = GeoPackageFormat.getFileFromSource(source);
+        tuning = hints != null && hints.get(GeoPackageFormat.TUNING) != null
+                ? (SQLiteTuning) hints.get(GeoPackageFormat.TUNING)
+                : SQLiteTuning.fromSystemProperty();
+        readOnly = hints != null && hints.get(GeoPackageFormat.READ_ONLY) != null
+                ? (Boolean) hints.get(GeoPackageFormat.READ_ONLY)
+                : Boolean.getBoolean(GeoPackageFormat.PROPERTY_READ_ONLY);
+        immutable = hints != null && hints.get(GeoPackageFormat.IMMUTABLE) != null
+                ? (Boolean) hints.get(GeoPackageFormat.IMMUTABLE)
+                : Boolean.getBoolean(GeoPackageFormat.PROPERTY_IMMUTABLE);
+        boolean prefetch = hints != null && hints.get(GeoPackageFormat.PREFETCH) != null
+                ? (Boolean) hints.get(GeoPackageFormat.PREFETCH)
+                : Boolean.getBoolean(GeoPackageFormat.PROPERTY_PREFETCH);
+        if (prefetch) {
+            prefetcher = new TilePrefetcher(this);
+        }
 
         // A GeoPackage object is used to read the contents of the file
-        GeoPackage gpkg = new GeoPackage(sourceFile);
+        GeoPackage gpkg = open();
         try {
             coverageName = null;
 
@@ -144,6 +211,81 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
+    @Override
+    public void dispose() {
+        abort();
+        if (prefetcher != null) {
+            prefetcher.dispose();
+        }
+        super.dispose();
+    }
+
+    /**
+     * Stops the reads in progress, which fail with an
+     * {@link InterruptedIOException} before fetching or decoding their next
+     * tile, and cancels the tiles scheduled to be read ahead. Reads started
+     * afterwards are not affected.
+     */
+    public void abort() {
+        aborts.incrementAndGet();
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+    }
+
+    /**
+     * Checks between tiles whether a read has to stop, because the reader
+     * was aborted, the reading thread was interrupted or the read timed out.
+     */
+    class ReadControl {
+
+        final long started = aborts.get();
+
+        final long timeout;
+
+        final long deadline;
+
+        ReadControl() {
+            this(null);
+        }
+
+        /**
+         * @param params the read parameters, possibly holding the
+         * {@link GeoPackageFormat#READ_TIMEOUT} of the read
+         */
+        ReadControl(GeneralParameterValue[] params) {
+            long t = READ_TIMEOUT;
+            if (params != null) {
+                for (GeneralParameterValue param : params) {
+                    if (param instanceof ParameterValue && param.getDescriptor().getName()
+                            .equals(GeoPackageFormat.READ_TIMEOUT.getName())) {
+                        Object value = ((ParameterValue) param).getValue();
+                        if (value instanceof Number) {
+                            t = ((Number) value).longValue();
+                        }
+                    }
+                }
+            }
+            timeout = t;
+            deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        }
+
+        void check() throws InterruptedIOException {
+            String reason = null;
+            if (started != aborts.get()) {
+                reason = "aborted";
+            } else if (Thread.currentThread().isInterrupted()) {
+                reason = "interrupted";
+            } else if (deadline > 0 && System.currentTimeMillis() > deadline) {
+                reason = "timed out after " + timeout + "ms";
+            }
+            if (reason != null) {
+                LOGGER.fine("Read of " + sourceFile + " " + reason);
+                throw new InterruptedIOException("Read of " + sourceFile.getName() + " " + reason);
+            }
+        }
+    }
+
     /**
      * Returns the tileset corresponding to the default raster coverage in this
      * GeoPackage.
@@ -500,8 +642,11 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
         imageLayout.setTileGridXOffset(-gridRange.getLow(0)).setTileGridYOffset(-gridRange.getLow(1));
         imageLayout.setTileWidth(tileSize.width).setTileHeight(tileSize.height);
 
-        // Set the color/sample models
-        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_4BYTE_ABGR);
+        // Set the color/sample models, a single band of values for gridded coverages
+        GriddedCoverage gridded = tileset.getGriddedCoverage();
+        BufferedImage image = gridded != null
+                ? gridded.createImage(4, 4)
+                : new BufferedImage(4, 4, BufferedImage.TYPE_4BYTE_ABGR);
         ColorModel cm = image.getColorModel();
         SampleModel sm = image.getSampleModel();
         imageLayout.setColorModel(cm).setSampleModel(sm);
@@ -756,10 +901,12 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
     @Override
     public GridCoverage2D read(String coverageName, GeneralParameterValue[] params) throws IllegalArgumentException, IOException {
         final TileEntry tileset = getTileset(coverageName);
+        final GriddedCoverage gridded = tileset.getGriddedCoverage();
         final CoordinateReferenceSystem crs1 = getCoordinateReferenceSystem(coverageName);
         BufferedImage image = null;
         ReferencedEnvelope resultEnvelope = null;
-        GeoPackage file = new GeoPackage(sourceFile);
+        ReadControl control = new ReadControl(params);
+        GeoPackage file = open();
         try {
             final int xIndex = CRS.getAxisOrder(crs1) == EAST_NORTH ? 0 : 1;
             final int yIndex = 1 - xIndex;
@@ -857,29 +1004,12 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
             resultEnvelope = new ReferencedEnvelope(xOrigin + leftTile * tileResX, xOrigin + (rightTile + 1) * tileResX, yOrigin - topTile * tileResY, yOrigin - (bottomTile + 1) * tileResY, crs1);
 
             // Create the image to hold the tiles.
-            image = createImage(width, height, inputTransparentColor);
-            Graphics2D g2 = image.createGraphics();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-
-            TileReader it = file.reader(tileset, bestMatrix.getZoomLevel(), bestMatrix.getZoomLevel(), leftTile, rightTile, topTile, bottomTile);
-            try {
-                while (it.hasNext()) {
-                    Tile tile = it.next();
-
-                    BufferedImage tileImage = createImageFromBytes(tile.getData());
-
-                    int posx = (int) (tile.getColumn() - leftTile) * tileWidth;
-                    int posy = (int) (tile.getRow() - topTile) * tileHeight;
-
-                    // Draw the tile. We 'draw' versus using 'copy data' to 
-                    // accomdate potentially different SampleModels between image tiles,
-                    // e.g., when there's a mix of PNG and JPEG image types in the table.
-                    g2.drawImage(tileImage, posx, posy, tileWidth, tileHeight, null);
-                }
-            } finally {
-                it.close();
-                g2.dispose();
+            if (gridded != null) {
+                // values have no color to make transparent
+                inputTransparentColor = null;
             }
+            image = createImage(tileset, width, height, inputTransparentColor);
+            drawTiles(file, coverageName, tileset, bestMatrix, leftTile, rightTile, topTile, bottomTile, image, control);
             // Apply the color transparency mask
             if (inputTransparentColor != null) {
                 // Note: ImageWorker.makeColorTransparent only works 
@@ -898,9 +1028,26 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
 //        //String name = coverageName + "-" + zoomLevel + "-[" + startCol + "..." + endCol + "],[" + startRow + "..." + endRow + "]";
 //        return coverageFactory.create(coverageName, image, crs1, gridToCRS2, null, null, null);
         
+        if (gridded != null) {
+            return coverageFactory.create(coverageName, image, resultEnvelope,
+                    new GridSampleDimension[]{createSampleDimension(gridded)}, null, null);
+        }
         return coverageFactory.create(coverageName, image, resultEnvelope);
     }
 
+    /**
+     * Creates the sample dimension of the values of a gridded coverage,
+     * declaring the value of its null grid cells as no-data.
+     *
+     * @param gridded the gridded coverage
+     * @return a sample dimension with a no-data category
+     */
+    static GridSampleDimension createSampleDimension(GriddedCoverage gridded) {
+        Category noData = new Category(Vocabulary.formatInternational(VocabularyKeys.NODATA),
+                new Color(0, 0, 0, 0), gridded.getNoData());
+        return new GridSampleDimension(gridded.getFieldName(), new Category[]{noData}, null);
+    }
+
     /**
      * divideWithTolerance will round result if remainder is withing tolerance,
      * otherwise it truncates the result.
@@ -1087,11 +1234,15 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
             return srcImage;
         }
         // Copy the src image into the dest image, cropping the image as required                
-        BufferedImage destImage = createImage(region.width, region.height, inputTransparentColor);
-
-        Graphics2D g2 = destImage.createGraphics();
+        BufferedImage destImage = createImage(tileset, region.width, region.height, inputTransparentColor);
         int sx = regionX % tileWidth;
         int sy = regionY % tileHeight;
+        if (tileset.getGriddedCoverage() != null) {
+            destImage.getRaster().setRect(-sx, -sy, srcImage.getRaster());
+            return destImage;
+        }
+
+        Graphics2D g2 = destImage.createGraphics();
         g2.drawImage(srcImage,
                 0, //int dx1,
                 0, //int dy1,
@@ -1125,26 +1276,134 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
             throws IllegalArgumentException, IOException {
         TileEntry tileset = getTileset(coverageName);
         TileMatrix matrix = tileset.getTileMatrix(zoomLevel);
-        GeoPackage file = new GeoPackage(sourceFile);
+        ReadControl control = new ReadControl();
+        GeoPackage file = open();
         final int tileWidth = matrix.getTileWidth();
         final int tileHeight = matrix.getTileHeight();
         final int imageWidth = (endCol - startCol + 1) * tileWidth;
         final int imageHeight = (endRow - startRow + 1) * tileHeight;
 
+        if (tileset.getGriddedCoverage() != null) {
+            // values have no color to make transparent
+            inputTransparentColor = null;
+        }
+
         // Create the image to hold the tiles.
-        BufferedImage srcImage = createImage(imageWidth, imageHeight, inputTransparentColor);
+        BufferedImage srcImage = createImage(tileset, imageWidth, imageHeight, inputTransparentColor);
         try {
-            Graphics2D g2 = srcImage.createGraphics();
+            drawTiles(file, coverageName, tileset, matrix, startCol, endCol, startRow, endRow, srcImage, control);
+            // Apply the color transparency mask
+            if (inputTransparentColor != null) {
+                // Note: ImageWorker.makeColorTransparent only works 
+                // with an IndexColorModel or a ComponentColorModel
+                srcImage = new ImageWorker(srcImage).makeColorTransparent(inputTransparentColor).getRenderedOperation().getAsBufferedImage();
+            }
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            //System.out.println("*****************" + e.getMessage());
+            LOGGER.log(Level.SEVERE, "readTiles", e);
+
+        } finally {
+            file.close();
+        }
+        return srcImage;
+    }
+
+    /**
+     * Draws the tiles of a zoom level within column/row boundaries, the tile
+     * at the start column and row being drawn at the origin. The values of
+     * gridded coverage tiles are copied as they are, not drawn.
+     *
+     * @param file the GeoPackage to read the tiles from
+     * @param coverageName the raster coverage name
+     * @param tileset the tileset of the coverage
+     * @param matrix the tile matrix of the zoom level
+     * @param startCol the first column
+     * @param endCol the last column
+     * @param startRow the first row
+     * @param endRow the last row
+     * @param image the image to draw the tiles on, see
+     * {@link #createImage(TileEntry, int, int, Color)}
+     * @param control checked before fetching and decoding each tile
+     * @throws InterruptedIOException if the read has to stop
+     * @throws IOException
+     */
+    void drawTiles(GeoPackage file, String coverageName, TileEntry tileset,
+            TileMatrix matrix, int startCol, int endCol, int startRow, int endRow, BufferedImage image,
+            ReadControl control) throws IOException {
+        if (endCol < startCol || endRow < startRow) {
+            return;
+        }
+        Graphics2D g2 = null;
+        WritableRaster raster = null;
+        if (tileset.getGriddedCoverage() != null) {
+            raster = image.getRaster();
+        } else {
+            g2 = image.createGraphics();
             g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        }
+        try {
+            drawTiles(file, coverageName, tileset, matrix, startCol, endCol, startRow, endRow, g2, raster, control);
+        } finally {
+            if (g2 != null) {
+                g2.dispose();
+            }
+        }
+    }
+
+    private void drawTiles(GeoPackage file, String coverageName, TileEntry tileset,
+            TileMatrix matrix, int startCol, int endCol, int startRow, int endRow, Graphics2D g2,
+            WritableRaster raster, ReadControl control) throws IOException {
+        final int zoomLevel = matrix.getZoomLevel();
+        final int tileWidth = matrix.getTileWidth();
+        final int tileHeight = matrix.getTileHeight();
+
+        // Draw the tiles already decoded, the whole region may be cached
+        boolean[][] drawn = null;
+        boolean complete = false;
+        if (prefetcher != null) {
+            prefetcher.refresh();
+            drawn = new boolean[endRow - startRow + 1][endCol - startCol + 1];
+            complete = true;
+            for (int row = startRow; row <= endRow; row++) {
+                control.check();
+                for (int col = startCol; col <= endCol; col++) {
+                    BufferedImage tileImage = prefetcher.get(coverageName, zoomLevel, col, row);
+                    if (tileImage != null) {
+                        drawTile(tileImage, (col - startCol) * tileWidth,
+                                (row - startRow) * tileHeight, tileWidth, tileHeight, g2, raster);
+                        drawn[row - startRow][col - startCol] = true;
+                    } else {
+                        complete = false;
+                    }
+                }
+            }
+        }
+
+        if (!complete) {
             // Open a tile reader on the result set matching the zoom level and the tile indices
             TileReader it = file.reader(tileset, zoomLevel, zoomLevel, startCol, endCol, startRow, endRow);
             try {
-
-                while (it.hasNext()) {
+                while (true) {
+                    control.check();
+                    if (!it.hasNext()) {
+                        break;
+                    }
 
                     // Read the tile's image data into a BufferedImage
                     Tile tile = it.next();
-                    BufferedImage tileImage = createImageFromBytes(tile.getData());
+                    if (drawn != null && drawn[tile.getRow() - startRow][tile.getColumn() - startCol]) {
+                        continue;
+                    }
+                    control.check();
+                    BufferedImage tileImage = decodeTile(tileset, tile);
+                    if (tileImage == null) {
+                        continue;
+                    }
+                    if (prefetcher != null) {
+                        prefetcher.put(coverageName, tile, tileImage);
+                    }
 
                     // DEBUGGING: Uncomment block to draw a border around the tiles
                     /*
@@ -1166,27 +1425,30 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
                     // Draw the tile. We 'draw' versus using 'copy data' to 
                     // accomdate potentially different SampleModels between image tiles,
                     // e.g., when there's a mix of PNG and JPEG image types in the table.
-                    g2.drawImage(tileImage, posx, posy, tileWidth, tileHeight, null);
-
+                    drawTile(tileImage, posx, posy, tileWidth, tileHeight, g2, raster);
                 }
             } finally {
                 it.close();
-                g2.dispose();
-            }
-            // Apply the color transparency mask
-            if (inputTransparentColor != null) {
-                // Note: ImageWorker.makeColorTransparent only works 
-                // with an IndexColorModel or a ComponentColorModel
-                srcImage = new ImageWorker(srcImage).makeColorTransparent(inputTransparentColor).getRenderedOperation().getAsBufferedImage();
             }
-        } catch (Exception e) {
-            //System.out.println("*****************" + e.getMessage());
-            LOGGER.log(Level.SEVERE, "readTiles", e);
+        }
 
-        } finally {
-            file.close();
+        if (prefetcher != null) {
+            prefetcher.prefetch(coverageName, tileset, zoomLevel, startCol, endCol, startRow, endRow);
+        }
+    }
+
+    /**
+     * Draws a tile with the graphics of an image, or copies its values to the
+     * raster of a gridded coverage image.
+     */
+    private static void drawTile(BufferedImage tileImage, int x, int y, int tileWidth, int tileHeight,
+            Graphics2D g2, WritableRaster raster) {
+        if (raster != null) {
+            // decoded tiles have the sample model of the image, see GriddedCoverage
+            raster.setRect(x, y, tileImage.getRaster());
+        } else {
+            g2.drawImage(tileImage, x, y, tileWidth, tileHeight, null);
         }
-        return srcImage;
     }
 
     /**
@@ -1199,21 +1461,101 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
      * @throws java.io.IOException
      */
     public BufferedImage readTile(int zoomLevel, int tileX, int tileY) throws IOException {
+        Tile tile = readRawTile(coverageName, zoomLevel, tileX, tileY);
+        // Convert the tile image data to a BufferedImage
+        return tile != null ? decodeTile(getTileset(coverageName), tile) : null;
+    }
+
+    /**
+     * Decodes the data of a tile, to an image of values with the scale and
+     * offset of the tile applied for a gridded coverage.
+     *
+     * @param tileset the tileset of the tile
+     * @param tile the tile
+     * @return A new BufferedImage, or null if the data cannot be decoded
+     * @throws IOException
+     */
+    static BufferedImage decodeTile(TileEntry tileset, Tile tile) throws IOException {
+        GriddedCoverage gridded = tileset.getGriddedCoverage();
+        return gridded != null
+                ? gridded.decode(tile.getData(), tile.getScale(), tile.getOffset())
+                : createImageFromBytes(tile.getData());
+    }
+
+    /**
+     * Reads a tile as stored, without decoding its image data.
+     *
+     * @param coverageName the tileset name
+     * @param zoomLevel the zoom level
+     * @param tileX a matrix tile index
+     * @param tileY a matrix tile index
+     * @return the tile, or null if there is no such tile
+     * @throws IOException
+     */
+    public Tile readRawTile(String coverageName, int zoomLevel, int tileX, int tileY)
+            throws IOException {
         TileEntry tileset = getTileset(coverageName);
-        GeoPackage gpkg = new GeoPackage(sourceFile);
-        BufferedImage tileImage = null;
-        TileReader it = gpkg.reader(tileset, zoomLevel, zoomLevel, tileX, tileX, tileY, tileY);
-        try {
-            while (it.hasNext()) {
-                Tile tile = it.next();
-                // Convert the tile image data to a BufferedImage
-                tileImage = createImageFromBytes(tile.getData());
-            }
+        GeoPackage gpkg = open();
+        try (TileReader it = gpkg.reader(tileset, zoomLevel, zoomLevel, tileX, tileX, tileY, tileY)) {
+            return it.hasNext() ? it.next() : null;
         } finally {
-            it.close();
             gpkg.close();
         }
-        return tileImage;
+    }
+
+    /**
+     * Finds the stored tile that covers exactly the given area at the given
+     * size, within {@value #ALIGNMENT_TOLERANCE} pixels, so that it can be
+     * returned as is instead of being decoded and resampled.
+     *
+     * @param coverageName the tileset name
+     * @param envelope the area, in the tileset CRS with x/y axis order
+     * @param width the width of the area in pixels
+     * @param height the height of the area in pixels
+     * @return the zoom level, column and row of the tile, or null if the area
+     * is not aligned with a tile
+     */
+    public int[] findAlignedTile(String coverageName, Envelope envelope, int width, int height) {
+        TileEntry tileset = getTileset(coverageName);
+        if (tileset == null) {
+            return null;
+        }
+        Envelope origin = tileset.getTileMatrixSetBounds();
+        for (TileMatrix matrix : tileset.getTileMatricies()) {
+            if (matrix.getTileWidth() != width || matrix.getTileHeight() != height) {
+                continue;
+            }
+            double xres = matrix.getXPixelSize();
+            double yres = matrix.getYPixelSize();
+            if (Math.abs(envelope.getWidth() / xres - width) > ALIGNMENT_TOLERANCE
+                    || Math.abs(envelope.getHeight() / yres - height) > ALIGNMENT_TOLERANCE) {
+                continue;
+            }
+            // tile offsets from the upper left corner of the matrix set, in pixels
+            double x = (envelope.getMinX() - origin.getMinX()) / xres;
+            double y = (origin.getMaxY() - envelope.getMaxY()) / yres;
+            long col = Math.round(x / width);
+            long row = Math.round(y / height);
+            if (Math.abs(x - col * width) > ALIGNMENT_TOLERANCE
+                    || Math.abs(y - row * height) > ALIGNMENT_TOLERANCE) {
+                return null;
+            }
+            if (col < 0 || row < 0 || col >= matrix.getMatrixWidth() || row >= matrix.getMatrixHeight()) {
+                return null;
+            }
+            return new int[]{matrix.getZoomLevel(), (int) col, (int) row};
+        }
+        return null;
+    }
+
+    /**
+     * Opens the source file, read only if the reader was told to, otherwise
+     * like any GeoPackage so that databases whose journal files cannot be
+     * created next to them can still be read.
+     */
+    GeoPackage open() throws IOException {
+        return readOnly || immutable ? new GeoPackage(sourceFile, tuning, immutable)
+                : new GeoPackage(sourceFile, tuning);
     }
 
     /**
@@ -1226,13 +1568,13 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
     protected static BufferedImage createImageFromBytes(byte[] data) throws IOException {
         ImageReader reader = null;
         try {
-            ByteArrayInputStream source = new ByteArrayInputStream(data);
-            ImageInputStream iis = ImageIO.createImageInputStream(source);
+            // read the array in place, ImageIO would copy it into a cache
+            ImageInputStream iis = new ByteArrayImageInputStream(data);
 
             Iterator<?> readers = ImageIO.getImageReaders(iis);
             reader = (ImageReader) readers.next();
             if (reader == null) {
-                LOGGER.log(Level.SEVERE, "Could not find an ImageReader for a GeoPackage's ByteArrayInputStream.");
+                LOGGER.log(Level.SEVERE, "Could not find an ImageReader for a GeoPackage tile.");
                 return null;
             }
             reader.setInput(iis, true);
@@ -1247,6 +1589,21 @@ public final class GeoPackageReader extends AbstractGridCoverage2DReader {
         }
     }
 
+    /**
+     * Creates an image suitable for drawing the tiles of a tileset into, a
+     * single band image filled with no-data for a gridded coverage.
+     *
+     * @param tileset The tileset
+     * @param width The width of the new image
+     * @param height The height of the new image
+     * @param inputTransparentColor ignored for gridded coverages
+     * @return A new BufferedImage
+     */
+    protected BufferedImage createImage(TileEntry tileset, int width, int height, Color inputTransparentColor) {
+        GriddedCoverage gridded = tileset.getGriddedCoverage();
+        return gridded != null ? gridded.createImage(width, height) : createImage(width, height, inputTransparentColor);
+    }
+
     /**
      * Creates a transparent image suitable for rendering tiles into.
      *
@@ -0,0 +1,630 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.Interpolation;
+import javax.media.jai.JAI;
+import javax.media.jai.operator.BandMergeDescriptor;
+import javax.media.jai.operator.ConstantDescriptor;
+
+import org.geotools.coverage.CoverageFactoryFinder;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
+import org.geotools.coverage.grid.io.AbstractGridCoverageWriter;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.factory.Hints;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.SQLiteTuning;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileMatrix;
+import org.geotools.geopkg.TileReader;
+import org.geotools.image.ImageWorker;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.factory.gridshift.DataUtilities;
+import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.Format;
+import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.coverage.grid.GridCoverageWriter;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * GeoPackage writer tiling a coverage into a pyramid of image tiles.
+ * <p>
+ * The highest zoom level of the target tile matrix set is cut from the
+ * coverage one row of tiles at a time: the row is resampled from the coverage
+ * lazily, so only the source tiles under the row are read, and its tiles are
+ * cut, encoded and checked for emptiness by parallel workers while the tiles
+ * of the previous row are inserted in a single transaction. Each lower zoom
+ * level that halves the resolution of the level above is then built from the
+ * tiles just written, by averaging their pixels, rather than from the
+ * coverage again; other levels are resampled from the coverage. The memory
+ * used is therefore bounded by a couple of rows of tiles whatever the size of
+ * the coverage.
+ * </p>
+ * <p>
+ * The number of workers is set by the {@value #PROPERTY_THREADS} system
+ * property and defaults to the number of processors. The files are opened
+ * with the {@link SQLiteTuning#BULK_EXPORT} tuning unless the
+ * {@link GeoPackageFormat#TUNING} hint says otherwise. The throughput of each
+ * zoom level is logged in tiles per second per worker.
+ * </p>
+ */
+public class GeoPackageWriter extends AbstractGridCoverageWriter implements GridCoverageWriter {
+
+    static final Logger LOGGER = Logging.getLogger("org.geotools.geopkg");
+
+    /**
+     * System property setting the number of tiles cut and encoded in
+     * parallel.
+     */
+    public static final String PROPERTY_THREADS = "geopackage.writer.threads";
+
+    /**
+     * The tile size of the pyramids built by {@link #createTileEntry}.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    private final GeoPackage geopkg;
+
+    private final int threads;
+
+    private final AtomicLong tilesWritten = new AtomicLong();
+
+    private long writeTime;
+
+    /**
+     * Constructs a writer to a GeoPackage file, created if it does not
+     * exist.
+     *
+     * @param destination File, file:// URL or filename
+     * @param hints may be null
+     * @throws IOException
+     */
+    public GeoPackageWriter(Object destination, Hints hints) throws IOException {
+        this.destination = destination;
+        this.hints = hints != null ? hints : new Hints();
+        File file = getFile(destination);
+        if (file == null) {
+            throw new IllegalArgumentException("Not a GeoPackage file: " + destination);
+        }
+        SQLiteTuning tuning = hints != null && hints.get(GeoPackageFormat.TUNING) != null
+                ? (SQLiteTuning) hints.get(GeoPackageFormat.TUNING)
+                : SQLiteTuning.profile(SQLiteTuning.BULK_EXPORT);
+        this.threads = Math.max(1, Integer.getInteger(PROPERTY_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        this.geopkg = new GeoPackage(file, tuning);
+        geopkg.init();
+    }
+
+    static File getFile(Object destination) {
+        if (destination instanceof File) {
+            return (File) destination;
+        } else if (destination instanceof String) {
+            return new File((String) destination);
+        } else if (destination instanceof URL && "file".equals(((URL) destination).getProtocol())) {
+            return DataUtilities.urlToFile((URL) destination);
+        }
+        return null;
+    }
+
+    @Override
+    public Format getFormat() {
+        return new GeoPackageFormat();
+    }
+
+    /**
+     * Writes a coverage, into the tile matrix set of the
+     * {@link GeoPackageFormat#TILE_ENTRY} parameter if any, otherwise into the
+     * tileset named after the coverage, built by {@link #createTileEntry}
+     * unless it exists already.
+     *
+     * @param coverage a {@link GridCoverage2D} of 8-bit samples
+     * @param parameters {@link GeoPackageFormat#TILE_ENTRY} and
+     * {@link GeoPackageFormat#TILE_FORMAT}, may be null
+     * @throws IllegalArgumentException
+     * @throws IOException
+     */
+    @Override
+    public void write(GridCoverage coverage, GeneralParameterValue[] parameters)
+            throws IllegalArgumentException, IOException {
+        if (!(coverage instanceof GridCoverage2D)) {
+            throw new IllegalArgumentException("Not a GridCoverage2D: " + coverage);
+        }
+        GridCoverage2D coverage2D = (GridCoverage2D) coverage;
+        TileEntry entry = null;
+        String format = null;
+        if (parameters != null) {
+            for (GeneralParameterValue parameter : parameters) {
+                ParameterValue<?> value = (ParameterValue<?>) parameter;
+                if (GeoPackageFormat.TILE_ENTRY.getName().equals(value.getDescriptor().getName())) {
+                    entry = (TileEntry) value.getValue();
+                } else if (GeoPackageFormat.TILE_FORMAT.getName().equals(value.getDescriptor().getName())) {
+                    format = (String) value.getValue();
+                }
+            }
+        }
+        if (entry == null) {
+            String name = coverage2D.getName().toString().replaceAll("[^A-Za-z0-9_]", "_");
+            entry = geopkg.tile(name);
+            if (entry == null) {
+                entry = createTileEntry(coverage2D, name, DEFAULT_TILE_SIZE);
+            }
+        }
+        write(coverage2D, entry, format != null ? format : TileImages.JPEG_PNG);
+    }
+
+    /**
+     * Writes a coverage into a tile matrix set, which is created unless the
+     * GeoPackage has a tileset of the same name already. Tiles already stored
+     * at the same positions are replaced.
+     * <p>
+     * The tiles of an existing tileset are cut on its stored tile matrix set
+     * and tile matrices: the zoom levels of the entry are written, or all the
+     * stored levels if the entry has no tile matrices, and an entry that
+     * disagrees with the stored tile matrix set is rejected.
+     * </p>
+     *
+     * @param coverage a coverage of 8-bit samples
+     * @param entry the table name, bounds, tile matrix set bounds, SRID and
+     * tile matrices of the tileset
+     * @param format "image/png", "image/jpeg" or "image/vnd.jpeg-png" for
+     * JPEG where the tiles are opaque and PNG elsewhere
+     * @return the tileset
+     * @throws IllegalArgumentException if the entry does not match the
+     * existing tileset
+     * @throws IOException
+     */
+    public TileEntry write(GridCoverage2D coverage, TileEntry entry, String format) throws IOException {
+        TileEntry tileset = geopkg.tile(entry.getTableName());
+        List<TileMatrix> matrices;
+        if (tileset == null) {
+            if (entry.getSrid() != null) {
+                geopkg.addCRS(entry.getSrid());
+            }
+            geopkg.create(entry);
+            tileset = entry;
+            matrices = new ArrayList<>(entry.getTileMatricies());
+        } else {
+            matrices = getStoredMatrices(tileset, entry);
+        }
+        long start = System.nanoTime();
+        GridCoverage2D source = toRGBA(coverage);
+        ReferencedEnvelope area = ReferencedEnvelope.reference(source.getEnvelope2D());
+        CoordinateReferenceSystem crs = tileset.getBounds().getCoordinateReferenceSystem();
+        if (crs == null) {
+            crs = area.getCoordinateReferenceSystem();
+        } else if (!CRS.equalsIgnoreMetadata(crs, area.getCoordinateReferenceSystem())) {
+            try {
+                area = area.transform(crs, true);
+            } catch (Exception e) {
+                throw new IOException("Cannot transform the coverage envelope to " + crs, e);
+            }
+        }
+
+        // from the highest resolution down
+        Collections.sort(matrices, new Comparator<TileMatrix>() {
+            @Override
+            public int compare(TileMatrix m1, TileMatrix m2) {
+                return m2.getZoomLevel().compareTo(m1.getZoomLevel());
+            }
+        });
+        Envelope bounds = tileset.getTileMatrixSetBounds();
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            TileMatrix above = null;
+            for (TileMatrix matrix : matrices) {
+                long levelStart = System.nanoTime();
+                long count = above != null && isOverview(matrix, above)
+                        ? writeOverview(tileset, matrix, area, bounds, format, workers)
+                        : writeLevel(source, crs, tileset, matrix, area, bounds, format, workers,
+                                above == null ? Interpolation.INTERP_NEAREST : Interpolation.INTERP_BILINEAR);
+                double seconds = (System.nanoTime() - levelStart) / 1e9;
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info(String.format("Wrote %d tiles of zoom level %d of %s in %.1fs, "
+                            + "%.1f tiles/s per worker", count, matrix.getZoomLevel(), entry.getTableName(),
+                            seconds, seconds > 0 ? count / seconds / threads : 0));
+                }
+                above = matrix;
+            }
+        } finally {
+            workers.shutdownNow();
+            if (source != coverage) {
+                source.dispose(true);
+            }
+            writeTime += System.nanoTime() - start;
+        }
+        return tileset;
+    }
+
+    /**
+     * Returns the stored tile matrices of the zoom levels of an entry, all of
+     * them if the entry has none, checking the entry agrees with the stored
+     * tileset.
+     *
+     * @throws IllegalArgumentException if the entry has another SRID, tile
+     * matrix set bounds or tile matrices than the tileset
+     */
+    static List<TileMatrix> getStoredMatrices(TileEntry tileset, TileEntry entry) {
+        String name = tileset.getTableName();
+        if (entry == tileset || entry.getTileMatricies().isEmpty()) {
+            return new ArrayList<>(tileset.getTileMatricies());
+        }
+        if (entry.getSrid() != null && tileset.getSrid() != null
+                && !entry.getSrid().equals(tileset.getSrid())) {
+            throw new IllegalArgumentException("The tileset " + name + " is stored in EPSG:"
+                    + tileset.getSrid() + ", not EPSG:" + entry.getSrid());
+        }
+        Envelope stored = tileset.getTileMatrixSetBounds();
+        Envelope bounds = entry.getTileMatrixSetBounds();
+        if (bounds != null && stored != null) {
+            double tolerance = 1e-9 * Math.max(stored.getWidth(), stored.getHeight());
+            if (Math.abs(bounds.getMinX() - stored.getMinX()) > tolerance
+                    || Math.abs(bounds.getMinY() - stored.getMinY()) > tolerance
+                    || Math.abs(bounds.getMaxX() - stored.getMaxX()) > tolerance
+                    || Math.abs(bounds.getMaxY() - stored.getMaxY()) > tolerance) {
+                throw new IllegalArgumentException("The tile matrix set bounds " + bounds
+                        + " do not match the stored bounds " + stored + " of " + name);
+            }
+        }
+        Map<Integer, TileMatrix> levels = new HashMap<>();
+        for (TileMatrix matrix : tileset.getTileMatricies()) {
+            levels.put(matrix.getZoomLevel(), matrix);
+        }
+        List<TileMatrix> matrices = new ArrayList<>();
+        for (TileMatrix matrix : entry.getTileMatricies()) {
+            TileMatrix level = levels.get(matrix.getZoomLevel());
+            if (level == null || !level.getMatrixWidth().equals(matrix.getMatrixWidth())
+                    || !level.getMatrixHeight().equals(matrix.getMatrixHeight())
+                    || !level.getTileWidth().equals(matrix.getTileWidth())
+                    || !level.getTileHeight().equals(matrix.getTileHeight())
+                    || !samePixelSize(level.getXPixelSize(), matrix.getXPixelSize())
+                    || !samePixelSize(level.getYPixelSize(), matrix.getYPixelSize())) {
+                throw new IllegalArgumentException("The tile matrix of zoom level " + matrix.getZoomLevel()
+                        + " does not match the tile matrices stored for " + name);
+            }
+            matrices.add(level);
+        }
+        return matrices;
+    }
+
+    private static boolean samePixelSize(double stored, double size) {
+        return Math.abs(stored - size) <= 1e-9 * Math.abs(stored);
+    }
+
+    /**
+     * Returns true if a matrix halves the resolution of the matrix of the
+     * next zoom level, each of its tiles covering 2x2 tiles above.
+     */
+    static boolean isOverview(TileMatrix matrix, TileMatrix above) {
+        return above.getZoomLevel() == matrix.getZoomLevel() + 1
+                && above.getMatrixWidth() == 2 * matrix.getMatrixWidth()
+                && above.getMatrixHeight() == 2 * matrix.getMatrixHeight()
+                && above.getTileWidth().equals(matrix.getTileWidth())
+                && above.getTileHeight().equals(matrix.getTileHeight());
+    }
+
+    /**
+     * Returns the columns and rows of the tiles of a matrix intersecting an
+     * area, empty if none.
+     */
+    static Rectangle getTileRange(TileMatrix matrix, Envelope bounds, Envelope area) {
+        double tileSpanX = matrix.getTileWidth() * matrix.getXPixelSize();
+        double tileSpanY = matrix.getTileHeight() * matrix.getYPixelSize();
+        int minCol = (int) Math.max(0, Math.floor((area.getMinX() - bounds.getMinX()) / tileSpanX));
+        int maxCol = (int) Math.min(matrix.getMatrixWidth() - 1,
+                Math.ceil((area.getMaxX() - bounds.getMinX()) / tileSpanX) - 1);
+        int minRow = (int) Math.max(0, Math.floor((bounds.getMaxY() - area.getMaxY()) / tileSpanY));
+        int maxRow = (int) Math.min(matrix.getMatrixHeight() - 1,
+                Math.ceil((bounds.getMaxY() - area.getMinY()) / tileSpanY) - 1);
+        if (maxCol < minCol || maxRow < minRow) {
+            return new Rectangle();
+        }
+        return new Rectangle(minCol, minRow, maxCol - minCol + 1, maxRow - minRow + 1);
+    }
+
+    /**
+     * Writes the tiles of a zoom level resampled from the coverage, one row
+     * of tiles at a time.
+     */
+    long writeLevel(GridCoverage2D source, CoordinateReferenceSystem crs, TileEntry tileset, TileMatrix matrix,
+            Envelope area, Envelope bounds, String format, ExecutorService workers, int interpolation)
+            throws IOException {
+        final int zoom = matrix.getZoomLevel();
+        final int tileWidth = matrix.getTileWidth();
+        final int tileHeight = matrix.getTileHeight();
+        double tileSpanX = tileWidth * matrix.getXPixelSize();
+        double tileSpanY = tileHeight * matrix.getYPixelSize();
+        Rectangle range = getTileRange(matrix, bounds, area);
+        long count = 0;
+        List<Future<Tile>> pending = Collections.emptyList();
+        GridCoverage2D previous = null;
+        for (int row = range.y; row < range.y + range.height; row++) {
+            ReferencedEnvelope stripArea = new ReferencedEnvelope(
+                    bounds.getMinX() + range.x * tileSpanX,
+                    bounds.getMinX() + (range.x + range.width) * tileSpanX,
+                    bounds.getMaxY() - (row + 1) * tileSpanY,
+                    bounds.getMaxY() - row * tileSpanY, crs);
+            GridGeometry2D grid = new GridGeometry2D(
+                    new GridEnvelope2D(0, 0, range.width * tileWidth, tileHeight), stripArea);
+            final GridCoverage2D strip = (GridCoverage2D) Operations.DEFAULT.resample(source, crs, grid,
+                    Interpolation.getInstance(interpolation), new double[]{0, 0, 0, 0});
+            final RenderedImage image = strip.getRenderedImage();
+
+            List<Future<Tile>> tiles = new ArrayList<>(range.width);
+            for (int i = 0; i < range.width; i++) {
+                final int col = range.x + i;
+                final int row1 = row;
+                final Rectangle tileArea = new Rectangle(image.getMinX() + i * tileWidth, image.getMinY(),
+                        tileWidth, tileHeight);
+                tiles.add(workers.submit(new Callable<Tile>() {
+                    @Override
+                    public Tile call() throws Exception {
+                        Rectangle available = tileArea.intersection(new Rectangle(image.getMinX(),
+                                image.getMinY(), image.getWidth(), image.getHeight()));
+                        if (available.isEmpty()) {
+                            return null;
+                        }
+                        Raster samples = image.getData(available);
+                        BufferedImage tile = TileImages.cut(samples, tileArea.x, tileArea.y, tileWidth, tileHeight);
+                        return createTile(tile, zoom, col, row1, format);
+                    }
+                }));
+            }
+            // insert the previous row while this one is cut
+            count += insert(tileset, pending);
+            if (previous != null) {
+                previous.dispose(true);
+            }
+            pending = tiles;
+            previous = strip;
+        }
+        count += insert(tileset, pending);
+        if (previous != null) {
+            previous.dispose(true);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the tiles of a zoom level by downsampling the tiles of the zoom
+     * level above, read back two rows at a time.
+     */
+    long writeOverview(TileEntry tileset, TileMatrix matrix, Envelope area, Envelope bounds, String format,
+            ExecutorService workers) throws IOException {
+        final int zoom = matrix.getZoomLevel();
+        final int tileWidth = matrix.getTileWidth();
+        final int tileHeight = matrix.getTileHeight();
+        Rectangle range = getTileRange(matrix, bounds, area);
+        long count = 0;
+        List<Future<Tile>> pending = Collections.emptyList();
+        for (int row = range.y; row < range.y + range.height; row++) {
+            // the tiles above, by column of this level
+            Map<Integer, Tile[]> children = new HashMap<>();
+            TileReader it = geopkg.reader(tileset, zoom + 1, zoom + 1, 2 * range.x,
+                    2 * (range.x + range.width) - 1, 2 * row, 2 * row + 1);
+            try {
+                while (it.hasNext()) {
+                    Tile child = it.next();
+                    Tile[] quadrants = children.get(child.getColumn() / 2);
+                    if (quadrants == null) {
+                        quadrants = new Tile[4];
+                        children.put(child.getColumn() / 2, quadrants);
+                    }
+                    quadrants[(child.getRow() % 2) * 2 + child.getColumn() % 2] = child;
+                }
+            } finally {
+                it.close();
+            }
+
+            List<Future<Tile>> tiles = new ArrayList<>(children.size());
+            for (Map.Entry<Integer, Tile[]> e : children.entrySet()) {
+                final int col = e.getKey();
+                final int row1 = row;
+                final Tile[] quadrants = e.getValue();
+                tiles.add(workers.submit(new Callable<Tile>() {
+                    @Override
+                    public Tile call() throws Exception {
+                        BufferedImage[] images = new BufferedImage[4];
+                        for (int q = 0; q < 4; q++) {
+                            if (quadrants[q] != null) {
+                                images[q] = GeoPackageReader.createImageFromBytes(quadrants[q].getData());
+                            }
+                        }
+                        BufferedImage tile = TileImages.downsample(images, tileWidth, tileHeight);
+                        return createTile(tile, zoom, col, row1, format);
+                    }
+                }));
+            }
+            count += insert(tileset, pending);
+            pending = tiles;
+        }
+        count += insert(tileset, pending);
+        return count;
+    }
+
+    /**
+     * Encodes a tile, returns null if the tile is empty.
+     */
+    static Tile createTile(BufferedImage image, int zoom, int col, int row, String format) throws IOException {
+        if (TileImages.isEmpty(image)) {
+            return null;
+        }
+        Tile tile = new Tile();
+        tile.setZoom(zoom);
+        tile.setColumn(col);
+        tile.setRow(row);
+        tile.setData(TileImages.encode(image, format));
+        return tile;
+    }
+
+    /**
+     * Waits for the tiles of a row and inserts them in a single transaction.
+     */
+    private long insert(TileEntry tileset, List<Future<Tile>> futures) throws IOException {
+        List<Tile> tiles = new ArrayList<>(futures.size());
+        try {
+            for (Future<Tile> future : futures) {
+                Tile tile = future.get();
+                if (tile != null) {
+                    tiles.add(tile);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while tiling " + tileset.getTableName());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        geopkg.addOrReplace(tileset, tiles);
+        tilesWritten.addAndGet(tiles.size());
+        return tiles.size();
+    }
+
+    /**
+     * Returns a coverage of the red, green, blue and alpha bands of a
+     * coverage, the alpha being opaque where the coverage has none.
+     */
+    static GridCoverage2D toRGBA(GridCoverage2D coverage) {
+        RenderedImage image = coverage.getRenderedImage();
+        if (image.getSampleModel().getDataType() != DataBuffer.TYPE_BYTE) {
+            throw new IllegalArgumentException("Only coverages of 8-bit samples can be written as image tiles");
+        }
+        if (image.getColorModel() != null && image.getColorModel().hasAlpha()
+                && image.getSampleModel().getNumBands() == 4
+                && !(image.getColorModel() instanceof IndexColorModel)) {
+            return coverage;
+        }
+        ImageWorker worker = new ImageWorker(image);
+        worker.forceComponentColorModel().forceColorSpaceRGB();
+        RenderedImage rgb = worker.getRenderedImage();
+        if (!rgb.getColorModel().hasAlpha()) {
+            ImageLayout layout = new ImageLayout(rgb.getMinX(), rgb.getMinY(), rgb.getWidth(), rgb.getHeight());
+            layout.setTileGridXOffset(rgb.getTileGridXOffset()).setTileGridYOffset(rgb.getTileGridYOffset())
+                    .setTileWidth(rgb.getTileWidth()).setTileHeight(rgb.getTileHeight());
+            RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+            RenderedImage alpha = ConstantDescriptor.create((float) rgb.getWidth(), (float) rgb.getHeight(),
+                    new Byte[]{(byte) 0xff}, hints);
+            rgb = BandMergeDescriptor.create(rgb, alpha, hints);
+        }
+        return CoverageFactoryFinder.getGridCoverageFactory(null).create(coverage.getName(), rgb,
+                coverage.getEnvelope());
+    }
+
+    /**
+     * Creates a pyramid for a coverage: tiles of the given size in the CRS of
+     * the coverage, the highest zoom level at the resolution of the coverage
+     * and each level above halving the resolution down to a single tile. The
+     * tile matrix set extends right and down from the upper left corner of the
+     * coverage.
+     *
+     * @param coverage the coverage
+     * @param tableName the name of the tileset
+     * @param tileSize the width and height of the tiles
+     * @return the tileset, to be written with {@link #write(GridCoverage2D, TileEntry, String)}
+     * @throws IllegalArgumentException if the CRS of the coverage has no EPSG
+     * code
+     */
+    public static TileEntry createTileEntry(GridCoverage2D coverage, String tableName, int tileSize) {
+        CoordinateReferenceSystem crs = coverage.getCoordinateReferenceSystem2D();
+        Integer srid;
+        try {
+            srid = CRS.lookupEpsgCode(crs, true);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Cannot find the EPSG code of " + crs, e);
+        }
+        if (srid == null) {
+            throw new IllegalArgumentException("The coverage CRS has no EPSG code: " + crs);
+        }
+        ReferencedEnvelope area = ReferencedEnvelope.reference(coverage.getEnvelope2D());
+        GridEnvelope2D grid = coverage.getGridGeometry().getGridRange2D();
+        double xres = area.getWidth() / grid.getWidth();
+        double yres = area.getHeight() / grid.getHeight();
+        int maxZoom = 0;
+        while ((long) tileSize << maxZoom < Math.max(grid.getWidth(), grid.getHeight())) {
+            maxZoom++;
+        }
+
+        TileEntry entry = new TileEntry();
+        entry.setTableName(tableName);
+        entry.setBounds(area);
+        entry.setSrid(srid);
+        double span = (double) (1L << maxZoom) * tileSize;
+        entry.setTileMatrixSetBounds(new Envelope(area.getMinX(), area.getMinX() + span * xres,
+                area.getMaxY() - span * yres, area.getMaxY()));
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            int tiles = 1 << zoom;
+            double factor = 1L << (maxZoom - zoom);
+            entry.getTileMatricies().add(new TileMatrix(zoom, tiles, tiles, tileSize, tileSize,
+                    xres * factor, yres * factor));
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the number of tiles written so far.
+     */
+    public long getTilesWritten() {
+        return tilesWritten.get();
+    }
+
+    /**
+     * Returns the number of tiles written per second and per worker so far.
+     */
+    public double getThroughput() {
+        return writeTime == 0 ? 0 : tilesWritten.get() / (writeTime / 1e9) / threads;
+    }
+
+    @Override
+    public void dispose() {
+        geopkg.close();
+        super.dispose();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used cache of decoded tiles, bounded by the memory their
+ * rasters take.
+ * <p>
+ * Tiles read ahead by a {@link TilePrefetcher} are tagged with it until first
+ * used, so that the prefetcher learns which of its tiles were used and which
+ * were evicted unused.
+ * </p>
+ * The decoded images are shared and must not be modified.
+ */
+class TileCache {
+
+    static class Entry {
+        final BufferedImage image;
+
+        final long size;
+
+        /**
+         * the prefetcher that read the tile ahead, until the tile is first
+         * used
+         */
+        TilePrefetcher prefetcher;
+
+        Entry(BufferedImage image, long size, TilePrefetcher prefetcher) {
+            this.image = image;
+            this.size = size;
+            this.prefetcher = prefetcher;
+        }
+    }
+
+    final long capacity;
+
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    long size;
+
+    long hits;
+
+    long misses;
+
+    /**
+     * @param capacity the maximum number of bytes taken by the cached rasters
+     */
+    TileCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns a cached tile, or null if it is not cached.
+     */
+    synchronized BufferedImage get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.prefetcher != null) {
+            entry.prefetcher.used();
+            entry.prefetcher = null;
+        }
+        return entry.image;
+    }
+
+    /**
+     * Whether a tile is cached, without counting as a use.
+     */
+    synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Caches a tile, evicting the least recently used ones as needed.
+     *
+     * @param prefetcher the prefetcher reading the tile ahead, null if the
+     * tile was read on demand
+     */
+    synchronized void put(String key, BufferedImage image, TilePrefetcher prefetcher) {
+        long bytes = sizeOf(image);
+        if (bytes > capacity) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(image, bytes, prefetcher));
+        if (previous != null) {
+            size -= previous.size;
+        }
+        size += bytes;
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            size -= eldest.size;
+            if (eldest.prefetcher != null) {
+                eldest.prefetcher.wasted();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    synchronized int getCount() {
+        return entries.size();
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    static long sizeOf(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+}
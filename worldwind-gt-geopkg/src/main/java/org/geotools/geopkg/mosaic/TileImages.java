@@ -0,0 +1,184 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Cuts, downsamples and encodes the RGBA image tiles written to a GeoPackage.
+ * <p>
+ * Tiles are {@link BufferedImage#TYPE_4BYTE_ABGR} images, the transparent
+ * pixels being the ones outside of the written coverage. The methods work on
+ * the bytes of the tiles and are safe to call from concurrent workers.
+ * </p>
+ */
+final class TileImages {
+
+    static final String PNG = "image/png";
+
+    static final String JPEG = "image/jpeg";
+
+    /**
+     * JPEG for opaque tiles and PNG for the others.
+     */
+    static final String JPEG_PNG = "image/vnd.jpeg-png";
+
+    private TileImages() {
+    }
+
+    /**
+     * Cuts a tile out of the RGBA samples of an area.
+     *
+     * @param source the red, green, blue and alpha bands of the area
+     * @param x the column of the upper left pixel of the tile in the source
+     * @param y the row of the upper left pixel of the tile in the source
+     * @param width the width of the tile
+     * @param height the height of the tile
+     * @return the tile, transparent where it is outside of the source
+     */
+    static BufferedImage cut(Raster source, int x, int y, int width, int height) {
+        BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        // the bands of the tile raster are in RGBA order too
+        tile.getRaster().setRect(-x, -y, source);
+        return tile;
+    }
+
+    /**
+     * Returns an RGBA tile, converting other images.
+     */
+    static BufferedImage toABGR(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+            return image;
+        }
+        BufferedImage tile = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g2 = tile.createGraphics();
+        g2.drawImage(image, 0, 0, null);
+        g2.dispose();
+        return tile;
+    }
+
+    /**
+     * Returns true if all the pixels of a tile are transparent.
+     */
+    static boolean isEmpty(BufferedImage tile) {
+        byte[] abgr = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < abgr.length; i += 4) {
+            if (abgr[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if all the pixels of a tile are opaque.
+     */
+    static boolean isOpaque(BufferedImage tile) {
+        byte[] abgr = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < abgr.length; i += 4) {
+            if (abgr[i] != (byte) 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds a tile of a lower zoom level from the four tiles it covers in the
+     * zoom level above, averaging each block of 2x2 pixels. The colors are
+     * weighted by their alpha so that transparent pixels do not darken the
+     * edges of the coverage.
+     *
+     * @param children the upper left, upper right, lower left and lower right
+     * tiles, null where there is no tile, all of the size of the new tile
+     * @param width the width of the tile
+     * @param height the height of the tile
+     * @return the tile
+     */
+    static BufferedImage downsample(BufferedImage[] children, int width, int height) {
+        BufferedImage tile = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        byte[] dst = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+        int halfWidth = width / 2;
+        int halfHeight = height / 2;
+        for (int q = 0; q < 4; q++) {
+            if (children[q] == null) {
+                continue;
+            }
+            BufferedImage child = toABGR(children[q]);
+            byte[] src = ((DataBufferByte) child.getRaster().getDataBuffer()).getData();
+            int childWidth = child.getWidth();
+            int childHeight = child.getHeight();
+            int x0 = (q % 2) * halfWidth;
+            int y0 = (q / 2) * halfHeight;
+            for (int y = 0; y < halfHeight && 2 * y + 1 < childHeight; y++) {
+                for (int x = 0; x < halfWidth && 2 * x + 1 < childWidth; x++) {
+                    int a = 0, b = 0, g = 0, r = 0;
+                    for (int k = 0; k < 4; k++) {
+                        int i = ((2 * y + k / 2) * childWidth + 2 * x + k % 2) * 4;
+                        int alpha = src[i] & 0xff;
+                        a += alpha;
+                        b += (src[i + 1] & 0xff) * alpha;
+                        g += (src[i + 2] & 0xff) * alpha;
+                        r += (src[i + 3] & 0xff) * alpha;
+                    }
+                    if (a == 0) {
+                        continue;
+                    }
+                    int i = ((y0 + y) * width + x0 + x) * 4;
+                    dst[i] = (byte) ((a + 2) / 4);
+                    dst[i + 1] = (byte) ((b + a / 2) / a);
+                    dst[i + 2] = (byte) ((g + a / 2) / a);
+                    dst[i + 3] = (byte) ((r + a / 2) / a);
+                }
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Encodes a tile.
+     *
+     * @param tile the tile
+     * @param format {@link #PNG}, {@link #JPEG} or {@link #JPEG_PNG}
+     * @return the encoded tile
+     * @throws IOException
+     */
+    static byte[] encode(BufferedImage tile, String format) throws IOException {
+        boolean opaque = isOpaque(tile);
+        boolean jpeg = JPEG.equals(format) || (JPEG_PNG.equals(format) && opaque);
+        BufferedImage image = tile;
+        if (jpeg || opaque) {
+            // JPEG has no alpha, and PNG is smaller without it
+            image = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g2 = image.createGraphics();
+            g2.drawImage(tile, 0, 0, null);
+            g2.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, jpeg ? "jpeg" : "png", out)) {
+            throw new IOException("No ImageIO writer for " + format);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileMatrix;
+import org.geotools.geopkg.TileReader;
+
+/**
+ * Reads ahead, in the background, the tiles a {@link GeoPackageReader} is
+ * likely to be asked for next.
+ * <p>
+ * Globe and map clients pan, zoom and spiral around the tiles they just
+ * requested. After each read the prefetcher schedules the fetch and decode,
+ * into the shared {@link TileCache}, of the ring of tiles around the region
+ * read, stretched in the direction the client is panning, of the parent
+ * region and of the children of small regions. The ring starts one tile wide
+ * and grows up to {@value #PROPERTY_MAX_DISTANCE} tiles while most of the
+ * tiles read ahead get used, and shrinks back as they get evicted unused.
+ * </p>
+ * <p>
+ * The budget is bounded: the cache holds {@value #PROPERTY_CACHE_SIZE} MB of
+ * decoded tiles (64 by default), the tiles are read by
+ * {@value #PROPERTY_THREADS} daemon threads (2 by default) from a short
+ * queue, and regions larger than {@link #MAX_REGION_TILES} tiles are not read
+ * ahead. As soon as a tile read ahead is evicted unused, the cache is too
+ * small for the read ahead, which is then cancelled until the next read.
+ * </p>
+ * The cached tiles are keyed by the version of the file as of the last read,
+ * the change counter of its header, bumped by each transaction in rollback
+ * journal mode, and the salts and size of its write ahead log, which grows
+ * with each transaction and gets new salts when restarted, so that tiles of a
+ * file modified since are read again rather than served stale.
+ */
+class TilePrefetcher {
+
+    static final Logger LOGGER = GeoPackageReader.LOGGER;
+
+    /**
+     * System property setting the size of the tile cache, in megabytes.
+     */
+    static final String PROPERTY_CACHE_SIZE = "geopackage.prefetch.cacheSize";
+
+    /**
+     * System property setting the number of read ahead threads.
+     */
+    static final String PROPERTY_THREADS = "geopackage.prefetch.threads";
+
+    /**
+     * System property setting how many tiles around a region may be read
+     * ahead.
+     */
+    static final String PROPERTY_MAX_DISTANCE = "geopackage.prefetch.maxDistance";
+
+    static final int QUEUE_CAPACITY = 32;
+
+    static final int MAX_REGION_TILES = 64;
+
+    /**
+     * The number of tiles read ahead, used or wasted, between two
+     * adjustments of the distance.
+     */
+    static final int ADJUST_WINDOW = 32;
+
+    static TileCache cache;
+
+    static ThreadPoolExecutor executor;
+
+    static synchronized TileCache getCache() {
+        if (cache == null) {
+            cache = new TileCache(Long.getLong(PROPERTY_CACHE_SIZE, 64) * 1024 * 1024);
+        }
+        return cache;
+    }
+
+    static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, Integer.getInteger(PROPERTY_THREADS, 2));
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "gpkg-prefetch");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    final GeoPackageReader reader;
+
+    final TileCache tiles;
+
+    final int maxDistance;
+
+    final AtomicLong used = new AtomicLong();
+
+    final AtomicLong wasted = new AtomicLong();
+
+    /**
+     * set when a tile read ahead is evicted unused, cancels the read ahead
+     */
+    volatile boolean pressure;
+
+    /**
+     * incremented by {@link #cancel()}, the fetches scheduled before give up
+     */
+    final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * set once the reader is disposed, nothing is read ahead anymore
+     */
+    volatile boolean disposed;
+
+    /**
+     * the identity of the file as of the last read, part of the tile keys
+     */
+    volatile String version = "";
+
+    int distance = 1;
+
+    long lastUsed;
+
+    long lastWasted;
+
+    /**
+     * the last region read at each zoom level of each coverage
+     */
+    final Map<String, Rectangle> lastRegions = new HashMap<>();
+
+    final List<Future<?>> pending = new ArrayList<>();
+
+    TilePrefetcher(GeoPackageReader reader) {
+        this(reader, getCache(), Math.max(1, Integer.getInteger(PROPERTY_MAX_DISTANCE, 2)));
+    }
+
+    TilePrefetcher(GeoPackageReader reader, TileCache tiles, int maxDistance) {
+        this.reader = reader;
+        this.tiles = tiles;
+        this.maxDistance = maxDistance;
+        if (reader != null) {
+            refresh();
+        }
+    }
+
+    /**
+     * Updates the identity of the file, called before each read.
+     */
+    void refresh() {
+        version = version(reader.sourceFile);
+    }
+
+    /**
+     * Returns the version of a SQLite file, changed by every transaction.
+     */
+    static String version(File file) {
+        return GeoPackage.version(file);
+    }
+
+    String key(String coverageName, int zoomLevel, int col, int row) {
+        return reader.sourceFile.getPath() + "@" + version + "#" + coverageName + "/"
+                + zoomLevel + "/" + col + "/" + row;
+    }
+
+    /**
+     * Returns a cached tile, or null if it has to be read.
+     */
+    BufferedImage get(String coverageName, int zoomLevel, int col, int row) {
+        return tiles.get(key(coverageName, zoomLevel, col, row));
+    }
+
+    /**
+     * Caches a tile read on demand.
+     */
+    void put(String coverageName, Tile tile, BufferedImage image) {
+        tiles.put(key(coverageName, tile.getZoom(), tile.getColumn(), tile.getRow()), image, null);
+    }
+
+    void used() {
+        used.incrementAndGet();
+    }
+
+    void wasted() {
+        wasted.incrementAndGet();
+        pressure = true;
+    }
+
+    int getDistance() {
+        return distance;
+    }
+
+    /**
+     * Schedules the read ahead of the tiles around a region just read.
+     */
+    synchronized void prefetch(String coverageName, TileEntry tileset, int zoomLevel,
+            int startCol, int endCol, int startRow, int endRow) {
+        if (disposed) {
+            return;
+        }
+        Rectangle region = new Rectangle(startCol, startRow, endCol - startCol + 1,
+                endRow - startRow + 1);
+        Rectangle last = lastRegions.put(coverageName + "/" + zoomLevel, region);
+        if (pressure) {
+            pressure = false;
+            cancel();
+            distance = 1;
+            return;
+        }
+        adjustDistance();
+        if ((long) region.width * region.height > MAX_REGION_TILES) {
+            return;
+        }
+        TileMatrix matrix = tileset.getTileMatrix(zoomLevel);
+        if (matrix == null || matrix.getMinCol() == null) {
+            return;
+        }
+        // the ring around the region, stretched in the direction of the pan
+        int left = distance;
+        int right = distance;
+        int top = distance;
+        int bottom = distance;
+        if (last != null && !last.equals(region)) {
+            double dx = region.getCenterX() - last.getCenterX();
+            double dy = region.getCenterY() - last.getCenterY();
+            left += dx < 0 ? distance : 0;
+            right += dx > 0 ? distance : 0;
+            top += dy < 0 ? distance : 0;
+            bottom += dy > 0 ? distance : 0;
+        }
+        Rectangle bounds = new Rectangle(matrix.getMinCol(), matrix.getMinRow(),
+                matrix.getNumCols(), matrix.getNumRows());
+        Rectangle ring = new Rectangle(region.x - left, region.y - top,
+                region.width + left + right, region.height + top + bottom).intersection(bounds);
+        for (Rectangle strip : subtract(ring, region)) {
+            schedule(coverageName, tileset, zoomLevel, strip);
+        }
+
+        // the parent and children, on quad tree pyramids
+        if (zoomLevel > tileset.getMinZoomLevel()) {
+            TileMatrix parent = tileset.getTileMatrix(zoomLevel - 1);
+            if (isParent(parent, matrix)) {
+                schedule(coverageName, tileset, zoomLevel - 1, new Rectangle(region.x / 2,
+                        region.y / 2, (region.x + region.width - 1) / 2 - region.x / 2 + 1,
+                        (region.y + region.height - 1) / 2 - region.y / 2 + 1));
+            }
+        }
+        if (zoomLevel < tileset.getMaxZoomLevel() && region.width * region.height <= 4) {
+            TileMatrix child = tileset.getTileMatrix(zoomLevel + 1);
+            if (isParent(matrix, child)) {
+                schedule(coverageName, tileset, zoomLevel + 1, new Rectangle(region.x * 2,
+                        region.y * 2, region.width * 2, region.height * 2));
+            }
+        }
+    }
+
+    /**
+     * Grows the read ahead distance while most of the tiles read ahead get
+     * used, shrinks it when most get evicted unused.
+     */
+    void adjustDistance() {
+        long u = used.get();
+        long w = wasted.get();
+        long du = u - lastUsed;
+        long dw = w - lastWasted;
+        if (du + dw < ADJUST_WINDOW) {
+            return;
+        }
+        double ratio = (double) du / (du + dw);
+        if (ratio > 0.75 && distance < maxDistance) {
+            distance++;
+        } else if (ratio < 0.25 && distance > 1) {
+            distance--;
+        }
+        lastUsed = u;
+        lastWasted = w;
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Read ahead of %s: %d used, %d wasted, distance %d",
+                    reader.sourceFile, du, dw, distance));
+        }
+    }
+
+    static boolean isParent(TileMatrix parent, TileMatrix child) {
+        return parent != null && child != null && parent.getMinCol() != null
+                && child.getMinCol() != null
+                && parent.getMatrixWidth() * 2 == child.getMatrixWidth()
+                && parent.getMatrixHeight() * 2 == child.getMatrixHeight();
+    }
+
+    /**
+     * Splits the part of a rectangle outside of another one into strips.
+     */
+    static List<Rectangle> subtract(Rectangle outer, Rectangle inner) {
+        List<Rectangle> strips = new ArrayList<>();
+        Rectangle hole = outer.intersection(inner);
+        if (hole.isEmpty()) {
+            if (!outer.isEmpty()) {
+                strips.add(outer);
+            }
+            return strips;
+        }
+        addStrip(strips, outer.x, outer.y, outer.width, hole.y - outer.y);
+        addStrip(strips, outer.x, hole.y + hole.height, outer.width,
+                outer.y + outer.height - hole.y - hole.height);
+        addStrip(strips, outer.x, hole.y, hole.x - outer.x, hole.height);
+        addStrip(strips, hole.x + hole.width, hole.y, outer.x + outer.width - hole.x - hole.width,
+                hole.height);
+        return strips;
+    }
+
+    static void addStrip(List<Rectangle> strips, int x, int y, int width, int height) {
+        if (width > 0 && height > 0) {
+            strips.add(new Rectangle(x, y, width, height));
+        }
+    }
+
+    void schedule(final String coverageName, final TileEntry tileset, final int zoomLevel,
+            final Rectangle region) {
+        if (region.isEmpty() || (long) region.width * region.height > MAX_REGION_TILES * 4) {
+            return;
+        }
+        // skip regions entirely cached
+        boolean cached = true;
+        for (int row = region.y; cached && row < region.y + region.height; row++) {
+            for (int col = region.x; cached && col < region.x + region.width; col++) {
+                cached = tiles.contains(key(coverageName, zoomLevel, col, row));
+            }
+        }
+        if (cached) {
+            return;
+        }
+        for (Iterator<Future<?>> it = pending.iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        final int scheduled = generation.get();
+        try {
+            pending.add(getExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(coverageName, tileset, zoomLevel, region, scheduled);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            // the queue is full, the read ahead is behind the reads already
+        }
+    }
+
+    /**
+     * Whether a fetch scheduled in a generation has to give up.
+     */
+    boolean isCancelled(int scheduled) {
+        return pressure || disposed || scheduled != generation.get()
+                || Thread.currentThread().isInterrupted();
+    }
+
+    void fetch(String coverageName, TileEntry tileset, int zoomLevel, Rectangle region,
+            int scheduled) {
+        if (isCancelled(scheduled)) {
+            return;
+        }
+        try {
+            GeoPackage file = reader.open();
+            try (TileReader it = file.reader(tileset, zoomLevel, zoomLevel, region.x,
+                    region.x + region.width - 1, region.y, region.y + region.height - 1)) {
+                while (it.hasNext()) {
+                    if (isCancelled(scheduled)) {
+                        return;
+                    }
+                    Tile tile = it.next();
+                    String key = key(coverageName, zoomLevel, tile.getColumn(), tile.getRow());
+                    if (tiles.contains(key)) {
+                        continue;
+                    }
+                    BufferedImage image = GeoPackageReader.decodeTile(tileset, tile);
+                    if (image != null && !isCancelled(scheduled)) {
+                        tiles.put(key, image, this);
+                    }
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Error reading tiles ahead from " + reader.sourceFile, e);
+        }
+    }
+
+    /**
+     * Cancels the read ahead scheduled so far.
+     */
+    synchronized void cancel() {
+        generation.incrementAndGet();
+        for (Future<?> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        getExecutor().purge();
+    }
+
+    /**
+     * Cancels the read ahead for good.
+     */
+    void dispose() {
+        disposed = true;
+        cancel();
+    }
+}
@@ -18,6 +18,7 @@ package org.geotools.geopkg.wps;
 
 import com.vividsolutions.jts.geom.Envelope;
 import org.geotools.geopkg.TileMatrix;
+import org.geotools.geopkg.geom.SpatialOrder;
 import java.awt.Color;
 import java.io.Serializable;
 import java.net.URI;
@@ -229,6 +230,7 @@ public class GeoPackageProcessRequest implements Serializable {
         protected Set<QName> propertyNames = null;
         protected Filter filter = null;
         protected boolean indexed = false;
+        protected SpatialOrder order = null;
 
         @Override
         public int hashCode() {
@@ -237,6 +239,7 @@ public class GeoPackageProcessRequest implements Serializable {
             hash = 59 * hash + Objects.hashCode(this.propertyNames);
             hash = 59 * hash + Objects.hashCode(this.filter);
             hash = 59 * hash + (this.indexed ? 1 : 0);
+            hash = 59 * hash + Objects.hashCode(this.order);
             return hash;
         }
 
@@ -258,6 +261,9 @@ public class GeoPackageProcessRequest implements Serializable {
             if (this.indexed != other.indexed) {
                 return false;
             }
+            if (this.order != other.order) {
+                return false;
+            }
             if (!Objects.equals(this.featureType, other.featureType)) {
                 return false;
             }
@@ -306,6 +312,18 @@ public class GeoPackageProcessRequest implements Serializable {
         public void setIndexed(boolean indexed) {
             this.indexed = indexed;
         }
+
+        /**
+         * The curve the features are clustered along, or <code>null</code> to
+         * keep the source order.
+         */
+        public SpatialOrder getOrder() {
+            return order;
+        }
+
+        public void setOrder(SpatialOrder order) {
+            this.order = order;
+        }
     }
 
     public static class TilesLayer extends Layer implements Serializable {
@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.geotools.geopkg.geom.SpatialOrder;
 import org.geotools.geopkg.wps.GeoPackageProcessRequest;
 import org.geotools.geopkg.wps.GeoPackageProcessRequest.Layer;
 import org.geotools.xml.*;
@@ -89,6 +90,14 @@ public class Geopkgtype_featuresBinding extends LayertypeBinding {
             if (indexed != null) {
                 layer.setIndexed(indexed);
             }
+            String order = (String) node.getChildValue("order");
+            if (order != null) {
+                SpatialOrder o = SpatialOrder.lookup(order);
+                if (o == null) {
+                    throw new IllegalArgumentException("Unknown feature order: " + order);
+                }
+                layer.setOrder(o);
+            }
             return layer;
         }
 
@@ -24,12 +24,15 @@ import org.geotools.geopkg.Tile;
 import org.geotools.geopkg.TileEntry;
 import org.geotools.geopkg.TileMatrix;
 import org.geotools.geopkg.TileReader;
+import org.geotools.geopkg.geom.SpatialOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -39,23 +42,31 @@ import java.sql.ResultSet;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.logging.Level;
 
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
 import org.apache.commons.io.FileUtils;
 import org.geotools.TestData;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.DefaultTransaction;
+import org.geotools.data.Query;
 import org.geotools.data.Transaction;
 import org.geotools.data.memory.MemoryFeatureCollection;
 import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureReader;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.data.simple.SimpleFeatureWriter;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.Hints;
@@ -63,6 +74,7 @@ import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.Geometries;
 import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.sql.SqlUtil;
@@ -322,6 +334,299 @@ public class GeoPackageTest {
         ra.close();
     }
     
+    @Test
+    public void testCreateFeatureEntryOrdered() throws Exception {
+        ShapefileDataStore shp = new ShapefileDataStore(setUpShapefile());
+        SimpleFeatureCollection features = shp.getFeatureSource().getFeatures();
+
+        // force the external merge path with a tiny run size
+        SpatialSorter sorter = new SpatialSorter(SpatialOrder.HILBERT, features.getBounds());
+        sorter.runSize = 7;
+        SimpleFeatureIterator it = sorter.sort(features);
+        int count = 0;
+        long last = -1;
+        try {
+            while (it.hasNext()) {
+                long key = sorter.key(it.next());
+                assertTrue(key >= last);
+                last = key;
+                count++;
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(features.size(), count);
+
+        FeatureEntry entry = new FeatureEntry();
+        geopkg.add(entry, features, SpatialOrder.HILBERT);
+        assertFeatureEntry(entry);
+
+        sorter = new SpatialSorter(SpatialOrder.HILBERT, entry.getBounds());
+        SimpleFeatureReader ra = geopkg.reader(entry, null, null);
+        count = 0;
+        last = -1;
+        try {
+            while (ra.hasNext()) {
+                long key = sorter.key(ra.next());
+                assertTrue(key >= last);
+                last = key;
+                count++;
+            }
+        } finally {
+            ra.close();
+        }
+        assertEquals(features.size(), count);
+    }
+
+    @Test
+    public void testKeysetPaging() throws Exception {
+        ShapefileDataStore shp = new ShapefileDataStore(setUpShapefile());
+
+        FeatureEntry entry = new FeatureEntry();
+        geopkg.add(entry, shp.getFeatureSource(), null);
+
+        JDBCDataStore ds = geopkg.dataStore();
+        KeysetPaging paging = ((GeoPkgDialect) ds.getSQLDialect()).keysetPaging;
+        SimpleFeatureSource source = ds.getFeatureSource(entry.getTableName());
+        List<String> expected = new ArrayList<String>();
+        SimpleFeatureIterator it = source.getFeatures().features();
+        try {
+            while (it.hasNext()) {
+                expected.add(it.next().getID());
+            }
+        } finally {
+            it.close();
+        }
+
+        // page through with keyset pages from the second page on
+        paging.threshold = 1;
+        List<String> actual = new ArrayList<String>();
+        for (int start = 0; start < expected.size(); start += 10) {
+            Query q = new Query(entry.getTableName());
+            q.setStartIndex(start);
+            q.setMaxFeatures(10);
+            it = source.getFeatures(q).features();
+            try {
+                while (it.hasNext()) {
+                    actual.add(it.next().getID());
+                }
+            } finally {
+                it.close();
+            }
+        }
+        assertEquals(expected, actual);
+        assertFalse(paging.cursors.isEmpty());
+
+        // writes drop the cached boundaries
+        SimpleFeatureWriter w = geopkg.writer(entry, true, null, Transaction.AUTO_COMMIT);
+        SimpleFeature f = w.next();
+        f.setDefaultGeometry(new GeometryFactory().createPoint(new Coordinate(0, 0)));
+        w.write();
+        w.close();
+        assertTrue(paging.cursors.isEmpty());
+
+        // a rewritten page run without its boundary falls back on the subquery
+        String table = KeysetPaging.quote(entry.getTableName());
+        String pk = paging.keys.get(table);
+        assertNotNull(pk);
+        StringBuffer sql = new StringBuffer("SELECT " + pk + " FROM " + table + " ORDER BY " + pk + " ASC");
+        assertTrue(paging.apply(sql, 10, 10));
+        paging.clear();
+        Connection cx = ds.getDataSource().getConnection();
+        try {
+            PreparedStatement ps = cx.prepareStatement(sql.toString());
+            ResultSet rs = ps.executeQuery();
+            for (String id : expected.subList(10, 20)) {
+                assertTrue(rs.next());
+                assertTrue(id.endsWith("." + rs.getLong(1)));
+            }
+            assertFalse(rs.next());
+            rs.close();
+            ps.close();
+        } finally {
+            cx.close();
+        }
+
+        // the boundary is looked up in the transaction of the select
+        DefaultTransaction tx = new DefaultTransaction();
+        try {
+            SimpleFeatureStore store = (SimpleFeatureStore) ds.getFeatureSource(entry.getTableName());
+            store.setTransaction(tx);
+            store.removeFeatures(CommonFactoryFinder.getFilterFactory2().id(
+                    CommonFactoryFinder.getFilterFactory2().featureId(expected.get(0))));
+            Query q = new Query(entry.getTableName());
+            q.setStartIndex(10);
+            q.setMaxFeatures(10);
+            List<String> page = new ArrayList<String>();
+            it = store.getFeatures(q).features();
+            try {
+                while (it.hasNext()) {
+                    page.add(it.next().getID());
+                }
+            } finally {
+                it.close();
+            }
+            assertEquals(expected.subList(11, 21), page);
+        } finally {
+            tx.rollback();
+            tx.close();
+        }
+    }
+
+    @Test
+    public void testKeysetPagingFallback() throws Exception {
+        ShapefileDataStore shp = new ShapefileDataStore(setUpShapefile());
+
+        FeatureEntry entry = new FeatureEntry();
+        geopkg.add(entry, shp.getFeatureSource(), null);
+
+        JDBCDataStore ds = geopkg.dataStore();
+        KeysetPaging paging = ((GeoPkgDialect) ds.getSQLDialect()).keysetPaging;
+        paging.threshold = 1;
+        assertNotNull(ds.getSchema(entry.getTableName()));
+        String table = KeysetPaging.quote(entry.getTableName());
+        String pk = paging.keys.get(table);
+        assertNotNull(pk);
+        assertFalse(pk.isEmpty());
+
+        String select = "SELECT " + pk + ", \"cat\" FROM " + table;
+        assertTrue(paging.apply(new StringBuffer(select + " ORDER BY " + pk + " ASC"), 10, 10));
+        paging.clear();
+
+        // filtered, sorted and parameterized selects are left alone
+        for (String sql : new String[] {
+                select + " WHERE \"cat\" > 10 ORDER BY " + pk + " ASC",
+                select + " WHERE \"cat\" > ? ORDER BY " + pk + " ASC",
+                select + " ORDER BY \"cat\" ASC",
+                select + " ORDER BY " + pk + " DESC",
+                select + " ORDER BY \"cat\" ASC, " + pk + " ASC"}) {
+            StringBuffer sb = new StringBuffer(sql);
+            assertFalse(sql, paging.apply(sb, 10, 10));
+            assertEquals(sql, sb.toString());
+        }
+    }
+
+    @Test
+    public void testKeysetPagingExternalWrite() throws Exception {
+        ShapefileDataStore shp = new ShapefileDataStore(setUpShapefile());
+
+        FeatureEntry entry = new FeatureEntry();
+        geopkg.add(entry, shp.getFeatureSource(), null);
+
+        JDBCDataStore ds = geopkg.dataStore();
+        KeysetPaging paging = ((GeoPkgDialect) ds.getSQLDialect()).keysetPaging;
+        paging.threshold = 1;
+        SimpleFeatureSource source = ds.getFeatureSource(entry.getTableName());
+        List<String> expected = new ArrayList<String>();
+        SimpleFeatureIterator it = source.getFeatures().features();
+        try {
+            while (it.hasNext()) {
+                expected.add(it.next().getID());
+            }
+        } finally {
+            it.close();
+        }
+
+        Query q = new Query(entry.getTableName());
+        q.setStartIndex(10);
+        q.setMaxFeatures(10);
+        List<String> page = new ArrayList<String>();
+        it = source.getFeatures(q).features();
+        try {
+            while (it.hasNext()) {
+                page.add(it.next().getID());
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(expected.subList(10, 20), page);
+        assertFalse(paging.cursors.isEmpty());
+
+        // a delete bypassing the datastore, as another process would
+        String table = KeysetPaging.quote(entry.getTableName());
+        String pk = paging.keys.get(table);
+        String id = expected.get(0);
+        Connection cx = ds.getDataSource().getConnection();
+        try {
+            Statement st = cx.createStatement();
+            st.executeUpdate("DELETE FROM " + table + " WHERE " + pk + " = "
+                    + id.substring(id.lastIndexOf('.') + 1));
+            st.close();
+        } finally {
+            cx.close();
+        }
+
+        page.clear();
+        it = source.getFeatures(q).features();
+        try {
+            while (it.hasNext()) {
+                page.add(it.next().getID());
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(expected.subList(11, 21), page);
+    }
+
+    @Test
+    public void testMetadataCache() throws Exception {
+        ShapefileDataStore shp = new ShapefileDataStore(setUpShapefile());
+
+        FeatureEntry entry = new FeatureEntry();
+        geopkg.add(entry, shp.getFeatureSource(), null);
+
+        JDBCDataStore ds = geopkg.dataStore();
+        GeoPkgMetadataCache metadata = ((GeoPkgDialect) ds.getSQLDialect()).metadata;
+        assertNotNull(ds.getSchema(entry.getTableName()));
+        assertNotNull(metadata.snapshot);
+        assertEquals(entry.getSrid().intValue(), metadata.getGeometryInfo(entry.getTableName(), null).srid);
+
+        // creating a table drops the snapshot and the new table shows up
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("points");
+        tb.add("geom", Point.class, DefaultGeographicCRS.WGS84);
+        ds.createSchema(tb.buildFeatureType());
+        assertTrue(Arrays.asList(ds.getTypeNames()).contains("points"));
+    }
+
+    @Test
+    public void testPartitionedReader() throws Exception {
+        ShapefileDataStore shp = new ShapefileDataStore(setUpShapefile());
+
+        FeatureEntry entry = new FeatureEntry();
+        geopkg.add(entry, shp.getFeatureSource(), null);
+
+        List<SimpleFeature> expected = new ArrayList<SimpleFeature>();
+        SimpleFeatureReader r = geopkg.reader(entry, null, null);
+        while (r.hasNext()) {
+            expected.add(r.next());
+        }
+        r.close();
+
+        // ordered, the features come back exactly as with a single cursor
+        r = geopkg.reader(entry, null, 4, true);
+        for (SimpleFeature f : expected) {
+            assertTrue(r.hasNext());
+            SimpleFeature g = r.next();
+            assertEquals(f.getID(), g.getID());
+            assertSimilar(f, g);
+        }
+        assertFalse(r.hasNext());
+        r.close();
+
+        // unordered, the same features in any order
+        Set<String> ids = new HashSet<String>();
+        r = geopkg.reader(entry, null, 4, false);
+        while (r.hasNext()) {
+            assertTrue(ids.add(r.next().getID()));
+        }
+        r.close();
+        assertEquals(expected.size(), ids.size());
+        for (SimpleFeature f : expected) {
+            assertTrue(ids.contains(f.getID()));
+        }
+    }
+
     /**
      * Identical to {@link GeoPackageTest#testCreateFeatureEntry()} but uses a
      * pattern which requires quotes in SQLite.
@@ -594,6 +899,60 @@ public class GeoPackageTest {
         }
     }
     
+    @Test
+    public void testAddOrReplaceAndDeleteTiles() throws Exception {
+        TileEntry e = new TileEntry();
+        e.setTableName("batch");
+        e.setBounds(new ReferencedEnvelope(-180,180,-90,90,DefaultGeographicCRS.WGS84));
+        e.getTileMatricies().add(new TileMatrix(1, 2, 2, 256, 256, 0.1, 0.1));
+        geopkg.create(e);
+        geopkg.add(e, new Tile(1,0,0,new byte[]{0}));
+
+        List<Tile> tiles = new ArrayList();
+        tiles.add(new Tile(1,0,0,new byte[]{1}));
+        tiles.add(new Tile(1,0,1,new byte[]{2}));
+        tiles.add(new Tile(1,1,0,new byte[]{3}));
+        tiles.add(new Tile(1,1,1,new byte[]{4}));
+        geopkg.addOrReplace(e, tiles);
+
+        try(TileReader r = geopkg.reader(e, null, null, null, null, null, null)) {
+            assertTiles(tiles, r);
+        }
+
+        assertEquals(2, geopkg.delete(e, 1, 1, 1, 1, null, null));
+        assertEquals(0, geopkg.delete(e, 2, null, null, null, null, null));
+        try(TileReader r = geopkg.reader(e, null, null, null, null, null, null)) {
+            assertTiles(tiles.subList(0, 2), r);
+        }
+    }
+
+    @Test
+    public void testTileImageInputStream() throws Exception {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(3, 5, 0xff00ff00);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+
+        TileEntry e = new TileEntry();
+        e.setTableName("png");
+        e.setBounds(new ReferencedEnvelope(-180,180,-90,90,DefaultGeographicCRS.WGS84));
+        e.getTileMatricies().add(new TileMatrix(0, 1, 1, 16, 16, 0.1, 0.1));
+        geopkg.create(e);
+        geopkg.add(e, new Tile(0, 0, 0, bytes.toByteArray()));
+
+        try (TileReader r = geopkg.reader(e, null, null, null, null, null, null)) {
+            assertTrue(r.hasNext());
+            Tile t = r.next();
+            assertEquals(bytes.size(), t.getDataBuffer().remaining());
+
+            ImageInputStream iis = t.getImageInputStream();
+            assertEquals(bytes.size(), iis.length());
+            BufferedImage read = ImageIO.read(iis);
+            assertEquals(16, read.getWidth());
+            assertEquals(0xff00ff00, read.getRGB(3, 5));
+        }
+    }
+
     /**
      * Identical to {@link GeoPackageTest#testCreateTileEntry()} but uses a 
      * pattern which requires quotes in SQLite.
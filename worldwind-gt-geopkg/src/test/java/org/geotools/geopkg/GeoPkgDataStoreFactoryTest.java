@@ -18,6 +18,7 @@ package org.geotools.geopkg;
 
 import org.geotools.geopkg.GeoPkgDataStoreFactory;
 import com.vividsolutions.jts.geom.Point;
+import org.apache.commons.dbcp.BasicDataSource;
 import org.geotools.data.DataStore;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.junit.Rule;
@@ -27,10 +28,20 @@ import org.junit.rules.TemporaryFolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class GeoPkgDataStoreFactoryTest {
 
@@ -60,4 +71,379 @@ public class GeoPkgDataStoreFactoryTest {
 
         assertTrue(new File(tmp.getRoot(), "foo.gpkg").exists());
     }
+
+    @Test
+    public void testTuning() throws Exception {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "tuned.gpkg"));
+        map.put(GeoPkgDataStoreFactory.TUNING.key, SQLiteTuning.READ_MOSTLY_SERVER);
+        map.put(GeoPkgDataStoreFactory.CACHE_SIZE.key, -1024);
+
+        BasicDataSource ds = new GeoPkgDataStoreFactory().createDataSource(map);
+        try (Connection cx = ds.getConnection(); Statement st = cx.createStatement()) {
+            ResultSet rs = st.executeQuery("PRAGMA journal_mode");
+            assertTrue(rs.next());
+            assertEquals("wal", rs.getString(1).toLowerCase());
+            rs.close();
+
+            // the override wins over the profile
+            rs = st.executeQuery("PRAGMA cache_size");
+            assertTrue(rs.next());
+            assertEquals(-1024, rs.getInt(1));
+            rs.close();
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownTuningProfile() throws IOException {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "foo.gpkg"));
+        map.put(GeoPkgDataStoreFactory.TUNING.key, "turbo");
+
+        new GeoPkgDataStoreFactory().createDataSource(map);
+    }
+
+    @Test
+    public void testReadOnly() throws IOException {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "ro.gpkg"));
+
+        SimpleFeatureTypeBuilder b = new SimpleFeatureTypeBuilder();
+        b.setName("foo");
+        b.setSRS("EPSG:4326");
+        b.add("geom", Point.class);
+
+        DataStore data = new GeoPkgDataStoreFactory().createDataStore(map);
+        data.createSchema(b.buildFeatureType());
+        data.dispose();
+
+        map.put(GeoPkgDataStoreFactory.IMMUTABLE.key, true);
+        data = new GeoPkgDataStoreFactory().createDataStore(map);
+        try {
+            assertEquals(1, data.getTypeNames().length);
+            assertEquals("foo", data.getTypeNames()[0]);
+
+            b.setName("bar");
+            try {
+                data.createSchema(b.buildFeatureType());
+                fail("read only database should not be writable");
+            } catch (IOException e) {
+            }
+        } finally {
+            data.dispose();
+        }
+    }
+
+    @Test
+    public void testWriteQueue() throws Exception {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "queued.gpkg"));
+        map.put(GeoPkgDataStoreFactory.TUNING.key, SQLiteTuning.READ_MOSTLY_SERVER);
+
+        final BasicDataSource ds = new GeoPkgDataStoreFactory().createDataSource(map);
+        try (Connection cx = ds.getConnection(); Statement st = cx.createStatement()) {
+            st.execute("CREATE TABLE t (i INTEGER)");
+            cx.setAutoCommit(false);
+            st.execute("INSERT INTO t VALUES (1)");
+
+            // a second writer waits for the first transaction to end
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try (Connection cx2 = ds.getConnection(); Statement st2 = cx2.createStatement()) {
+                        cx2.setAutoCommit(false);
+                        st2.execute("INSERT INTO t VALUES (2)");
+                        cx2.commit();
+                        done.countDown();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writer.start();
+            assertFalse(done.await(500, TimeUnit.MILLISECONDS));
+
+            // readers are not blocked meanwhile
+            try (Connection reader = ds.getConnection(); Statement rs = reader.createStatement()) {
+                ResultSet r = rs.executeQuery("SELECT count(*) FROM t");
+                assertTrue(r.next());
+                assertEquals(0, r.getInt(1));
+                r.close();
+            }
+
+            cx.commit();
+            cx.setAutoCommit(true);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            ResultSet r = st.executeQuery("SELECT count(*) FROM t");
+            assertTrue(r.next());
+            assertEquals(2, r.getInt(1));
+            r.close();
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testWriteQueueWrites() throws Exception {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "writes.gpkg"));
+        map.put(GeoPkgDataStoreFactory.TUNING.key, SQLiteTuning.READ_MOSTLY_SERVER);
+
+        final GeoPkgDataSource ds = (GeoPkgDataSource) new GeoPkgDataStoreFactory()
+                .createDataSource(map);
+        final WriteQueue queue = ds.getWriteQueue();
+        try (Connection cx = ds.getConnection(); Statement st = cx.createStatement()) {
+            st.execute("CREATE TABLE t (i INTEGER)");
+            assertEquals(1, queue.permit.availablePermits());
+
+            // reads in auto commit mode do not queue
+            st.executeQuery("SELECT count(*) FROM t").close();
+            assertEquals(1, queue.permit.availablePermits());
+
+            // the first statement of a transaction takes the permit until
+            // the transaction ends, so that it can write after reading
+            cx.setAutoCommit(false);
+            st.executeQuery("SELECT count(*) FROM t").close();
+            assertEquals(0, queue.permit.availablePermits());
+            PreparedStatement ps = cx.prepareStatement("INSERT INTO t VALUES (?)");
+            ps.setInt(1, 1);
+            ps.executeUpdate();
+            ps.close();
+            assertEquals(0, queue.permit.availablePermits());
+
+            // an auto commit write of another thread waits for it
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try (Connection cx2 = ds.getConnection(); Statement st2 = cx2.createStatement()) {
+                        st2.executeUpdate("INSERT INTO t VALUES (2)");
+                        done.countDown();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writer.start();
+            assertFalse(done.await(500, TimeUnit.MILLISECONDS));
+            assertTrue(queue.permit.hasQueuedThreads());
+
+            // writing through a second connection of this thread fails fast
+            try (Connection cx3 = ds.getConnection(); Statement st3 = cx3.createStatement()) {
+                st3.executeUpdate("INSERT INTO t VALUES (3)");
+                fail("a thread should not write through two connections at once");
+            } catch (SQLException e) {
+            }
+
+            cx.rollback();
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            writer.join();
+            assertEquals(1, queue.permit.availablePermits());
+            cx.setAutoCommit(true);
+
+            ResultSet r = st.executeQuery("SELECT count(*) FROM t");
+            assertTrue(r.next());
+            assertEquals(1, r.getInt(1));
+            r.close();
+        } finally {
+            ds.close();
+        }
+        assertTrue(WriteQueue.isWrite("PRAGMA application_id = 1196437808"));
+        assertFalse(WriteQueue.isWrite(" pragma table_info('t')"));
+    }
+
+    @Test
+    public void testWriteQueueReadThenWrite() throws Exception {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "snapshot.gpkg"));
+        map.put(GeoPkgDataStoreFactory.TUNING.key, SQLiteTuning.READ_MOSTLY_SERVER);
+
+        final BasicDataSource ds = new GeoPkgDataStoreFactory().createDataSource(map);
+        try (Connection cx = ds.getConnection(); Statement st = cx.createStatement()) {
+            st.execute("CREATE TABLE t (i INTEGER)");
+            st.execute("INSERT INTO t VALUES (1)");
+
+            // a transaction reading the row it is about to update
+            cx.setAutoCommit(false);
+            ResultSet r = st.executeQuery("SELECT max(i) FROM t");
+            assertTrue(r.next());
+            int max = r.getInt(1);
+            r.close();
+
+            // a writer arriving meanwhile waits, rather than invalidating the
+            // snapshot of the transaction
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try (Connection cx2 = ds.getConnection(); Statement st2 = cx2.createStatement()) {
+                        st2.executeUpdate("INSERT INTO t VALUES (10)");
+                        done.countDown();
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writer.start();
+            assertFalse(done.await(500, TimeUnit.MILLISECONDS));
+
+            st.executeUpdate("INSERT INTO t VALUES (" + (max + 1) + ")");
+            cx.commit();
+            cx.setAutoCommit(true);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            writer.join();
+
+            r = st.executeQuery("SELECT count(*), sum(i) FROM t");
+            assertTrue(r.next());
+            assertEquals(3, r.getInt(1));
+            assertEquals(13, r.getInt(2));
+            r.close();
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testWriteQueueReentrant() throws Exception {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "reentrant.gpkg"));
+        map.put(GeoPkgDataStoreFactory.TUNING.key, SQLiteTuning.READ_MOSTLY_SERVER);
+
+        GeoPkgDataSource ds = (GeoPkgDataSource) new GeoPkgDataStoreFactory().createDataSource(map);
+        WriteQueue queue = ds.getWriteQueue();
+        try (Connection cx = ds.getConnection(); Statement st = cx.createStatement()) {
+            st.execute("CREATE TABLE t (i INTEGER)");
+
+            // the statements of a transaction share the permit of its connection
+            cx.setAutoCommit(false);
+            st.executeUpdate("INSERT INTO t VALUES (1)");
+            try (PreparedStatement ps = cx.prepareStatement("INSERT INTO t VALUES (?)")) {
+                ps.setInt(1, 2);
+                ps.executeUpdate();
+            }
+            // a write while the result set of a read is still open
+            try (ResultSet r = cx.createStatement().executeQuery("SELECT i FROM t")) {
+                assertTrue(r.next());
+                st.executeUpdate("UPDATE t SET i = i + 10");
+            }
+            assertEquals(0, queue.permit.availablePermits());
+            cx.commit();
+            assertEquals(1, queue.permit.availablePermits());
+
+            // in auto commit mode, the permit is given back after each write
+            cx.setAutoCommit(true);
+            st.executeUpdate("INSERT INTO t VALUES (3)");
+            st.executeUpdate("INSERT INTO t VALUES (4)");
+            assertEquals(1, queue.permit.availablePermits());
+
+            // a second connection of this thread is free to write once the
+            // first one is done
+            try (Connection cx2 = ds.getConnection(); Statement st2 = cx2.createStatement()) {
+                st2.executeUpdate("DELETE FROM t WHERE i = 4");
+            }
+            ResultSet r = st.executeQuery("SELECT count(*) FROM t");
+            assertTrue(r.next());
+            assertEquals(3, r.getInt(1));
+            r.close();
+        } finally {
+            ds.close();
+        }
+        assertEquals(1, queue.permit.availablePermits());
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        final File file = new File(tmp.getRoot(), "shared.gpkg");
+        GeoPackageRegistry registry = new GeoPackageRegistry(2, 60);
+        GeoPackageRegistry.PoolFactory factory = new GeoPackageRegistry.PoolFactory() {
+            @Override
+            public BasicDataSource create() throws IOException {
+                Map<String,Serializable> map = new HashMap<>();
+                map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+                map.put(GeoPkgDataStoreFactory.DATABASE.key, file);
+                return new GeoPkgDataStoreFactory().createDataSource(map);
+            }
+        };
+
+        // the same file through a different path gets the same pool
+        GeoPackageRegistry.SharedDataSource ds1 = registry.acquire(file, "ro", true, factory);
+        GeoPackageRegistry.SharedDataSource ds2 = registry.acquire(
+                new File(tmp.getRoot(), "../" + tmp.getRoot().getName() + "/shared.gpkg"), "ro",
+                true, factory);
+        assertEquals(1, registry.size());
+        assertTrue(ds1.pool == ds2.pool);
+        assertEquals(2, ds1.pool.dataSource.getMaxActive());
+
+        // a different mode gets its own pool
+        GeoPackageRegistry.SharedDataSource ds3 = registry.acquire(file, "rw", false, factory);
+        assertEquals(2, registry.size());
+
+        ds1.close();
+        ds1.close();
+        try (Connection cx = ds2.getConnection()) {
+            assertTrue(cx.isValid(0));
+        }
+
+        // writable pools close with their last reference, read only ones are kept
+        ds3.close();
+        ds2.close();
+        assertEquals(1, registry.size());
+        registry.evictIdle();
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testRegistryConflictingSettings() throws Exception {
+        File file = new File(tmp.getRoot(), "settings.gpkg");
+        GeoPkgDataStoreFactory f = new GeoPkgDataStoreFactory();
+        Map<String,Serializable> first = new HashMap<>();
+        first.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        first.put(GeoPkgDataStoreFactory.DATABASE.key, file);
+        first.put(GeoPkgDataStoreFactory.READ_ONLY.key, true);
+        Map<String,Serializable> second = new HashMap<>(first);
+        second.put(GeoPkgDataStoreFactory.TUNING.key, SQLiteTuning.READ_MOSTLY_SERVER);
+        assertFalse(f.getPoolSettings(first).equals(f.getPoolSettings(second)));
+
+        GeoPackageRegistry.SharedDataSource ds1 =
+                (GeoPackageRegistry.SharedDataSource) f.createSharedDataSource(first);
+        GeoPackageRegistry.SharedDataSource ds2 =
+                (GeoPackageRegistry.SharedDataSource) f.createSharedDataSource(second);
+        try {
+            // the pool is shared as is, the second settings are reported
+            assertTrue(ds1.pool == ds2.pool);
+            assertEquals(f.getPoolSettings(first), ds1.pool.settings);
+            assertTrue(ds1.pool.ignoredSettings.contains(f.getPoolSettings(second)));
+        } finally {
+            ds2.close();
+            ds1.close();
+            GeoPackageRegistry.getInstance().evictIdle();
+        }
+    }
+
+    @Test
+    public void testPreparedStatementPool() throws IOException {
+        Map<String,Serializable> map = new HashMap<>();
+        map.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        map.put(GeoPkgDataStoreFactory.DATABASE.key, new File(tmp.getRoot(), "ps.gpkg"));
+
+        BasicDataSource ds = new GeoPkgDataStoreFactory().createDataSource(map);
+        assertTrue(ds.isPoolPreparedStatements());
+        assertEquals(GeoPkgDataStoreFactory.DEFAULT_MAX_PREPARED_STATEMENTS,
+                ds.getMaxOpenPreparedStatements());
+
+        map.put(GeoPkgDataStoreFactory.MAX_OPEN_PREPARED_STATEMENTS.key, -1);
+        ds = new GeoPkgDataStoreFactory().createDataSource(map);
+        assertFalse(ds.isPoolPreparedStatements());
+    }
 }
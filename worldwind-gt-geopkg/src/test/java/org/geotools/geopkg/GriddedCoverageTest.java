@@ -0,0 +1,132 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class GriddedCoverageTest {
+
+    /**
+     * Encodes a 16-bit PNG tile of stored values.
+     */
+    static byte[] png(int width, int height, int... values) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
+        image.getRaster().setSamples(0, 0, width, height, 0, values);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "png", out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testShortValues() throws IOException {
+        GriddedCoverage gc = new GriddedCoverage();
+        gc.setOffset(-32767);
+        gc.setDataNull(65535d);
+        assertEquals(DataBuffer.TYPE_SHORT, gc.getSampleType());
+
+        BufferedImage image = gc.decode(png(2, 2, 0, 1500, 65535, 65534), null, null);
+        Raster raster = image.getRaster();
+        assertEquals(1, raster.getNumBands());
+        assertEquals(DataBuffer.TYPE_SHORT, raster.getDataBuffer().getDataType());
+        assertEquals(-32767, raster.getSample(0, 0, 0));
+        assertEquals(-31267, raster.getSample(1, 0, 0));
+        assertEquals(Short.MIN_VALUE, raster.getSample(0, 1, 0));
+        assertEquals(Short.MAX_VALUE, raster.getSample(1, 1, 0));
+
+        // a stored value beyond the shorts, or on the no-data value
+        gc.setDataNull(null);
+        assertEquals(DataBuffer.TYPE_INT, gc.getSampleType());
+        gc.setOffset(-32768);
+        gc.setDataNull(0d);
+        assertEquals(DataBuffer.TYPE_SHORT, gc.getSampleType());
+        gc.setDataNull(65535d);
+        assertEquals(DataBuffer.TYPE_INT, gc.getSampleType());
+    }
+
+    @Test
+    public void testIntValues() throws IOException {
+        GriddedCoverage gc = new GriddedCoverage();
+        gc.setOffset(-1000);
+        gc.setDataNull(65535d);
+        assertEquals(DataBuffer.TYPE_INT, gc.getSampleType());
+        assertEquals(Integer.MIN_VALUE, gc.getNoData(), 0);
+
+        BufferedImage image = gc.decode(png(2, 2, 0, 1500, 65535, 40000), null, null);
+        Raster raster = image.getRaster();
+        assertEquals(DataBuffer.TYPE_INT, raster.getDataBuffer().getDataType());
+        assertEquals(-1000, raster.getSample(0, 0, 0));
+        assertEquals(500, raster.getSample(1, 0, 0));
+        assertEquals(Integer.MIN_VALUE, raster.getSample(0, 1, 0));
+        // not clamped to the shorts
+        assertEquals(39000, raster.getSample(1, 1, 0));
+    }
+
+    @Test
+    public void testFloatValues() throws IOException {
+        GriddedCoverage gc = new GriddedCoverage();
+        gc.setScale(0.1);
+        gc.setOffset(-100);
+        gc.setDataNull(0d);
+        assertEquals(DataBuffer.TYPE_FLOAT, gc.getSampleType());
+        assertTrue(Double.isNaN(gc.getNoData()));
+
+        BufferedImage image = gc.decode(png(2, 1, 0, 1234), null, null);
+        Raster raster = image.getRaster();
+        assertEquals(DataBuffer.TYPE_FLOAT, raster.getDataBuffer().getDataType());
+        assertTrue(Float.isNaN(raster.getSampleFloat(0, 0, 0)));
+        assertEquals(23.4, raster.getSampleFloat(1, 0, 0), 1e-4);
+    }
+
+    @Test
+    public void testTileScale() throws IOException {
+        GriddedCoverage gc = new GriddedCoverage();
+        gc.setTilesScaled(true);
+        gc.setOffset(10);
+        assertEquals(DataBuffer.TYPE_FLOAT, gc.getSampleType());
+
+        // the tile values are scaled before the coverage values
+        BufferedImage image = gc.decode(png(1, 1, 100), 0.5, 2.0);
+        assertEquals(62, image.getRaster().getSampleFloat(0, 0, 0), 0);
+    }
+
+    @Test
+    public void testCopyClipsToValues() {
+        GriddedCoverage gc = new GriddedCoverage();
+        BufferedImage values = gc.createImage(2, 2);
+        assertEquals(Integer.MIN_VALUE, values.getRaster().getSample(1, 1, 0));
+
+        WritableRaster stored = new BufferedImage(3, 1, BufferedImage.TYPE_USHORT_GRAY).getRaster();
+        stored.setSamples(0, 0, 3, 1, 0, new int[]{7, 8, 9});
+        gc.copy(stored, values.getRaster(), 1, 0);
+        assertEquals(7, values.getRaster().getSample(0, 0, 0));
+        assertEquals(8, values.getRaster().getSample(1, 0, 0));
+        // the second row is not in the tile
+        assertEquals(Integer.MIN_VALUE, values.getRaster().getSample(0, 1, 0));
+    }
+}
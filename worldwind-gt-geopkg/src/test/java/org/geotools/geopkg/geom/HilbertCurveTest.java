@@ -0,0 +1,64 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.geom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class HilbertCurveTest {
+
+    @Test
+    public void testCorners() {
+        int max = HilbertCurve.SIZE - 1;
+        assertEquals(0, HilbertCurve.index(0, 0));
+        // the curve ends in the opposite corner along the x axis
+        assertEquals((long) HilbertCurve.SIZE * HilbertCurve.SIZE - 1, HilbertCurve.index(max, 0));
+    }
+
+    @Test
+    public void testAdjacency() {
+        // walking the first 4^4 positions must visit a 16x16 block, one step at a time
+        int n = 16;
+        int[][] cells = new int[n * n][];
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                long d = HilbertCurve.index(x, y);
+                assertTrue(d < n * n);
+                cells[(int) d] = new int[]{x, y};
+            }
+        }
+        for (int d = 1; d < n * n; d++) {
+            int dx = Math.abs(cells[d][0] - cells[d - 1][0]);
+            int dy = Math.abs(cells[d][1] - cells[d - 1][1]);
+            assertEquals(1, dx + dy);
+        }
+    }
+
+    @Test
+    public void testEnvelope() {
+        Envelope extent = new Envelope(-180, 180, -90, 90);
+        assertEquals(0, HilbertCurve.index(new Envelope(-180, -180, -90, -90), extent));
+        // out of range and degenerate extents are clamped
+        assertEquals(HilbertCurve.index(HilbertCurve.SIZE - 1, HilbertCurve.SIZE - 1),
+                HilbertCurve.index(new Envelope(200, 210, 100, 110), extent));
+        assertEquals(0, HilbertCurve.index(new Envelope(1, 2, 1, 2), new Envelope(1, 1, 1, 1)));
+    }
+}
@@ -105,28 +105,32 @@ public class GeoPackageFormatTest {
     /**
      * Test of getWriter method, of class GeoPackageFormat.
      */
-    @Test(expected = UnsupportedOperationException.class)
+    @Test(expected = IllegalArgumentException.class)
     public void testGetWriter_Object() {
         GeoPackageFormat instance = new GeoPackageFormat();
         Object destination = null;
 
         GridCoverageWriter result = instance.getWriter(destination);
 
-        fail("The getWriter method should have thrown an unsupported exception.");
+        fail("The getWriter method should have rejected a null destination.");
     }
 
     /**
      * Test of getWriter method, of class GeoPackageFormat.
      */
-    @Test(expected = UnsupportedOperationException.class)
-    public void testGetWriter_Object_Hints() {
+    @Test
+    public void testGetWriter_Object_Hints() throws IOException {
         GeoPackageFormat instance = new GeoPackageFormat();
-        Object destination = null;
+        File destination = File.createTempFile("writer", ".gpkg");
         Hints hints = null;
 
         GridCoverageWriter result = instance.getWriter(destination, hints);
-
-        fail("The getWriter method should have thrown an unsupported exception.");
+        try {
+            assertTrue("writer should be a GeoPackageWriter", result instanceof GeoPackageWriter);
+        } finally {
+            result.dispose();
+            destination.delete();
+        }
     }
 
     /**
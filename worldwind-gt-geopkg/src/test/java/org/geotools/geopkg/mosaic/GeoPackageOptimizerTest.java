@@ -0,0 +1,243 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GeoPackageOptimizerTest {
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("optimizer", ".gpkg");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Encodes a PNG tile of noise, which compresses better as JPEG, with a
+     * transparent lower half unless opaque.
+     */
+    static byte[] png(boolean opaque, long seed) throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        Random random = new Random(seed);
+        for (int y = 0; y < 256; y++) {
+            for (int x = 0; x < 256; x++) {
+                int alpha = opaque || y < 128 ? 0xff000000 : 0;
+                image.setRGB(x, y, alpha | (random.nextInt(64) << 16) | (x << 8) | y);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "png", out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testPageSize() {
+        assertEquals(4096, GeoPackageOptimizer.getPageSize(0));
+        assertEquals(4096, GeoPackageOptimizer.getPageSize(4000));
+        assertEquals(8192, GeoPackageOptimizer.getPageSize(5000));
+        assertEquals(65536, GeoPackageOptimizer.getPageSize(1e6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPageSize() {
+        new GeoPackageOptimizer(file).setPageSize(5000);
+    }
+
+    @Test
+    public void testOptimize() throws Exception {
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            geopkg.init();
+            TileEntry entry = GeoPackageWriter.createTileEntry(
+                    GeoPackageWriterTest.createCoverage(512, 256), "test", 256);
+            geopkg.create(entry);
+            // inserted out of (zoom, row, column) order
+            geopkg.addOrReplace(entry, Arrays.asList(
+                    new Tile(1, 1, 0, png(true, 1)),
+                    new Tile(1, 0, 0, png(true, 2)),
+                    new Tile(0, 0, 0, png(false, 3))));
+        } finally {
+            geopkg.close();
+        }
+
+        GeoPackageOptimizer optimizer = new GeoPackageOptimizer(file);
+        optimizer.setSampleSize(10);
+        GeoPackageOptimizer.Report report = optimizer.optimize();
+        assertEquals(3, report.getTiles());
+        assertEquals(3, report.getSamples());
+        assertTrue(report.getTilesRecompressed() >= 2);
+        assertTrue(report.getSizeAfter() < report.getSizeBefore());
+        assertEquals(file.length(), report.getSizeAfter());
+
+        geopkg = new GeoPackage(file);
+        try {
+            TileEntry entry = geopkg.tile("test");
+            TileReader it = geopkg.reader(entry, null, null, null, null, null, null);
+            try {
+                while (it.hasNext()) {
+                    Tile tile = it.next();
+                    BufferedImage image = GeoPackageReader.createImageFromBytes(tile.getData());
+                    assertEquals(256, image.getWidth());
+                    if (tile.getZoom() == 1) {
+                        assertEquals("image/jpeg", tile.getMimeType());
+                    } else {
+                        // the transparent half is kept
+                        assertEquals("image/png", tile.getMimeType());
+                        assertEquals(0, image.getRGB(10, 200) >>> 24);
+                    }
+                }
+            } finally {
+                it.close();
+            }
+
+            try (Connection cx = geopkg.getDataSource().getConnection();
+                    Statement st = cx.createStatement()) {
+                try (ResultSet rs = st.executeQuery("SELECT id FROM test"
+                        + " ORDER BY zoom_level, tile_row, tile_column")) {
+                    for (int id = 1; id <= 3; id++) {
+                        assertTrue(rs.next());
+                        assertEquals(id, rs.getInt(1));
+                    }
+                }
+                try (ResultSet rs = st.executeQuery("PRAGMA page_size")) {
+                    assertTrue(rs.next());
+                    assertEquals(report.getPageSizeAfter(), rs.getInt(1));
+                }
+            }
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    /**
+     * Encodes a 16-bit PNG tile of gridded coverage values.
+     */
+    static byte[] values(int value) throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_USHORT_GRAY);
+        image.getRaster().setSample(0, 0, 0, value);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "png", out));
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testOptimizeGridded() throws Exception {
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            geopkg.init();
+            TileEntry entry = GeoPackageWriter.createTileEntry(
+                    GeoPackageWriterTest.createCoverage(512, 256), "test", 256);
+            geopkg.create(entry);
+            // inserted out of (zoom, row, column) order
+            geopkg.addOrReplace(entry, Arrays.asList(
+                    new Tile(1, 1, 0, values(1)),
+                    new Tile(1, 0, 0, values(2)),
+                    new Tile(0, 0, 0, values(3))));
+            try (Connection cx = geopkg.getDataSource().getConnection();
+                    Statement st = cx.createStatement()) {
+                st.execute("UPDATE gpkg_contents SET data_type = '2d-gridded-coverage'"
+                        + " WHERE table_name = 'test'");
+                st.execute("CREATE TABLE gpkg_2d_gridded_coverage_ancillary ("
+                        + "id INTEGER PRIMARY KEY AUTOINCREMENT, tile_matrix_set_name TEXT NOT NULL UNIQUE,"
+                        + " datatype TEXT NOT NULL DEFAULT 'integer', scale REAL NOT NULL DEFAULT 1.0,"
+                        + " \"offset\" REAL NOT NULL DEFAULT 0.0, precision REAL DEFAULT 1.0,"
+                        + " data_null REAL)");
+                st.execute("INSERT INTO gpkg_2d_gridded_coverage_ancillary (tile_matrix_set_name)"
+                        + " VALUES ('test')");
+                st.execute("CREATE TABLE gpkg_2d_gridded_tile_ancillary ("
+                        + "id INTEGER PRIMARY KEY AUTOINCREMENT, tpudt_name TEXT NOT NULL,"
+                        + " tpudt_id INTEGER NOT NULL, scale REAL NOT NULL DEFAULT 1.0,"
+                        + " \"offset\" REAL NOT NULL DEFAULT 0.0, min REAL, max REAL, mean REAL,"
+                        + " std_dev REAL, UNIQUE (tpudt_name, tpudt_id))");
+                // an offset identifying each tile
+                st.execute("INSERT INTO gpkg_2d_gridded_tile_ancillary (tpudt_name, tpudt_id, \"offset\")"
+                        + " SELECT 'test', id, zoom_level * 100 + tile_row * 10 + tile_column FROM test");
+            }
+        } finally {
+            geopkg.close();
+        }
+
+        GeoPackageOptimizer optimizer = new GeoPackageOptimizer(file);
+        optimizer.setSampleSize(0);
+        optimizer.optimize();
+
+        geopkg = new GeoPackage(file);
+        try {
+            TileEntry entry = geopkg.tile("test");
+            assertNotNull(entry.getGriddedCoverage());
+            int count = 0;
+            TileReader it = geopkg.reader(entry, null, null, null, null, null, null);
+            try {
+                while (it.hasNext()) {
+                    Tile tile = it.next();
+                    count++;
+                    // the ancillary data follows the renumbered tiles
+                    assertEquals(tile.getZoom() * 100 + tile.getRow() * 10 + tile.getColumn(),
+                            tile.getOffset(), 0);
+                    BufferedImage image = ImageIO.read(new ByteArrayInputStream(tile.getData()));
+                    int value = tile.getZoom() == 0 ? 3 : tile.getColumn() == 0 ? 2 : 1;
+                    assertEquals(value, image.getRaster().getSample(0, 0, 0));
+                }
+            } finally {
+                it.close();
+            }
+            assertEquals(3, count);
+
+            try (Connection cx = geopkg.getDataSource().getConnection();
+                    Statement st = cx.createStatement();
+                    ResultSet rs = st.executeQuery("SELECT t.id FROM test t"
+                            + " JOIN gpkg_2d_gridded_tile_ancillary a ON a.tpudt_id = t.id"
+                            + " ORDER BY t.zoom_level, t.tile_row, t.tile_column")) {
+                for (int id = 1; id <= 3; id++) {
+                    assertTrue(rs.next());
+                    assertEquals(id, rs.getInt(1));
+                }
+            }
+        } finally {
+            geopkg.close();
+        }
+    }
+}
@@ -18,19 +18,30 @@ package org.geotools.geopkg.mosaic;
 
 import org.geotools.geopkg.mosaic.GeoPackageReader;
 import org.geotools.geopkg.mosaic.GeoPackageFormat;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
 import org.geotools.geopkg.TileEntry;
 import org.geotools.geopkg.TileMatrix;
+import com.vividsolutions.jts.geom.Envelope;
 import java.awt.Color;
 import java.awt.Dimension;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.RenderedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.media.jai.ImageLayout;
@@ -44,6 +55,7 @@ import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.OverviewPolicy;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.ResourceInfo;
+import org.geotools.factory.Hints;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.image.test.ImageAssert;
@@ -60,6 +72,7 @@ import org.junit.Test;
 import org.opengis.coverage.grid.Format;
 import org.opengis.coverage.grid.GridEnvelope;
 import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
@@ -139,6 +152,35 @@ public class GeoPackageReaderTest {
         assertNotNull(result);
     }
 
+    @Test
+    public void testOpenModes() throws IOException {
+        assumeNotNull(source);  // Skip test if not found
+        // read-write unless asked otherwise, like before the read only mode
+        GeoPackageReader reader = new GeoPackageReader(source, null);
+        GeoPackage gpkg = reader.open();
+        try {
+            assertFalse(gpkg.isReadOnly());
+        } finally {
+            gpkg.close();
+        }
+
+        reader = new GeoPackageReader(source, new Hints(GeoPackageFormat.READ_ONLY, true));
+        gpkg = reader.open();
+        try {
+            assertTrue(gpkg.isReadOnly());
+        } finally {
+            gpkg.close();
+        }
+
+        reader = new GeoPackageReader(source, new Hints(GeoPackageFormat.IMMUTABLE, true));
+        gpkg = reader.open();
+        try {
+            assertTrue(gpkg.isReadOnly());
+        } finally {
+            gpkg.close();
+        }
+    }
+
     @Test
     public void testGetTileset_coverage_name() throws IOException {
         assumeNotNull(source);  // Skip test if not found
@@ -562,6 +604,171 @@ public class GeoPackageReaderTest {
         ImageAssert.assertEquals(DataUtilities.urlToFile(getClass().getResource("testReadTile.png")), result, 2);
     }
 
+    @Test
+    public void testAbort() throws Exception {
+        assumeNotNull(source);  // Skip test if not found
+        GeoPackageReader instance = new GeoPackageReader(source, null);
+        GeoPackageReader.ReadControl control = instance.new ReadControl();
+        control.check();
+        instance.abort();
+        try {
+            control.check();
+            fail("The read should have been aborted");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        // reads started after the abort proceed
+        instance.new ReadControl().check();
+
+        TileEntry tileset = instance.getTileset();
+        int zoomLevel = tileset.getMaxZoomLevel();
+        TileMatrix matrix = tileset.getTileMatrix(zoomLevel);
+        Thread.currentThread().interrupt();
+        try {
+            instance.readTiles(COVERAGE_NAME, zoomLevel, matrix.getMinCol(), matrix.getMaxCol(),
+                    matrix.getMinRow(), matrix.getMaxRow(), null);
+            fail("The read should have been interrupted");
+        } catch (InterruptedIOException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        assumeNotNull(source);  // Skip test if not found
+        GeoPackageReader instance = new GeoPackageReader(source, null);
+        assertEquals(GeoPackageReader.READ_TIMEOUT, instance.new ReadControl().timeout);
+
+        // the timeout of a single read
+        ParameterValue<Long> timeout = GeoPackageFormat.READ_TIMEOUT.createValue();
+        timeout.setValue(1L);
+        GeoPackageReader.ReadControl control = instance.new ReadControl(
+                new GeneralParameterValue[]{timeout});
+        assertEquals(1, control.timeout);
+        Thread.sleep(10);
+        try {
+            control.check();
+            fail("The read should have timed out");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        // does not affect the other reads
+        instance.new ReadControl().check();
+        instance.dispose();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        assumeNotNull(source);  // Skip test if not found
+        GeoPackageReader instance = new GeoPackageReader(source, new Hints(GeoPackageFormat.PREFETCH, true));
+        assertNotNull(instance.prefetcher);
+        TileEntry tileset = instance.getTileset();
+        int zoomLevel = tileset.getMaxZoomLevel();
+        TileMatrix matrix = tileset.getTileMatrix(zoomLevel);
+        int col = matrix.getMinCol() + matrix.getNumCols() / 2;
+        int row = matrix.getMinRow() + matrix.getNumRows() / 2;
+
+        instance.readTiles(COVERAGE_NAME, zoomLevel, col, col, row, row, null);
+        for (Future<?> future : new ArrayList<>(instance.prefetcher.pending)) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        // the tile read and its stored neighbors are cached
+        TileCache cache = instance.prefetcher.tiles;
+        assertTrue(cache.contains(instance.prefetcher.key(COVERAGE_NAME, zoomLevel, col, row)));
+        for (int r = row - 1; r <= row + 1; r++) {
+            for (int c = col - 1; c <= col + 1; c++) {
+                if (instance.readRawTile(COVERAGE_NAME, zoomLevel, c, r) != null) {
+                    assertTrue(cache.contains(instance.prefetcher.key(COVERAGE_NAME, zoomLevel, c, r)));
+                }
+            }
+        }
+        instance.dispose();
+    }
+
+    @Test
+    public void testPrefetchCancelled() throws Exception {
+        assumeNotNull(source);  // Skip test if not found
+        GeoPackageReader instance = new GeoPackageReader(source, null);
+        TileEntry tileset = instance.getTileset();
+        int zoomLevel = tileset.getMaxZoomLevel();
+        TileMatrix matrix = tileset.getTileMatrix(zoomLevel);
+        Rectangle region = new Rectangle(matrix.getMinCol(), matrix.getMinRow(),
+                matrix.getNumCols(), matrix.getNumRows());
+        TilePrefetcher prefetcher = new TilePrefetcher(instance, new TileCache(1 << 26), 2);
+
+        // a fetch scheduled before the cancel decodes nothing
+        int scheduled = prefetcher.generation.get();
+        prefetcher.cancel();
+        prefetcher.fetch(COVERAGE_NAME, tileset, zoomLevel, region, scheduled);
+        assertEquals(0, prefetcher.tiles.getCount());
+
+        prefetcher.fetch(COVERAGE_NAME, tileset, zoomLevel, region, prefetcher.generation.get());
+        assertTrue(prefetcher.tiles.getCount() > 0);
+        prefetcher.tiles.clear();
+
+        prefetcher.dispose();
+        prefetcher.fetch(COVERAGE_NAME, tileset, zoomLevel, region, prefetcher.generation.get());
+        assertEquals(0, prefetcher.tiles.getCount());
+        instance.dispose();
+    }
+
+    @Test
+    public void testPrefetchKeyFileIdentity() throws Exception {
+        assumeNotNull(source);  // Skip test if not found
+        File copy = File.createTempFile("prefetch", ".gpkg");
+        try {
+            Files.copy(DataUtilities.urlToFile(source).toPath(), copy.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            GeoPackageReader instance = new GeoPackageReader(copy, null);
+            TilePrefetcher prefetcher = new TilePrefetcher(instance, new TileCache(1 << 20), 2);
+            String key = prefetcher.key(COVERAGE_NAME, 0, 0, 0);
+            prefetcher.refresh();
+            assertEquals(key, prefetcher.key(COVERAGE_NAME, 0, 0, 0));
+
+            // tiles cached before the file changed are not served anymore
+            assertTrue(copy.setLastModified(copy.lastModified() - 60000));
+            prefetcher.refresh();
+            assertFalse(key.equals(prefetcher.key(COVERAGE_NAME, 0, 0, 0)));
+            instance.dispose();
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testFindAlignedTile() throws IOException {
+        assumeNotNull(source);  // Skip test if not found
+        GeoPackageReader instance = new GeoPackageReader(source, null);
+        TileEntry tileset = instance.getTileset();
+        int zoomLevel = tileset.getMaxZoomLevel();
+        TileMatrix matrix = tileset.getTileMatrix(zoomLevel);
+        int col = matrix.getMinCol();
+        int row = matrix.getMinRow();
+        Envelope origin = tileset.getTileMatrixSetBounds();
+        double width = matrix.getTileWidth() * matrix.getXPixelSize();
+        double height = matrix.getTileHeight() * matrix.getYPixelSize();
+        double minX = origin.getMinX() + col * width;
+        double maxY = origin.getMaxY() - row * height;
+        Envelope envelope = new Envelope(minX, minX + width, maxY - height, maxY);
+
+        int[] result = instance.findAlignedTile(COVERAGE_NAME, envelope,
+                matrix.getTileWidth(), matrix.getTileHeight());
+        assertArrayEquals(new int[]{zoomLevel, col, row}, result);
+
+        Tile tile = instance.readRawTile(COVERAGE_NAME, result[0], result[1], result[2]);
+        assertNotNull(tile);
+        assertTrue(tile.getMimeType().startsWith("image/"));
+
+        // half a tile off, or at another resolution, is not aligned
+        envelope.translate(width / 2, 0);
+        assertNull(instance.findAlignedTile(COVERAGE_NAME, envelope,
+                matrix.getTileWidth(), matrix.getTileHeight()));
+        assertNull(instance.findAlignedTile(COVERAGE_NAME, envelope,
+                matrix.getTileWidth() / 2, matrix.getTileHeight() / 2));
+    }
+
     @Test
     public void testRead_params() throws Exception {
         assumeNotNull(source);  // Skip test if not found
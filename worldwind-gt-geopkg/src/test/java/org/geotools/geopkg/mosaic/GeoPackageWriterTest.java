@@ -0,0 +1,186 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.coverage.CoverageFactoryFinder;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.Tile;
+import org.geotools.geopkg.TileEntry;
+import org.geotools.geopkg.TileMatrix;
+import org.geotools.geopkg.TileReader;
+import org.geotools.referencing.CRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class GeoPackageWriterTest {
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("writer", ".gpkg");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    static GridCoverage2D createCoverage(int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2 = image.createGraphics();
+        g2.setColor(Color.ORANGE);
+        g2.fillRect(0, 0, width, height);
+        g2.dispose();
+        ReferencedEnvelope envelope = new ReferencedEnvelope(0, 45, 0, 45.0 * height / width,
+                CRS.decode("EPSG:4326", true));
+        return CoverageFactoryFinder.getGridCoverageFactory(null).create("test", image, envelope);
+    }
+
+    @Test
+    public void testCreateTileEntry() throws Exception {
+        TileEntry entry = GeoPackageWriter.createTileEntry(createCoverage(600, 300), "test", 256);
+        assertEquals(Integer.valueOf(4326), entry.getSrid());
+        assertEquals(3, entry.getTileMatricies().size());
+        TileMatrix top = entry.getTileMatricies().get(2);
+        assertEquals(Integer.valueOf(2), top.getZoomLevel());
+        assertEquals(Integer.valueOf(4), top.getMatrixWidth());
+        assertEquals(45.0 / 600, top.getXPixelSize(), 1e-12);
+        assertTrue(GeoPackageWriter.isOverview(entry.getTileMatricies().get(1), top));
+
+        // the coverage covers the upper left 3x2 tiles of the top level
+        Rectangle range = GeoPackageWriter.getTileRange(top, entry.getTileMatrixSetBounds(), entry.getBounds());
+        assertEquals(new Rectangle(0, 0, 3, 2), range);
+        assertTrue(GeoPackageWriter.getTileRange(top, entry.getTileMatrixSetBounds(),
+                new Envelope(100, 110, 0, 10)).isEmpty());
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        GeoPackageWriter writer = new GeoPackageWriter(file, null);
+        try {
+            writer.write(createCoverage(512, 256), null);
+            // two tiles at the top level, and the overview of both
+            assertEquals(3, writer.getTilesWritten());
+        } finally {
+            writer.dispose();
+        }
+
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            TileEntry entry = geopkg.tile("test");
+            assertNotNull(entry);
+            List<Tile> tiles = new ArrayList<>();
+            TileReader it = geopkg.reader(entry, null, null, null, null, null, null);
+            try {
+                while (it.hasNext()) {
+                    tiles.add(it.next());
+                }
+            } finally {
+                it.close();
+            }
+            assertEquals(3, tiles.size());
+            for (Tile tile : tiles) {
+                BufferedImage image = GeoPackageReader.createImageFromBytes(tile.getData());
+                assertEquals(256, image.getWidth());
+                if (tile.getZoom() == 1) {
+                    // opaque
+                    assertEquals("image/jpeg", tile.getMimeType());
+                    assertEquals(0, tile.getRow().intValue());
+                } else {
+                    // the lower half of the single tile is outside of the coverage
+                    assertEquals("image/png", tile.getMimeType());
+                    assertEquals(255, image.getRGB(10, 10) >>> 24);
+                    assertEquals(0, image.getRGB(10, 200) >>> 24);
+                }
+            }
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    @Test
+    public void testWriteExistingTileset() throws Exception {
+        GeoPackageWriter writer = new GeoPackageWriter(file, null);
+        try {
+            writer.write(createCoverage(512, 256), null);
+        } finally {
+            writer.dispose();
+        }
+
+        writer = new GeoPackageWriter(file, null);
+        try {
+            // a coarser coverage goes into the stored pyramid, not a new one
+            writer.write(createCoverage(256, 128), null);
+            assertEquals(3, writer.getTilesWritten());
+
+            // the stored matrices of the levels of an entry without matrices
+            TileEntry entry = new TileEntry();
+            entry.setTableName("test");
+            writer.write(createCoverage(256, 128), entry, TileImages.PNG);
+            assertEquals(6, writer.getTilesWritten());
+
+            // another pyramid under the same name
+            entry = GeoPackageWriter.createTileEntry(createCoverage(1024, 512), "test", 256);
+            try {
+                writer.write(createCoverage(1024, 512), entry, TileImages.PNG);
+                fail("The writer should have rejected tile matrices not matching the stored ones");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("zoom level"));
+            }
+        } finally {
+            writer.dispose();
+        }
+
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            TileEntry entry = geopkg.tile("test");
+            assertEquals(2, entry.getTileMatricies().size());
+            assertEquals(45.0 / 512, entry.getTileMatricies().get(1).getXPixelSize(), 1e-12);
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteRejectsElevations() throws Exception {
+        GridCoverage2D coverage = createCoverage(16, 16);
+        BufferedImage shorts = new BufferedImage(16, 16, BufferedImage.TYPE_USHORT_GRAY);
+        coverage = CoverageFactoryFinder.getGridCoverageFactory(null).create("elevations", shorts,
+                coverage.getEnvelope());
+        GeoPackageWriter.toRGBA(coverage);
+    }
+}
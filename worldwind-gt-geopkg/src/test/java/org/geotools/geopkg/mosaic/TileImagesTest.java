@@ -0,0 +1,90 @@
+/*
+ *    GeoTools - The Open Source Java GIS Toolkit
+ *    http://geotools.org
+ *
+ *    (C) 2002-2016, Open Source Geospatial Foundation (OSGeo)
+ *
+ *    This library is free software; you can redistribute it and/or
+ *    modify it under the terms of the GNU Lesser General Public
+ *    License as published by the Free Software Foundation;
+ *    version 2.1 of the License.
+ *
+ *    This library is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *    Lesser General Public License for more details.
+ */
+package org.geotools.geopkg.mosaic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TileImagesTest {
+
+    static BufferedImage fill(int width, int height, Color color) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g2 = image.createGraphics();
+        g2.setColor(color);
+        g2.fillRect(0, 0, width, height);
+        g2.dispose();
+        return image;
+    }
+
+    @Test
+    public void testCut() {
+        // RGBA samples of an area starting at 10,10
+        WritableRaster source = fill(8, 4, Color.RED).getRaster().createWritableTranslatedChild(10, 10);
+        BufferedImage tile = TileImages.cut(source, 14, 10, 8, 8);
+        assertArrayEquals(new int[]{255, 0, 0, 255}, tile.getRaster().getPixel(0, 0, (int[]) null));
+        assertArrayEquals(new int[]{255, 0, 0, 255}, tile.getRaster().getPixel(3, 3, (int[]) null));
+        // outside of the area
+        assertArrayEquals(new int[]{0, 0, 0, 0}, tile.getRaster().getPixel(4, 0, (int[]) null));
+        assertArrayEquals(new int[]{0, 0, 0, 0}, tile.getRaster().getPixel(0, 4, (int[]) null));
+        assertFalse(TileImages.isEmpty(tile));
+        assertFalse(TileImages.isOpaque(tile));
+        assertTrue(TileImages.isEmpty(new BufferedImage(4, 4, BufferedImage.TYPE_4BYTE_ABGR)));
+    }
+
+    @Test
+    public void testDownsample() {
+        BufferedImage[] children = new BufferedImage[4];
+        children[0] = fill(4, 4, Color.BLUE);
+        // half transparent: the transparent pixels do not darken the colors
+        children[3] = fill(4, 4, Color.GREEN);
+        children[3].getRaster().setPixel(0, 0, new int[]{0, 0, 0, 0});
+        children[3].getRaster().setPixel(1, 0, new int[]{0, 0, 0, 0});
+
+        BufferedImage tile = TileImages.downsample(children, 4, 4);
+        assertArrayEquals(new int[]{0, 0, 255, 255}, tile.getRaster().getPixel(1, 1, (int[]) null));
+        assertArrayEquals(new int[]{0, 0, 0, 0}, tile.getRaster().getPixel(3, 0, (int[]) null));
+        assertArrayEquals(new int[]{0, 255, 0, 128}, tile.getRaster().getPixel(2, 2, (int[]) null));
+        assertArrayEquals(new int[]{0, 255, 0, 255}, tile.getRaster().getPixel(3, 3, (int[]) null));
+    }
+
+    @Test
+    public void testEncode() throws IOException {
+        BufferedImage opaque = fill(16, 16, Color.ORANGE);
+        assertTrue(TileImages.isOpaque(opaque));
+        assertEquals("image/jpeg", mimeType(TileImages.encode(opaque, TileImages.JPEG_PNG)));
+        assertEquals("image/png", mimeType(TileImages.encode(opaque, TileImages.PNG)));
+
+        BufferedImage translucent = TileImages.cut(opaque.getRaster(), 8, 0, 16, 16);
+        assertEquals("image/png", mimeType(TileImages.encode(translucent, TileImages.JPEG_PNG)));
+        assertEquals("image/jpeg", mimeType(TileImages.encode(translucent, TileImages.JPEG)));
+    }
+
+    static String mimeType(byte[] data) {
+        return (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8 ? "image/jpeg"
+                : (data[0] & 0xff) == 0x89 && data[1] == 'P' ? "image/png" : null;
+    }
+}
@@ -0,0 +1,93 @@
+package org.geotools.geopkg.mosaic;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.geotools.geopkg.GeoPackage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TilePrefetcherTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder(new File("target"));
+
+    @Test
+    public void testVersion() throws Exception {
+        File file = new File(tmp.getRoot(), "test.gpkg");
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            geopkg.init();
+            String version = TilePrefetcher.version(file);
+            assertEquals(version, TilePrefetcher.version(file));
+
+            // a transaction keeping the size of the file, within the same second
+            try (Connection cx = geopkg.getDataSource().getConnection();
+                    Statement st = cx.createStatement()) {
+                st.execute("CREATE TABLE t (v INTEGER)");
+                st.execute("INSERT INTO t VALUES (1)");
+                version = TilePrefetcher.version(file);
+                long length = file.length();
+                st.execute("UPDATE t SET v = 2");
+                assertEquals(length, file.length());
+            }
+            assertNotEquals(version, TilePrefetcher.version(file));
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    @Test
+    public void testTileCacheEviction() {
+        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+        long size = TileCache.sizeOf(image);
+        assertEquals(16 * 16 * 4, size);
+
+        TileCache cache = new TileCache(size * 2);
+        TilePrefetcher prefetcher = new TilePrefetcher(null, cache, 2);
+        cache.put("a", image, prefetcher);
+        cache.put("b", image, prefetcher);
+        assertNotNull(cache.get("a"));
+        assertEquals(1, prefetcher.used.get());
+
+        // b is the least recently used, and was never used
+        cache.put("c", image, null);
+        assertFalse(cache.contains("b"));
+        assertNull(cache.get("b"));
+        assertEquals(1, prefetcher.wasted.get());
+        assertTrue(prefetcher.pressure);
+        assertEquals(2, cache.getCount());
+        assertEquals(size * 2, cache.getSize());
+    }
+
+    @Test
+    public void testSubtract() {
+        Rectangle ring = new Rectangle(0, 0, 5, 5);
+        List<Rectangle> strips = TilePrefetcher.subtract(ring, new Rectangle(1, 1, 3, 3));
+        assertEquals(4, strips.size());
+        int area = 0;
+        for (Rectangle strip : strips) {
+            area += strip.width * strip.height;
+            assertFalse(strip.intersects(new Rectangle(1, 1, 3, 3)));
+        }
+        assertEquals(25 - 9, area);
+
+        // clipped at the matrix edge
+        strips = TilePrefetcher.subtract(new Rectangle(0, 0, 3, 3), new Rectangle(0, 0, 2, 2));
+        assertEquals(2, strips.size());
+
+        strips = TilePrefetcher.subtract(ring, new Rectangle(10, 10, 1, 1));
+        assertEquals(1, strips.size());
+        assertEquals(ring, strips.get(0));
+    }
+}